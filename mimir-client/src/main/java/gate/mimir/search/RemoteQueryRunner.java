@@ -56,6 +56,8 @@ public class RemoteQueryRunner implements QueryRunner {
   
   protected static final String ACTION_DOC_SCORES_BIN = "documentsScoresBin";
   
+  protected static final String ACTION_DOCS_AFTER_BIN = "documentsAfterBin";
+  
   protected static final String ACTION_DOC_HITS_BIN = "documentHitsBin";
   
   protected static final String ACTION_DOC_DATA_BIN = "documentDataBin";
@@ -403,6 +405,25 @@ public class RemoteQueryRunner implements QueryRunner {
     return documentScores.get(rank);
   }
 
+  /* (non-Javadoc)
+   * @see gate.mimir.search.QueryRunner#getDocumentsAfter(double, long, int)
+   */
+  @Override
+  public DocumentsPage getDocumentsAfter(double afterScore,
+          long afterDocumentId, int size) throws IOException {
+    try {
+      return (DocumentsPage)webUtils.getObject(
+        getActionBaseUrl(ACTION_DOCS_AFTER_BIN),
+        "queryId", URLEncoder.encode(queryId, "UTF-8"),
+        "afterScore", Double.toString(afterScore),
+        "afterDocumentId", Long.toString(afterDocumentId),
+        "size", Integer.toString(size));
+    } catch(ClassNotFoundException e) {
+      throw new RuntimeException("Got wrong value type from remote endpoint", 
+        e);
+    }
+  }
+
   /* (non-Javadoc)
    * @see gate.mimir.search.QueryRunner#getDocumentHits(int)
    */
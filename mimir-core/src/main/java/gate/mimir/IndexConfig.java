@@ -15,7 +15,10 @@
 package gate.mimir;
 
 import gate.Gate;
+import gate.mimir.index.DocumentDataCache;
 import gate.mimir.index.IndexException;
+import gate.mimir.index.MergePolicy;
+import gate.mimir.index.TieredMergePolicy;
 import it.unimi.di.big.mg4j.index.NullTermProcessor;
 import it.unimi.di.big.mg4j.index.TermProcessor;
 
@@ -236,6 +239,17 @@ public class IndexConfig implements Serializable {
    */
   public static final int DEFAULT_MAXIMUM_BATCHES = 20;
   
+  /**
+   * The default value for {@link #indexingThreads}: one thread per atomic 
+   * index, i.e. no parallel in-RAM indexing.
+   */
+  public static final int DEFAULT_INDEXING_THREADS = 1;
+  
+  /**
+   * The default value for {@link #batchesInFlight}.
+   */
+  public static final int DEFAULT_BATCHES_IN_FLIGHT = 1;
+  
   /**
    * A Map storing values that need to be passed between the various pluggable
    * components used by this index (e.g. ORDI-based annotation helpers may
@@ -417,6 +431,250 @@ public class IndexConfig implements Serializable {
     this.maximumBatches = maximumBatches;
   }
 
+  /**
+   * Gets the number of worker threads used by each token sub-index for 
+   * building its in-RAM batch. Values smaller than or equal to 1 mean that 
+   * all in-RAM indexing is performed on the sub-index's own indexing thread.
+   * 
+   * Defaults to {@value #DEFAULT_INDEXING_THREADS}.
+   * @return
+   */
+  public int getIndexingThreads() {
+    return indexingThreads;
+  }
+
+  /**
+   * Sets the number of worker threads used by each token sub-index for 
+   * building its in-RAM batch.
+   * 
+   * Defaults to {@value #DEFAULT_INDEXING_THREADS}.
+   * @param indexingThreads
+   */
+  public void setIndexingThreads(int indexingThreads) {
+    this.indexingThreads = indexingThreads;
+  }
+
+  /**
+   * Gets the maximum number of in-RAM batches that each sub-index may have 
+   * waiting to be written to disk by its background writer, while a new batch 
+   * is being built. A value of 0 (or less) means batches are written by 
+   * the indexing thread itself, so indexing pauses while each batch is 
+   * written.
+   * 
+   * Defaults to {@value #DEFAULT_BATCHES_IN_FLIGHT}.
+   * @return
+   */
+  public int getBatchesInFlight() {
+    return batchesInFlight;
+  }
+
+  /**
+   * Sets the maximum number of in-RAM batches that each sub-index may have 
+   * waiting to be written to disk. See {@link #getBatchesInFlight()}.
+   * 
+   * Defaults to {@value #DEFAULT_BATCHES_IN_FLIGHT}.
+   * @param batchesInFlight
+   */
+  public void setBatchesInFlight(int batchesInFlight) {
+    this.batchesInFlight = batchesInFlight;
+  }
+
+  /**
+   * Should the in-RAM batches be accumulated in packed, off-heap buffers (see
+   * {@link gate.mimir.index.PackedPostingsAccumulator}) instead of a map of 
+   * postings list objects? This greatly reduces the amount of heap used (and 
+   * the associated garbage collection costs) when indexing large batches.
+   * Parallel indexing (see {@link #getIndexingThreads()}) always uses 
+   * postings list objects.
+   * 
+   * Defaults to <code>false</code>.
+   * @return
+   */
+  public boolean isPackedPostings() {
+    return packedPostings;
+  }
+
+  /**
+   * Sets the type of in-RAM storage used for the postings of the batches 
+   * being built. See {@link #isPackedPostings()}.
+   * @param packedPostings
+   */
+  public void setPackedPostings(boolean packedPostings) {
+    this.packedPostings = packedPostings;
+  }
+
+  /**
+   * Gets the policy used to select the on-disk batches that get merged 
+   * together. If <code>null</code> (which is the case for indexes created 
+   * with older versions), all the batches are compacted into a single one 
+   * whenever their number exceeds {@link #getMaximumBatches()}.
+   * 
+   * Defaults to a {@link TieredMergePolicy} with default settings.
+   * @return
+   */
+  public MergePolicy getMergePolicy() {
+    return mergePolicy;
+  }
+
+  /**
+   * Sets the policy used to select the on-disk batches that get merged 
+   * together. See {@link #getMergePolicy()}.
+   * @param mergePolicy
+   */
+  public void setMergePolicy(MergePolicy mergePolicy) {
+    this.mergePolicy = mergePolicy;
+  }
+
+  /**
+   * Should documents become searchable as soon as they have been indexed in 
+   * RAM, rather than only after the batch containing them has been written 
+   * to disk? When enabled, term queries also search (a snapshot of) the 
+   * in-RAM batches, so new documents become visible within moments, 
+   * independently of {@link #getTimeBetweenBatches()}.
+   * 
+   * Defaults to <code>true</code> for new indexes; indexes created with older
+   * versions load with this set to <code>false</code>.
+   * @return
+   */
+  public boolean isNearRealTimeSearch() {
+    return nearRealTimeSearch;
+  }
+
+  /**
+   * Enables or disables searching of the in-RAM batches. See 
+   * {@link #isNearRealTimeSearch()}.
+   * @param nearRealTimeSearch
+   */
+  public void setNearRealTimeSearch(boolean nearRealTimeSearch) {
+    this.nearRealTimeSearch = nearRealTimeSearch;
+  }
+
+  /**
+   * Should the postings for deleted documents be physically removed when 
+   * on-disk batches are merged or compacted? When enabled, each merge drops 
+   * the postings (and direct index entries) for the documents that are 
+   * marked as deleted at the time, and the document collection is compacted
+   * straight afterwards, dropping their stored data. Deleted documents are 
+   * left as holes: all other documents keep their IDs.
+   * 
+   * Purging cannot be undone: once a merge has started purging a document,
+   * un-deleting it has no effect. Defaults to <code>false</code>.
+   * @return
+   */
+  public boolean isPurgeDeletedDocuments() {
+    return purgeDeletedDocuments;
+  }
+
+  /**
+   * Enables or disables the removal of deleted documents during merges. See 
+   * {@link #isPurgeDeletedDocuments()}.
+   * @param purgeDeletedDocuments
+   */
+  public void setPurgeDeletedDocuments(boolean purgeDeletedDocuments) {
+    this.purgeDeletedDocuments = purgeDeletedDocuments;
+  }
+
+  /**
+   * Are the documents queued for indexing written to a log on disk, so that 
+   * the ones not yet written to the index can be indexed again after a crash?
+   * See {@link gate.mimir.index.DocumentQueueLog}. Logging costs some disk 
+   * space and I/O for the documents waiting to be written to disk, but 
+   * without it, an index that was not closed properly needs to be truncated
+   * (with {@link gate.mimir.util.TruncateIndex}), losing the most recent 
+   * documents. Indexes created with older versions have this disabled.
+   * @return
+   */
+  public boolean isLogQueuedDocuments() {
+    return logQueuedDocuments;
+  }
+
+  /**
+   * Enables or disables the logging of queued documents. See 
+   * {@link #isLogQueuedDocuments()}. Changes only take effect when the index
+   * is next opened.
+   * @param logQueuedDocuments
+   */
+  public void setLogQueuedDocuments(boolean logQueuedDocuments) {
+    this.logQueuedDocuments = logQueuedDocuments;
+  }
+
+  /**
+   * Are the documents of a new index stored in a 
+   * {@link gate.mimir.index.SegmentDocumentStore} (memory-mapped, 
+   * block-compressed segment files), rather than in zip files? Segment 
+   * stores can be read concurrently without any locking. Only used when the 
+   * index is created: existing collections keep their layout, and can be 
+   * converted with {@link gate.mimir.util.ConvertDocumentCollection}.
+   * 
+   * Defaults to <code>true</code> for new indexes; indexes created with older
+   * versions load with this set to <code>false</code>.
+   * @return
+   */
+  public boolean isSegmentDocumentStore() {
+    return segmentDocumentStore;
+  }
+
+  /**
+   * Selects the document storage for new indexes. See 
+   * {@link #isSegmentDocumentStore()}.
+   * @param segmentDocumentStore
+   */
+  public void setSegmentDocumentStore(boolean segmentDocumentStore) {
+    this.segmentDocumentStore = segmentDocumentStore;
+  }
+
+  /**
+   * Are the document tokens (the values of the first token feature, as 
+   * stored in the document collection for rendering documents and hits) 
+   * stored as IDs in a dictionary shared by all the documents, rather than 
+   * as strings? This makes the collection much smaller, as each distinct 
+   * token string is only stored once. The token strings are only looked up 
+   * when the text of a document is requested.
+   * 
+   * The dictionary holds the original token strings, so it is separate from
+   * the term list of the direct index (whose terms have been through the 
+   * term processor). Enabling this only takes effect when the index is next 
+   * opened, and documents already in the collection are left as they are. 
+   * Once a collection has a token dictionary, it keeps using it.
+   * 
+   * Defaults to <code>false</code>.
+   * @return
+   */
+  public boolean isDocumentTokenIds() {
+    return documentTokenIds;
+  }
+
+  /**
+   * Enables or disables storing the document tokens as IDs. See 
+   * {@link #isDocumentTokenIds()}.
+   * @param documentTokenIds
+   */
+  public void setDocumentTokenIds(boolean documentTokenIds) {
+    this.documentTokenIds = documentTokenIds;
+  }
+
+  /**
+   * Gets the maximum amount of memory (in bytes, estimated) used to cache 
+   * the document data (URI, title, text and metadata) read from the 
+   * document collection. A value of 0 (as loaded from indexes created with
+   * older versions) selects the default size, 
+   * {@link DocumentDataCache#DEFAULT_MAXIMUM_SIZE}.
+   * @return
+   */
+  public long getDocumentCacheSize() {
+    return documentCacheSize;
+  }
+
+  /**
+   * Sets the maximum size of the document data cache. See 
+   * {@link #getDocumentCacheSize()}. Changes only take effect when the index
+   * is next opened.
+   * @param documentCacheSize
+   */
+  public void setDocumentCacheSize(long documentCacheSize) {
+    this.documentCacheSize = documentCacheSize;
+  }
+
   /**
    * Gets the options map - a Map with arbitrary configuration options, which 
    * is made available to all sub-elements of this index (e.g. the various 
@@ -479,6 +737,7 @@ public class IndexConfig implements Serializable {
     xs.alias("indexConfig", IndexConfig.class);
     xs.alias("tokenIndexer", TokenIndexerConfig.class);
     xs.alias("semanticIndexer", SemanticIndexerConfig.class);
+    xs.alias("tieredMergePolicy", TieredMergePolicy.class);
     // when loading old indexes, add the '.big.'
     xs.aliasPackage("it.unimi.dsi.mg4j", "it.unimi.di.big.mg4j");
     // when loading pre-5.0 indexes, replace the package name
@@ -674,6 +933,63 @@ public class IndexConfig implements Serializable {
    */
   private int maximumBatches = DEFAULT_MAXIMUM_BATCHES;
   
+  /**
+   * The number of worker threads each token sub-index uses to build its 
+   * in-RAM batch. Indexes created with older versions will have this set to 
+   * 0, which is treated the same as 1 (single-threaded).
+   */
+  private int indexingThreads = DEFAULT_INDEXING_THREADS;
+  
+  /**
+   * The maximum number of frozen in-RAM batches each sub-index may have 
+   * waiting to be written. Indexes created with older versions will have this 
+   * set to 0, meaning that batches are written synchronously. 
+   */
+  private int batchesInFlight = DEFAULT_BATCHES_IN_FLIGHT;
+  
+  /**
+   * Should the in-RAM batches use packed, off-heap postings storage?
+   */
+  private boolean packedPostings = false;
+  
+  /**
+   * The policy selecting which on-disk batches get merged. Indexes created 
+   * with older versions will have this set to <code>null</code>, and will 
+   * use the old compact-everything behaviour.
+   */
+  private MergePolicy mergePolicy = new TieredMergePolicy();
+  
+  /**
+   * Are documents in the in-RAM batches searchable?
+   */
+  private boolean nearRealTimeSearch = true;
+  
+  /**
+   * Are deleted documents removed from the on-disk data when merging?
+   */
+  private boolean purgeDeletedDocuments = false;
+  
+  /**
+   * Are queued documents logged for crash recovery?
+   */
+  private boolean logQueuedDocuments = true;
+  
+  /**
+   * Are the documents of new indexes stored in segment files?
+   */
+  private boolean segmentDocumentStore = true;
+  
+  /**
+   * Are the document tokens stored as IDs in the document collection?
+   */
+  private boolean documentTokenIds = false;
+  
+  /**
+   * The maximum size (in bytes) of the document data cache.
+   */
+  private long documentCacheSize = 
+      DocumentDataCache.DEFAULT_MAXIMUM_SIZE;
+  
   /**
    * A Map with arbitrary configuration options, which is made available to all
    * sub-elements of this index (e.g. the various annotation helpers).  
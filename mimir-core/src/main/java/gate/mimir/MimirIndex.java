@@ -22,39 +22,37 @@ import gate.mimir.IndexConfig.TokenIndexerConfig;
 import gate.mimir.index.AtomicAnnotationIndex;
 import gate.mimir.index.AtomicIndex;
 import gate.mimir.index.AtomicTokenIndex;
+import gate.mimir.index.DeletedDocuments;
 import gate.mimir.index.DocumentCollection;
 import gate.mimir.index.DocumentData;
+import gate.mimir.index.DocumentQueueLog;
+import gate.mimir.index.DocumentRingBuffer;
 import gate.mimir.index.GATEDocument;
 import gate.mimir.index.IndexException;
+import gate.mimir.index.MergePolicy;
+import gate.mimir.index.PretokenisedDocument;
 import gate.mimir.search.QueryEngine;
 import gate.util.GateRuntimeException;
 import it.unimi.di.big.mg4j.index.cluster.IndexCluster;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.List;
-import java.util.Set;
-import java.util.SortedSet;
 import java.util.Timer;
 import java.util.TimerTask;
-import java.util.TreeSet;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.FutureTask;
 import java.util.concurrent.LinkedBlockingQueue;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
+import java.util.concurrent.ThreadFactory;
 import java.util.zip.ZipException;
 
 import org.slf4j.Logger;
@@ -99,9 +97,12 @@ import org.slf4j.LoggerFactory;
  * All the batches are merged into a {@link IndexCluster} which is then used to
  * serve queries. If the number of clusters gets too large, it can harm
  * efficiency or the system can run into problems due to too large a number of
- * files being open. To avoid this, the index batches can be <em>compacted</em>
- * into a single batch. The index will automatically do that once the number of
- * batches exceeds {@link IndexConfig#setMaximumBatches(int)}.
+ * files being open. To avoid this, runs of similarly-sized batches are 
+ * <em>merged</em> together, as selected by the configured 
+ * {@link IndexConfig#getMergePolicy()}, so each document only gets rewritten 
+ * a small number of times. Indexes without a merge policy (e.g. those created 
+ * by older versions) instead <em>compact</em> all the batches into a single 
+ * one once their number exceeds {@link IndexConfig#setMaximumBatches(int)}.
  * </p>
  * <p>
  * Client code can request a compact operation by calling
@@ -122,10 +123,13 @@ public class MimirIndex {
   public static final String INDEX_CONFIG_FILENAME = "config.xml";
   
   /**
-   * The name for the file (stored in the root index directory) containing 
-   * the serialised version of the {@link #deletedDocumentIds}. 
+   * The name for the file (stored in the root index directory) used by older
+   * versions for storing the serialised set of deleted document IDs. Deleted
+   * documents are now stored by {@link DeletedDocuments}, which imports this
+   * file if found.
    */
-  public static final String DELETED_DOCUMENT_IDS_FILE_NAME = "deleted.ser";
+  public static final String DELETED_DOCUMENT_IDS_FILE_NAME = 
+      DeletedDocuments.LEGACY_FILE_NAME;
   
   /**
    * How many occurrences to index in each batch. This metric is more reliable, 
@@ -134,7 +138,8 @@ public class MimirIndex {
   public static final int DEFAULT_OCCURRENCES_PER_BATCH = 100 * 1000 * 1000;
   
   /**
-   * The default length for the buffer input / output queues for sub-indexers.
+   * The default length for the ring buffer holding the documents queued for 
+   * the sub-indexers.
    */
   public static final int DEFAULT_INDEXING_QUEUE_SIZE = 30;
   
@@ -163,8 +168,6 @@ public class MimirIndex {
    * A {@link Runnable} used in a background thread to perform various index 
    * maintenance tasks:
    * <ul>
-   *   <li>check that the documents are being returned from the sub-indexers
-   *   in the same order as they were submitted for indexing;</li>
    *   <li>update the {@link MimirIndex#occurrencesInRam} value by adding the 
    *   occurrences produced by indexing new documents.</li>
    *   <li>delete indexed documents from GATE</li>
@@ -174,35 +177,31 @@ public class MimirIndex {
     public void run(){
       boolean finished = false;
       while(!finished){
-        GATEDocument currentDocument = null;
         try {
-          //get one document from each of the sub-indexers
-          //check identity and add to output queue.
-          for(AtomicIndex aSubIndexer : subIndexes){
-            GATEDocument aDoc = aSubIndexer.getOutputQueue().take();
-            if(currentDocument == null){
-              currentDocument = aDoc;
-            }else if(aDoc != currentDocument){
-              //malfunction!
-              throw new RuntimeException(
-                      "Out of order document received from sub-indexer!");
-            }
-          }
-          //we obtained the same document from all the sub-indexers
-          if(currentDocument != GATEDocument.END_OF_QUEUE) {
-            occurrencesInRam += currentDocument.getOccurrences();
-            // let's delete it
-            logger.debug("Deleting document "
-                + currentDocument.getDocument().getName());
-            gate.Factory.deleteResource(currentDocument.getDocument());
-            logger.debug("Document deleted.  "
-                    + Gate.getCreoleRegister().getLrInstances(
-                        currentDocument.getDocument().getClass().getName())
-                            .size() + " documents still live.");            
-          } else {
+          // the next document released by all the sub-indexers (the ring 
+          // buffer guarantees the order)
+          GATEDocument currentDocument = indexedDocuments.take();
+          if(currentDocument == GATEDocument.END_OF_QUEUE) {
             // we're done
             finished = true;
+          } else if(currentDocument.getDocument() != null || 
+                    currentDocument.getPretokenisedDocument() != null) {
+            occurrencesInRam += currentDocument.getOccurrences();
+            // the document is now searchable in all sub-indexes
+            documentsIndexed++;
+            if(currentDocument.getDocument() != null) {
+              // let's delete it
+              logger.debug("Deleting document "
+                  + currentDocument.getDocument().getName());
+              gate.Factory.deleteResource(currentDocument.getDocument());
+              logger.debug("Document deleted.  "
+                      + Gate.getCreoleRegister().getLrInstances(
+                          currentDocument.getDocument().getClass().getName())
+                              .size() + " documents still live.");
+            }
           }
+          // anything else is a control marker published by a sub-index
+          indexedDocuments.release();
         } catch(InterruptedException e) {
           Thread.currentThread().interrupt();
         }
@@ -238,19 +237,30 @@ public class MimirIndex {
           try {
             occurrencesInRam -= aTask.get();
             if(syncRequests.isEmpty()) {
-              // latest dump finished: compact index if needed;
-              boolean compactNeeded = false;
-              for(AtomicIndex aSubIndex : subIndexes) {
-                if(aSubIndex.getBatchCount() > indexConfig.getMaximumBatches()) {
-                  compactNeeded = true;
-                  break;
+              // the logged documents now on disk everywhere are not needed
+              releaseQueuedDocuments();
+              // latest dump finished: merge or compact index if needed;
+              boolean merged = false;
+              if(indexConfig.getMergePolicy() != null) {
+                if(!closed) merged = mergeIndexSync();
+              } else {
+                boolean compactNeeded = false;
+                for(AtomicIndex aSubIndex : subIndexes) {
+                  if(aSubIndex.getBatchCount() > indexConfig.getMaximumBatches()) {
+                    compactNeeded = true;
+                    break;
+                  }
+                }
+                if(compactNeeded && !closed){
+                  logger.debug("Compacting sub-indexes");
+                  compactIndexSync();
+                  merged = true;
                 }
               }
-              if(compactNeeded && !closed){
-                logger.debug("Compacting sub-indexes");
-                compactIndexSync();
-              }
-              if(documentCollection.getArchiveCount() >  indexConfig.getMaximumBatches()
+              // when purging deleted documents, the collection is compacted 
+              // after every merge, so it sheds the same documents
+              if((documentCollection.getArchiveCount() >  indexConfig.getMaximumBatches()
+                  || (merged && indexConfig.isPurgeDeletedDocuments()))
                  && !closed) {
                 try {
                   logger.debug("Compacting document collection");
@@ -297,19 +307,46 @@ public class MimirIndex {
      * @throws InterruptedException
      */
     protected void compactIndexSync() throws InterruptedException {
-      List<Future<Void>> futures = requestCompactIndex();
-
+      waitForAll(requestCompactIndex(), "compacting");
+    }
+    
+    /**
+     * Requests the sub-indexes that need it to merge some of their batches 
+     * (according to the configured {@link MergePolicy}), and waits for all the
+     * operations to complete.
+     * @return <code>true</code> if any merges were performed.
+     * @throws InterruptedException
+     */
+    protected boolean mergeIndexSync() throws InterruptedException {
+      List<Future<Void>> futures = requestMergeIndex();
+      if(!futures.isEmpty()) {
+        logger.debug("Merging batches for " + futures.size() + 
+            " sub-indexes");
+        waitForAll(futures, "merging");
+        return true;
+      }
+      return false;
+    }
+    
+    /**
+     * Waits for a set of sub-index maintenance operations to complete. If any
+     * of them fails, the index is closed, to avoid further damage.
+     * @param futures
+     * @param operation the name of the operation, used for logging.
+     */
+    private void waitForAll(List<Future<Void>> futures, String operation) {
       for(Future<Void> f : futures){
         try {
           f.get();
         } catch(InterruptedException e) {
-          // we were interrupted while waiting for a compacting operation
-          logger.error("Received interrupt request while compacting "
-              + "operation in progress", e);
+          // we were interrupted while waiting for a maintenance operation
+          logger.error("Received interrupt request while " + operation  
+              + " operation in progress", e);
           Thread.currentThread().interrupt();
         } catch(ExecutionException e) {
-          logger.error("Execution exception while compacting the index. Index "
-              + "may now be corrupted, closing it to avoid further damage", e);
+          logger.error("Execution exception while " + operation + 
+              " the index. Index may now be corrupted, closing it to avoid " +
+              "further damage", e);
           try {
             close();
           } catch(InterruptedException e1) {
@@ -324,26 +361,33 @@ public class MimirIndex {
   }  
   
   
+  /**
+   * {@link TimerTask} used to fold the log of recent changes to the set of 
+   * deleted documents into a new checkpoint.
+   */
   private class WriteDeletedDocsTask extends TimerTask {
     public void run() {
       synchronized(maintenanceTimer) {
-        File delFile = new File(indexDirectory, DELETED_DOCUMENT_IDS_FILE_NAME);
-        if(delFile.exists()) {
-          delFile.delete();
-        }
         try{
-          logger.debug("Writing deleted documents set");
-          ObjectOutputStream oos = new ObjectOutputStream(
-                  new GZIPOutputStream(
-                  new BufferedOutputStream(
-                  new FileOutputStream(delFile))));
-          oos.writeObject(deletedDocumentIds);
-          oos.flush();
-          oos.close();
-          logger.debug("Writing deleted documents set completed.");
+          deletedDocuments.checkpoint();
         }catch (IOException e) {
           logger.error("Exception while writing deleted documents set", e);
-        }        
+        }
+      }
+    }
+  }
+  
+  /**
+   * {@link TimerTask} used to regularly force the documents appended to the 
+   * {@link MimirIndex#documentQueueLog} to disk.
+   */
+  protected class SyncQueueLogTask extends TimerTask {
+    @Override
+    public void run() {
+      try {
+        documentQueueLog.sync();
+      } catch(IOException e) {
+        logger.error("Could not sync the queued documents log", e);
       }
     }
   }
@@ -383,6 +427,21 @@ public class MimirIndex {
    */
   protected DocumentCollection documentCollection;
   
+  /**
+   * The log of the documents queued for indexing, used to re-index the 
+   * documents that had not been written to disk if the process stops without
+   * closing the index. This is <code>null</code> if 
+   * {@link IndexConfig#isLogQueuedDocuments()} is disabled.
+   */
+  protected DocumentQueueLog documentQueueLog;
+  
+  /**
+   * The number of documents (replayed from the {@link #documentQueueLog}) 
+   * for which the document collection already has the data, so it should
+   * not be written again.
+   */
+  protected long collectionDocumentsToSkip;
+  
 
   
   /**
@@ -398,6 +457,17 @@ public class MimirIndex {
   
   protected volatile boolean closed = false;
   
+  /**
+   * Lock used to set {@link #closed}, so that only one thread closes the 
+   * index.
+   */
+  private final Object closeLock = new Object();
+  
+  /**
+   * Released once the index has been closed.
+   */
+  private final CountDownLatch closeCompleted = new CountDownLatch(1);
+  
   /**
    * A list of futures representing sync-to-disk operations currently 
    * in-progress in all of the sub-indexes.
@@ -407,7 +477,7 @@ public class MimirIndex {
   /**
    * The set of IDs for the documents marked as deleted. 
    */
-  private transient SortedSet<Long> deletedDocumentIds;
+  private transient DeletedDocuments deletedDocuments;
   
   /**
    * A timer used to execute various regular index maintenance tasks, such as 
@@ -417,8 +487,8 @@ public class MimirIndex {
   private transient Timer maintenanceTimer;
   
   /**
-   * The timer task used to top write to disk the deleted documents data.
-   * This value is non-null only when there is a pending write. 
+   * The timer task used to write a new checkpoint of the deleted documents 
+   * data. This value is non-null only when there is a pending write. 
    */
   private volatile transient WriteDeletedDocsTask writeDeletedDocsTask;
   
@@ -445,14 +515,40 @@ public class MimirIndex {
    */
   protected AtomicIndex[] subIndexes;
   
+  /**
+   * The ring buffer used to pass the documents queued for indexing to all the
+   * sub-indexes. Documents are published while holding the lock on 
+   * {@link #subIndexes}.
+   */
+  protected DocumentRingBuffer indexingBuffer;
+  
+  /**
+   * The consumer reading from the {@link #indexingBuffer} the documents that
+   * have been indexed by all the sub-indexes.
+   */
+  protected DocumentRingBuffer.Consumer indexedDocuments;
+  
   protected int indexingQueueSize = DEFAULT_INDEXING_QUEUE_SIZE;
   
+  /**
+   * The executor used to open the sub-indexes, and their batches, while
+   * {@link #openIndex()} runs. <code>null</code> at all other times.
+   */
+  private volatile ExecutorService openersExecutor;
+  
   /**
    * The total number of occurrences in all sub-indexes that have not yet been
    * written to disk.
    */
   protected volatile long occurrencesInRam;
   
+  /**
+   * The total number of documents that have been fully indexed by all the 
+   * sub-indexes (whether they have already been written to disk or not). 
+   * Only updated by the {@link IndexMaintenanceRunner}.
+   */
+  protected volatile long documentsIndexed;
+  
   /**
    * The {@link QueryEngine} used to run searches on this index.
    */
@@ -514,31 +610,76 @@ public class MimirIndex {
     // Prepare for indexing
     // ####################
     // read the index config and create the sub-indexers
-    TokenIndexerConfig tokConfs[] = indexConfig.getTokenIndexers();
-    tokenIndexes = new AtomicTokenIndex[tokConfs.length];
-    for(int i = 0; i < tokConfs.length; i++) {
-      String subIndexname = "token-" + i;
-      tokenIndexes[i] = new AtomicTokenIndex(
-          this, 
-          subIndexname, 
-          tokConfs[i].isDirectIndexEnabled(),
-          new LinkedBlockingQueue<GATEDocument>(indexingQueueSize),
-          new LinkedBlockingQueue<GATEDocument>(indexingQueueSize),
-          tokConfs[i],
-          i == 0);
-    }
-    
-    SemanticIndexerConfig sics[] = indexConfig.getSemanticIndexers();
-    mentionIndexes = new AtomicAnnotationIndex[sics.length];
-    for(int  i = 0; i < sics.length; i++) {
-      String subIndexname = "mention-" + i;
-      mentionIndexes[i] = new AtomicAnnotationIndex(
-          this, 
-          subIndexname, 
-          sics[i].isDirectIndexEnabled(),
-          new LinkedBlockingQueue<GATEDocument>(),
-          new LinkedBlockingQueue<GATEDocument>(),
-          sics[i]);
+    indexingBuffer = new DocumentRingBuffer(indexingQueueSize);
+    // the sub-indexes are opened in parallel, as each may have many batches
+    // to open. The same executor is used by the sub-indexes to open their 
+    // batches (see getOpenersExecutor()), and all tasks are run by the 
+    // waiting thread if no opener thread has started them yet, so waiting
+    // for a task never blocks all the opener threads.
+    openersExecutor = Executors.newFixedThreadPool(
+        Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable r) {
+            return new Thread(r, "Mimir sub-index opener");
+          }
+        });
+    try {
+      final TokenIndexerConfig tokConfs[] = indexConfig.getTokenIndexers();
+      List<FutureTask<? extends AtomicIndex>> openTasks = 
+          new ArrayList<FutureTask<? extends AtomicIndex>>();
+      for(int i = 0; i < tokConfs.length; i++) {
+        final String subIndexname = "token-" + i;
+        final int index = i;
+        final DocumentRingBuffer.Consumer input = indexingBuffer.newConsumer();
+        openTasks.add(new FutureTask<AtomicTokenIndex>(
+            new Callable<AtomicTokenIndex>() {
+          @Override
+          public AtomicTokenIndex call() throws Exception {
+            return new AtomicTokenIndex(
+                MimirIndex.this, 
+                subIndexname, 
+                tokConfs[index].isDirectIndexEnabled(),
+                input,
+                tokConfs[index],
+                index == 0);
+          }
+        }));
+      }
+      
+      final SemanticIndexerConfig sics[] = indexConfig.getSemanticIndexers();
+      for(int  i = 0; i < sics.length; i++) {
+        final String subIndexname = "mention-" + i;
+        final int index = i;
+        final DocumentRingBuffer.Consumer input = indexingBuffer.newConsumer();
+        openTasks.add(new FutureTask<AtomicAnnotationIndex>(
+            new Callable<AtomicAnnotationIndex>() {
+          @Override
+          public AtomicAnnotationIndex call() throws Exception {
+            return new AtomicAnnotationIndex(
+                MimirIndex.this, 
+                subIndexname, 
+                sics[index].isDirectIndexEnabled(),
+                input,
+                sics[index]);
+          }
+        }));
+      }
+      for(FutureTask<? extends AtomicIndex> aTask : openTasks) {
+        openersExecutor.execute(aTask);
+      }
+      AtomicIndex[] opened = runAll(openTasks);
+      
+      tokenIndexes = new AtomicTokenIndex[tokConfs.length];
+      for(int i = 0; i < tokConfs.length; i++) {
+        tokenIndexes[i] = (AtomicTokenIndex)opened[i];
+      }
+      mentionIndexes = new AtomicAnnotationIndex[sics.length];
+      for(int  i = 0; i < sics.length; i++) {
+        mentionIndexes[i] = (AtomicAnnotationIndex)opened[tokConfs.length + i];
+      }
+    } finally {
+      openersExecutor.shutdown();
+      openersExecutor = null;
     }
     
     // construct the joint array of sub-indexes
@@ -546,8 +687,15 @@ public class MimirIndex {
     System.arraycopy(tokenIndexes, 0, subIndexes, 0, tokenIndexes.length);
     System.arraycopy(mentionIndexes, 0, subIndexes, tokenIndexes.length, 
         mentionIndexes.length);
+    DocumentRingBuffer.Consumer[] subIndexInputs = 
+        new DocumentRingBuffer.Consumer[subIndexes.length];
+    for(int i = 0; i < subIndexes.length; i++) {
+      subIndexInputs[i] = subIndexes[i].getInput();
+    }
+    indexedDocuments = indexingBuffer.newConsumer(subIndexInputs);
     
     occurrencesInRam = 0;
+    documentsIndexed = getDocumentsOnDiskCount();
     syncRequests = new LinkedBlockingQueue<Future<Long>>();
     
     // #####################
@@ -593,8 +741,191 @@ public class MimirIndex {
           indexConfig.getTimeBetweenBatches(), 
           indexConfig.getTimeBetweenBatches());
     }
-    // open the zipped document collection
-    documentCollection = new DocumentCollection(indexDirectory);
+    // open the document collection
+    documentCollection = new DocumentCollection(indexDirectory, 
+        indexConfig.isSegmentDocumentStore(), 
+        indexConfig.isDocumentTokenIds());
+    if(indexConfig.getDocumentCacheSize() > 0) {
+      documentCollection.getDocumentCache().setMaximumSize(
+          indexConfig.getDocumentCacheSize());
+    }
+    // re-index anything that was lost
+    recoverQueuedDocuments();
+  }
+  
+  /**
+   * Waits for the sub-indexes being opened in the background, running any 
+   * task that has not been started yet on the calling thread. If any of the
+   * sub-indexes cannot be opened, those that were opened are stopped before
+   * the error is re-thrown.
+   * @param tasks the sub-index opening tasks.
+   * @return the opened sub-indexes, in the same order as the tasks.
+   * @throws IOException
+   * @throws IndexException
+   */
+  private AtomicIndex[] runAll(List<FutureTask<? extends AtomicIndex>> tasks) 
+      throws IOException, IndexException {
+    AtomicIndex[] opened = new AtomicIndex[tasks.size()];
+    Throwable failure = null;
+    boolean interrupted = false;
+    for(int i = 0; i < tasks.size(); i++) {
+      FutureTask<? extends AtomicIndex> aTask = tasks.get(i);
+      // no point in opening any more sub-indexes
+      if(failure != null) aTask.cancel(false);
+      // does nothing if the task was already started
+      aTask.run();
+      while(true) {
+        try {
+          opened[i] = aTask.get();
+          break;
+        } catch(CancellationException e) {
+          break;
+        } catch(ExecutionException e) {
+          if(failure == null) failure = e.getCause();
+          break;
+        } catch(InterruptedException e) {
+          // the running tasks must finish, so that they can be stopped
+          interrupted = true;
+          if(failure == null) {
+            failure = new IndexException(
+                "Interrupted while opening the sub-indexes", e);
+          }
+        }
+      }
+    }
+    if(failure != null) {
+      // stop the indexing threads of the sub-indexes that were opened
+      try {
+        indexingBuffer.put(GATEDocument.END_OF_QUEUE);
+        for(AtomicIndex aSubIndex : opened) {
+          if(aSubIndex != null) aSubIndex.awaitTermination();
+        }
+      } catch(InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if(interrupted) Thread.currentThread().interrupt();
+    if(failure == null) return opened;
+    if(failure instanceof IOException) throw (IOException)failure;
+    if(failure instanceof IndexException) throw (IndexException)failure;
+    if(failure instanceof RuntimeException) throw (RuntimeException)failure;
+    throw new IndexException("Could not open sub-index", failure);
+  }
+  
+  /**
+   * Gets the executor used to open the sub-indexes. Sub-indexes being opened
+   * use it to open their batches in parallel, running on the calling thread
+   * any task not started by the executor, so that waiting for a task never 
+   * blocks all the executor threads.
+   * @return the executor, or <code>null</code> if this index is not being 
+   * opened.
+   */
+  public ExecutorService getOpenersExecutor() {
+    return openersExecutor;
+  }
+  
+  /**
+   * Opens the {@link #documentQueueLog} (if enabled), and queues for indexing
+   * all the logged documents that had not been written to disk by all the 
+   * sub-indexes when the index was last used. This only happens if the index 
+   * was not properly closed. The sub-indexes that had already written some of
+   * these documents to disk are told to skip them.
+   * @throws IOException
+   * @throws IndexException if the on-disk data is inconsistent, and cannot 
+   * be repaired from the log.
+   */
+  protected void recoverQueuedDocuments() throws IOException, IndexException {
+    if(!indexConfig.isLogQueuedDocuments()) return;
+    long minOnDisk = Long.MAX_VALUE;
+    long maxOnDisk = 0;
+    for(AtomicIndex aSubIndex : subIndexes) {
+      long onDisk = aSubIndex.getDocumentsOnDiskCount();
+      minOnDisk = Math.min(minOnDisk, onDisk);
+      maxOnDisk = Math.max(maxOnDisk, onDisk);
+    }
+    if(minOnDisk == Long.MAX_VALUE) minOnDisk = 0;
+    // the collection is written by the first token index
+    long inCollection = documentCollection.getNextDocumentId();
+    long inFirstTokenIndex = tokenIndexes.length > 0 ? 
+        tokenIndexes[0].getDocumentsOnDiskCount() : inCollection;
+    documentQueueLog = new DocumentQueueLog(
+        new File(indexDirectory, AtomicIndex.DOCUMENTS_QUEUE_FILE_NAME), 
+        Math.max(maxOnDisk, inCollection));
+    long logEnd = documentQueueLog.getNextDocumentId();
+    if(minOnDisk < logEnd) {
+      // some documents were not written to disk: replay them
+      if(documentQueueLog.getFirstDocumentId() > minOnDisk || 
+         inCollection < inFirstTokenIndex || inCollection > logEnd) {
+        documentQueueLog.close();
+        throw new IndexException("The index at " + indexDirectory + 
+            " was not closed properly, and cannot be recovered from the " +
+            "queued documents log. Use " + 
+            gate.mimir.util.TruncateIndex.class.getName() + 
+            " to truncate it to a consistent state.");
+      }
+      logger.warn("The index at " + indexDirectory + " was not closed " +
+          "properly. Re-indexing " + (logEnd - minOnDisk) + " documents " +
+          "from the queued documents log.");
+      for(AtomicIndex aSubIndex : subIndexes) {
+        aSubIndex.setDocumentsToSkip(
+            aSubIndex.getDocumentsOnDiskCount() - minOnDisk);
+      }
+      collectionDocumentsToSkip = inCollection - inFirstTokenIndex;
+      documentsIndexed = minOnDisk;
+      try {
+        documentQueueLog.replay(minOnDisk, 
+            new DocumentQueueLog.DocumentHandler() {
+          @Override
+          public void handleDocument(long documentId, Object document)
+              throws InterruptedException {
+            syncToDiskIfNeeded();
+            GATEDocument gDocument = document instanceof PretokenisedDocument ?
+                new GATEDocument((PretokenisedDocument)document, indexConfig) :
+                new GATEDocument((Document)document, indexConfig);
+            synchronized(subIndexes) {
+              queueDocument(gDocument);
+            }
+          }
+        });
+      } catch(InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IndexException("Interrupted while re-indexing queued " +
+            "documents.", e);
+      }
+    } else if(minOnDisk == maxOnDisk && inCollection == inFirstTokenIndex) {
+      // everything is on disk; the log can only be behind (e.g. if it has 
+      // just been enabled)
+      if(logEnd != maxOnDisk) documentQueueLog.reset(maxOnDisk);
+    } else {
+      documentQueueLog.close();
+      throw new IndexException("The index at " + indexDirectory + 
+          " is in an inconsistent state, and the queued documents log does " +
+          "not contain the missing documents. Use " + 
+          gate.mimir.util.TruncateIndex.class.getName() + 
+          " to truncate it to a consistent state.");
+    }
+    synchronized(maintenanceTimer) {
+      maintenanceTimer.schedule(new SyncQueueLogTask(), 
+          DocumentQueueLog.DEFAULT_SYNC_INTERVAL, 
+          DocumentQueueLog.DEFAULT_SYNC_INTERVAL);
+    }
+  }
+  
+  /**
+   * Deletes the parts of the {@link #documentQueueLog} containing only 
+   * documents that have been written to disk by all the sub-indexes.
+   */
+  protected void releaseQueuedDocuments() {
+    if(documentQueueLog == null) return;
+    long onDisk = Long.MAX_VALUE;
+    for(AtomicIndex aSubIndex : subIndexes) {
+      onDisk = Math.min(onDisk, aSubIndex.getDocumentsOnDiskCount());
+    }
+    try {
+      documentQueueLog.release(onDisk);
+    } catch(IOException e) {
+      logger.warn("Could not delete old queued documents log segments", e);
+    }
   }
   
   /**
@@ -612,20 +943,84 @@ public class MimirIndex {
     if(closed) throw new IllegalStateException("This index has been closed, "
         + "no further documents can be indexed.");
     
-    // check if we need to write a new batch:
-    // we have too many occurrences and 
-    // there are no outstanding batch writing operations
-    if( occurrencesInRam > occurrencesPerBatch && syncRequests.isEmpty()) {
-      requestSyncToDisk();
-    }
+    syncToDiskIfNeeded();
+
+    GATEDocument gDocument = new GATEDocument(document, indexConfig);
+    logAndQueueDocument(document, gDocument);
+  }
+  
+  /**
+   * Queues a pre-tokenised document for indexing. This works like 
+   * {@link #indexDocument(Document)}, but avoids the cost of building (and 
+   * later deleting) a GATE document when the tokens and annotations are 
+   * already known, e.g. when re-indexing existing content. The 
+   * {@link DocumentMetadataHelper}s are not used for these documents: 
+   * metadata fields are supplied with the document instead.
+   * 
+   * @param document the document to be indexed.
+   * @throws InterruptedException if the process of posting the new document
+   * to all the input queues is interrupted.
+   * @throws IllegalStateException if the index has already been closed.
+   */
+  public void indexDocument(PretokenisedDocument document) 
+      throws InterruptedException {
+    if(closed) throw new IllegalStateException("This index has been closed, "
+        + "no further documents can be indexed.");
+    
+    syncToDiskIfNeeded();
 
     GATEDocument gDocument = new GATEDocument(document, indexConfig);
+    logAndQueueDocument(document, gDocument);
+  }
+  
+  /**
+   * Appends a document to the {@link #documentQueueLog} (if enabled), and 
+   * then queues it for indexing.
+   * @param document the document, as supplied by the caller.
+   * @param gDocument the wrapper for the document.
+   * @throws InterruptedException
+   */
+  protected void logAndQueueDocument(Object document, GATEDocument gDocument)
+      throws InterruptedException {
     synchronized(subIndexes) {
-      for(AtomicIndex aSubIndex: subIndexes){
-        aSubIndex.getInputQueue().put(gDocument);
-      }      
+      if(documentQueueLog != null) {
+        // the log order must match the queue order
+        try {
+          documentQueueLog.append(document);
+        } catch(IOException e) {
+          throw new GateRuntimeException(
+              "Could not write document to the queued documents log!", e);
+        }
+      }
+      queueDocument(gDocument);
     }
   }
+  
+  /**
+   * Requests a sync-to-disk if we have too many occurrences that are not 
+   * already being written, and there is room for another batch writing 
+   * operation.
+   * @throws InterruptedException
+   */
+  protected void syncToDiskIfNeeded() throws InterruptedException {
+    int pendingSyncs = syncRequests.size() / subIndexes.length;
+    if(occurrencesInRam > occurrencesPerBatch * (pendingSyncs + 1) && 
+       pendingSyncs < getMaximumPendingSyncs()) {
+      requestSyncToDisk();
+    }
+  }
+  
+  /**
+   * Publishes a document to the {@link #indexingBuffer}, where all the 
+   * sub-indexes read it from. Callers must hold the lock on 
+   * {@link #subIndexes}.
+   * @param gDocument
+   * @throws InterruptedException
+   */
+  protected void queueDocument(GATEDocument gDocument) 
+      throws InterruptedException {
+    indexingBuffer.put(gDocument);
+  }
 
   /**
    * Asks this index to write to disk all the index data currently stored in 
@@ -638,12 +1033,17 @@ public class MimirIndex {
    */
   public List<Future<Long>> requestSyncToDisk() throws InterruptedException {
     List<Future<Long>> futures = new ArrayList<Future<Long>>();
-    if(syncRequests.isEmpty()) {
+    if(syncRequests.size() / subIndexes.length < getMaximumPendingSyncs()) {
       synchronized(subIndexes) {
+        // all the documents in the new batches must be in the log on disk, 
+        // in case not all the sub-indexes manage to write their batch
+        syncQueueLog();
         for(AtomicIndex aSubIndex : subIndexes) {
           Future<Long> task = aSubIndex.requestSyncToDisk(); 
           futures.add(task);
-          syncRequests.put(task);
+          // a sub-index that has not yet started on its previous request 
+          // returns the same task
+          if(!syncRequests.contains(task)) syncRequests.put(task);
         }
       }      
     } else {
@@ -654,6 +1054,31 @@ public class MimirIndex {
     return futures;
   }
   
+  /**
+   * Forces all the documents appended to the {@link #documentQueueLog} to 
+   * disk.
+   */
+  private void syncQueueLog() {
+    if(documentQueueLog != null) {
+      try {
+        documentQueueLog.sync();
+      } catch(IOException e) {
+        throw new GateRuntimeException(
+            "Could not sync the queued documents log!", e);
+      }
+    }
+  }
+  
+  /**
+   * Gets the maximum number of sync-to-disk operations that may be pending 
+   * at any one time. This is one more than the number of batches each 
+   * sub-index is allowed to have waiting to be written in the background.
+   * @return
+   */
+  protected int getMaximumPendingSyncs() {
+    return Math.max(indexConfig.getBatchesInFlight(), 0) + 1;
+  }
+  
   /**
    * Asks each of the sub-indexes in this index to compact all their batches
    * into a single index. This reduces the number of open file handles required.
@@ -676,6 +1101,32 @@ public class MimirIndex {
     return futures;
   }
   
+  /**
+   * Asks each of the sub-indexes in this index that need it to merge some of
+   * their on-disk batches, as selected by the {@link MergePolicy} from the 
+   * index configuration. Unlike {@link #requestCompactIndex()}, this only 
+   * rewrites the batches chosen by the policy (normally a run of small, 
+   * similarly-sized batches), so its cost does not grow with the size of the
+   * index. The work happens in the background threads of the sub-indexes.
+   * 
+   * @return a list of futures (one for each sub-index that needs merging) 
+   *         that can be used to find out when the operation has completed.
+   * @throws InterruptedException
+   *           if the current thread has been interrupted while trying to queue
+   *           the merge request.
+   */
+  public List<Future<Void>> requestMergeIndex() throws InterruptedException {
+    List<Future<Void>> futures = new ArrayList<Future<Void>>();
+    synchronized(subIndexes) {
+      for(AtomicIndex aSubIndex : subIndexes) {
+        if(aSubIndex.isMergeNeeded()) {
+          futures.add(aSubIndex.requestMergeIndex());
+        }
+      }      
+    }
+    return futures;
+  }
+  
   /**
    * Requests that the {@link DocumentCollection} contained by this index is 
    * compacted. This method blocks until the compaction has completed.
@@ -683,12 +1134,22 @@ public class MimirIndex {
    * In normal operation, the index maintains the collection, which includes 
    * regular compactions, so there should be no reason to call this method.
    * 
+   * If {@link IndexConfig#isPurgeDeletedDocuments()} is enabled, the stored 
+   * data for all the documents whose postings have been purged (see
+   * {@link DeletedDocuments#purge(long, long)}) is also removed. Documents
+   * that are deleted, but still in batches not yet merged, keep their data,
+   * so they can still be undeleted.
+   * 
    * @throws ZipException
    * @throws IOException
    * @throws IndexException
    */
   public void compactDocumentCollection() throws ZipException, IOException, IndexException {
-    documentCollection.compact();
+    if(indexConfig.isPurgeDeletedDocuments()) {
+      documentCollection.compact(deletedDocuments.getPurgedSnapshot());
+    } else {
+      documentCollection.compact();
+    }
   }
   
   /**
@@ -698,9 +1159,25 @@ public class MimirIndex {
    * @throws IndexException 
    */
   public void writeZipDocumentData(DocumentData docData) throws IndexException {
+    if(collectionDocumentsToSkip > 0) {
+      // replayed document, already in the collection
+      collectionDocumentsToSkip--;
+      return;
+    }
     documentCollection.writeDocument(docData);
   }
   
+  /**
+   * Called by the first token indexer before writing a new batch, to make 
+   * sure the collection data for all the documents in the batch is on disk.
+   * @throws IndexException
+   */
+  public void syncZipDocumentData() throws IndexException {
+    // the collection is opened after the sub-indexes, which are stopped
+    // before it is opened if any of them fails to open
+    if(documentCollection != null) documentCollection.sync();
+  }
+  
   /**
    * Stops this index from accepting any further document for indexing, stops
    * this index from accepting any more queries, finishes indexing all the 
@@ -713,16 +1190,37 @@ public class MimirIndex {
    * @throws IOException 
    */
   public void close() throws InterruptedException, IOException {
-    if(closed) return;
-    closed = true;
-
+    boolean closing;
+    synchronized(closeLock) {
+      closing = closed;
+      closed = true;
+    }
+    if(closing) {
+      // the index may be closing already on another thread (e.g. after a 
+      // failed sync), and that close has to finish first, unless it is 
+      // waiting for this thread
+      if(Thread.currentThread() != maintenanceThread2) closeCompleted.await();
+      return;
+    }
+    try {
+      closeIndex();
+    } finally {
+      closeCompleted.countDown();
+    }
+  }
+  
+  /**
+   * Performs the work of {@link #close()}.
+   * @throws InterruptedException
+   * @throws IOException
+   */
+  private void closeIndex() throws InterruptedException, IOException {
     // close the query engine
     if(queryEngine != null) queryEngine.close();
     // stop the indexing
     synchronized(subIndexes) {
-      for(AtomicIndex aSubIndex : subIndexes) {
-        aSubIndex.getInputQueue().put(GATEDocument.END_OF_QUEUE);
-      }      
+      syncQueueLog();
+      indexingBuffer.put(GATEDocument.END_OF_QUEUE);
     }
     
     synchronized(maintenanceTimer) {
@@ -732,6 +1230,7 @@ public class MimirIndex {
       }
       // explicitly call it one last time
       new WriteDeletedDocsTask().run();
+      deletedDocuments.close();
       maintenanceTimer.cancel();
     }
 
@@ -739,10 +1238,16 @@ public class MimirIndex {
     maintenanceThread.join();
     
     syncRequests.put(NO_MORE_TASKS);
-    maintenanceThread2.join();
+    // unless closing after a failure found by the maintenance thread itself
+    if(Thread.currentThread() != maintenanceThread2) maintenanceThread2.join();
     
     // close the document collection
     documentCollection.close();
+    // everything is now on disk
+    if(documentQueueLog != null) {
+      releaseQueuedDocuments();
+      documentQueueLog.close();
+    }
     // write the config file
     try {
       IndexConfig.writeConfigToFile(indexConfig, new File(indexDirectory,
@@ -807,12 +1312,12 @@ public class MimirIndex {
   }
 
   /**
-   * Sets the size of the indexing queue(s) used by this index.
-   * Documents submitted for indexing are held in a queue until the indexers 
-   * become ready to process them. One queue is used for each of the 
-   * sub-indexes. A larger queue size can smooth out bursts of activity, but 
-   * requires more memory (as a larger number of documents may need to be stored
-   * at the same time). A smaller value is more economical, but it can leads to 
+   * Sets the size of the indexing queue used by this index.
+   * Documents submitted for indexing are held in a queue (a ring buffer 
+   * shared by all the sub-indexes, rounded up to a power of two) until all the
+   * indexers have processed them. A larger queue size can smooth out bursts 
+   * of activity, but requires more memory (as a larger number of documents 
+   * may need to be stored at the same time). A smaller value is more economical, but it can leads to 
    * slow-downs when certain documents take too long to index, and can clog up
    * the queue. Defaults to {@value #DEFAULT_INDEXING_QUEUE_SIZE}.
    * @param indexingQueueSize
@@ -897,10 +1402,22 @@ public class MimirIndex {
   }
   
   /**
-   * Gets the total number of documents currently searcheable 
+   * Gets the total number of documents currently searcheable. If 
+   * {@link IndexConfig#isNearRealTimeSearch()} is enabled, this includes the 
+   * documents that have been indexed in RAM, but not yet written to disk.
    * @return
    */
   public long getIndexedDocumentsCount() {
+    long onDisk = getDocumentsOnDiskCount();
+    return indexConfig.isNearRealTimeSearch() ? 
+        Math.max(onDisk, documentsIndexed) : onDisk;
+  }
+  
+  /**
+   * Gets the number of documents that have been written to disk.
+   * @return
+   */
+  protected long getDocumentsOnDiskCount() {
     if(subIndexes != null && subIndexes.length > 0 && 
         subIndexes[0].getIndex() != null){
       return subIndexes[0].getIndex().numberOfDocuments;
@@ -926,6 +1443,27 @@ public class MimirIndex {
     return  documentCollection.getDocumentData(documentID);
   }
   
+  /**
+   * Gets part of the text of a document, from the on disk document 
+   * collection. For long documents, this is much cheaper than getting the 
+   * whole {@link DocumentData}, as only the requested tokens are decoded. 
+   * @param documentID the ID of the document.
+   * @param termPosition the position of the first token required.
+   * @param length the number of tokens required, or a negative value for 
+   * all the tokens up to the end of the document.
+   * @return an array of two string arrays: the tokens, and the spaces 
+   * following them (see {@link DocumentData#getText(int, int)}).
+   * @throws IndexException if the document has been deleted. 
+   * @throws IOException 
+   */
+  public String[][] getDocumentText(long documentID, int termPosition, 
+      int length) throws IndexException, IOException {
+    if(isDeleted(documentID)) {
+      throw new IndexException("Invalid document ID " + documentID);
+    }
+    return documentCollection.getText(documentID, termPosition, length);
+  }
+  
   /**
    * Gets the size (number of tokens) for a document.
    * @param documentId the document being requested.
@@ -933,7 +1471,7 @@ public class MimirIndex {
    * @return
    */
   public int getDocumentSize(long documentId) {
-    return tokenIndexes[0].getIndex().sizes.get(documentId);
+    return tokenIndexes[0].getDocumentSize(documentId);
   }
   
   /**
@@ -942,8 +1480,13 @@ public class MimirIndex {
    * @param documentId
    */
   public void deleteDocument(long documentId) {
-    if(deletedDocumentIds.add(documentId)) {
-      writeDeletedDocsLater();
+    try {
+      if(deletedDocuments.delete(documentId)) {
+        writeDeletedDocsLater();
+      }
+    } catch(IOException e) {
+      throw new GateRuntimeException(
+          "Could not record deleted document " + documentId, e);
     }
   }
 
@@ -953,32 +1496,51 @@ public class MimirIndex {
    * @param documentIds
    */
   public void deleteDocuments(Collection<? extends Number> documentIds) {
-    List<Long> idsToDelete = new ArrayList<Long>(documentIds.size());
-    for(Number n : documentIds) {
-      idsToDelete.add(Long.valueOf(n.longValue()));
-    }
-    if(deletedDocumentIds.addAll(idsToDelete)) {
-      writeDeletedDocsLater();
+    try {
+      if(deletedDocuments.delete(toLongArray(documentIds))) {
+        writeDeletedDocsLater();
+      }
+    } catch(IOException e) {
+      throw new GateRuntimeException("Could not record deleted documents", e);
     }
   }
   
   /**
-   * Checks whether a given document (specified by its ID) is marked as deleted. 
+   * Checks whether a given document (specified by its ID) is marked as deleted.
+   * This method does not block, so it is safe to call it for every candidate
+   * document while searching.
    * @param documentId
    * @return
    */
   public boolean isDeleted(long documentId) {
-    return deletedDocumentIds.contains(documentId);
+    return deletedDocuments.isDeleted(documentId);
+  }
+  
+  /**
+   * Gets the set of documents marked as deleted in this index.
+   * @return
+   */
+  public DeletedDocuments getDeletedDocuments() {
+    return deletedDocuments;
   }
   
   /**
    * Mark the given document (identified by ID) as <i>not</i> deleted.  Calling
    * this method for a document ID that is not currently marked as deleted has
    * no effect.
+   * Neither has calling it for a document that has been purged from the
+   * index (see {@link IndexConfig#isPurgeDeletedDocuments()}): such documents
+   * stay deleted.
    */
   public void undeleteDocument(long documentId) {
-    if(deletedDocumentIds.remove(documentId)) {
-      writeDeletedDocsLater();
+    try {
+      if(deletedDocuments.undelete(documentId)) {
+        writeDeletedDocsLater();
+        documentsUndeleted();
+      }
+    } catch(IOException e) {
+      throw new GateRuntimeException(
+          "Could not record undeleted document " + documentId, e);
     }
   }
   
@@ -986,23 +1548,47 @@ public class MimirIndex {
    * Mark the given documents (identified by ID) as <i>not</i> deleted.  Calling
    * this method for a document ID that is not currently marked as deleted has
    * no effect.
+   * Neither has calling it for a document that has been purged from the
+   * index (see {@link IndexConfig#isPurgeDeletedDocuments()}): such documents
+   * stay deleted.
    */
   public void undeleteDocuments(Collection<? extends Number> documentIds) {
-    List<Long> idsToUndelete = new ArrayList<Long>(documentIds.size());
-    for(Number n : documentIds) {
-      idsToUndelete.add(Long.valueOf(n.longValue()));
+    try {
+      if(deletedDocuments.undelete(toLongArray(documentIds))) {
+        writeDeletedDocsLater();
+        documentsUndeleted();
+      }
+    } catch(IOException e) {
+      throw new GateRuntimeException("Could not record undeleted documents", e);
     }
-    if(deletedDocumentIds.removeAll(idsToUndelete)) {
-      writeDeletedDocsLater();
+  }
+  
+  /**
+   * Called when some documents have been undeleted: cached query results 
+   * skip the documents deleted since they were cached, but cannot include 
+   * undeleted ones, so they are discarded.
+   */
+  protected void documentsUndeleted() {
+    if(queryEngine != null) queryEngine.getQueryResultsCache().clear();
+  }
+  
+  private static long[] toLongArray(Collection<? extends Number> numbers) {
+    long[] result = new long[numbers.size()];
+    int i = 0;
+    for(Number n : numbers) {
+      result[i++] = n.longValue();
     }
+    return result;
   }
   
   /**
-   * Writes the set of deleted document to disk in a background thread, after a
-   * short delay. If a previous request has not started yet, this new request 
-   * will replace it. 
+   * Schedules the writing of a new checkpoint for the set of deleted 
+   * documents, in a background thread, if enough changes have accumulated 
+   * since the last one. Changes are always logged to disk as soon as they are 
+   * made, so this is only needed to stop the log growing without bounds. 
    */
   protected void writeDeletedDocsLater() {
+    if(!deletedDocuments.needsCheckpoint()) return;
     synchronized(maintenanceTimer) {
       if(writeDeletedDocsTask != null) {
         writeDeletedDocsTask.cancel();
@@ -1015,28 +1601,8 @@ public class MimirIndex {
   /**
    * Reads the list of deleted documents from disk. 
    */
-  @SuppressWarnings("unchecked")
   protected synchronized void readDeletedDocs() throws IOException{
-    deletedDocumentIds = Collections.synchronizedSortedSet(
-            new TreeSet<Long>());
-    File delFile = new File(indexDirectory, DELETED_DOCUMENT_IDS_FILE_NAME);
-    if(delFile.exists()) {
-      try {
-        ObjectInputStream ois = new ObjectInputStream(
-                new GZIPInputStream(
-                new BufferedInputStream(
-                new FileInputStream(delFile))));
-        // an old index will have saved a Set<Integer>, a new one will be
-        // Set<Long>
-        Set<? extends Number> savedSet = (Set<? extends Number>)ois.readObject();
-        for(Number n : savedSet) {
-          deletedDocumentIds.add(Long.valueOf(n.longValue()));
-        }
-      } catch(ClassNotFoundException e) {
-        // this should never happen
-        throw new RuntimeException(e);
-      }
-    }
+    deletedDocuments = new DeletedDocuments(indexDirectory);
   }
   
   
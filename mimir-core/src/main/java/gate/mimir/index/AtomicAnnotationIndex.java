@@ -29,13 +29,13 @@ import gate.util.OffsetComparator;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.BlockingQueue;
 
 import it.unimi.di.big.mg4j.index.Index;
 import it.unimi.di.big.mg4j.index.NullTermProcessor;
@@ -92,18 +92,17 @@ public class AtomicAnnotationIndex extends AtomicIndex {
    * sub-directory of the parent) and as a base name for all the files of this 
    * atomic index.
    * @param hasDirectIndex should a direct index be created as well.
-   * @param inputQueue the queue where documents are submitted for indexing;
-   * @param outputQueue the queue where indexed documents are returned to;
+   * @param input the consumer reading the documents submitted for indexing;
+   * documents are released once indexed.
    * @throws IndexException 
    * @throws IOException 
    */
   public AtomicAnnotationIndex(MimirIndex parent, String name, 
       boolean hasDirectIndex,
-      BlockingQueue<GATEDocument> inputQueue,
-      BlockingQueue<GATEDocument> outputQueue,
+      DocumentRingBuffer.Consumer input,
       SemanticIndexerConfig siConfig) throws IOException, IndexException {
     super(parent, name, hasDirectIndex, 
-        NullTermProcessor.getInstance(), inputQueue, outputQueue);
+        NullTermProcessor.getInstance(), input);
     this.semIdxConfid = siConfig;
     indexConfig = parent.getIndexConfig();
     //get the helpers
@@ -130,11 +129,16 @@ public class AtomicAnnotationIndex extends AtomicIndex {
   @Override
   protected void documentStarting(GATEDocument gateDocument)
       throws IndexException {
+    Document document = gateDocument.getDocument();
+    if(document == null) {
+      // pre-tokenised documents only supply their features
+      document = gateDocument.getPretokenisedDocument().getFeaturesDocument();
+    }
     for(SemanticAnnotationHelper aHelper : annotationHelpers.values()){
-      aHelper.documentStart(gateDocument.getDocument());
+      aHelper.documentStart(document);
     }
     for(SemanticAnnotationHelper aHelper : documentHelpers){
-      aHelper.documentStart(gateDocument.getDocument());
+      aHelper.documentStart(document);
     }
   }
 
@@ -161,6 +165,17 @@ public class AtomicAnnotationIndex extends AtomicIndex {
   @Override
   protected Annotation[] getAnnotsToProcess(GATEDocument gateDocument)
       throws IndexException {
+    PretokenisedDocument pretokenised = gateDocument.getPretokenisedDocument();
+    if(pretokenised != null) {
+      List<Annotation> semAnns = new ArrayList<Annotation>();
+      for(Annotation ann : pretokenised.getAnnotations()) {
+        if(annotationHelpers.containsKey(ann.getType())) semAnns.add(ann);
+      }
+      Annotation[] semanticAnnots = semAnns.toArray(
+          new Annotation[semAnns.size()]);
+      Arrays.sort(semanticAnnots, offsetComparator);
+      return semanticAnnots;
+    }
     Document document = gateDocument.getDocument();
     Annotation[] semanticAnnots;
     AnnotationSet semAnnSet = 
@@ -190,6 +205,9 @@ public class AtomicAnnotationIndex extends AtomicIndex {
     if(ann == DOCUMENT_VIRTUAL_ANN) {
       // we're supposed index the document metadata
       tokenPosition = 0;
+    } else if(gateDocument.getPretokenisedDocument() != null) {
+      // the offsets are token positions already
+      tokenPosition = ann.getStartNode().getOffset().intValue();
     } else {
       //calculate the term position for the current semantic annotation
       while(tokenPosition <  gateDocument.getTokenAnnots().length &&
@@ -234,12 +252,18 @@ public class AtomicAnnotationIndex extends AtomicIndex {
       //calculate the annotation length (as number of terms)
       SemanticAnnotationHelper helper = annotationHelpers.get(ann.getType());
       int length = 1;
-      while(tokenPosition + length <  gateDocument.getTokenAnnots().length &&
+      if(gateDocument.getPretokenisedDocument() != null) {
+        // the offsets are token positions already
+        length = Math.max(1, 
+            ann.getEndNode().getOffset().intValue() - tokenPosition);
+      } else {
+        while(tokenPosition + length <  gateDocument.getTokenAnnots().length &&
               gateDocument.getTokenAnnots()[tokenPosition + length].
                 getStartNode().getOffset().longValue() < 
                 ann.getEndNode().getOffset().longValue()){
           length++;
         }
+      }
       //get the annotation URI
       return helper.getMentionUris(ann, length, this);
     }
@@ -17,6 +17,7 @@ package gate.mimir.index;
 import gate.Annotation;
 import gate.mimir.MimirIndex;
 import gate.mimir.search.IndexReaderPool.IndexDictionary;
+import gate.mimir.util.LongBitmap;
 import gate.util.GateRuntimeException;
 import it.unimi.di.big.mg4j.index.BitStreamIndex;
 import it.unimi.di.big.mg4j.index.CompressionFlags;
@@ -52,17 +53,16 @@ import it.unimi.dsi.fastutil.Arrays;
 import it.unimi.dsi.fastutil.Hash;
 import it.unimi.dsi.fastutil.Swapper;
 import it.unimi.dsi.fastutil.ints.IntArrayList;
-import it.unimi.dsi.fastutil.ints.IntBigArrayBigList;
 import it.unimi.dsi.fastutil.ints.IntBigList;
 import it.unimi.dsi.fastutil.ints.IntComparator;
 import it.unimi.dsi.fastutil.ints.IntList;
 import it.unimi.dsi.fastutil.io.BinIO;
 import it.unimi.dsi.fastutil.io.FastBufferedOutputStream;
-import it.unimi.dsi.fastutil.objects.Object2LongAVLTreeMap;
-import it.unimi.dsi.fastutil.objects.Object2LongMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongHeapSemiIndirectPriorityQueue;
 import it.unimi.dsi.fastutil.objects.Object2ReferenceOpenHashMap;
-import it.unimi.dsi.fastutil.objects.ObjectBigArrayBigList;
 import it.unimi.dsi.fastutil.objects.ObjectBigList;
+import it.unimi.dsi.io.InputBitStream;
 import it.unimi.dsi.io.OutputBitStream;
 import it.unimi.dsi.lang.MutableString;
 import it.unimi.dsi.lang.ObjectParser;
@@ -78,17 +78,30 @@ import java.io.OutputStreamWriter;
 import java.io.PrintStream;
 import java.io.PrintWriter;
 import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
 import java.util.TreeMap;
-import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.FutureTask;
 import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.apache.commons.configuration.ConfigurationException;
 import org.slf4j.Logger;
@@ -365,13 +378,110 @@ public abstract class AtomicIndex implements Runnable {
           }
           str.append(positions.getInt(j));
         }
+        positionsPointer += count;
         str.append(") ");
       }
       
       return str.toString();
     }
     
+    /**
+     * Copies the data for one document from another postings list into this
+     * one.
+     * @param source the postings list to copy from.
+     * @param documentPointer the pointer of the document being copied.
+     * @param index the index of the document inside the source list.
+     * @param positionsStart the offset of the first position for the document
+     * in the source positions list.
+     * @return the offset of the first position for the next document in the
+     * source list. 
+     */
+    private int copyDocument(PostingsList source, long documentPointer, 
+        int index, int positionsStart) {
+      newDocumentPointer(documentPointer);
+      int docCount = source.counts.getInt(index);
+      if(positions != null) {
+        for(int i = positionsStart; i < positionsStart + docCount; i++) {
+          addPosition(source.positions.getInt(i));
+        }
+      } else {
+        setCount(docCount);
+      }
+      return positionsStart + docCount;
+    }
+    
+    /**
+     * Merges postings lists containing data for disjoint sets of documents 
+     * into a new postings list, keeping the documents in ascending pointer 
+     * order. All the lists are read in a single pass, taking the next document
+     * from the list with the smallest pointer. The input lists are flushed, 
+     * but otherwise not modified.
+     * @param lists the lists to merge, all storing positions or all not 
+     * storing them.
+     * @return a new postings list containing the data from all the inputs.
+     */
+    public static PostingsList merge(List<PostingsList> lists) {
+      int listCount = lists.size();
+      // for each input: the next document index, pointer and position offset 
+      int[] indexes = new int[listCount];
+      long[] pointers = new long[listCount];
+      int[] positionStarts = new int[listCount];
+      LongHeapSemiIndirectPriorityQueue queue = 
+          new LongHeapSemiIndirectPriorityQueue(pointers, listCount);
+      for(int i = 0; i < listCount; i++) {
+        PostingsList aList = lists.get(i);
+        aList.flush();
+        if(aList.documentPointersDifferential.size() > 0) {
+          pointers[i] = aList.firstDocumentPointer;
+          queue.enqueue(i);
+        }
+      }
+      PostingsList merged = new PostingsList(lists.get(0).positions != null);
+      while(!queue.isEmpty()) {
+        int first = queue.first();
+        PostingsList source = lists.get(first);
+        positionStarts[first] = merged.copyDocument(source, pointers[first], 
+            indexes[first], positionStarts[first]);
+        indexes[first]++;
+        if(indexes[first] < source.documentPointersDifferential.size()) {
+          pointers[first] += 
+              source.documentPointersDifferential.getInt(indexes[first]);
+          queue.changed();
+        } else {
+          queue.dequeue();
+        }
+      }
+      merged.flush();
+      return merged;
+    }
     
+    /**
+     * Copies the documents in this postings list into a {@link RamPostings} 
+     * builder. The last document may not have been flushed yet, in which case
+     * its count is taken from the current value. 
+     * @param builder the builder receiving the data.
+     * @param documentBase the value to be added to the document pointers in 
+     * this list, to obtain global document IDs.
+     * @param pointerLimit only documents with pointers smaller than this 
+     * value are copied.
+     */
+    protected void appendTo(RamPostings.Builder builder, long documentBase, 
+        long pointerLimit) {
+      long docPointer = firstDocumentPointer;
+      int positionsStart = 0;
+      for(int i = 0; i < documentPointersDifferential.size(); i++) {
+        docPointer += documentPointersDifferential.getInt(i);
+        if(docPointer >= pointerLimit) break;
+        int docCount = i < counts.size() ? counts.getInt(i) : count;
+        builder.addDocument(documentBase + docPointer, docCount);
+        if(positions != null) {
+          for(int j = positionsStart; j < positionsStart + docCount; j++) {
+            builder.addPosition(positions.getInt(j));
+          }
+          positionsStart += docCount;
+        }
+      }
+    }
   }
   
   /**
@@ -402,6 +512,255 @@ public abstract class AtomicIndex implements Runnable {
       this.directIndex = directIndex;
       this.directTermFilter = directTermFilter;
     }
+    
+    /**
+     * The total size of the files in this batch, calculated on first use.
+     */
+    private long sizeInBytes = -1;
+    
+    /**
+     * Gets the total size (in bytes) of the files making up this batch. The 
+     * batch files never change once written, so the value is only calculated
+     * once.
+     * @return
+     */
+    public long getSizeInBytes() {
+      if(sizeInBytes < 0) {
+        long size = 0;
+        File[] files = indexDir.listFiles();
+        if(files != null) {
+          for(File aFile : files) {
+            size += aFile.length();
+          }
+        }
+        sizeInBytes = size;
+      }
+      return sizeInBytes;
+    }
+  }
+  
+  /**
+   * The results of indexing one document in an {@link IndexingSlice}.
+   */
+  protected static class SliceResult {
+    /**
+     * The length of the document (number of positions).
+     */
+    protected int documentLength;
+    
+    /**
+     * The number of occurrences added to the slice for this document.
+     */
+    protected long occurrences;
+    
+    /**
+     * The error that stopped the document from being fully indexed, or 
+     * <code>null</code> if it was indexed successfully. When this is set,
+     * {@link #documentLength} and {@link #terms} only cover the positions 
+     * that were indexed before the error.
+     */
+    protected Throwable failure;
+    
+    /**
+     * The unprocessed terms of the document, if the implementation needs them
+     * after indexing (e.g. for writing the document collection), or 
+     * <code>null</code> otherwise. 
+     */
+    protected String[] terms;
+  }
+  
+  /**
+   * <p>
+   * A private slice of the in-RAM batch, owned by a single worker thread. 
+   * When parallel indexing is enabled (see {@link #indexingThreads}), the 
+   * documents are distributed between the slices and indexed concurrently. 
+   * Document pointers are allocated by the indexing thread, so the pointers 
+   * in each slice are already batch-global; the slices are merged into 
+   * {@link AtomicIndex#termMap} just before a batch is written to disk.
+   * </p>
+   * <p>
+   * The term map of a slice must only be accessed from the slice's own 
+   * worker thread, or after all the tasks submitted to it have completed, or
+   * while holding the slice's monitor (which the worker thread holds while 
+   * indexing each document).
+   * </p>
+   * <p>
+   * Implementations that support parallel indexing subclass this to hold any 
+   * extra per-thread state, and to index the documents (see 
+   * {@link #indexDocument(GATEDocument, long)}).
+   * </p>
+   */
+  protected static abstract class IndexingSlice {
+    /**
+     * The in-RAM inverted index for the documents indexed by this slice.
+     */
+    protected Object2ReferenceOpenHashMap<MutableString, PostingsList> termMap;
+    
+    /**
+     * A mutable string used by the worker thread to build terms.
+     */
+    protected final MutableString currentTerm;
+    
+    /**
+     * The single-threaded executor that owns this slice.
+     */
+    protected final ExecutorService executor;
+    
+    public IndexingSlice(final String threadName) {
+      termMap = new Object2ReferenceOpenHashMap<MutableString, PostingsList>(
+          INITIAL_TERM_MAP_SIZE, Hash.FAST_LOAD_FACTOR);
+      currentTerm = new MutableString();
+      executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, threadName);
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
+    
+    /**
+     * Indexes one document into this slice. This method is called on the 
+     * slice's worker thread, so it must only use thread-confined state (i.e. 
+     * state stored in the slice). The term map should be updated by calling 
+     * {@link #addOccurrence(long, int)}.
+     * 
+     * A failure part way through a document should be reported in 
+     * {@link SliceResult#failure}, together with the length indexed so far, 
+     * as the occurrences already added to the slice cannot be removed. 
+     * Exceptions thrown from this method stop the indexing.
+     * 
+     * @param gateDocument the document to be indexed.
+     * @param documentPointer the batch-local pointer for the document.
+     * @return the results of indexing the document.
+     */
+    protected abstract SliceResult indexDocument(GATEDocument gateDocument, 
+        long documentPointer);
+    
+    /**
+     * Adds the value in {@link #currentTerm} to this slice.
+     * @param documentPointer the (batch-local) pointer of the current document.
+     * @param position the position of the term in the current document.
+     * @return <code>true</code> if a new occurrence was added, or 
+     * <code>false</code> if the position was a duplicate.
+     */
+    public boolean addOccurrence(long documentPointer, int position) {
+      replaceLineTerminators(currentTerm);
+      PostingsList termPostings = termMap.get(currentTerm);
+      if(termPostings == null) {
+        termMap.put(currentTerm.copy(), termPostings = new PostingsList(true));
+      }
+      termPostings.newDocumentPointer(documentPointer);
+      if(termPostings.checkPosition(position)) {
+        termPostings.addPosition(position);
+        return true;
+      } else {
+        return false;
+      }
+    }
+  }
+  
+  /**
+   * A document which has been handed to an {@link IndexingSlice}, but whose
+   * results have not yet been collected by the indexing thread. Markers for
+   * other atomic indexes are queued with a <code>null</code> result, so that
+   * they get released in order.
+   */
+  private static class DocumentInFlight {
+    private final GATEDocument document;
+    private final Future<SliceResult> result;
+    
+    private DocumentInFlight(GATEDocument document, Future<SliceResult> result) {
+      this.document = document;
+      this.result = result;
+    }
+  }
+  
+  /**
+   * The in-RAM data for a batch that has been frozen (i.e. no further 
+   * documents will be added to it) and is waiting to be written to disk.
+   */
+  protected static class RamBatch {
+    /**
+     * The in-RAM inverted index, if packed postings are not used.
+     */
+    protected final Object2ReferenceOpenHashMap<MutableString, PostingsList> termMap;
+    
+    /**
+     * The in-RAM inverted index, if packed postings are used.
+     */
+    protected final PackedPostingsAccumulator packedPostings;
+    
+    protected final IntArrayList documentSizes;
+    
+    protected final int documentCount;
+    
+    protected final long occurrences;
+    
+    protected final int maxDocumentSize;
+    
+    protected RamBatch(
+        Object2ReferenceOpenHashMap<MutableString, PostingsList> termMap,
+        PackedPostingsAccumulator packedPostings, IntArrayList documentSizes,
+        int documentCount, long occurrences, int maxDocumentSize) {
+      this.termMap = termMap;
+      this.packedPostings = packedPostings;
+      this.documentSizes = documentSizes;
+      this.documentCount = documentCount;
+      this.occurrences = occurrences;
+      this.maxDocumentSize = maxDocumentSize;
+    }
+    
+    /**
+     * Gets all the terms in this batch, in no particular order.
+     * @return
+     */
+    protected MutableString[] getTerms() {
+      if(packedPostings != null) {
+        return packedPostings.getTerms();
+      } else {
+        return termMap.keySet().toArray(new MutableString[termMap.size()]);
+      }
+    }
+    
+    /**
+     * Gets the postings list for a term. 
+     * @param term the term being sought.
+     * @param scratch a postings list (storing positions) that may be 
+     * overwritten and returned, if the postings need to be decoded.
+     * @return the postings list for the term, or <code>null</code> if the 
+     * term does not occur in this batch.
+     */
+    protected PostingsList getPostings(MutableString term, 
+        PostingsList scratch) {
+      if(packedPostings != null) {
+        int termId = packedPostings.getTermId(term);
+        return termId < 0 ? null : 
+            packedPostings.decodePostings(termId, scratch); 
+      } else {
+        return termMap.get(term);
+      }
+    }
+  }
+  
+  /**
+   * The future returned for sync-to-disk requests. When batches are written
+   * synchronously it is simply run by the indexing thread; otherwise it is 
+   * completed by the background batch writer.
+   */
+  protected static class BatchWriteTask extends FutureTask<Long> {
+    public BatchWriteTask(Callable<Long> callable) {
+      super(callable);
+    }
+    
+    protected void complete(long occurrences) {
+      set(occurrences);
+    }
+    
+    protected void fail(Throwable t) {
+      setException(t);
+    }
   }
   
   /**
@@ -446,13 +805,19 @@ public abstract class AtomicIndex implements Runnable {
 
   /**
    * Creates a documental cluster from a list of {@link MG4JIndex} values.
+   * The cluster shares all the data of the batches (including their document
+   * sizes, see {@link ConcatenatedSizesBigList}), so creating it only takes 
+   * time proportional to the number of batches. 
    * 
    * @param batches the indexes to be combined into a cluster 
    * @param termProcessor the term processor to be used (can be null)
    * @return a documental cluster view of the list of indexes provided.
+   * @throws IndexException if the batches hold more documents or terms than
+   * an MG4J cluster supports.
    */
   protected final static Index openInvertedIndexCluster(
-      List<MG4JIndex> batches, TermProcessor termProcessor){
+      List<MG4JIndex> batches, TermProcessor termProcessor) 
+      throws IndexException {
     
     if(batches == null || batches.size() == 0) return null;
     if(batches.size() == 1) return batches.get(0).invertedIndex;
@@ -464,15 +829,18 @@ public abstract class AtomicIndex implements Runnable {
     // sizes of batches 0 to i-1 inclusive
     long[] cutPoints = new long[indexes.length + 1];
     cutPoints[0] = 0;
-    int numberOfTerms = -1;
-    int numberOfDocuments = -1;
+    long numberOfTerms = -1;
+    long numberOfDocuments = -1;
     long numberOfPostings = -1;
     long numberOfOccurences =-1;
     int maxCount =-1;
     int indexIdx = 0;
-    IntBigList sizes = new IntBigArrayBigList();
+    IntBigList[] sizes = new IntBigList[indexes.length];
     @SuppressWarnings("unchecked")
     BloomFilter<Void> bloomFilters[] = new BloomFilter[indexes.length];
+    // the filters are only used if they are available for all the batches 
+    // (they may not be loaded yet)
+    boolean allBloomFilters = true;
     
     for(MG4JIndex aSubIndex : batches) {
       indexes[indexIdx] = aSubIndex.invertedIndex;
@@ -486,16 +854,19 @@ public abstract class AtomicIndex implements Runnable {
         maxCount = aSubIndex.invertedIndex.maxCount;
       }
       bloomFilters[indexIdx] = aSubIndex.invertedTermFilter;
-      sizes.addAll(aSubIndex.invertedIndex.sizes);
+      if(bloomFilters[indexIdx] == null) allBloomFilters = false;
+      sizes[indexIdx] = aSubIndex.invertedIndex.sizes;
       indexIdx++;
     }
     
     return new DocumentalConcatenatedCluster(indexes,
           new ContiguousDocumentalStrategy(cutPoints),
           false, // flat = all component indexes have the same term list
-          bloomFilters, // Bloom Filters
-          numberOfDocuments == -1 ? -1 : numberOfDocuments + 1, 
-          numberOfTerms == -1 ? -1 : numberOfTerms + 1, 
+          allBloomFilters ? bloomFilters : null, // Bloom Filters
+          numberOfDocuments == -1 ? -1 : 
+              clusterTotal(numberOfDocuments + 1, "documents"), 
+          numberOfTerms == -1 ? -1 : 
+              clusterTotal(numberOfTerms + 1, "terms"), 
           numberOfPostings == -1 ? -1 : numberOfPostings + 1, 
           numberOfOccurences == -1 ? -1 : numberOfOccurences + 1, 
           maxCount, 
@@ -504,7 +875,7 @@ public abstract class AtomicIndex implements Runnable {
           true, // hasPositions, 
           termProcessor, 
           null, // field 
-          sizes, // sizes
+          new ConcatenatedSizesBigList(sizes), // sizes
           null // properties
           );
   }  
@@ -514,8 +885,11 @@ public abstract class AtomicIndex implements Runnable {
    * a {@link LexicalCluster}.
    * @param batches the batches to be opened.
    * @return
+   * @throws IndexException if the batches hold more documents or terms than
+   * an MG4J cluster supports.
    */
-  protected final static Index openDirectIndexCluster(List<MG4JIndex> batches){
+  protected final static Index openDirectIndexCluster(List<MG4JIndex> batches)
+      throws IndexException {
     
     if(batches == null || batches.size() == 0) return null;
     if(batches.size() == 1) return batches.get(0).directIndex;
@@ -526,22 +900,25 @@ public abstract class AtomicIndex implements Runnable {
     cutPoints[0] = 0;
     String[] cutPointTerms = new String[indexes.length + 1];
     cutPointTerms[0] = longToTerm(0);
-    int numberOfTerms = -1;
-    int numberOfDocuments = -1;
+    long numberOfTerms = -1;
+    long numberOfDocuments = -1;
     long numberOfPostings = -1;
     long numberOfOccurences =-1;
     int maxCount =-1;
     int indexIdx = 0;
     @SuppressWarnings("unchecked")
     BloomFilter<Void> bloomFilters[] = new BloomFilter[indexes.length];
+    // the filters are only used if they are available for all the batches 
+    // (they may not be loaded yet)
+    boolean allBloomFilters = true;
     
     for(MG4JIndex aSubIndex : batches) {
       indexes[indexIdx] = aSubIndex.directIndex;
       // we build this based on the inverted index, as the cut-points for the
       // lexical partitioning are based on document IDs
       if(indexIdx < cutPoints.length - 1) {
-        cutPoints[indexIdx + 1] = cutPoints[indexIdx] + 
-            (int)aSubIndex.invertedIndex.numberOfDocuments;
+        cutPoints[indexIdx + 1] = clusterTotal(cutPoints[indexIdx] + 
+            aSubIndex.invertedIndex.numberOfDocuments, "documents");
         cutPointTerms[indexIdx + 1] = longToTerm(cutPoints[indexIdx + 1]);
       }
       numberOfTerms += aSubIndex.directIndex.numberOfTerms;
@@ -552,15 +929,18 @@ public abstract class AtomicIndex implements Runnable {
         maxCount = aSubIndex.directIndex.maxCount;
       }
       bloomFilters[indexIdx] = aSubIndex.directTermFilter;
+      if(bloomFilters[indexIdx] == null) allBloomFilters = false;
       indexIdx++;
     }
     cutPointTerms[cutPointTerms.length - 1] = null;
     
     return new LexicalCluster(indexes,
           new ContiguousLexicalStrategy(cutPoints, cutPointTerms),
-          bloomFilters, // Bloom Filters
-          numberOfDocuments == -1 ? -1 : numberOfDocuments + 1, 
-          numberOfTerms == -1 ? -1 : numberOfTerms + 1, 
+          allBloomFilters ? bloomFilters : null, // Bloom Filters
+          numberOfDocuments == -1 ? -1 : 
+              clusterTotal(numberOfDocuments + 1, "direct index documents"), 
+          numberOfTerms == -1 ? -1 : 
+              clusterTotal(numberOfTerms + 1, "direct index terms"), 
           numberOfPostings == -1 ? -1 : numberOfPostings + 1, 
           numberOfOccurences == -1 ? -1 : numberOfOccurences + 1, 
           maxCount, 
@@ -574,6 +954,24 @@ public abstract class AtomicIndex implements Runnable {
           );
   }  
   
+  /**
+   * Checks that a total over the batches of a cluster fits in the 
+   * <code>int</code> that the MG4J cluster classes use for it. 
+   * @param total the total.
+   * @param what what is being counted, for the error message.
+   * @return the total, as an <code>int</code>.
+   * @throws IndexException if the total is larger than 
+   * {@link Integer#MAX_VALUE}.
+   */
+  protected static int clusterTotal(long total, String what) 
+      throws IndexException {
+    if(total > Integer.MAX_VALUE) {
+      throw new IndexException("The batches hold " + total + " " + what + 
+          ", but an index cluster supports at most " + Integer.MAX_VALUE);
+    }
+    return (int)total;
+  }
+  
   /**
    * Converts a long value into a String containing a zero-padded Hex 
    * representation of the input value. The lexicographic ordering of the 
@@ -612,6 +1010,19 @@ public abstract class AtomicIndex implements Runnable {
    */
   public static final String TAIL_FILE_NAME_PREFIX = "tail-";
   
+  /**
+   * The suffix added to the basename of the temporary index built while 
+   * merging batches, before the deleted documents are purged.
+   */
+  protected static final String UNPURGED_NAME_SUFFIX = "-unpurged";
+  
+  /**
+   * The characters replaced by {@link #replaceLineTerminators(MutableString)}.
+   */
+  private static final char[] LINE_TERMINATORS = {'\n', '\r'};
+  
+  private static final char[] LINE_TERMINATOR_REPLACEMENTS = {' ', ' '};
+  
   
   public static final String DIRECT_TERMS_FILENAME = "direct.terms";
   
@@ -622,26 +1033,57 @@ public abstract class AtomicIndex implements Runnable {
   public static final String DIRECT_INDEX_NAME_SUFFIX = "-dir";
   
   /**
-   * The file name (under the current directory for this atomic index) for the
-   * directory containing the documents that have been queued for indexing, but 
-   * not yet indexed. 
+   * The file name (under the top level index directory) for the directory 
+   * containing the log of the documents that have been queued for indexing, 
+   * but not yet written to disk by all the sub-indexes. See 
+   * {@link DocumentQueueLog}.
    */
   public static final String DOCUMENTS_QUEUE_FILE_NAME = "queued-documents";
   
+  /**
+   * The name of the file written inside a batch produced by merging other 
+   * batches, listing the names of the merged batches. If the process stops 
+   * before all the merged batches have been deleted, the remaining ones are 
+   * deleted when the index is next opened.
+   */
+  protected static final String MERGED_BATCHES_FILE_NAME = "merged-batches";
+  
   /** The initial size of the term map. */
   private static final int INITIAL_TERM_MAP_SIZE = 1024;
   
+  /**
+   * The maximum number of (document, term) pairs held in RAM while inverting
+   * a batch for the direct index. Larger batches are inverted in several 
+   * passes, each covering a range of documents. 
+   */
+  protected static final int MAX_DIRECT_POSTINGS_IN_RAM = 1 << 22;
+  
+  /**
+   * Type for the marker values published to the input ring buffer to request
+   * maintenance operations. Since the buffer is shared by all the atomic 
+   * indexes of a {@link MimirIndex}, each atomic index has its own markers, 
+   * and ignores the markers of the others.
+   */
+  private static class ControlMarker extends GATEDocument {
+  }
+  
   /**
    * A marker value that gets queued to indicate a request to
    * write the in-RAM data to a new index batch.
    */
-  private static final GATEDocument DUMP_BATCH = new GATEDocument(){};
+  private final GATEDocument dumpBatch = new ControlMarker();
 
   /**
    * A marker value that gets queued to indicate a request to combine all the
    * on-disk batches into a new head.
    */
-  private static final GATEDocument COMPACT_INDEX = new GATEDocument(){};
+  private final GATEDocument compactIndex = new ControlMarker();
+  
+  /**
+   * A marker value that gets queued to indicate a request to merge the 
+   * on-disk batches selected by the index's {@link MergePolicy}.
+   */
+  private final GATEDocument mergeBatches = new ControlMarker();
   
   private static Logger logger = LoggerFactory.getLogger(AtomicIndex.class);
   
@@ -688,16 +1130,17 @@ public abstract class AtomicIndex implements Runnable {
   
   /**
    * The cluster-view of all the MG4J indexes that are part of this index (i.e.
-   * the head and all the tails). 
+   * the head and all the tails). A new cluster is created (and swapped in 
+   * atomically) whenever the set of batches changes.
    */
-  protected Index invertedIndex;
+  protected volatile Index invertedIndex;
   
   /**
    * The direct index for this atomic index. If 
    * <code>{@link #hasDirectIndex()}</code> is false, then this index will be 
    * <code>null</code>.
    */
-  protected Index directIndex;
+  protected volatile Index directIndex;
   
   /**
    * A set of properties added to the ones obtained from the index writer when
@@ -719,17 +1162,18 @@ public abstract class AtomicIndex implements Runnable {
   protected boolean hasDirectIndex;
   
   /**
-   * This map associates direct index terms with their IDs. See the note at the
-   * top-level javadocs for this class for a discussion on direct and inverted 
-   * term IDs. 
+   * The terms in the direct index, in the order they were first seen during 
+   * indexing, and their IDs. See the note at the top-level javadocs for this 
+   * class for a discussion on direct and inverted term IDs. 
    */
-  protected Object2LongMap<String> directTermIds;
+  protected DirectTermDictionary directTerms;
   
   /**
-   * The terms in the direct index, in the order they were first seen during 
-   * indexing.
+   * The single-threaded executor used to write the direct index for a batch,
+   * while the inverted index is written by the batch writing thread. 
+   * <code>null</code> if there is no direct index.
    */
-  protected ObjectBigList<String> directTerms;
+  protected ExecutorService directIndexExecutor;
   
   /**
    * The single thread used to index documents. All writes to the index files
@@ -738,14 +1182,10 @@ public abstract class AtomicIndex implements Runnable {
   protected Thread indexingThread;
   
   /**
-   * Documents to be indexed are queued in this queue.
-   */
-  protected BlockingQueue<GATEDocument> inputQueue;
-  
-  /**
-   * Documents that have been indexed are passed on to this queue.
+   * The consumer used to read the documents to be indexed from the input ring
+   * buffer. Documents are released (in order) once they have been indexed.
    */
-  protected BlockingQueue<GATEDocument> outputQueue;
+  protected DocumentRingBuffer.Consumer input;
 
     
   /**
@@ -759,6 +1199,24 @@ public abstract class AtomicIndex implements Runnable {
    */
   protected MutableString currentTerm;
   
+  /**
+   * The terms of the document being indexed, one after the other. They are 
+   * only added to the in-RAM batch once the document is complete (see 
+   * {@link #documentCompleted(int)}), so that the {@link #ramLock} is not 
+   * held while the document is being processed.
+   */
+  private final MutableString documentTerms = new MutableString();
+  
+  /**
+   * The end offsets of the terms in {@link #documentTerms}.
+   */
+  private final IntArrayList documentTermEnds = new IntArrayList();
+  
+  /**
+   * The positions of the terms in {@link #documentTerms}.
+   */
+  private final IntArrayList documentTermPositions = new IntArrayList();
+  
   /**
    * The number of documents currently stored in RAM.
    */
@@ -769,26 +1227,130 @@ public abstract class AtomicIndex implements Runnable {
    */
   protected Object2ReferenceOpenHashMap<MutableString, PostingsList> termMap;
   
+  /**
+   * When packed postings are enabled, the in-RAM inverted index is stored in 
+   * this accumulator, and {@link #termMap} is left empty.
+   */
+  protected PackedPostingsAccumulator packedPostings;
+  
   /**
    * The sizes (numbers of terms) for all the documents indexed in RAM.
    */
   protected IntArrayList documentSizesInRAM;
   
+  /**
+   * The latest view returned by {@link #getNearRealTimeIndex(RamPostings)}.
+   */
+  private volatile NearRealTimeIndex nearRealTimeIndex;
+  
   /**
    * If a request was made to compress the index (combine all sub-indexes 
    * into a new head) this value will be non-null. The operation will be 
-   * performed on the indexing thread at the first opportunity. At that point 
-   * this future will complete, and the value will be set back to null.
+   * performed on the indexing thread at the first opportunity, when the value
+   * is set back to null, and this future completes.
    */
   protected RunnableFuture<Void> compactIndexTask;
   
+  /**
+   * If a request was made to merge some of the on-disk batches (as selected 
+   * by the {@link MergePolicy}) this value will be non-null. The operation 
+   * will be performed on the indexing thread at the first opportunity, when 
+   * the value is set back to null, and this future completes.
+   */
+  protected RunnableFuture<Void> mergeBatchesTask;
+  
   /**
    * If a request was made to write the in-RAM index data to disk this value 
    * will be not null. The operation will be performed on the indexing
-   * thread at the first opportunity.  At that point the Future will complete, 
-   * and the value will be set back to null.
+   * thread at the first opportunity, when the value is set back to null, and 
+   * the Future completes once the batch has been written.
+   */
+  protected BatchWriteTask batchWriteTask;
+  
+  /**
+   * Lock guarding {@link #batchWriteTask}, {@link #compactIndexTask} and 
+   * {@link #mergeBatchesTask}, which are set by the threads making requests,
+   * and taken by the indexing thread when it finds the request's marker.
+   */
+  private final Object requestsLock = new Object();
+  
+  /**
+   * The maximum number of frozen batches that may be waiting to be written by
+   * the {@link #batchWriter}. If set to 0, batches are written synchronously 
+   * by the indexing thread.
+   */
+  protected int batchesInFlight;
+  
+  /**
+   * The single-threaded executor used to write frozen batches to disk, or 
+   * <code>null</code> if batches are written by the indexing thread.
+   */
+  protected ExecutorService batchWriter;
+  
+  /**
+   * Permits for submitting batches to the {@link #batchWriter}; there are 
+   * {@link #batchesInFlight} in total.
+   */
+  protected Semaphore batchWriterPermits;
+  
+  /**
+   * Packed postings accumulators from batches that have been written, kept 
+   * so that their off-heap buffers can be reused.
+   */
+  protected final Queue<PackedPostingsAccumulator> spareAccumulators =
+      new ConcurrentLinkedQueue<PackedPostingsAccumulator>();
+  
+  /**
+   * The number of worker threads to be used for building the in-RAM batch. 
+   * Values greater than 1 are only honoured by implementations that support 
+   * parallel indexing (see {@link #newIndexingSlice(int)}).
+   */
+  protected int indexingThreads = 1;
+  
+  /**
+   * The number of documents, at the start of the input queue, that are 
+   * already written to disk, and should be passed on without indexing. This
+   * is non-zero when documents are being replayed from the 
+   * {@link DocumentQueueLog} after a crash, if this sub-index had written more
+   * batches than the others.
+   */
+  protected long documentsToSkip = 0;
+  
+  /**
+   * The slices used for parallel in-RAM indexing, or <code>null</code> if all
+   * documents are indexed on the indexing thread. 
    */
-  protected RunnableFuture<Long> batchWriteTask;
+  protected IndexingSlice[] indexingSlices;
+  
+  /**
+   * The documents currently being indexed by the slices, in the order they 
+   * were received.
+   */
+  private LinkedList<DocumentInFlight> documentsInFlight;
+  
+  /**
+   * The index of the slice that will receive the next document.
+   */
+  private int nextSlice;
+  
+  /**
+   * Lock protecting the in-RAM batch data against concurrent searches (see 
+   * {@link #getRamPostings(String)}). The write lock is held by the indexing 
+   * thread while it adds the postings of a completed document to the in-RAM 
+   * batch (see {@link #documentCompleted(int)}), and while it freezes the 
+   * batch. When parallel indexing is used, each slice's worker thread 
+   * instead synchronizes on its slice while indexing a document. When this 
+   * lock and the monitor of this object are both needed, the monitor must be 
+   * acquired first.
+   */
+  protected final ReentrantReadWriteLock ramLock = 
+      new ReentrantReadWriteLock();
+  
+  /**
+   * The batches that have been frozen but not yet written to disk, in order.
+   * Guarded by {@link #ramLock}.
+   */
+  protected final List<RamBatch> frozenBatches = new ArrayList<RamBatch>();
   
   /**
    * Creates a new AtomicIndex
@@ -799,22 +1361,20 @@ public abstract class AtomicIndex implements Runnable {
    * @param indexDirectory the directory where this index should store all its 
    *  files.
    * @param hasDirectIndex should a direct index be used?
-   * @param inputQueue the input queue for documents to be indexed.
-   * @param outputQueue the output queue for documents that have been indexed.
+   * @param input the consumer reading the documents to be indexed from the
+   * input ring buffer. Documents are released once indexed.
    * @throws IndexException 
    * @throws IOException 
    */
 	protected AtomicIndex(MimirIndex parent, String name,
       boolean hasDirectIndex, TermProcessor termProcessor,
-      BlockingQueue<GATEDocument> inputQueue,
-      BlockingQueue<GATEDocument> outputQueue) throws IOException, IndexException {
+      DocumentRingBuffer.Consumer input) throws IOException, IndexException {
     this.parent = parent;
     this.name = name;
     this.indexDirectory = new File(parent.getIndexDirectory(), name);
     this.hasDirectIndex = hasDirectIndex;
     this.termProcessor = termProcessor;
-    this.inputQueue = inputQueue;
-    this.outputQueue = outputQueue;
+    this.input = input;
     
     this.currentTerm = new MutableString();
     
@@ -840,6 +1400,7 @@ public abstract class AtomicIndex implements Runnable {
 	  batches = new ArrayList<AtomicIndex.MG4JIndex>();
     if(indexDirectory.exists()) {
       // opening an existing index
+      recoverIncompleteOperations();
       List<String> batchNames = new ArrayList<String>();
       
       File headDir = new File(indexDirectory, HEAD_FILE_NAME);
@@ -854,12 +1415,11 @@ public abstract class AtomicIndex implements Runnable {
       }
       // add the tails in order
       batchNames.addAll(tails.values());
+      // load all batches, in order
+      List<MG4JIndex> openedBatches = openSubIndexes(batchNames);
       // modify internal state
       synchronized(this) {
-        // load all batches, in order
-        for(String batchName : batchNames) {
-          batches.add(openSubIndex(batchName));
-        }
+        batches.addAll(openedBatches);
       }      
     } else {
       // new index creation
@@ -870,27 +1430,234 @@ public abstract class AtomicIndex implements Runnable {
     }
     // open direct index
     if(hasDirectIndex) {
-      directTerms = new ObjectBigArrayBigList<String>();
-      directTermIds = new Object2LongAVLTreeMap<String>();
-      directTermIds.defaultReturnValue(-1);
       File directTermsFile = new File(indexDirectory, DIRECT_TERMS_FILENAME);
-      if(directTermsFile.exists()) {
-        FileLinesCollection fileLines = new FileLinesCollection(
-            directTermsFile.getAbsolutePath(), "UTF-8");
-        Iterator<MutableString> termsIter = fileLines.iterator();
-        long termID = 0;
-        while(termsIter.hasNext()) {
-          String term = termsIter.next().toString();
-          directTerms.add(term);
-          directTermIds.put(term, termID++);
+      File newDirectTermsFile = new File(indexDirectory, 
+          DIRECT_TERMS_FILENAME + HEAD_NEW_EXT);
+      if(!directTermsFile.exists() && newDirectTermsFile.exists()) {
+        // older versions re-wrote the whole file, and may have crashed 
+        // before renaming the complete new version
+        if(!newDirectTermsFile.renameTo(directTermsFile)) {
+          throw new IndexException("Could not rename " + newDirectTermsFile + 
+              " to " + directTermsFile);
         }
       }
+      newDirectTermsFile.delete();
+      new File(indexDirectory, DIRECT_TERMS_FILENAME + HEAD_OLD_EXT).delete();
+      directTerms = directTermsFile.exists() ? 
+          new DirectTermDictionary(directTermsFile) : 
+          new DirectTermDictionary();
       synchronized(this) {
         directIndex = openDirectIndexCluster(batches);
       }
     }
+    if(!batches.isEmpty()) startBloomFilterLoader();
+	}
+	
+	/**
+	 * Opens a set of on-disk batches, in parallel when the parent index is
+	 * being opened (see {@link MimirIndex#getOpenersExecutor()}). The Bloom 
+	 * filters are not loaded (see {@link #startBloomFilterLoader()}).
+	 * @param batchNames the names of the batches to open.
+	 * @return the opened batches, in the same order as the names.
+	 * @throws IOException
+	 * @throws IndexException
+	 */
+	protected List<MG4JIndex> openSubIndexes(List<String> batchNames) 
+	    throws IOException, IndexException {
+	  List<MG4JIndex> opened = new ArrayList<MG4JIndex>(batchNames.size());
+	  ExecutorService openers = parent.getOpenersExecutor();
+	  if(batchNames.size() < 2 || openers == null) {
+	    for(String batchName : batchNames) {
+	      opened.add(openSubIndex(batchName, false));
+	    }
+	    return opened;
+	  }
+	  List<FutureTask<MG4JIndex>> tasks = 
+	      new ArrayList<FutureTask<MG4JIndex>>(batchNames.size());
+	  for(final String batchName : batchNames) {
+	    FutureTask<MG4JIndex> aTask = new FutureTask<MG4JIndex>(
+	        new Callable<MG4JIndex>() {
+	      @Override
+	      public MG4JIndex call() throws Exception {
+	        return openSubIndex(batchName, false);
+	      }
+	    });
+	    tasks.add(aTask);
+	    openers.execute(aTask);
+	  }
+	  try {
+	    for(FutureTask<MG4JIndex> aTask : tasks) {
+	      // the opener threads may all be busy opening sub-indexes, waiting for
+	      // their own batches: run the task here if it was not started yet
+	      aTask.run();
+	      try {
+	        opened.add(aTask.get());
+	      } catch(ExecutionException e) {
+	        Throwable cause = e.getCause();
+	        if(cause instanceof IOException) throw (IOException)cause;
+	        if(cause instanceof IndexException) throw (IndexException)cause;
+	        throw new IndexException("Could not open the batches of " + name, 
+	            cause);
+	      }
+	    }
+	  } catch(InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    throw new IndexException("Interrupted while opening the batches of " +
+	        name, e);
+	  } finally {
+	    if(opened.size() < tasks.size()) {
+	      // failed: don't open the remaining batches
+	      for(FutureTask<MG4JIndex> aTask : tasks) aTask.cancel(false);
+	    }
+	  }
+	  return opened;
+	}
+	
+	/**
+	 * Starts a background thread that loads the Bloom filters for the batches
+	 * opened by {@link #initIndex()}, and then rebuilds the index clusters to
+	 * use them. Until then, searches simply visit every batch. 
+	 */
+	protected void startBloomFilterLoader() {
+	  final List<MG4JIndex> toLoad;
+	  synchronized(this) {
+	    toLoad = new ArrayList<MG4JIndex>(batches);
+	  }
+	  Thread loader = new Thread("Mimir-" + name + " Bloom filter loader") {
+	    @Override
+	    public void run() {
+	      try {
+	        for(MG4JIndex aBatch : toLoad) {
+	          BloomFilter<Void> invertedFilter = loadBloomFilter(
+	              new File(aBatch.indexDir, name).getAbsolutePath());
+	          BloomFilter<Void> directFilter = hasDirectIndex ? 
+	              loadBloomFilter(new File(aBatch.indexDir, 
+	                  name + DIRECT_INDEX_NAME_SUFFIX).getAbsolutePath()) : 
+	              null;
+	          synchronized(AtomicIndex.this) {
+	            aBatch.invertedTermFilter = invertedFilter;
+	            aBatch.directTermFilter = directFilter;
+	          }
+	        }
+	        synchronized(AtomicIndex.this) {
+	          invertedIndex = openInvertedIndexCluster(batches, termProcessor);
+	          if(hasDirectIndex) {
+	            directIndex = openDirectIndexCluster(batches);
+	          }
+	        }
+	        logger.debug("Loaded Bloom filters for " + toLoad.size() + 
+	            " batches of " + name);
+	      } catch(IOException | IndexException e) {
+	        logger.warn("Could not load the Bloom filters for " + name + 
+	            "; searches will be slower", e);
+	      }
+	    }
+	  };
+	  loader.setDaemon(true);
+	  loader.setPriority(Thread.MIN_PRIORITY);
+	  loader.start();
 	}
 		
+	/**
+	 * Tidies up after any batch write or merge operation that was interrupted 
+	 * (e.g. by a crash) before completing: partially written batches are 
+	 * deleted, batches that were being replaced are restored, and batches 
+	 * that had already been merged into another one are deleted. 
+	 * @throws IndexException
+	 */
+	protected void recoverIncompleteOperations() throws IndexException {
+	  for(File aFile : indexDirectory.listFiles()) {
+	    String fileName = aFile.getName();
+	    if(fileName.endsWith(HEAD_NEW_EXT)) {
+	      // never completed
+	      logger.warn("Deleting incomplete data at " + aFile);
+	      if(!gate.util.Files.rmdir(aFile)) {
+	        throw new IndexException("Could not delete " + aFile);
+	      }
+	    }
+	  }
+	  for(File aFile : indexDirectory.listFiles()) {
+	    String fileName = aFile.getName();
+	    if(fileName.endsWith(HEAD_OLD_EXT)) {
+	      File current = new File(indexDirectory, fileName.substring(0, 
+	          fileName.length() - HEAD_OLD_EXT.length()));
+	      if(current.exists()) {
+	        // the replacement was installed: the old version is not needed
+	        if(!gate.util.Files.rmdir(aFile)) {
+	          throw new IndexException("Could not delete " + aFile);
+	        }
+	      } else {
+	        // the replacement was never installed: restore the old version
+	        logger.warn("Restoring " + current + " from " + aFile);
+	        if(!aFile.renameTo(current)) {
+	          throw new IndexException("Could not rename " + aFile + " to " + 
+	              current);
+	        }
+	      }
+	    }
+	  }
+	  for(File aFile : indexDirectory.listFiles()) {
+	    File mergedBatchesFile = new File(aFile, MERGED_BATCHES_FILE_NAME);
+	    if(aFile.isDirectory() && mergedBatchesFile.exists()) {
+	      try {
+	        for(String batchName : Files.readAllLines(mergedBatchesFile.toPath(),
+	            StandardCharsets.UTF_8)) {
+	          File batchDir = new File(indexDirectory, batchName);
+	          if(batchName.length() > 0 && batchDir.exists()) {
+	            logger.warn("Deleting batch " + batchDir + ", which had " +
+	                "already been merged into " + aFile);
+	            if(!gate.util.Files.rmdir(batchDir)) {
+	              throw new IndexException("Could not delete " + batchDir);
+	            }
+	          }
+	        }
+	      } catch(IOException e) {
+	        throw new IndexException("Could not read " + mergedBatchesFile, e);
+	      }
+	      mergedBatchesFile.delete();
+	    }
+	  }
+	}
+	
+	/**
+	 * Forces all the files in a directory to disk.
+	 * @param directory
+	 * @throws IOException
+	 */
+	protected static void syncFiles(File directory) throws IOException {
+	  for(File aFile : directory.listFiles()) {
+	    if(aFile.isFile()) {
+	      FileChannel channel = FileChannel.open(aFile.toPath(), 
+	          StandardOpenOption.WRITE);
+	      try {
+	        channel.force(true);
+	      } finally {
+	        channel.close();
+	      }
+	    }
+	  }
+	}
+	
+	/**
+	 * Forces the entries of a directory (e.g. the results of renaming files 
+	 * inside it) to disk. Not all platforms allow this, so failures are only 
+	 * logged.
+	 * @param directory
+	 */
+	protected static void syncDirectory(File directory) {
+	  try {
+	    FileChannel channel = FileChannel.open(directory.toPath(), 
+	        StandardOpenOption.READ);
+	    try {
+	      channel.force(true);
+	    } finally {
+	      channel.close();
+	    }
+	  } catch(IOException e) {
+	    logger.debug("Could not sync directory " + directory, e);
+	  }
+	}
+	
   /**
 	 * Gets the name of this atomic index. This is used as the file name for the 
 	 * directory storing the index files.
@@ -916,6 +1683,9 @@ public abstract class AtomicIndex implements Runnable {
 	  occurrencesInRAM = 0;
     maxDocSizeInRAM = -1;
     documentsInRAM = 0;
+    if(packedPostings != null) {
+      packedPostings.clear();
+    }
     if(termMap == null) {
       termMap = new Object2ReferenceOpenHashMap<MutableString, 
           PostingsList>(INITIAL_TERM_MAP_SIZE, Hash.FAST_LOAD_FACTOR );      
@@ -938,13 +1708,151 @@ public abstract class AtomicIndex implements Runnable {
 	 * @return the number of occurrences written to disk 
 	 */
 	protected long writeCurrentBatch() throws IOException, IndexException {
-	  if(documentsInRAM == 0) return 0;
-	  
-	  // find the name for the new tail
-	  int tailNo = -1;
-	  File headDir = new File(indexDirectory, HEAD_FILE_NAME);
-	  if(headDir.exists()) {
-	    // we have a head, calculate the tail number for this new tail
+	  RamBatch last = documentsInRAM > 0 ? freezeCurrentBatch() : 
+	      getLastFrozenBatch();
+	  return last == null ? 0 : writeFrozenBatches(last);
+	}
+	
+	/**
+	 * Gets the batch that was frozen most recently, if it has not been 
+	 * written to disk yet.
+	 * @return the last of the {@link #frozenBatches}, or <code>null</code>.
+	 */
+	protected RamBatch getLastFrozenBatch() {
+	  ramLock.readLock().lock();
+	  try {
+	    return frozenBatches.isEmpty() ? null : 
+	        frozenBatches.get(frozenBatches.size() - 1);
+	  } finally {
+	    ramLock.readLock().unlock();
+	  }
+	}
+	
+	/**
+	 * Writes to disk, in order, all the frozen batches up to (and including) 
+	 * the given one. Batches are written in the order they were frozen, so 
+	 * any batch still waiting before the given one is a batch whose writing 
+	 * failed: it is retried first, and if it fails again, no later batch is 
+	 * written. This way the documents on disk are always a prefix of those 
+	 * received, and their IDs match the document collection.
+	 * @param last the last batch to be written.
+	 * @return the number of occurrences written to disk
+	 * @throws IOException
+	 * @throws IndexException
+	 */
+	protected long writeFrozenBatches(RamBatch last) 
+	    throws IOException, IndexException {
+	  long occurrences = 0;
+	  while(true) {
+	    RamBatch first;
+	    ramLock.readLock().lock();
+	    try {
+	      // the batch may have been written already, by an earlier retry
+	      if(!frozenBatches.contains(last)) return occurrences;
+	      first = frozenBatches.get(0);
+	    } finally {
+	      ramLock.readLock().unlock();
+	    }
+	    if(first != last) {
+	      logger.warn("Retrying to write a batch for " + name + 
+	          " that previously failed");
+	    }
+	    occurrences += writeBatch(first);
+	  }
+	}
+	
+	/**
+	 * Takes all the data currently stored in RAM out into a {@link RamBatch}, 
+	 * and starts a new, empty in-RAM batch. Must be called from the indexing
+	 * thread, after all the documents in flight have been completed.
+	 * @return the frozen batch.
+	 */
+	protected RamBatch freezeCurrentBatch() {
+	  ramLock.writeLock().lock();
+	  try {
+	    mergeIndexingSlices();
+	    // flush all postings, so the frozen batch can be safely read from 
+	    // other threads
+	    for(PostingsList aPostingsList : termMap.values()) {
+	      aPostingsList.flush();
+	    }
+	    RamBatch batch = new RamBatch(termMap, packedPostings, 
+	        documentSizesInRAM, documentsInRAM, occurrencesInRAM, 
+	        maxDocSizeInRAM);
+	    frozenBatches.add(batch);
+	    // the frozen batch keeps the data structures, so we need new ones
+	    termMap = null;
+	    documentSizesInRAM = null;
+	    if(packedPostings != null) {
+	      packedPostings = spareAccumulators.poll();
+	      if(packedPostings == null) {
+	        packedPostings = new PackedPostingsAccumulator();
+	      }
+	    }
+	    newBatch();
+	    return batch;
+	  } finally {
+	    ramLock.writeLock().unlock();
+	  }
+	}
+	
+	/**
+	 * Freezes the current in-RAM batch and hands it to the background batch 
+	 * writer. If too many batches are already waiting to be written, this 
+	 * blocks until one of them completes.
+	 * @param task the future to be completed once the batch has been written.
+	 * @throws InterruptedException
+	 */
+	protected void writeCurrentBatchInBackground(final BatchWriteTask task) 
+	    throws InterruptedException {
+	  if(documentsInRAM == 0 && getLastFrozenBatch() == null) {
+	    task.complete(0);
+	    return;
+	  }
+	  batchWriterPermits.acquire();
+	  final RamBatch batch = documentsInRAM > 0 ? freezeCurrentBatch() : 
+	      getLastFrozenBatch();
+	  batchWriter.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          task.complete(batch == null ? 0 : writeFrozenBatches(batch));
+        } catch(Throwable t) {
+          logger.error("Error while writing batch for " + name, t);
+          task.fail(t);
+        } finally {
+          batchWriterPermits.release();
+        }
+      }
+    });
+	}
+	
+	/**
+	 * Waits until all the batches handed to the background writer have been
+	 * written to disk.
+	 * @throws InterruptedException
+	 */
+	protected void waitForBatchWriter() throws InterruptedException {
+	  if(batchWriter != null) {
+	    batchWriterPermits.acquire(batchesInFlight);
+	    batchWriterPermits.release(batchesInFlight);
+	  }
+	}
+	
+	/**
+	 * Writes a frozen in-RAM batch to a new on-disk index batch. Batches must 
+	 * be written in the order they were frozen, and only one at a time. 
+	 * @param batch the batch to be written.
+	 * @return the number of occurrences written to disk
+	 * @throws IOException
+	 * @throws IndexException
+	 */
+	protected long writeBatch(RamBatch batch) throws IOException, IndexException {
+	  // find the name for the new tail
+	  int tailNo = -1;
+	  File headDir = new File(indexDirectory, HEAD_FILE_NAME);
+	  if(headDir.exists()) {
+	    // we have a head, calculate the tail number for this new tail
 	    String[] existingTails = indexDirectory.list(TAILS_FILENAME_FILTER);
 	    for(String aTail : existingTails) {
 	      int aTailNo = Integer.parseInt(aTail.substring(TAIL_FILE_NAME_PREFIX.length()));
@@ -957,25 +1865,124 @@ public abstract class AtomicIndex implements Runnable {
 	  String newTailName = tailNo == -1 ? HEAD_FILE_NAME : 
 	      (TAIL_FILE_NAME_PREFIX + Integer.toString(tailNo));
 	  File newTailDir = new File(indexDirectory, newTailName);
-	  newTailDir.mkdir();
-	  String mg4jBasename = new File(newTailDir, name).getAbsolutePath();
+	  // the batch is written to a temporary directory, which is only renamed 
+	  // once complete, so a crash never leaves a partial batch behind
+	  File newTailDirNew = new File(indexDirectory, newTailName + HEAD_NEW_EXT);
+	  if(!newTailDirNew.mkdir()) {
+	    throw new IndexException("Could not create new batch directory at " + 
+	        newTailDirNew.getAbsolutePath() +  "!"); 
+	  }
+	  // the direct index is written at the same time as the inverted index
+	  Future<Void> directIndexResult = null;
+	  boolean written = false;
+	  try {
+	    if(hasDirectIndex) {
+	      directIndexResult = startDirectIndex(newTailDirNew, batch);
+	    }
+	    writeInvertedIndexFiles(newTailDirNew, newTailName, batch);
+	    Future<Void> directIndexWritten = directIndexResult;
+	    directIndexResult = null;
+	    waitForDirectIndex(directIndexWritten);
+	    syncFiles(newTailDirNew);
+	    if(!newTailDirNew.renameTo(newTailDir)) {
+	      throw new IndexException("Could not rename new batch at " + 
+	          newTailDirNew.getAbsolutePath() + " to " + newTailDir);
+	    }
+	    written = true;
+	  } finally {
+	    if(!written) {
+	      // the partial batch is deleted, so the batch can be written again
+	      if(directIndexResult != null) {
+	        // the direct index may still be being written to the directory
+	        try {
+	          directIndexResult.get();
+	        } catch(InterruptedException e) {
+	          Thread.currentThread().interrupt();
+	        } catch(ExecutionException e) {
+	          // the error that stopped the inverted index is reported instead
+	        }
+	      }
+	      if(newTailDirNew.exists() && !gate.util.Files.rmdir(newTailDirNew)) {
+	        logger.error("Could not delete incomplete batch at " + 
+	            newTailDirNew.getAbsolutePath());
+	      }
+	    }
+	  }
+    // update parent
+    long res = batch.occurrences;
+    
+    // merge new tail into index cluster
+    try {
+      MG4JIndex newBatch = openSubIndex(newTailName);
+      // modify internal state
+      synchronized(this) {
+        // the new clusters are opened before anything is changed, so a 
+        // failure leaves the current batches untouched
+        List<MG4JIndex> newBatches = new ArrayList<MG4JIndex>(batches);
+        newBatches.add(newBatch);
+        Index newInvertedIndex = openInvertedIndexCluster(newBatches, 
+            termProcessor);
+        Index newDirectIndex = hasDirectIndex ? 
+            openDirectIndexCluster(newBatches) : null;
+        batches.add(newBatch);
+        invertedIndex = newInvertedIndex;
+        if(hasDirectIndex) {
+          directIndex = newDirectIndex;
+        }
+        // the documents are now searchable on disk
+        ramLock.writeLock().lock();
+        try {
+          frozenBatches.remove(batch);
+        } finally {
+          ramLock.writeLock().unlock();
+        }
+      }
+    } catch(Exception e) {
+      // the batch stays frozen, to be written again, so its directory must 
+      // go: otherwise the next batch would be found after it on reopening
+      if(!gate.util.Files.rmdir(newTailDir)) {
+        logger.error("Could not delete unusable batch at " + 
+            newTailDir.getAbsolutePath());
+      }
+      throw new IndexException("Could not open the index just written to " +
+         newTailDir.getAbsolutePath(), e);
+    }
+    // the batch data is no longer needed
+    if(batch.packedPostings != null) {
+      batch.packedPostings.clear();
+      spareAccumulators.add(batch.packedPostings);
+    }
+    return res;
+	}
+	
+	/**
+	 * Writes the inverted index files for a frozen in-RAM batch.
+	 * @param batchDir the directory where the files are written.
+	 * @param batchName the name of the new batch.
+	 * @param batch the batch to be written.
+	 * @throws IOException
+	 * @throws IndexException
+	 */
+	protected void writeInvertedIndexFiles(File batchDir, String batchName, 
+	    RamBatch batch) throws IOException, IndexException {
+	  String mg4jBasename = new File(batchDir, name).getAbsolutePath();
 	  QuasiSuccinctIndexWriter indexWriter = new QuasiSuccinctIndexWriter(
 	      IOFactory.FILESYSTEM_FACTORY,
 	      mg4jBasename,
-	      documentsInRAM,
+	      batch.documentCount,
 	      Fast.mostSignificantBit(QuasiSuccinctIndex.DEFAULT_QUANTUM),
 	      QuasiSuccinctIndexWriter.DEFAULT_CACHE_SIZE,
 	      CompressionFlags.DEFAULT_QUASI_SUCCINCT_INDEX,
 	      ByteOrder.nativeOrder());
 	  // write the data from RAM
-    int numTermsInRAM = termMap.size();
-    logger.info( "Generating index for batch " + newTailName + 
-            "; documents: " + documentsInRAM + "; terms:" + numTermsInRAM + 
-            "; occurrences: " + occurrencesInRAM +
+    // We write down all term in appearance order in termArray.
+    final MutableString[] termArray = batch.getTerms();
+    int numTermsInRAM = termArray.length;
+    logger.info( "Generating index for batch " + batchName + 
+            "; documents: " + batch.documentCount + "; terms:" + numTermsInRAM + 
+            "; occurrences: " + batch.occurrences +
             " / " + parent.getOccurrencesInRam());
     
-    // We write down all term in appearance order in termArray.
-    final MutableString[] termArray = termMap.keySet().toArray(new MutableString[ numTermsInRAM ]);
     // We sort the terms appearing in the batch and write them on disk.
     Arrays.quickSort(0, termArray.length, 
             new IntComparator() {
@@ -1019,16 +2026,18 @@ public abstract class AtomicIndex implements Runnable {
     // write the sizes file
     File sizesFile = new File(mg4jBasename + DiskBasedIndex.SIZES_EXTENSION);
     OutputBitStream sizesStream = new OutputBitStream(sizesFile);   
-    for(int docSize : documentSizesInRAM.elements()) {
-      sizesStream.writeGamma(docSize);
+    for(int i = 0; i < batch.documentSizes.size(); i++) {
+      sizesStream.writeGamma(batch.documentSizes.getInt(i));
     }
     sizesStream.close();
     // write the actual index
     int maxCount = 0;
+    PostingsList scratchPostings = new PostingsList(true);
     for ( int i = 0; i < numTermsInRAM; i++ ) {
-      PostingsList postingsList = termMap.get( termArray[ i ] );
-      if ( maxCount < postingsList.maxCount ) maxCount = postingsList.maxCount;
+      PostingsList postingsList = batch.getPostings(termArray[ i ], 
+          scratchPostings);
       postingsList.write(indexWriter);
+      if ( maxCount < postingsList.maxCount ) maxCount = postingsList.maxCount;
     }
     indexWriter.close();
     // write the index properties
@@ -1038,10 +2047,10 @@ public abstract class AtomicIndex implements Runnable {
           indexWriter.writtenBits());
       // -1 means unknown
       additionalProperties.setProperty( Index.PropertyKeys.MAXDOCSIZE, 
-          maxDocSizeInRAM);
+          batch.maxDocumentSize);
       additionalProperties.setProperty( Index.PropertyKeys.MAXCOUNT, maxCount );
       additionalProperties.setProperty( Index.PropertyKeys.OCCURRENCES, 
-          occurrencesInRAM );
+          batch.occurrences );
       properties.addAll(additionalProperties);
       Scan.saveProperties( IOFactory.FILESYSTEM_FACTORY, properties, 
           mg4jBasename + DiskBasedIndex.PROPERTIES_EXTENSION );
@@ -1055,38 +2064,145 @@ public abstract class AtomicIndex implements Runnable {
       // this should never happen
       throw new IndexException("Error while saving tail properties", e);
     }
-	  
-    if(hasDirectIndex) {
-      writeDirectIndex(newTailDir);
-    }
-    // update parent
-    long res = occurrencesInRAM;
-    
-    // clear out internal state, in preparation for the next tail  
-    newBatch();
-    
-    // merge new tail into index cluster
-    try {
-      // modify internal state
-      synchronized(this) {
-        batches.add(openSubIndex(newTailName));
-        invertedIndex = openInvertedIndexCluster(batches, termProcessor);
-        if(hasDirectIndex) {
-          directIndex = openDirectIndexCluster(batches);
-        }
-      }
-    } catch(Exception e) {
-      throw new IndexException("Could not open the index just written to " +
-         mg4jBasename , e);
-    }
-    return res;
 	}
 	
 	/**
-	 * Writes the in-RAM data to a new direct index batch.
+	 * Moves the data from all the indexing slices (if parallel indexing is 
+	 * enabled) into {@link #termMap}. Must only be called from the indexing 
+	 * thread, after all the documents in flight have been completed.
+	 */
+	protected void mergeIndexingSlices() {
+	  if(indexingSlices == null) return;
+	  // collect the lists for each term from all the slices first, so that 
+	  // each term is merged in a single pass
+	  Object2ReferenceOpenHashMap<MutableString, List<PostingsList>> 
+	      termLists = new Object2ReferenceOpenHashMap<MutableString, 
+	      List<PostingsList>>(INITIAL_TERM_MAP_SIZE, Hash.FAST_LOAD_FACTOR);
+	  for(Map.Entry<MutableString, PostingsList> entry : termMap.entrySet()) {
+	    List<PostingsList> lists = new ArrayList<PostingsList>(
+	        indexingSlices.length + 1);
+	    lists.add(entry.getValue());
+	    termLists.put(entry.getKey(), lists);
+	  }
+	  for(IndexingSlice aSlice : indexingSlices) {
+	    for(Map.Entry<MutableString, PostingsList> entry : 
+	        aSlice.termMap.entrySet()) {
+	      List<PostingsList> lists = termLists.get(entry.getKey());
+	      if(lists == null) {
+	        lists = new ArrayList<PostingsList>(indexingSlices.length);
+	        termLists.put(entry.getKey(), lists);
+	      }
+	      lists.add(entry.getValue());
+	    }
+	    // the postings lists now belong to the main term map
+	    aSlice.termMap = new Object2ReferenceOpenHashMap<MutableString, 
+	        PostingsList>(INITIAL_TERM_MAP_SIZE, Hash.FAST_LOAD_FACTOR);
+	  }
+	  for(Map.Entry<MutableString, List<PostingsList>> entry : 
+	      termLists.entrySet()) {
+	    List<PostingsList> lists = entry.getValue();
+	    termMap.put(entry.getKey(), lists.size() == 1 ? lists.get(0) : 
+	        PostingsList.merge(lists));
+	  }
+	}
+	
+	/**
+	 * Hands a document to the next indexing slice. If too many documents are 
+	 * already in flight, the oldest one is completed first.
+	 * @param gateDocument the document to be indexed.
+	 */
+	private void dispatchDocument(final GATEDocument gateDocument) 
+	    throws InterruptedException, IndexException {
+	  while(documentsInFlight.size() >= 2 * indexingSlices.length ||
+	      (!documentsInFlight.isEmpty() && 
+	       (documentsInFlight.getFirst().result == null || 
+	        documentsInFlight.getFirst().result.isDone()))) {
+	    completeDocument(documentsInFlight.removeFirst());
+	  }
+	  final IndexingSlice slice = indexingSlices[nextSlice];
+	  nextSlice = (nextSlice + 1) % indexingSlices.length;
+	  final long documentPointer = documentsInRAM++;
+	  Future<SliceResult> result = slice.executor.submit(
+	      new Callable<SliceResult>() {
+	    @Override
+	    public SliceResult call() throws Exception {
+	      // searches read the slice while holding its monitor
+	      synchronized(slice) {
+	        return slice.indexDocument(gateDocument, documentPointer);
+	      }
+	    }
+	  });
+	  documentsInFlight.add(new DocumentInFlight(gateDocument, result));
+	}
+	
+	/**
+	 * Waits for a document to be indexed by its slice, and then records its 
+	 * results and releases it. Documents must be completed in the order they 
+	 * were dispatched.
+	 * @param docInFlight
+	 */
+	private void completeDocument(DocumentInFlight docInFlight) 
+	    throws InterruptedException, IndexException {
+	  if(docInFlight.result == null) {
+	    // a marker for another atomic index, with nothing to do
+	    input.release();
+	    return;
+	  }
+	  SliceResult result;
+	  try {
+	    result = docInFlight.result.get();
+	  } catch(ExecutionException e) {
+	    // the document pointer is already used, and the slice may hold part of
+	    // the document, so the batch cannot be completed consistently
+	    throw new IndexException("Indexing slice failed on document " + 
+	        docInFlight.document.title() + "!", e.getCause());
+	  }
+	  if(result.failure != null) {
+	    // as in sequential indexing, the positions indexed before the failure 
+	    // are kept
+	    logger.error("Problem while indexing document " + 
+	        docInFlight.document.title() + ", only the first " + 
+	        result.documentLength + " positions were indexed!", result.failure);
+	  }
+	  if(result.documentLength > maxDocSizeInRAM) {
+	    maxDocSizeInRAM = result.documentLength;
+	  }
+	  ramLock.writeLock().lock();
+	  try {
+	    documentSizesInRAM.add(result.documentLength);
+	  } finally {
+	    ramLock.writeLock().unlock();
+	  }
+	  occurrencesInRAM += result.occurrences;
+	  docInFlight.document.addOccurrences(result.occurrences);
+	  try {
+	    documentSliceCompleted(docInFlight.document, result);
+	  } catch(Throwable e) {
+	    logger.error("Problem while indexing document!", e);
+	  }
+	  input.release();
+	}
+	
+	/**
+	 * Completes all the documents currently being indexed by the slices.
+	 */
+	protected void completeDocumentsInFlight() throws InterruptedException, 
+	    IndexException {
+	  if(documentsInFlight == null) return;
+	  while(!documentsInFlight.isEmpty()) {
+	    completeDocument(documentsInFlight.removeFirst());
+	  }
+	}
+	
+	/**
+	 * Writes the in-RAM data to a new direct index batch. This is called from 
+	 * the {@link #directIndexExecutor} (if there is one), while the inverted 
+	 * index for the same batch is being written, so it only reads the batch 
+	 * data.
 	 * @param batchDir
+	 * @param batch the in-RAM batch being written.
 	 */
-  protected void writeDirectIndex(File batchDir) 
+  protected void writeDirectIndex(File batchDir, RamBatch batch) 
       throws IOException, IndexException {
     // The index we are writing is a direct index, so we give it new terms
     // which are actually document IDs, and they have posting lists containing
@@ -1099,52 +2215,74 @@ public abstract class AtomicIndex implements Runnable {
       docsOnDisk += index.invertedIndex.numberOfDocuments;
     }
     
-    //1. invert index data in RAM
-    Object2ReferenceOpenHashMap<MutableString, PostingsList> docMap = 
-          new Object2ReferenceOpenHashMap<MutableString, 
-            PostingsList>(INITIAL_TERM_MAP_SIZE, Hash.FAST_LOAD_FACTOR );
-    MutableString docIdStr = new MutableString();
-    // make sure all the terms about to be indexed have direct ID
-    for(MutableString termMS : termMap.keySet()) {
-      String termString = termMS.toString();
-      long directTermId = directTermIds.getLong(termString);
-      if(directTermId == directTermIds.defaultReturnValue()) {
-        // term not seen before
-        directTerms.add(termString);
-        directTermId = directTerms.size64() -1;
-        directTermIds.put(termString, directTermId);
-      }
+    //1. make sure all the terms about to be indexed have direct ID, and sort
+    // them by ID, so that each document receives its terms in ID order
+    final MutableString[] terms = batch.getTerms();
+    final long[] termIds = new long[terms.length];
+    for(int i = 0; i < terms.length; i++) {
+      termIds[i] = directTerms.addTerm(terms[i]);
     }
-    // we now read the posting lists for all the terms, in ascending term order    
-    MutableString termMS = new MutableString();
-    for(long directTermId = 0; directTermId < directTerms.size64(); directTermId++){
-      String termString = directTerms.get(directTermId);
-      termMS.replace(termString);
-      PostingsList termPostings = termMap.get(termMS);
-      if(termPostings != null) {
-        long docPointer = docsOnDisk + termPostings.firstDocumentPointer;
-        for(int i = 0; i < termPostings.documentPointersDifferential.size(); i++) {
-          docPointer += termPostings.documentPointersDifferential.get(i);       
-          int count = termPostings.counts.getInt(i);
-          // convert data to the correct type
-          docIdStr.replace(longToTerm(docPointer));
-          // at this point we have term, document, counts so we can write the data
-          // to the in-RAM direct index
-          PostingsList docPostings = docMap.get(docIdStr);
-          if(docPostings == null) {
-            docPostings = new PostingsList(false);
-            docMap.put(docIdStr.copy(), docPostings);
+    Arrays.quickSort(0, terms.length, 
+        new IntComparator() {
+          @Override
+          public int compare(Integer one, Integer other) {
+            return compare(one.intValue(), other.intValue());
           }
-          docPostings.newDocumentPointer(directTermId);
-          docPostings.setCount(count); 
-          docPostings.flush();
-        } 
+          
+          @Override
+          public int compare(int one, int other) {
+            return Long.compare(termIds[one], termIds[other]);
+          }
+        },
+        new Swapper() {
+          @Override
+          public void swap(int one, int other) {
+            MutableString temp = terms[one];
+            terms[one] = terms[other];
+            terms[other] = temp;
+            long tempId = termIds[one];
+            termIds[one] = termIds[other];
+            termIds[other] = tempId;
+          }
+        });
+    long numberOfTerms = directTerms.size64();
+    
+    // 2. invert the batch with a counting sort: first count the terms in each
+    // document
+    int[] docTermCounts = new int[batch.documentCount];
+    int[] termSizes = new int[terms.length];
+    long totalPostings = 0;
+    int nonEmptyDocs = 0;
+    PostingsList scratchPostings = new PostingsList(true);
+    for(int i = 0; i < terms.length; i++) {
+      PostingsList termPostings = batch.getPostings(terms[i], scratchPostings);
+      long docPointer = termPostings.firstDocumentPointer;
+      for(int j = 0; j < termPostings.documentPointersDifferential.size(); j++) {
+        docPointer += termPostings.documentPointersDifferential.getInt(j);
+        if(docTermCounts[(int)docPointer]++ == 0) nonEmptyDocs++;
       }
+      termSizes[i] = (int)termPostings.frequency;
+      totalPostings += termPostings.frequency;
     }
     
-    // 2. write the data from RAM
     String mg4jBasename = new File(batchDir, name + 
         DIRECT_INDEX_NAME_SUFFIX).getAbsolutePath();
+    // write the sizes file
+    // this is a list of document sizes (directTerms in our case)    
+    File sizesFile = new File(mg4jBasename + DiskBasedIndex.SIZES_EXTENSION);
+    OutputBitStream sizesStream = new OutputBitStream(sizesFile);
+    int maxTermSize = -1; // -1 means unknown
+    int nextTerm = 0;
+    for(long directTermId = 0; directTermId < numberOfTerms; directTermId++){
+      int termSize = 0;
+      if(nextTerm < terms.length && termIds[nextTerm] == directTermId) {
+        termSize = termSizes[nextTerm++];
+      }
+      sizesStream.writeGamma(termSize);
+      if(termSize > maxTermSize) maxTermSize = termSize;
+    }
+    sizesStream.close();
+    
     // copy the default compression flags, and remove positions
     Map<Component, Coding> flags = new HashMap<Component, Coding>(
         CompressionFlags.DEFAULT_QUASI_SUCCINCT_INDEX);
@@ -1153,79 +2291,93 @@ public abstract class AtomicIndex implements Runnable {
         new QuasiSuccinctIndexWriter(
             IOFactory.FILESYSTEM_FACTORY,
             mg4jBasename, 
-            directTerms.size64(),
+            numberOfTerms,
             Fast.mostSignificantBit(QuasiSuccinctIndex.DEFAULT_QUANTUM),
             QuasiSuccinctIndexWriter.DEFAULT_CACHE_SIZE,
             flags,
             ByteOrder.nativeOrder());
-    
-    // sort all the docIds
-    final MutableString[] docArray = docMap.keySet().toArray(new MutableString[ docMap.size() ]);
-    // We sort the terms appearing in the batch and write them on disk.
-    Arrays.quickSort(0, docArray.length, 
-            new IntComparator() {
-              @Override
-              public int compare(Integer one, Integer other) {
-                return compare(one.intValue(), other.intValue());
-              }
-              
-              @Override
-              public int compare(int one, int other) {
-                return docArray[one].compareTo(docArray[other]);
-              }
-            },
-            new Swapper() {
-              @Override
-              public void swap(int one, int other) {
-                MutableString temp = docArray[one];
-                docArray[one] = docArray[other];
-                docArray[other] = temp;
-              }
-            });
-    
-    BloomFilter<Void> docBloomFilter = BloomFilter.create(docArray.length);
+    BloomFilter<Void> docBloomFilter = BloomFilter.create(
+        Math.max(nonEmptyDocs, 1));
     PrintWriter pw = new PrintWriter( 
         new OutputStreamWriter(new FastBufferedOutputStream(
             new FileOutputStream(mg4jBasename + DiskBasedIndex.TERMS_EXTENSION), 
             64 * 1024), 
         "UTF-8" ));
-    for (MutableString t : docArray ) {
-      t.println( pw );
-      docBloomFilter.add(t);
+    
+    // 3. place the terms of each document, and write the documents in order 
+    // (which is also the lexicographic order of their IDs). This is done for 
+    // a range of documents at a time, so the memory used is bounded however 
+    // large the batch is.
+    int bufferSize = (int)Math.min(totalPostings, MAX_DIRECT_POSTINGS_IN_RAM);
+    long[] postingTermIds = new long[bufferSize];
+    int[] postingCounts = new int[bufferSize];
+    int[] docCursors = new int[batch.documentCount];
+    MutableString docIdStr = new MutableString();
+    PostingsList docPostings = new PostingsList(false);
+    int maxCount = 0;
+    long occurrences = 0;
+    int rangeStart = 0;
+    while(rangeStart < batch.documentCount) {
+      // find the end of the range, and where each document starts
+      int rangeEnd = rangeStart;
+      int rangePostings = 0;
+      while(rangeEnd < batch.documentCount && (rangeEnd == rangeStart ||
+          (long)rangePostings + docTermCounts[rangeEnd] <= bufferSize)) {
+        docCursors[rangeEnd] = rangePostings;
+        rangePostings += docTermCounts[rangeEnd++];
+      }
+      if(rangePostings > postingTermIds.length) {
+        // a single document larger than the buffer
+        postingTermIds = new long[rangePostings];
+        postingCounts = new int[rangePostings];
+      }
+      if(rangeEnd - rangeStart < batch.documentCount) {
+        logger.debug("Inverting documents " + rangeStart + " to " + 
+            rangeEnd + " of " + batch.documentCount + 
+            " for the direct index of " + name);
+      }
+      // the terms are visited in ID order, so each document gets them sorted
+      for(int i = 0; i < terms.length; i++) {
+        PostingsList termPostings = batch.getPostings(terms[i], 
+            scratchPostings);
+        long docPointer = termPostings.firstDocumentPointer;
+        for(int j = 0; j < termPostings.documentPointersDifferential.size(); 
+            j++) {
+          docPointer += termPostings.documentPointersDifferential.getInt(j);
+          if(docPointer < rangeStart) continue;
+          if(docPointer >= rangeEnd) break;
+          int slot = docCursors[(int)docPointer]++;
+          postingTermIds[slot] = termIds[i];
+          postingCounts[slot] = termPostings.counts.getInt(j);
+        }
+      }
+      // write the documents in the range
+      int slot = 0;
+      for(int doc = rangeStart; doc < rangeEnd; doc++) {
+        int docEnd = slot + docTermCounts[doc];
+        if(docEnd == slot) continue;
+        docIdStr.replace(longToTerm(docsOnDisk + doc));
+        docIdStr.println(pw);
+        docBloomFilter.add(docIdStr);
+        docPostings.clear();
+        for(; slot < docEnd; slot++) {
+          docPostings.newDocumentPointer(postingTermIds[slot]);
+          docPostings.setCount(postingCounts[slot]); 
+          docPostings.flush();
+        }
+        docPostings.write(directIndexWriter);
+        if ( maxCount < docPostings.maxCount ) maxCount = docPostings.maxCount;
+        occurrences += docPostings.occurrences;
+      }
+      rangeStart = rangeEnd;
     }
     pw.close();
+    directIndexWriter.close();
     generateTermMap(new File(mg4jBasename + DiskBasedIndex.TERMS_EXTENSION),
         new File(mg4jBasename + DiskBasedIndex.TERMMAP_EXTENSION), null);
     // write the bloom filter
     BinIO.storeObject(docBloomFilter, 
         new File(mg4jBasename + DocumentalCluster.BLOOM_EXTENSION)); 
-    // write the sizes file
-    // this is a list of document sizes (directTerms in our case)    
-    File sizesFile = new File(mg4jBasename + DiskBasedIndex.SIZES_EXTENSION);
-    OutputBitStream sizesStream = new OutputBitStream(sizesFile);
-    int maxTermSize = -1; // -1 means unknown
-    //for(MutableString term : termArray) {
-    for(long directTermId = 0; directTermId < directTerms.size64(); directTermId++){
-      String termString = directTerms.get(directTermId);
-      termMS.replace(termString);
-      PostingsList termPostings = termMap.get(termMS);
-      int termSize = termPostings != null ?
-          (int)termPostings.frequency : 0;
-      sizesStream.writeGamma(termSize);
-      if(termSize > maxTermSize) maxTermSize = termSize;
-    }
-    sizesStream.close();
-    
-    // write the actual index
-    int maxCount = 0;
-    long occurrences = 0;
-    for ( int i = 0; i < docArray.length; i++ ) {
-      PostingsList postingsList = docMap.get( docArray[ i ] );
-      if ( maxCount < postingsList.maxCount ) maxCount = postingsList.maxCount;
-      postingsList.write(directIndexWriter);
-      occurrences += postingsList.occurrences;
-    }
-    directIndexWriter.close();
     // write the index properties
     try {
       Properties properties = directIndexWriter.properties();
@@ -1250,23 +2402,78 @@ public abstract class AtomicIndex implements Runnable {
       // this should never happen
       throw new IndexException("Error while saving tail properties", e);
     }
-    //update the index-wide direct terms file
-    File newDirectTermsFile = new File(indexDirectory, DIRECT_TERMS_FILENAME + HEAD_NEW_EXT);
-    pw = new PrintWriter(new OutputStreamWriter(new FastBufferedOutputStream(
-        new FileOutputStream(newDirectTermsFile), 64 * 1024), "UTF-8" ));
-    for (String t : directTerms ) {
-      pw.println(t);
-    }
-    pw.close();
-
-    File directTermsFile = new File(indexDirectory, DIRECT_TERMS_FILENAME);
-    File oldDirectTermsFile = new File(indexDirectory, DIRECT_TERMS_FILENAME + HEAD_OLD_EXT);
-    if(!directTermsFile.exists() || directTermsFile.renameTo(oldDirectTermsFile)) {
-      if(newDirectTermsFile.renameTo(directTermsFile)) {
-        oldDirectTermsFile.delete();
-      } else {
-        throw new IndexException("Unable to save direct terms file");
+    // append the new terms to the index-wide direct terms file; this must be
+    // on disk before the batch using them
+    directTerms.save(new File(indexDirectory, DIRECT_TERMS_FILENAME));
+  }
+  
+  /**
+   * Starts writing the direct index for a batch, using the 
+   * {@link #directIndexExecutor} if there is one, or the current thread 
+   * otherwise.
+   * @param batchDir
+   * @param batch
+   * @return a future to be passed to {@link #waitForDirectIndex(Future)}.
+   */
+  protected Future<Void> startDirectIndex(final File batchDir, 
+      final RamBatch batch) throws IOException, IndexException {
+    return submitDirectIndexTask(new Callable<Void>() {
+      @Override
+      public Void call() throws Exception {
+        writeDirectIndex(batchDir, batch);
+        return null;
       }
+    });
+  }
+  
+  /**
+   * Runs a task that writes direct index files, using the 
+   * {@link #directIndexExecutor} if there is one, or the current thread 
+   * otherwise.
+   * @param task
+   * @return a future to be passed to {@link #waitForDirectIndex(Future)}.
+   */
+  protected Future<Void> submitDirectIndexTask(Callable<Void> task) 
+      throws IOException, IndexException {
+    if(directIndexExecutor != null && !directIndexExecutor.isShutdown()) {
+      return directIndexExecutor.submit(task);
+    } else {
+      try {
+        task.call();
+      } catch(IOException e) {
+        throw e;
+      } catch(IndexException e) {
+        throw e;
+      } catch(Exception e) {
+        throw new IndexException("Error while writing the direct index for " + 
+            name, e);
+      }
+      return null;
+    }
+  }
+  
+  /**
+   * Waits for the direct index started by 
+   * {@link #submitDirectIndexTask(Callable)} to be written. 
+   * @param result
+   * @throws IOException
+   * @throws IndexException
+   */
+  protected void waitForDirectIndex(Future<Void> result) 
+      throws IOException, IndexException {
+    if(result == null) return;
+    try {
+      result.get();
+    } catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IndexException("Interrupted while writing the direct index " +
+          "for " + name, e);
+    } catch(ExecutionException e) {
+      Throwable cause = e.getCause();
+      if(cause instanceof IOException) throw (IOException)cause;
+      if(cause instanceof IndexException) throw (IndexException)cause;
+      throw new IndexException("Error while writing the direct index for " + 
+          name, cause);
     }
   }
 	
@@ -1277,110 +2484,459 @@ public abstract class AtomicIndex implements Runnable {
 	 * @throws IOException 
 	 * @throws ConfigurationException 
 	 */
-	protected void compactIndex() throws IndexException, IOException, ConfigurationException {
-	  File headDirNew = new File(indexDirectory, HEAD_FILE_NAME + HEAD_NEW_EXT);
-	  // make a local copy of the sub-indexes
-	  List<MG4JIndex> indexesToMerge = 
-	      new ArrayList<AtomicIndex.MG4JIndex>(batches);
-	  if(!headDirNew.mkdir()) {
-	    throw new IndexException("Could not create new head directory at " + 
-	        headDirNew.getAbsolutePath() +  "!"); 
-	  }
+	protected void compactIndex() throws IndexException, IOException, ConfigurationException {
+	  int batchCount;
+	  synchronized(this) {
+	    batchCount = batches.size();
+	  }
+	  mergeBatches(0, batchCount);
+	}
+	
+	/**
+	 * Merges the batches selected by the {@link MergePolicy} from the index 
+	 * configuration, repeating until the policy selects no more merges. If no 
+	 * merge policy is configured (e.g. for indexes created with older versions)
+	 * then all the batches are compacted into a new head, once their number 
+	 * exceeds {@link gate.mimir.IndexConfig#getMaximumBatches()}.
+	 * @throws IndexException
+	 * @throws IOException
+	 * @throws ConfigurationException
+	 */
+	protected void mergeIndex() throws IndexException, IOException, ConfigurationException {
+	  MergePolicy mergePolicy = parent.getIndexConfig().getMergePolicy();
+	  if(mergePolicy == null) {
+	    if(getBatchCount() > parent.getIndexConfig().getMaximumBatches()) {
+	      compactIndex();
+	    }
+	    return;
+	  }
+	  int[] range = mergePolicy.findMerge(getBatchSizes());
+	  while(range != null && range[1] - range[0] > 1) {
+	    mergeBatches(range[0], range[1]);
+	    range = mergePolicy.findMerge(getBatchSizes());
+	  }
+	}
+	
+	/**
+	 * Checks whether any on-disk batches need merging, according to the 
+	 * {@link MergePolicy} from the index configuration (or the maximum number
+	 * of batches, if no policy is configured).
+	 * @return
+	 */
+	public boolean isMergeNeeded() {
+	  MergePolicy mergePolicy = parent.getIndexConfig().getMergePolicy();
+	  if(mergePolicy == null) {
+	    return getBatchCount() > parent.getIndexConfig().getMaximumBatches();
+	  } else {
+	    int[] range = mergePolicy.findMerge(getBatchSizes());
+	    return range != null && range[1] - range[0] > 1;
+	  }
+	}
+	
+	/**
+	 * Gets the on-disk sizes (in bytes) of all the batches, in order.
+	 * @return
+	 */
+	protected synchronized long[] getBatchSizes() {
+	  long[] sizes = new long[batches.size()];
+	  for(int i = 0; i < sizes.length; i++) {
+	    sizes[i] = batches.get(i).getSizeInBytes();
+	  }
+	  return sizes;
+	}
+	
+	/**
+	 * Combines a contiguous run of on-disk batches into a single batch. If the
+	 * run starts with the first batch, the result becomes the new head, 
+	 * otherwise it takes the place (and the name) of the first tail in the 
+	 * run, so the batches are still in document order when the index is 
+	 * re-opened.
+	 * @param from the index of the first batch to be merged.
+	 * @param to the index after the last batch to be merged (exclusive).
+	 * @throws IndexException 
+	 * @throws IOException 
+	 * @throws ConfigurationException 
+	 */
+	protected void mergeBatches(int from, int to) throws IndexException, IOException, ConfigurationException {
+	  // make a local copy of the sub-indexes
+	  List<MG4JIndex> indexesToMerge;
+	  long firstDocument = 0;
+	  synchronized(this) {
+	    indexesToMerge = new ArrayList<AtomicIndex.MG4JIndex>(
+	        batches.subList(from, to));
+	    for(int i = 0; i < from; i++) {
+	      firstDocument += batches.get(i).invertedIndex.numberOfDocuments;
+	    }
+	  }
+	  if(indexesToMerge.isEmpty() || (indexesToMerge.size() == 1 && (from > 0 ||
+	      indexesToMerge.get(0).indexDir.getName().equals(HEAD_FILE_NAME)))) {
+	    // nothing to do
+	    return;
+	  }
+	  // find the deleted documents (if any) to be purged from the new batch;
+	  // from now on, they can no longer be undeleted
+	  LongBitmap deleted = null;
+	  if(parent.getIndexConfig().isPurgeDeletedDocuments()) {
+	    long documentCount = 0;
+	    for(MG4JIndex aBatch : indexesToMerge) {
+	      documentCount += aBatch.invertedIndex.numberOfDocuments;
+	    }
+	    LongBitmap snapshot = parent.getDeletedDocuments().purge(firstDocument,
+	        firstDocument + documentCount);
+	    long firstDeleted = snapshot.nextValue(firstDocument);
+	    if(firstDeleted >= 0 && firstDeleted < firstDocument + documentCount) {
+	      deleted = snapshot;
+	    }
+	  }
+	  String targetName = from == 0 ? HEAD_FILE_NAME : 
+	      indexesToMerge.get(0).indexDir.getName();
+	  File targetDirNew = new File(indexDirectory, targetName + HEAD_NEW_EXT);
+	  if(!targetDirNew.mkdir()) {
+	    throw new IndexException("Could not create new batch directory at " + 
+	        targetDirNew.getAbsolutePath() +  "!"); 
+	  }
+	  
+	  Map<Component,Coding> codingFlags = 
+	      CompressionFlags.DEFAULT_QUASI_SUCCINCT_INDEX;
+	  String outputBaseName = new File(targetDirNew, name).getAbsolutePath();
+	  
+	  String[] inputBaseNames = new String[indexesToMerge.size()];
+	  for(int i = 0; i < inputBaseNames.length; i++) {
+	    inputBaseNames[i] = new File(indexesToMerge.get(i).indexDir, name)
+	      .getAbsolutePath(); 
+	  }
+	  
+	  // the direct indexes are combined at the same time as the inverted ones
+	  Future<Void> directIndexResult = null;
+	  if(hasDirectIndex()) {
+	    final List<MG4JIndex> directInputs = indexesToMerge;
+	    final String directOutputBaseName = new File(targetDirNew, name + 
+	        DIRECT_INDEX_NAME_SUFFIX).getAbsolutePath();
+	    final LongBitmap directDeleted = deleted;
+	    directIndexResult = submitDirectIndexTask(new Callable<Void>() {
+	      @Override
+	      public Void call() throws Exception {
+	        combineDirectIndexes(directInputs, directOutputBaseName, 
+	            directDeleted);
+	        return null;
+	      }
+	    });
+	  }
+	  
+	  // if purging, the batches are first concatenated to a temporary index, 
+	  // which is then copied without the deleted documents
+	  String concatenatedBaseName = deleted == null ? outputBaseName :
+	      outputBaseName + UNPURGED_NAME_SUFFIX;
+	  try {
+      new Concatenate(
+          IOFactory.FILESYSTEM_FACTORY,
+          concatenatedBaseName,
+          inputBaseNames,
+          false, // metadataOnly 
+          Combine.DEFAULT_BUFFER_SIZE, 
+          codingFlags,
+          IndexType.QUASI_SUCCINCT,
+          true, // skips
+          // BitStreamIndex.DEFAULT_QUANTUM,
+          // replaced with optimised automatic calculation
+          -5, 
+          BitStreamIndex.DEFAULT_HEIGHT, 
+          SkipBitStreamIndexWriter.DEFAULT_TEMP_BUFFER_SIZE, 
+          ProgressLogger.DEFAULT_LOG_INTERVAL).run();
+      if(deleted != null) {
+        long purged = purgeDeletedDocuments(concatenatedBaseName, 
+            outputBaseName, deleted, firstDocument);
+        logger.info("Purged " + purged + " postings for deleted documents " +
+            "from " + outputBaseName);
+        // remove the temporary files
+        String prefix = new File(concatenatedBaseName).getName() + ".";
+        for(File aFile : targetDirNew.listFiles()) {
+          if(aFile.getName().startsWith(prefix) && !aFile.delete()) {
+            logger.warn("Could not delete temporary file " + aFile);
+          }
+        }
+      }
+      // generate term map
+      generateTermMap(new File(outputBaseName + DiskBasedIndex.TERMS_EXTENSION), 
+          new File(outputBaseName +  DiskBasedIndex.TERMMAP_EXTENSION),
+          new File(outputBaseName +  DocumentalCluster.BLOOM_EXTENSION));
+    } catch(Exception e) {
+      // don't leave the direct index merge writing into the new batch
+      try {
+        waitForDirectIndex(directIndexResult);
+      } catch(Exception e2) {
+        logger.warn("Exception while combining direct sub-indexes", e2);
+      }
+      throw new IndexException("Exception while combining sub-indexes", e);
+    }
+    waitForDirectIndex(directIndexResult);
+    // record the merged batches, so they can be deleted after a crash
+    List<String> mergedBatchNames = new ArrayList<String>();
+    for(MG4JIndex aSubIndex : indexesToMerge) {
+      if(!aSubIndex.indexDir.getName().equals(targetName)) {
+        mergedBatchNames.add(aSubIndex.indexDir.getName());
+      }
+    }
+    Files.write(new File(targetDirNew, MERGED_BATCHES_FILE_NAME).toPath(), 
+        mergedBatchNames, StandardCharsets.UTF_8);
+    syncFiles(targetDirNew);
+	  
+	  // update the internal state
+    synchronized(this) {
+      File targetDir = new File(indexDirectory, targetName);
+      File targetDirOld = new File(indexDirectory, targetName + HEAD_OLD_EXT);
+      // move the old batch out of the way (if there was one with this name)
+      if(targetDir.exists() && !targetDir.renameTo(targetDirOld)) {
+        throw new IndexException("Cold not rename batch at " + 
+            targetDir.getAbsolutePath() + " to " + targetDirOld);
+      }
+      if(targetDirNew.renameTo(targetDir)) {
+        // the merged batches may only be deleted once the rename is on disk,
+        // otherwise a crash could leave neither the batches nor their 
+        // replacement
+        syncDirectory(indexDirectory);
+        // replace the merged batches with the new one 
+        batches.subList(from, from + indexesToMerge.size()).clear();
+        batches.add(from, openSubIndex(targetName));
+        invertedIndex = openInvertedIndexCluster(batches, termProcessor);
+        if(hasDirectIndex) {
+          directIndex =openDirectIndexCluster(batches);
+        }
+        // clean-up: delete old target, used-up batches
+        if(targetDirOld.exists() && !gate.util.Files.rmdir(targetDirOld)) {
+          throw new IndexException(
+              "Could not fully delete old sub-index at: " + targetDirOld);
+        }
+        for(MG4JIndex aSubIndex : indexesToMerge) {
+          if(!aSubIndex.indexDir.equals(targetDir)) {
+            if(!gate.util.Files.rmdir(aSubIndex.indexDir)){
+              throw new IndexException(
+                  "Could not fully delete old sub-index at: " + 
+                  aSubIndex.indexDir);
+            }              
+          }
+        }
+        new File(targetDir, MERGED_BATCHES_FILE_NAME).delete();
+      } else {
+        throw new IndexException("Cold not rename new batch at " + 
+            targetDirNew.getAbsolutePath() + " to " + targetDir);
+      }
+    }
+	}
+	
+  /**
+   * Copies an inverted index (with counts and positions), leaving out the 
+   * postings for all the deleted documents. Deleted documents are left as 
+   * holes: all the other document pointers are unchanged, and the deleted 
+   * documents are given a size of zero. Terms that only occur in deleted 
+   * documents are dropped. The term map and Bloom filter are not generated.
+   * @param inputBasename the basename of the index to be copied.
+   * @param outputBasename the basename for the new index.
+   * @param deleted the IDs of the deleted documents.
+   * @param firstDocument the (global) ID of the first document in the input 
+   * index, used to convert its document pointers into document IDs.
+   * @return the number of postings left out.
+   * @throws Exception 
+   */
+  protected static long purgeDeletedDocuments(String inputBasename, 
+      String outputBasename, LongBitmap deleted, long firstDocument) 
+      throws Exception {
+    Index inputIndex = Index.getInstance(inputBasename, true, false);
+    long numberOfDocuments = inputIndex.numberOfDocuments;
+    QuasiSuccinctIndexWriter indexWriter = new QuasiSuccinctIndexWriter(
+        IOFactory.FILESYSTEM_FACTORY,
+        outputBasename,
+        numberOfDocuments,
+        Fast.mostSignificantBit(QuasiSuccinctIndex.DEFAULT_QUANTUM),
+        QuasiSuccinctIndexWriter.DEFAULT_CACHE_SIZE,
+        CompressionFlags.DEFAULT_QUASI_SUCCINCT_INDEX,
+        ByteOrder.nativeOrder());
+    PrintWriter termsPw = new PrintWriter( 
+        new OutputStreamWriter(new FastBufferedOutputStream(
+            new FileOutputStream(outputBasename + DiskBasedIndex.TERMS_EXTENSION), 
+            64 * 1024), 
+        "UTF-8" ));
+    // the index reader does not give us the terms, so we read them from the
+    // terms file, in step with the reader
+    FileLinesCollection.FileLinesIterator termsIter =
+        new FileLinesCollection(inputBasename + DiskBasedIndex.TERMS_EXTENSION,
+        "UTF-8").iterator();
+    IndexReader inputReader = inputIndex.getReader();
+    long purged = 0;
+    long occurrences = 0;
+    int maxCount = 0;
+    PostingsList postingsList = new PostingsList(true);
+    try {
+      IndexIterator inputIterator = inputReader.nextIterator();
+      while(inputIterator != null && termsIter.hasNext()) {
+        MutableString termMS = termsIter.next();
+        long docPointer = inputIterator.nextDocument();
+        while(docPointer != IndexIterator.END_OF_LIST) {
+          if(deleted.contains(firstDocument + docPointer)) {
+            purged++;
+          } else {
+            postingsList.newDocumentPointer(docPointer);
+            int pos = inputIterator.nextPosition();
+            while(pos != IndexIterator.END_OF_POSITIONS) {
+              postingsList.addPosition(pos);
+              pos = inputIterator.nextPosition();
+            }
+          }
+          docPointer = inputIterator.nextDocument();
+        }
+        if(postingsList.frequency > 0) {
+          termMS.println(termsPw);
+          postingsList.write(indexWriter);
+          occurrences += postingsList.occurrences;
+          if(maxCount < postingsList.maxCount) maxCount = postingsList.maxCount;
+        }
+        postingsList.clear();
+        inputIterator = inputReader.nextIterator();
+      }
+    } finally {
+      inputReader.close();
+      termsIter.close();
+      termsPw.close();
+    }
+    indexWriter.close();
+    
+    // write the sizes, with zero for the deleted documents
+    int maxDocSize = 0;
+    InputBitStream inputSizes = new InputBitStream(
+        inputBasename + DiskBasedIndex.SIZES_EXTENSION);
+    OutputBitStream outputSizes = new OutputBitStream(
+        outputBasename + DiskBasedIndex.SIZES_EXTENSION);
+    try {
+      for(long i = 0; i < numberOfDocuments; i++) {
+        int size = inputSizes.readGamma();
+        if(deleted.contains(firstDocument + i)) {
+          size = 0;
+        } else if(size > maxDocSize) {
+          maxDocSize = size;
+        }
+        outputSizes.writeGamma(size);
+      }
+    } finally {
+      inputSizes.close();
+      outputSizes.close();
+    }
+    
+    // write the index properties: keep any values from the input index that
+    // are not produced by the writer (e.g. the term processor)
+    Properties inputProperties = new Properties(
+        inputBasename + DiskBasedIndex.PROPERTIES_EXTENSION);
+    Properties properties = indexWriter.properties();
+    Iterator<String> keys = inputProperties.getKeys();
+    while(keys.hasNext()) {
+      String key = keys.next();
+      if(!properties.containsKey(key)) {
+        properties.setProperty(key, inputProperties.getProperty(key));
+      }
+    }
+    properties.setProperty(Index.PropertyKeys.SIZE, indexWriter.writtenBits());
+    properties.setProperty(Index.PropertyKeys.MAXDOCSIZE, maxDocSize);
+    properties.setProperty(Index.PropertyKeys.MAXCOUNT, maxCount);
+    properties.setProperty(Index.PropertyKeys.OCCURRENCES, occurrences);
+    Scan.saveProperties(IOFactory.FILESYSTEM_FACTORY, properties, 
+        outputBasename + DiskBasedIndex.PROPERTIES_EXTENSION);
+    
+    // write stats
+    PrintStream statsPs = new PrintStream(new File(outputBasename + 
+        DiskBasedIndex.STATS_EXTENSION));
+    indexWriter.printStats(statsPs);
+    statsPs.close();
+    return purged;
+  }
+  
+	/**
+	 * A cursor over the terms (i.e. document IDs) of one of the direct 
+	 * indexes being combined, used for the k-way merge in 
+	 * {@link AtomicIndex#combineDirectIndexes(List, String, LongBitmap)}.
+	 */
+	private static class DirectIndexCursor implements Comparable<DirectIndexCursor> {
+	  private final int inputIndex;
+	  private final IndexReader reader;
+	  private final FileLinesCollection.FileLinesIterator termsIter;
+	  private MutableString term;
+	  private IndexIterator postings;
+	  private boolean closed;
 	  
-	  Map<Component,Coding> codingFlags = 
-	      CompressionFlags.DEFAULT_QUASI_SUCCINCT_INDEX;
-	  String outputBaseName = new File(headDirNew, name).getAbsolutePath();
+	  private DirectIndexCursor(int inputIndex, MG4JIndex input) 
+	      throws IOException {
+	    this.inputIndex = inputIndex;
+	    this.reader = input.directIndex.getReader();
+	    File directTermsFile = new File(input.indexDir, 
+	        input.indexName + DIRECT_INDEX_NAME_SUFFIX + 
+	        DiskBasedIndex.TERMS_EXTENSION);
+	    try {
+	      this.termsIter = new FileLinesCollection(
+	          directTermsFile.getAbsolutePath(), "UTF-8").iterator();
+	    } catch(RuntimeException e) {
+	      reader.close();
+	      throw e;
+	    }
+	  }
 	  
-	  String[] inputBaseNames = new String[indexesToMerge.size()];
-	  for(int i = 0; i < inputBaseNames.length; i++) {
-	    inputBaseNames[i] = new File(indexesToMerge.get(i).indexDir, name)
-	      .getAbsolutePath(); 
+	  /**
+	   * Moves to the next term.
+	   * @return <code>false</code> if there are no more terms, in which case 
+	   * the cursor has been closed.
+	   */
+	  private boolean advance() throws IOException {
+	    postings = reader.nextIterator();
+	    if(postings == null || !termsIter.hasNext()) {
+	      close();
+	      return false;
+	    }
+	    term = termsIter.next();
+	    return true;
 	  }
 	  
-	  try {
-      new Concatenate(
-          IOFactory.FILESYSTEM_FACTORY,
-          outputBaseName,
-          inputBaseNames,
-          false, // metadataOnly 
-          Combine.DEFAULT_BUFFER_SIZE, 
-          codingFlags,
-          IndexType.QUASI_SUCCINCT,
-          true, // skips
-          // BitStreamIndex.DEFAULT_QUANTUM,
-          // replaced with optimised automatic calculation
-          -5, 
-          BitStreamIndex.DEFAULT_HEIGHT, 
-          SkipBitStreamIndexWriter.DEFAULT_TEMP_BUFFER_SIZE, 
-          ProgressLogger.DEFAULT_LOG_INTERVAL).run();
-      // generate term map
-      generateTermMap(new File(outputBaseName + DiskBasedIndex.TERMS_EXTENSION), 
-          new File(outputBaseName +  DiskBasedIndex.TERMMAP_EXTENSION),
-          new File(outputBaseName +  DocumentalCluster.BLOOM_EXTENSION));
-    } catch(Exception e) {
-      throw new IndexException("Exception while combining sub-indexes", e);
-    }
+	  /**
+	   * Closes the inputs. Does nothing if already closed.
+	   */
+	  private void close() throws IOException {
+	    if(closed) return;
+	    closed = true;
+	    try {
+	      termsIter.close();
+	    } finally {
+	      reader.close();
+	    }
+	  }
 
-    if(hasDirectIndex()) {
-      combineDirectIndexes(indexesToMerge, new File(headDirNew, name + 
-          DIRECT_INDEX_NAME_SUFFIX).getAbsolutePath());
-    }	  
-	  
-	  // update the internal state
-    synchronized(this) {
-      // remove the indexes that were merged
-      batches.removeAll(indexesToMerge);
-      // insert the new head at the front of the list
-      File headDir = new File(indexDirectory, HEAD_FILE_NAME);
-      File headDirOld = new File(indexDirectory, HEAD_FILE_NAME + HEAD_OLD_EXT);
-      if(headDir.exists() && headDir.renameTo(headDirOld)){
-        if(headDirNew.renameTo(headDir)) {
-          batches.add(0, openSubIndex(HEAD_FILE_NAME));
-          invertedIndex = openInvertedIndexCluster(batches, termProcessor);
-          if(hasDirectIndex) {
-            directIndex =openDirectIndexCluster(batches);
-          }
-          // clean-up: delete old head, used-up tails
-          if(!gate.util.Files.rmdir(headDirOld)) {
-            throw new IndexException(
-                "Could not fully delete old sub-index at: " + headDirOld);
-          }
-          for(MG4JIndex aSubIndex : indexesToMerge) {
-            if(!aSubIndex.indexDir.equals(headDir)) {
-              if(!gate.util.Files.rmdir(aSubIndex.indexDir)){
-                throw new IndexException(
-                    "Could not fully delete old sub-index at: " + 
-                    aSubIndex.indexDir);
-              }              
-            }
-          }
-        } else {
-          throw new IndexException("Cold not rename new head at " + 
-              headDirNew.getAbsolutePath() + " to " + headDir);
-        }
-      } else {
-        throw new IndexException("Cold not rename head at " + 
-            headDir.getAbsolutePath() + " to " + headDirOld);
-      }
+    @Override
+    public int compareTo(DirectIndexCursor other) {
+      int res = term.compareTo(other.term);
+      return res != 0 ? res : Integer.compare(inputIndex, other.inputIndex);
     }
 	}
 	
 	/**
 	 * Given a set of direct indexes (MG4J indexes, with counts, but no positions,
 	 * that form a lexical cluster) this method produces one single output index
-	 * containing the data from all the input indexes.
+	 * containing the data from all the input indexes. The inputs are read with
+	 * a k-way merge over their (sorted) terms, so only one term from each 
+	 * input, and the postings for one output term, are held in memory at any 
+	 * time. 
 	 * @param inputIndexes
 	 * @param outputBasename
+	 * @param deleted if not <code>null</code>, the entries for the documents 
+	 * in this set are left out of the output index. 
 	 * @throws IOException 
 	 * @throws ConfigurationException 
 	 */
 	protected static void combineDirectIndexes (List<MG4JIndex> inputIndexes, 
-	    String outputBasename) throws IOException, ConfigurationException {
+	    String outputBasename, LongBitmap deleted) 
+	    throws IOException, ConfigurationException {
 	  
+	  // the "documents" in a direct index are direct term IDs, from the same 
+	  // index-wide ID space for all the inputs
 	  long noOfDocuments = 0;
 	  long noOfTerms = 0;
 	  for(MG4JIndex index : inputIndexes) {
-	    noOfDocuments += index.directIndex.numberOfDocuments;
+	    noOfDocuments = Math.max(noOfDocuments, 
+	        index.directIndex.numberOfDocuments);
 	    noOfTerms += index.directIndex.numberOfTerms;
 	  }
 	  
@@ -1399,67 +2955,101 @@ public abstract class AtomicIndex implements Runnable {
             flags,
             ByteOrder.nativeOrder());
     
-    BloomFilter<Void> bloomFilter = BloomFilter.create(noOfTerms);
+    BloomFilter<Void> bloomFilter = BloomFilter.create(Math.max(noOfTerms, 1));
     PrintWriter termsPw = new PrintWriter( 
         new OutputStreamWriter(new FastBufferedOutputStream(
             new FileOutputStream(outputBasename + DiskBasedIndex.TERMS_EXTENSION), 
             64 * 1024), 
         "UTF-8" ));
     
-    // write the index
-    long occurrences = 0;
-    int maxCount = 0;
-    PostingsList postingsList = new PostingsList(false);
-    for(MG4JIndex inputIndex : inputIndexes) {
-      IndexReader inputReader = inputIndex.directIndex.getReader();
-      File directTermsFile = new File(inputIndex.indexDir, 
-          inputIndex.indexName + DIRECT_INDEX_NAME_SUFFIX + 
-          DiskBasedIndex.TERMS_EXTENSION);
-      FileLinesCollection.FileLinesIterator termsIter =
-          new FileLinesCollection(directTermsFile.getAbsolutePath(), 
-          "UTF-8").iterator();
-      MutableString termMS = null;
-      IndexIterator inputIterator = inputReader.nextIterator();
-      while(inputIterator != null && termsIter.hasNext()) {
-        termMS = termsIter.next();
-        bloomFilter.add(termMS);
-        termMS.println(termsPw);
-        long docPointer = inputIterator.nextDocument();
-        while(docPointer !=  IndexIterator.END_OF_LIST) {
-          postingsList.newDocumentPointer(docPointer);
-          postingsList.setCount(inputIterator.count());
-          docPointer = inputIterator.nextDocument();
+    PriorityQueue<DirectIndexCursor> queue = 
+        new PriorityQueue<DirectIndexCursor>(
+            Math.max(inputIndexes.size(), 1));
+    List<DirectIndexCursor> sameTerm = new ArrayList<DirectIndexCursor>();
+    try {
+      for(int i = 0; i < inputIndexes.size(); i++) {
+        DirectIndexCursor cursor = new DirectIndexCursor(i, 
+            inputIndexes.get(i));
+        // closed in the finally block if advancing fails
+        sameTerm.add(cursor);
+        if(cursor.advance()) queue.add(cursor);
+        sameTerm.clear();
+      }
+      // write the index
+      long occurrences = 0;
+      int maxCount = 0;
+      PostingsList postingsList = new PostingsList(false);
+      LongArrayList mergedPointers = new LongArrayList();
+      IntArrayList mergedCounts = new IntArrayList();
+      while(!queue.isEmpty()) {
+        // the batches cover disjoint document ranges, so each term normally 
+        // comes from a single input
+        sameTerm.clear();
+        sameTerm.add(queue.poll());
+        MutableString termMS = sameTerm.get(0).term;
+        while(!queue.isEmpty() && queue.peek().term.equals(termMS)) {
+          sameTerm.add(queue.poll());
+        }
+        // the terms in a direct index are document IDs
+        if(deleted == null || 
+           !deleted.contains(Long.parseLong(termMS.toString(), 16))) {
+          bloomFilter.add(termMS);
+          termMS.println(termsPw);
+          if(sameTerm.size() == 1) {
+            IndexIterator inputIterator = sameTerm.get(0).postings;
+            long docPointer = inputIterator.nextDocument();
+            while(docPointer !=  IndexIterator.END_OF_LIST) {
+              postingsList.newDocumentPointer(docPointer);
+              postingsList.setCount(inputIterator.count());
+              docPointer = inputIterator.nextDocument();
+            }
+          } else {
+            mergePostings(sameTerm, mergedPointers, mergedCounts, 
+                postingsList);
+          }
+          postingsList.flush();
+          occurrences += postingsList.occurrences;
+          if ( maxCount < postingsList.maxCount ) maxCount = postingsList.maxCount;
+          postingsList.write(outputIndexWriter);
+          postingsList.clear();
+        }
+        // move the used cursors on
+        for(DirectIndexCursor aCursor : sameTerm) {
+          if(aCursor.advance()) queue.add(aCursor);
         }
-        postingsList.flush();
-        occurrences += postingsList.occurrences;
-        if ( maxCount < postingsList.maxCount ) maxCount = postingsList.maxCount;
-        postingsList.write(outputIndexWriter);
-        postingsList.clear();
-        inputIterator = inputReader.nextIterator();
       }
-      inputReader.close();
-    }
-    outputIndexWriter.close();
-    termsPw.close();
-    generateTermMap(new File(outputBasename + DiskBasedIndex.TERMS_EXTENSION),
-        new File(outputBasename + DiskBasedIndex.TERMMAP_EXTENSION), null);
-    // write the bloom filter
-    BinIO.storeObject(bloomFilter, 
-        new File(outputBasename + DocumentalCluster.BLOOM_EXTENSION));
-    // direct indexes don't store positions, so sizes are not needed
+      outputIndexWriter.close();
+      termsPw.close();
+      generateTermMap(new File(outputBasename + DiskBasedIndex.TERMS_EXTENSION),
+          new File(outputBasename + DiskBasedIndex.TERMMAP_EXTENSION), null);
+      // write the bloom filter
+      BinIO.storeObject(bloomFilter, 
+          new File(outputBasename + DocumentalCluster.BLOOM_EXTENSION));
+      // direct indexes don't store positions, so sizes are not needed
 
-    // write the index properties
-    Properties properties = outputIndexWriter.properties();
-    properties.setProperty(Index.PropertyKeys.TERMPROCESSOR, 
-        ObjectParser.toSpec(NullTermProcessor.getInstance()));
-    properties.setProperty( Index.PropertyKeys.SIZE,  
-        outputIndexWriter.writtenBits());
-    // -1 means unknown
-    properties.setProperty( Index.PropertyKeys.MAXDOCSIZE, -1);
-    properties.setProperty( Index.PropertyKeys.MAXCOUNT, maxCount );
-    properties.setProperty( Index.PropertyKeys.OCCURRENCES, occurrences);
-    Scan.saveProperties( IOFactory.FILESYSTEM_FACTORY, properties, 
-        outputBasename + DiskBasedIndex.PROPERTIES_EXTENSION );
+      // write the index properties
+      Properties properties = outputIndexWriter.properties();
+      properties.setProperty(Index.PropertyKeys.TERMPROCESSOR, 
+          ObjectParser.toSpec(NullTermProcessor.getInstance()));
+      properties.setProperty( Index.PropertyKeys.SIZE,  
+          outputIndexWriter.writtenBits());
+      // -1 means unknown
+      properties.setProperty( Index.PropertyKeys.MAXDOCSIZE, -1);
+      properties.setProperty( Index.PropertyKeys.MAXCOUNT, maxCount );
+      properties.setProperty( Index.PropertyKeys.OCCURRENCES, occurrences);
+      Scan.saveProperties( IOFactory.FILESYSTEM_FACTORY, properties, 
+          outputBasename + DiskBasedIndex.PROPERTIES_EXTENSION );
+    } finally {
+      // close any inputs left open by an exception: both those waiting in 
+      // the queue, and those taken out of it for the current term
+      for(DirectIndexCursor aCursor : queue) {
+        aCursor.close();
+      }
+      for(DirectIndexCursor aCursor : sameTerm) {
+        aCursor.close();
+      }
+      termsPw.close();
+    }
     
     // write stats
     PrintStream statsPs = new PrintStream(new File(outputBasename + 
@@ -1468,6 +3058,65 @@ public abstract class AtomicIndex implements Runnable {
     statsPs.close();
 	}
 	
+	/**
+	 * Merges the postings for the same direct term (i.e. document) from 
+	 * several inputs, adding up the counts for any term ID found in more than 
+	 * one of them.
+	 * @param cursors the inputs, positioned on the same term.
+	 * @param pointers scratch list for the document pointers.
+	 * @param counts scratch list for the counts.
+	 * @param output the postings list to be filled. 
+	 * @throws IOException
+	 */
+	private static void mergePostings(List<DirectIndexCursor> cursors, 
+	    final LongArrayList pointers, final IntArrayList counts, 
+	    PostingsList output) throws IOException {
+	  pointers.clear();
+	  counts.clear();
+	  for(DirectIndexCursor aCursor : cursors) {
+	    long docPointer = aCursor.postings.nextDocument();
+	    while(docPointer != IndexIterator.END_OF_LIST) {
+	      pointers.add(docPointer);
+	      counts.add(aCursor.postings.count());
+	      docPointer = aCursor.postings.nextDocument();
+	    }
+	  }
+	  Arrays.quickSort(0, pointers.size(), 
+	      new IntComparator() {
+	        @Override
+	        public int compare(Integer one, Integer other) {
+	          return compare(one.intValue(), other.intValue());
+	        }
+	        
+	        @Override
+	        public int compare(int one, int other) {
+	          return Long.compare(pointers.getLong(one), pointers.getLong(other));
+	        }
+	      },
+	      new Swapper() {
+	        @Override
+	        public void swap(int one, int other) {
+	          long tempPointer = pointers.getLong(one);
+	          pointers.set(one, pointers.getLong(other));
+	          pointers.set(other, tempPointer);
+	          int tempCount = counts.getInt(one);
+	          counts.set(one, counts.getInt(other));
+	          counts.set(other, tempCount);
+	        }
+	      });
+	  int i = 0;
+	  while(i < pointers.size()) {
+	    long pointer = pointers.getLong(i);
+	    int count = 0;
+	    while(i < pointers.size() && pointers.getLong(i) == pointer) {
+	      count += counts.getInt(i++);
+	    }
+	    output.newDocumentPointer(pointer);
+	    output.setCount(count);
+	    output.flush();
+	  }
+	}
+	
 	/**
 	 * Instructs this index to dump to disk all the in-RAM index data at the fist 
 	 * opportunity.
@@ -1477,16 +3126,18 @@ public abstract class AtomicIndex implements Runnable {
 	 * queue the dump request.
 	 */
 	public Future<Long> requestSyncToDisk() throws InterruptedException {
-	  if(batchWriteTask == null) {
-	    batchWriteTask = new FutureTask<Long>(new Callable<Long>() {
+	  BatchWriteTask task;
+	  synchronized(requestsLock) {
+	    if(batchWriteTask != null) return batchWriteTask;
+	    task = batchWriteTask = new BatchWriteTask(new Callable<Long>() {
         @Override
         public Long call() throws Exception {
           return writeCurrentBatch();
         }
       });
-	    inputQueue.put(DUMP_BATCH);  
 	  }
-	  return batchWriteTask;
+	  input.getRingBuffer().put(dumpBatch);
+	  return task;
 	}
 	
 	/**
@@ -1499,19 +3150,46 @@ public abstract class AtomicIndex implements Runnable {
    * queue the compaction request.
 	 */
   public Future<Void> requestCompactIndex() throws InterruptedException {
-    if(compactIndexTask == null) {
-      compactIndexTask = new FutureTask<Void>(new Callable<Void>(){
+    RunnableFuture<Void> task;
+    synchronized(requestsLock) {
+      if(compactIndexTask != null) return compactIndexTask;
+      task = compactIndexTask = new FutureTask<Void>(new Callable<Void>(){
         @Override
         public Void call() throws Exception {
           compactIndex();
           return null;
         }
       });
-      inputQueue.put(COMPACT_INDEX);
     }
-    return compactIndexTask;
+    input.getRingBuffer().put(compactIndex);
+    return task;
   }
 	
+	/**
+	 * Requests this atomic index to merge some of its on-disk batches, as 
+	 * selected by the {@link MergePolicy} from the index configuration.
+	 * 
+	 * @return a {@link Future} which can be used to find out when the merge
+	 * operation has completed.
+	 * @throws InterruptedException if this thread is interrupted while trying to
+   * queue the merge request.
+	 */
+  public Future<Void> requestMergeIndex() throws InterruptedException {
+    RunnableFuture<Void> task;
+    synchronized(requestsLock) {
+      if(mergeBatchesTask != null) return mergeBatchesTask;
+      task = mergeBatchesTask = new FutureTask<Void>(new Callable<Void>(){
+        @Override
+        public Void call() throws Exception {
+          mergeIndex();
+          return null;
+        }
+      });
+    }
+    input.getRingBuffer().put(mergeBatches);
+    return task;
+  }
+  
 	/**
 	 * Opens one sub-index, specified as a directory inside this Atomic Index's
 	 * index directory.
@@ -1521,6 +3199,42 @@ public abstract class AtomicIndex implements Runnable {
 	 * @throws IndexException 
 	 */
 	protected MG4JIndex openSubIndex(String subIndexDirname) throws IOException, IndexException {
+	  return openSubIndex(subIndexDirname, true);
+	}
+	
+	/**
+	 * Loads a Bloom filter, if it exists.
+	 * @param mg4jBasename the basename of the index the filter belongs to.
+	 * @return the filter, or <code>null</code> if there is none.
+	 * @throws IOException
+	 */
+	@SuppressWarnings("unchecked")
+	protected static BloomFilter<Void> loadBloomFilter(String mg4jBasename) 
+	    throws IOException {
+	  File bloomFile = new File(mg4jBasename + DocumentalCluster.BLOOM_EXTENSION);
+	  try {
+	    if(bloomFile.exists()) {
+	      return (BloomFilter<Void>) BinIO.loadObject(bloomFile);
+	    }
+	  } catch(ClassNotFoundException e) {
+	    // this should never happen. If it does, it's not fatal
+	    logger.warn("Exception wile loading stre Bloom Filter", e);
+	  }
+	  return null;
+	}
+	
+	/**
+	 * Opens one sub-index, specified as a directory inside this Atomic Index's
+	 * index directory.
+	 * @param subIndexDirname
+	 * @param loadBloomFilters if <code>false</code>, the Bloom filters are not
+	 * loaded, and must be set later.
+	 * @return
+	 * @throws IOException 
+	 * @throws IndexException 
+	 */
+	protected MG4JIndex openSubIndex(String subIndexDirname, 
+	    boolean loadBloomFilters) throws IOException, IndexException {
     Index invertedIndex = null;
     File subIndexDir = new File(indexDirectory, subIndexDirname);
     String mg4jBasename = new File(subIndexDir, name).getAbsolutePath(); 
@@ -1540,16 +3254,8 @@ public abstract class AtomicIndex implements Runnable {
       throw new IndexException("Could not open the sub-index at" + mg4jBasename , e);
     }
     //read the Bloom filter 
-    File bloomFile = new File(mg4jBasename + DocumentalCluster.BLOOM_EXTENSION);
-    BloomFilter<Void> invertedTermFilter = null;
-    try {
-      if(bloomFile.exists()) {
-        invertedTermFilter = (BloomFilter<Void>) BinIO.loadObject(bloomFile);
-      }
-    } catch(ClassNotFoundException e) {
-      // this should never happen. If it does, it's not fatal
-      logger.warn("Exception wile loading stre Bloom Filter", e);
-    }
+    BloomFilter<Void> invertedTermFilter = loadBloomFilters ? 
+        loadBloomFilter(mg4jBasename) : null;
     
     Index directIndex = null;
     BloomFilter<Void> directTermFilter = null;
@@ -1573,16 +3279,7 @@ public abstract class AtomicIndex implements Runnable {
         throw new IndexException("Could not open the sub-index at" + mg4jBasename , e);
       }
       //read the Bloom filter 
-      bloomFile = new File(mg4jBasename + DocumentalCluster.BLOOM_EXTENSION);
-      
-      try {
-        if(bloomFile.exists()) {
-          directTermFilter = (BloomFilter<Void>) BinIO.loadObject(bloomFile);
-        }
-      } catch(ClassNotFoundException e) {
-        // this should never happen. If it does, it's not fatal
-        logger.warn("Exception wile loading stre Bloom Filter", e);
-      }
+      if(loadBloomFilters) directTermFilter = loadBloomFilter(mg4jBasename);
     }
     
     MG4JIndex newIndexData = new MG4JIndex(subIndexDir, name,
@@ -1600,24 +3297,114 @@ public abstract class AtomicIndex implements Runnable {
 	  indexingThread = Thread.currentThread();
 	  GATEDocument aDocument;
 	  try{
+	    if(indexingThreads > 1) {
+	      IndexingSlice firstSlice = newIndexingSlice(0);
+	      if(firstSlice != null) {
+	        indexingSlices = new IndexingSlice[indexingThreads];
+	        indexingSlices[0] = firstSlice;
+	        for(int i = 1; i < indexingSlices.length; i++) {
+	          indexingSlices[i] = newIndexingSlice(i);
+	        }
+	        documentsInFlight = new LinkedList<DocumentInFlight>();
+	      } else {
+	        logger.warn("Parallel indexing is not supported by " + name + 
+	            ", using a single indexing thread.");
+	      }
+	    }
+	    if(parent.getIndexConfig().isPackedPostings() && 
+	       indexingSlices == null) {
+	      packedPostings = new PackedPostingsAccumulator();
+	    }
+	    batchesInFlight = parent.getIndexConfig().getBatchesInFlight();
+	    if(batchesInFlight > 0) {
+	      batchWriterPermits = new Semaphore(batchesInFlight);
+	      batchWriter = Executors.newSingleThreadExecutor(new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable r) {
+            return new Thread(r, "Mimir-" + name + " batch writer");
+          }
+        });
+	    }
+	    if(hasDirectIndex) {
+	      directIndexExecutor = Executors.newSingleThreadExecutor(
+	          new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable r) {
+            return new Thread(r, "Mimir-" + name + " direct index writer");
+          }
+        });
+	    }
 	    // start in-RAM indexing
 	    newBatch();
-  	  if(inputQueue != null) {
+  	  if(input != null) {
         do{
-          aDocument = inputQueue.take();
+          aDocument = input.take();
           if(aDocument != GATEDocument.END_OF_QUEUE) {
-            if(aDocument == DUMP_BATCH) {
-              //dump batch was requested
-              if(batchWriteTask != null){
-                batchWriteTask.run();
+            if(aDocument instanceof ControlMarker && 
+               aDocument != dumpBatch && aDocument != compactIndex &&
+               aDocument != mergeBatches) {
+              // a marker published by another atomic index: it only needs 
+              // to be released in order with the documents
+              if(documentsInFlight != null && !documentsInFlight.isEmpty()) {
+                documentsInFlight.add(new DocumentInFlight(aDocument, null));
+              } else {
+                input.release();
               }
-              batchWriteTask = null;
-            } else if(aDocument == COMPACT_INDEX) {
-              // compress index was requested
-              if(compactIndexTask != null) {
-                compactIndexTask.run();
+            } else if(aDocument instanceof ControlMarker) {
+              // markers apply to all the documents before them, and are 
+              // released in order with the documents
+              completeDocumentsInFlight();
+              if(aDocument == dumpBatch) {
+                //dump batch was requested
+                BatchWriteTask task;
+                synchronized(requestsLock) {
+                  // requests made from now on need a new marker
+                  task = batchWriteTask;
+                  batchWriteTask = null;
+                }
+                if(task != null){
+                  batchEnding();
+                  if(batchWriter != null) {
+                    writeCurrentBatchInBackground(task);
+                  } else {
+                    task.run();
+                  }
+                }
+              } else if(aDocument == compactIndex) {
+                // compress index was requested
+                RunnableFuture<Void> task;
+                synchronized(requestsLock) {
+                  task = compactIndexTask;
+                  compactIndexTask = null;
+                }
+                if(task != null) {
+                  // compaction works on all the on-disk batches
+                  waitForBatchWriter();
+                  task.run();
+                }
+              } else if(aDocument == mergeBatches) {
+                // merge was requested
+                RunnableFuture<Void> task;
+                synchronized(requestsLock) {
+                  task = mergeBatchesTask;
+                  mergeBatchesTask = null;
+                }
+                if(task != null) {
+                  // the policy needs to see all the on-disk batches
+                  waitForBatchWriter();
+                  task.run();
+                }
               }
-              compactIndexTask = null;
+              input.release();
+            } else if(documentsToSkip > 0) {
+              // already on disk (this is a replay after a crash), so it is 
+              // passed straight on
+              documentsToSkip--;
+              completeDocumentsInFlight();
+              input.release();
+            } else if(indexingSlices != null) {
+              // the document is released when its slice has finished with it
+              dispatchDocument(aDocument);
             } else {
               try {
                 long occurencesBefore = occurrencesInRAM;
@@ -1625,15 +3412,22 @@ public abstract class AtomicIndex implements Runnable {
                 aDocument.addOccurrences(occurrencesInRAM - occurencesBefore);
               } catch(Throwable e) {
                 logger.error("Problem while indexing document!", e);
-              }          
+              }
+              input.release();
             }
           } else {
             // close down
-            writeCurrentBatch();
-            flush();
-          }
-          if(aDocument != DUMP_BATCH && aDocument != COMPACT_INDEX) {
-            outputQueue.put(aDocument);  
+            try {
+              completeDocumentsInFlight();
+              waitForBatchWriter();
+              batchEnding();
+              writeCurrentBatch();
+              flush();
+            } finally {
+              // the other sub-indexes must not wait for this one, even if 
+              // its last batches could not be written
+              input.release();
+            }
           }
         } while(aDocument != GATEDocument.END_OF_QUEUE);
   	  }
@@ -1643,6 +3437,17 @@ public abstract class AtomicIndex implements Runnable {
       logger.error("Exception during indexing!", e);
       throw new GateRuntimeException("Exception during indexing!", e);
     } finally {
+      if(batchWriter != null) {
+        batchWriter.shutdown();
+      }
+      if(directIndexExecutor != null) {
+        directIndexExecutor.shutdown();
+      }
+      if(indexingSlices != null) {
+        for(IndexingSlice aSlice : indexingSlices) {
+          aSlice.executor.shutdown();
+        }
+      }
       indexingThread = null;
     }
 	}
@@ -1660,12 +3465,39 @@ public abstract class AtomicIndex implements Runnable {
 	 * the indexing thread has finished writing all the data.
 	 */
 	public void close() throws InterruptedException {
-    inputQueue.put(GATEDocument.END_OF_QUEUE);
+    input.getRingBuffer().put(GATEDocument.END_OF_QUEUE);
+    awaitTermination();
+	}
+	
+	/**
+	 * Waits for the indexing thread to finish, after a 
+	 * {@link GATEDocument#END_OF_QUEUE} value was sent to the input queue.
+	 * @throws InterruptedException if the waiting thread is interrupted.
+	 */
+	public void awaitTermination() throws InterruptedException {
     if(indexingThread != null) {
       indexingThread.join();
     }
 	}
 
+  /**
+   * Hook for subclasses, called on the indexing thread when all the documents
+   * in the current in-RAM batch have been processed, just before the batch is
+   * handed over for writing to disk. The default implementation is a no-op.
+   */
+  protected void batchEnding() throws IndexException {
+  }
+  
+  /**
+   * Sets the number of documents at the start of the input queue which are 
+   * already on disk, and should be passed on without being indexed again. 
+   * Must be called before any of those documents are queued.
+   * @param documentsToSkip
+   */
+  public void setDocumentsToSkip(long documentsToSkip) {
+    this.documentsToSkip = documentsToSkip;
+  }
+  
   /**
    * Hook for subclasses, called before processing the annotations
    * for this document.  The default implementation is a no-op.
@@ -1716,6 +3548,30 @@ public abstract class AtomicIndex implements Runnable {
   protected abstract String[] calculateTermStringForAnnotation(Annotation ann,
           GATEDocument gateDocument) throws IndexException;
   
+  /**
+   * Creates a new indexing slice, used when parallel indexing is enabled (see
+   * {@link #indexingThreads}). Implementations that can build their in-RAM 
+   * batch using several threads return their own {@link IndexingSlice} 
+   * subclass. The default implementation returns <code>null</code>, meaning
+   * that parallel indexing is not supported.
+   * @param sliceNumber the number of the new slice.
+   * @return the new slice, or <code>null</code>.
+   */
+  protected IndexingSlice newIndexingSlice(int sliceNumber) {
+    return null;
+  }
+  
+  /**
+   * Hook for subclasses, called on the indexing thread after a document has 
+   * been indexed by a slice. Documents are notified in the order they were
+   * received. The default implementation is a no-op.
+   * @param gateDocument the document that was indexed.
+   * @param result the results produced by the slice.
+   */
+  protected void documentSliceCompleted(GATEDocument gateDocument, 
+      SliceResult result) throws IndexException {
+  }
+  
   /**
    * Adds the supplied document to the in-RAM index.
    * @param gateDocument the document to index
@@ -1729,20 +3585,50 @@ public abstract class AtomicIndex implements Runnable {
     //get the annotations to be processed
     Annotation[] annotsToProcess = getAnnotsToProcess(gateDocument);
     logger.debug("Starting document "
-        + gateDocument.getDocument().getName() + ". "
+        + gateDocument.title() + ". "
         + annotsToProcess.length + " annotations to process");    
     try {
       //process the annotations one by one.
       for(Annotation ann : annotsToProcess){
         processAnnotation(ann, gateDocument);
       }
-      // the current document is finished
+    } finally {
+      // the current document is finished (or as much of it as could be)
       int docLength = tokenPosition + 1;
+      try {
+        documentEnding(gateDocument);
+      } finally {
+        documentCompleted(docLength);
+      }
+    }
+  }
+  
+  /**
+   * Adds the document just processed on the indexing thread to the in-RAM 
+   * batch: its postings (collected by {@link #indexCurrentTerm()}), and its 
+   * size. This is the only time the indexing thread holds the write lock 
+   * of the {@link #ramLock} for a document.
+   * @param docLength the size of the document.
+   */
+  protected void documentCompleted(int docLength) {
+    ramLock.writeLock().lock();
+    try {
+      int start = 0;
+      for(int i = 0; i < documentTermEnds.size(); i++) {
+        int end = documentTermEnds.getInt(i);
+        currentTerm.length(0).append(documentTerms.array(), start, 
+            end - start);
+        addOccurrence(documentTermPositions.getInt(i));
+        start = end;
+      }
       if(docLength > maxDocSizeInRAM) maxDocSizeInRAM = docLength;
       documentSizesInRAM.add(docLength);
-    } finally {
-      documentEnding(gateDocument);
       documentsInRAM++;
+    } finally {
+      ramLock.writeLock().unlock();
+      documentTerms.length(0);
+      documentTermEnds.clear();
+      documentTermPositions.clear();
     }
   }
   
@@ -1773,10 +3659,45 @@ public abstract class AtomicIndex implements Runnable {
   }
   
   /**
-   * Adds the value in {@link #currentTerm} to the index.
-   * @throws IOException 
+   * Adds the value in {@link #currentTerm}, at the current 
+   * {@link #tokenPosition}, to the document being indexed. 
    */
   protected void indexCurrentTerm() {
+    replaceLineTerminators(currentTerm);
+    documentTerms.append(currentTerm);
+    documentTermEnds.add(documentTerms.length());
+    documentTermPositions.add(tokenPosition);
+  }
+  
+  /**
+   * Replaces the line terminators in a term with spaces. The terms files 
+   * of the inverted indexes, and the direct terms file, hold one term per 
+   * line, so index terms cannot contain line terminators. This is applied to
+   * all the terms being indexed, and to the query terms.
+   * @param term the term to be changed in place.
+   */
+  public static void replaceLineTerminators(MutableString term) {
+    if(term.indexOf('\n') >= 0 || term.indexOf('\r') >= 0) {
+      term.replace(LINE_TERMINATORS, LINE_TERMINATOR_REPLACEMENTS);
+    }
+  }
+  
+  /**
+   * Adds the value in {@link #currentTerm} to the in-RAM batch, for the 
+   * current document. Must be called with the write lock of the 
+   * {@link #ramLock} held.
+   * @param position the position of the term in the document.
+   */
+  private void addOccurrence(int position) {
+    if(packedPostings != null) {
+      if(packedPostings.addOccurrence(currentTerm, documentsInRAM, 
+          position)) {
+        occurrencesInRAM++;
+      } else {
+        logger.debug("Duplicate position");
+      }
+      return;
+    }
     //check if we have seen this mention before
     PostingsList termPostings = termMap.get(currentTerm);
     if(termPostings == null){
@@ -1789,8 +3710,8 @@ public abstract class AtomicIndex implements Runnable {
     termPostings.newDocumentPointer(documentsInRAM);
     //this is needed so that we don't increment the number of occurrences
     //for duplicate values.
-    if(termPostings.checkPosition(tokenPosition)){
-      termPostings.addPosition(tokenPosition);
+    if(termPostings.checkPosition(position)){
+      termPostings.addPosition(position);
       occurrencesInRAM++;
     } else {
       logger.debug("Duplicate position");
@@ -1816,25 +3737,15 @@ public abstract class AtomicIndex implements Runnable {
   }
 
   /**
-   * Gets the input queue used by this atomic index. This queue is used to 
-   * submit documents for indexing.
-   * @return
-   */
-  public BlockingQueue<GATEDocument> getInputQueue() {
-    return inputQueue;
-  }
-
-  /**
-   * Gets the output queue used by this atomic index. This is used to 
-   * &quot;return&quot; documents that have finished indexing. Notably, values 
-   * in this queue will have their occurrences value (see
-   * {@link GATEDocument#getOccurrences()}) increased by the number of 
+   * Gets the consumer used by this atomic index to read the documents to be 
+   * indexed from the input ring buffer. Documents are released once they 
+   * have finished indexing. Notably, they will have their occurrences value 
+   * (see {@link GATEDocument#getOccurrences()}) increased by the number of 
    * occurrences generated by indexing the document in this atomic index.
-   * 
    * @return
    */
-  public BlockingQueue<GATEDocument> getOutputQueue() {
-    return outputQueue;
+  public DocumentRingBuffer.Consumer getInput() {
+    return input;
   }
 
   /**
@@ -1847,12 +3758,187 @@ public abstract class AtomicIndex implements Runnable {
     return invertedIndex;
   }
   
+  /**
+   * Gets the number of documents in the on-disk batches of this atomic index.
+   * @return
+   */
+  public long getDocumentsOnDiskCount() {
+    Index index = invertedIndex;
+    return index != null ? index.numberOfDocuments : 0;
+  }
+  
+  /**
+   * Gets the term processor used by this atomic index.
+   * @return
+   */
+  public TermProcessor getTermProcessor() {
+    return termProcessor;
+  }
+  
+  /**
+   * Should documents that are still held in RAM be searchable? See 
+   * {@link gate.mimir.IndexConfig#isNearRealTimeSearch()}.
+   * @return
+   */
+  public boolean isNearRealTimeSearch() {
+    return parent.getIndexConfig().isNearRealTimeSearch();
+  }
+  
+  /**
+   * <p>
+   * Takes a snapshot of the postings for a term from the batches that have 
+   * not yet been written to disk: the one currently being built, and any 
+   * batches waiting for the background writer. The snapshot also records the
+   * on-disk index current at the time, so that the two together cover each 
+   * searchable document exactly once.
+   * </p>
+   * <p>
+   * Only documents that have been fully indexed by all the sub-indexes (see
+   * {@link MimirIndex#getIndexedDocumentsCount()}) are included, so that 
+   * searches across several sub-indexes see a consistent set of documents, 
+   * and the document data is available from the document collection.
+   * </p>
+   * @param term the term, already processed by the 
+   * {@link #getTermProcessor()}.
+   * @return
+   */
+  public RamPostings getRamPostings(String term) {
+    MutableString termMS = new MutableString(term);
+    RamPostings.Builder builder = new RamPostings.Builder(true);
+    synchronized(this) {
+      Index diskIndex = invertedIndex;
+      long documentBase = diskIndex == null ? 0 : diskIndex.numberOfDocuments;
+      long visibleDocuments = Math.max(documentBase, 
+          parent.getIndexedDocumentsCount());
+      ramLock.readLock().lock();
+      try {
+        PostingsList scratch = new PostingsList(true);
+        for(RamBatch aBatch : frozenBatches) {
+          PostingsList postings = aBatch.getPostings(termMS, scratch);
+          if(postings != null) {
+            postings.appendTo(builder, documentBase, 
+                visibleDocuments - documentBase);
+          }
+          documentBase += aBatch.documentCount;
+        }
+        // the batch currently being built
+        long pointerLimit = visibleDocuments - documentBase;
+        if(pointerLimit > 0) {
+          PostingsList postings = null;
+          if(packedPostings != null) {
+            int termId = packedPostings.getTermId(termMS);
+            if(termId >= 0) {
+              postings = packedPostings.decodePostings(termId, scratch);
+            }
+          } else if(termMap != null) {
+            postings = termMap.get(termMS);
+          }
+          if(postings != null) {
+            postings.appendTo(builder, documentBase, pointerLimit);
+          }
+          if(indexingSlices != null) {
+            for(IndexingSlice aSlice : indexingSlices) {
+              synchronized(aSlice) {
+                postings = aSlice.termMap.get(termMS);
+                if(postings != null) {
+                  postings.appendTo(builder, documentBase, pointerLimit);
+                }
+              }
+            }
+          }
+        }
+      } finally {
+        ramLock.readLock().unlock();
+      }
+      return builder.build(diskIndex, visibleDocuments);
+    }
+  }
+  
+  /**
+   * Gets the size (number of positions) of a document, which may be either 
+   * on disk, or still in RAM.
+   * @param documentId the ID of the document.
+   * @return
+   * @throws IndexOutOfBoundsException if there is no document with the given
+   * ID.
+   */
+  public int getDocumentSize(long documentId) {
+    synchronized(this) {
+      long pointer = documentId;
+      if(invertedIndex != null) {
+        if(pointer < invertedIndex.numberOfDocuments) {
+          return invertedIndex.sizes.getInt(pointer);
+        }
+        pointer -= invertedIndex.numberOfDocuments;
+      }
+      ramLock.readLock().lock();
+      try {
+        for(RamBatch aBatch : frozenBatches) {
+          if(pointer < aBatch.documentCount) {
+            return aBatch.documentSizes.getInt((int)pointer);
+          }
+          pointer -= aBatch.documentCount;
+        }
+        if(documentSizesInRAM != null && 
+           pointer < documentSizesInRAM.size()) {
+          return documentSizesInRAM.getInt((int)pointer);
+        }
+      } finally {
+        ramLock.readLock().unlock();
+      }
+    }
+    throw new IndexOutOfBoundsException("No document with ID " + documentId);
+  }
+
+  /**
+   * Gets the total size (number of positions) of a range of documents, which
+   * may be either on disk, or still in RAM.
+   * @param fromDocument the ID of the first document (inclusive).
+   * @param toDocument the ID of the last document (exclusive).
+   * @return
+   * @throws IndexOutOfBoundsException if any of the documents does not exist.
+   */
+  public long getDocumentsSize(long fromDocument, long toDocument) {
+    long size = 0;
+    synchronized(this) {
+      for(long documentId = fromDocument; documentId < toDocument; 
+          documentId++) {
+        size += getDocumentSize(documentId);
+      }
+    }
+    return size;
+  }
+  
+  /**
+   * Gets an {@link Index} describing all the documents covered by a snapshot
+   * of the in-RAM postings, both on disk and in RAM. This is only used to 
+   * provide the collection statistics and document sizes needed by scorers,
+   * and cannot be read. The latest view is cached, so that all the term 
+   * queries run over the same snapshot share the same index.
+   * @param ramPostings a snapshot obtained from {@link #getRamPostings(String)}.
+   * @return
+   */
+  public Index getNearRealTimeIndex(RamPostings ramPostings) {
+    NearRealTimeIndex view = nearRealTimeIndex;
+    Index diskIndex = ramPostings.getDiskIndex();
+    long documentsCount = ramPostings.getDocumentsCount();
+    if(view == null || view.getDiskIndex() != diskIndex || 
+       view.numberOfDocuments != documentsCount) {
+      long diskDocuments = diskIndex == null ? 0 : diskIndex.numberOfDocuments;
+      view = new NearRealTimeIndex(this, diskIndex, documentsCount, 
+          getDocumentsSize(diskDocuments, documentsCount),
+          diskIndex != null ? diskIndex.termProcessor : termProcessor);
+      nearRealTimeIndex = view;
+    }
+    return view;
+  }
+  
   
   /**
    * Gets the direct index for this atomic index. The returned value is 
    * <code>non-null</code> only if the atomic index was configured to have a 
    * direct index upon its construction (see 
-   * {@link #AtomicIndex(MimirIndex, String, File, boolean, TermProcessor, BlockingQueue, BlockingQueue)}.).
+   * {@link #AtomicIndex(MimirIndex, String, boolean, TermProcessor, DocumentRingBuffer.Consumer)}.).
    * You can check if a direct index has been configured by calling 
    * {@link #hasDirectIndex()}.
    * @return an Index in which terms and documents are reversed. When querying 
@@ -1914,4 +4000,19 @@ public abstract class AtomicIndex implements Runnable {
   public int getBatchCount() {
     return batches.size();
   }
+  
+  /**
+   * Gets the ID of the first document in each of the on-disk batches (the 
+   * head and the tails), in order. 
+   * @return
+   */
+  public synchronized long[] getBatchStarts() {
+    long[] starts = new long[batches.size()];
+    long start = 0;
+    for(int i = 0; i < starts.length; i++) {
+      starts[i] = start;
+      start += batches.get(i).invertedIndex.numberOfDocuments;
+    }
+    return starts;
+  }
 }
@@ -20,10 +20,13 @@ import gate.mimir.DocumentMetadataHelper;
 import gate.mimir.IndexConfig.TokenIndexerConfig;
 import gate.mimir.MimirIndex;
 import it.unimi.di.big.mg4j.index.Index;
+import it.unimi.di.big.mg4j.index.TermProcessor;
+import it.unimi.dsi.lang.MutableString;
 import it.unimi.dsi.lang.ObjectParser;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.Serializable;
 import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
@@ -32,9 +35,10 @@ import java.nio.charset.Charset;
 import java.nio.charset.CharsetDecoder;
 import java.nio.charset.CharsetEncoder;
 import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.concurrent.BlockingQueue;
+import java.util.Map;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -90,6 +94,61 @@ public class AtomicTokenIndex extends AtomicIndex {
    */
   protected String featureName;
   
+  /**
+   * An indexing slice holding its own copies of the (non thread-safe) term 
+   * processor and UTF-8 encoder/decoder. Token indexing only depends on the 
+   * token feature values, so documents can be indexed in parallel.
+   */
+  protected class TokenIndexingSlice extends IndexingSlice {
+    protected final TermProcessor termProcessor;
+    
+    protected final CharsetEncoder utf8Encoder;
+    
+    protected final CharsetDecoder utf8Decoder;
+    
+    public TokenIndexingSlice(String threadName) {
+      super(threadName);
+      termProcessor = AtomicTokenIndex.this.termProcessor.copy();
+      utf8Encoder = newUtf8Encoder();
+      utf8Decoder = Charset.forName("UTF-8").newDecoder();
+    }
+    
+    /**
+     * Parallel version of the standard token indexing loop. The unprocessed 
+     * terms are returned in the result if the zip collection is being 
+     * written.
+     */
+    @Override
+    protected SliceResult indexDocument(GATEDocument gateDocument,
+        long documentPointer) {
+      SliceResult result = new SliceResult();
+      int position = 0;
+      try {
+        String[] values = getTokenValues(gateDocument);
+        if(zipCollectionEnabled) result.terms = new String[values.length];
+        for(; position < values.length; position++) {
+          String value = normaliseValue(values[position], utf8Encoder, 
+              utf8Decoder);
+          currentTerm.replace(value == null ? "" : value);
+          if(result.terms != null) {
+            result.terms[position] = currentTerm.toString();
+          }
+          if(termProcessor.processTerm(currentTerm) && 
+             addOccurrence(documentPointer, position)) {
+            result.occurrences++;
+          }
+        }
+      } catch(RuntimeException e) {
+        result.failure = e;
+        if(result.terms != null) {
+          result.terms = Arrays.copyOf(result.terms, position);
+        }
+      }
+      result.documentLength = position;
+      return result;
+    }
+  }
+  
 
   
   /**
@@ -101,17 +160,17 @@ public class AtomicTokenIndex extends AtomicIndex {
    * sub-directory of the parent) and as a base name for all the files of this 
    * atomic index.
    * @param hasDirectIndex should a direct index be created as well.
-   * @param inputQueue the queue where documents are submitted for indexing;
-   * @param outputQueue the queue where indexed documents are returned to;
+   * @param input the consumer reading the documents submitted for indexing;
+   * documents are released once indexed.
    * @throws IndexException 
    * @throws IOException 
    */
   public AtomicTokenIndex(MimirIndex parent, String name,
-      boolean hasDirectIndex, BlockingQueue<GATEDocument> inputQueue,
-      BlockingQueue<GATEDocument> outputQueue, TokenIndexerConfig config,
-      boolean zipCollection) throws IOException, IndexException {
+      boolean hasDirectIndex, DocumentRingBuffer.Consumer input, 
+      TokenIndexerConfig config, boolean zipCollection) 
+          throws IOException, IndexException {
     super(parent, name, hasDirectIndex, 
-        config.getTermProcessor(), inputQueue, outputQueue);
+        config.getTermProcessor(), input);
     this.featureName = config.getFeatureName();
     this.zipCollectionEnabled = zipCollection;
     if(zipCollectionEnabled) {
@@ -124,26 +183,70 @@ public class AtomicTokenIndex extends AtomicIndex {
     additionalProperties.setProperty(Index.PropertyKeys.TERMPROCESSOR, 
         ObjectParser.toSpec(termProcessor));
     
+    configureUtf8Encoder(UTF8_CHARSET_ENCODER);
+    indexingThreads = parent.getIndexConfig().getIndexingThreads();
+    
+    indexingThread = new Thread(this, "Mimir-" + name + " indexing thread");
+    indexingThread.start();
+  }
+
+  
+  /**
+   * Sets up a UTF-8 encoder to replace malformed and unmappable input.
+   * @param encoder
+   */
+  private static void configureUtf8Encoder(CharsetEncoder encoder) {
     try {
-      UTF8_CHARSET_ENCODER.replaceWith("[?]".getBytes("UTF-8"));
-      UTF8_CHARSET_ENCODER.onMalformedInput(CodingErrorAction.REPLACE);
-      UTF8_CHARSET_ENCODER.onUnmappableCharacter(CodingErrorAction.REPLACE);
+      encoder.replaceWith("[?]".getBytes("UTF-8"));
+      encoder.onMalformedInput(CodingErrorAction.REPLACE);
+      encoder.onUnmappableCharacter(CodingErrorAction.REPLACE);
     } catch(UnsupportedEncodingException e) {
       // this should never happen
       throw new RuntimeException("UTF-8 not supported");
     }
-    
-    indexingThread = new Thread(this, "Mimir-" + name + " indexing thread");
-    indexingThread.start();
   }
-
+  
+  /**
+   * Creates a new UTF-8 encoder, configured like {@link #UTF8_CHARSET_ENCODER}.
+   * @return
+   */
+  protected static CharsetEncoder newUtf8Encoder() {
+    CharsetEncoder encoder = Charset.forName("UTF-8").newEncoder();
+    configureUtf8Encoder(encoder);
+    return encoder;
+  }
+  
+  /**
+   * Makes sure a feature value is valid UTF-8 content. Illegal strings will 
+   * simply be rendered as "[?]".
+   * @param value the value to normalise (may be <code>null</code>).
+   * @param encoder the encoder to use.
+   * @param decoder the decoder to use.
+   * @return the normalised value.
+   */
+  protected static String normaliseValue(String value, CharsetEncoder encoder,
+      CharsetDecoder decoder) {
+    if(value != null) {
+      try {
+        CharBuffer cb = CharBuffer.wrap(value);
+        ByteBuffer bb = encoder.encode(cb);
+        cb = decoder.decode(bb);
+        value  = cb.toString();
+      } catch(CharacterCodingException e) {
+        // this should not happen
+        value = null;
+        logger.error("Error while normalizing input", e);
+      }      
+    }
+    return value;
+  }
   
   /**
    * If zipping, inform the collection builder that a new document
    * is about to start.
    */
   protected void documentStarting(GATEDocument gateDocument) throws IndexException {
-    if(zipCollectionEnabled) {
+    if(zipCollectionEnabled && gateDocument.getPretokenisedDocument() == null) {
       // notify the metadata helpers
       if(docMetadataHelpers != null){
         for(DocumentMetadataHelper aHelper : docMetadataHelpers){
@@ -162,19 +265,145 @@ public class AtomicTokenIndex extends AtomicIndex {
    */
   protected void documentEnding(GATEDocument gateDocument) throws IndexException {
     if(zipCollectionEnabled) {
-      DocumentData docData = new DocumentData(
-          gateDocument.uri().toString(), 
-          gateDocument.title().toString(),
+      writeDocumentData(gateDocument,
           documentTokens.toArray(new String[documentTokens.size()]),
-          documentNonTokens.toArray(new String[documentNonTokens.size()])); 
-      if(docMetadataHelpers != null){
+          documentNonTokens.toArray(new String[documentNonTokens.size()]));
+      documentTokens.clear();
+      documentNonTokens.clear();
+    }
+  }
+  
+  /**
+   * If zipping, makes sure the document data for all the documents in the 
+   * batch about to be written is safely on disk, so that the collection is
+   * never behind the on-disk batches.
+   */
+  @Override
+  protected void batchEnding() throws IndexException {
+    if(zipCollectionEnabled) {
+      parent.syncZipDocumentData();
+    }
+  }
+  
+  /**
+   * Builds the {@link DocumentData} for a document, and sends it to the 
+   * document collection.
+   */
+  protected void writeDocumentData(GATEDocument gateDocument, String[] tokens,
+      String[] nonTokens) throws IndexException {
+    DocumentData docData = new DocumentData(
+        gateDocument.uri().toString(), 
+        gateDocument.title().toString(),
+        tokens, nonTokens); 
+    PretokenisedDocument pretokenised = gateDocument.getPretokenisedDocument();
+    if(pretokenised != null) {
+      // the metadata is supplied with the document
+      for(Map.Entry<String, Serializable> aField : 
+          pretokenised.getMetadata().entrySet()) {
+        docData.putMetadataField(aField.getKey(), aField.getValue());
+      }
+    } else if(docMetadataHelpers != null){
+      for(DocumentMetadataHelper aHelper : docMetadataHelpers){
+        aHelper.documentEnd(gateDocument, docData);
+      }
+    }
+    parent.writeZipDocumentData(docData);
+  }
+  
+  @Override
+  protected IndexingSlice newIndexingSlice(int sliceNumber) {
+    return new TokenIndexingSlice("Mimir-" + name + " indexing slice " + 
+        sliceNumber);
+  }
+
+  /**
+   * Gets the (unprocessed) values of the indexed feature for all the tokens 
+   * in a document. For pre-tokenised documents, this is the supplied feature
+   * column.
+   * @param gateDocument
+   * @return an array with one value (possibly <code>null</code>) for each 
+   * token.
+   */
+  protected String[] getTokenValues(GATEDocument gateDocument) {
+    PretokenisedDocument pretokenised = gateDocument.getPretokenisedDocument();
+    if(pretokenised != null) {
+      String[] values = pretokenised.getTokenFeature(featureName);
+      return values != null ? values : 
+          new String[pretokenised.getTokenCount()];
+    }
+    Annotation[] tokens = getAnnotsToProcess(gateDocument);
+    String[] values = new String[tokens.length];
+    for(int i = 0; i < tokens.length; i++) {
+      values[i] = (String)tokens[i].getFeatures().get(featureName);
+    }
+    return values;
+  }
+  
+  /**
+   * Pre-tokenised documents are indexed straight from their feature column, 
+   * without going through the per-annotation hooks.
+   */
+  @Override
+  protected void processDocument(GATEDocument gateDocument)
+      throws IndexException {
+    PretokenisedDocument pretokenised = gateDocument.getPretokenisedDocument();
+    if(pretokenised == null) {
+      super.processDocument(gateDocument);
+      return;
+    }
+    documentStarting(gateDocument);
+    String[] values = getTokenValues(gateDocument);
+    String[] nonTokens = pretokenised.getNonTokens();
+    try {
+      for(tokenPosition = 0; tokenPosition < values.length; tokenPosition++) {
+        String value = normaliseValue(values[tokenPosition],
+            UTF8_CHARSET_ENCODER, UTF8_CHARSET_DECODER);
+        currentTerm.replace(value == null ? "" : value);
+        if(zipCollectionEnabled) {
+          documentTokens.add(currentTerm.toString());
+          documentNonTokens.add(nonTokens[tokenPosition]);
+        }
+        if(termProcessor.processTerm(currentTerm)) {
+          indexCurrentTerm();
+        }
+      }
+    } finally {
+      // the current document is finished (or as much of it as could be)
+      int docLength = Math.min(tokenPosition + 1, values.length);
+      try {
+        documentEnding(gateDocument);
+      } finally {
+        documentCompleted(docLength);
+      }
+    }
+  }
+
+  /**
+   * If zipping, writes the document data using the terms collected by the 
+   * indexing slice.
+   */
+  @Override
+  protected void documentSliceCompleted(GATEDocument gateDocument,
+      SliceResult result) throws IndexException {
+    if(zipCollectionEnabled) {
+      if(docMetadataHelpers != null && 
+         gateDocument.getPretokenisedDocument() == null){
         for(DocumentMetadataHelper aHelper : docMetadataHelpers){
-          aHelper.documentEnd(gateDocument, docData);
+          aHelper.documentStart(gateDocument);
         }
       }
-      parent.writeZipDocumentData(docData);
-      documentTokens.clear();
-      documentNonTokens.clear();
+      String[] tokens = result.terms != null ? result.terms : new String[0];
+      String[] documentNonTokens = gateDocument.getNonTokens();
+      if(documentNonTokens.length < tokens.length) {
+        throw new IndexException("Document " + 
+            gateDocument.title() + " has " + tokens.length + 
+            " tokens, but only " + documentNonTokens.length + " non-tokens!");
+      }
+      // when the slice failed, only the tokens indexed before the error 
+      // are stored
+      String[] nonTokens = new String[tokens.length];
+      System.arraycopy(documentNonTokens, 0, nonTokens, 0, tokens.length);
+      writeDocumentData(gateDocument, tokens, nonTokens);
     }
   }
 
@@ -212,22 +441,9 @@ public class AtomicTokenIndex extends AtomicIndex {
   protected String[] calculateTermStringForAnnotation(Annotation ann,
           GATEDocument gateDocument) throws IndexException {
     FeatureMap tokenFeatures = ann.getFeatures();
-    String value = (String)tokenFeatures.get(featureName);
     // make sure we get valid UTF-8 content
-   // illegal strings will simply be rendered as "[UNMAPPED]"
-    if(value != null) {
-      try {
-        CharBuffer cb = CharBuffer.wrap(value);
-        ByteBuffer bb = UTF8_CHARSET_ENCODER.encode(cb);
-        cb = UTF8_CHARSET_DECODER.decode(bb);
-        value  = cb.toString();
-      } catch(CharacterCodingException e) {
-        // this should not happen
-        value = null;
-        logger.error("Error while normalizing input", e);
-      }      
-    }
-
+    String value = normaliseValue((String)tokenFeatures.get(featureName),
+        UTF8_CHARSET_ENCODER, UTF8_CHARSET_DECODER);
     
     currentTerm.replace(value == null ? "" : value);
     //save the *unprocessed* term to the collection, if required.
@@ -0,0 +1,76 @@
+/*
+ *  ConcatenatedSizesBigList.java
+ *
+ *  Copyright (c) 2007-2026, The University of Sheffield.
+ *
+ *  This file is part of GATE Mímir (see http://gate.ac.uk/family/mimir.html),
+ *  and is free software, licenced under the GNU Lesser General Public License,
+ *  Version 3, June 2007 (also included with this distribution as file
+ *  LICENCE-LGPL3.html).
+ *
+ *  $Id$
+ */
+package gate.mimir.index;
+
+import it.unimi.dsi.fastutil.ints.AbstractIntBigList;
+import it.unimi.dsi.fastutil.ints.IntBigList;
+
+/**
+ * A read-only view over the document sizes lists of a sequence of index
+ * batches, presenting them as a single list indexed by global document ID.
+ * This is used as the <tt>sizes</tt> list of the documental cluster built
+ * over the batches of an {@link AtomicIndex}, so that building a new cluster
+ * when a batch is added only costs time proportional to the number of
+ * batches, rather than to the number of documents. The per-batch lists are
+ * shared, not copied.
+ */
+public class ConcatenatedSizesBigList extends AbstractIntBigList {
+
+  /**
+   * The sizes list for each batch.
+   */
+  private final IntBigList[] lists;
+
+  /**
+   * The global ID of the first document in each batch. There is one extra
+   * element at the end, holding the total number of documents.
+   */
+  private final long[] offsets;
+
+  /**
+   * Creates a new view over the given lists.
+   * @param lists the sizes lists, one for each batch, in document order.
+   */
+  public ConcatenatedSizesBigList(IntBigList[] lists) {
+    this.lists = lists.clone();
+    this.offsets = new long[lists.length + 1];
+    for(int i = 0; i < lists.length; i++) {
+      offsets[i + 1] = offsets[i] + lists[i].size64();
+    }
+  }
+
+  @Override
+  public int getInt(long index) {
+    if(index < 0 || index >= offsets[lists.length]) {
+      throw new IndexOutOfBoundsException("Index (" + index +
+          ") is not in the range [0, " + offsets[lists.length] + ")");
+    }
+    // find the last batch starting at or before the index
+    int low = 0;
+    int high = lists.length - 1;
+    while(low < high) {
+      int mid = (low + high + 1) >>> 1;
+      if(offsets[mid] <= index) {
+        low = mid;
+      } else {
+        high = mid - 1;
+      }
+    }
+    return lists[low].getInt(index - offsets[low]);
+  }
+
+  @Override
+  public long size64() {
+    return offsets[lists.length];
+  }
+}
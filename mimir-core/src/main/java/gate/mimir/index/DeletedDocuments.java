@@ -0,0 +1,469 @@
+/*
+ *  DeletedDocuments.java
+ *
+ *  Copyright (c) 2007-2026, The University of Sheffield.
+ *
+ *  This file is part of GATE Mímir (see http://gate.ac.uk/family/mimir.html),
+ *  and is free software, licenced under the GNU Lesser General Public License,
+ *  Version 3, June 2007 (also included with this distribution as file
+ *  LICENCE-LGPL3.html).
+ *
+ *  $Id$
+ */
+package gate.mimir.index;
+
+import gate.mimir.util.LongBitmap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * The set of documents marked as deleted in a Mímir index.
+ * </p>
+ * <p>
+ * The current state is held in an immutable {@link LongBitmap}, which is
+ * replaced (never modified) on every change, so {@link #isDeleted(long)} needs
+ * no locking, and can safely be called from the search threads.
+ * </p>
+ * <p>
+ * On disk, the set is stored as a checkpoint file (the serialised bitmap)
+ * plus an append-only log of the changes made since the checkpoint was
+ * written. Each change is appended (and flushed) to the log as soon as it is
+ * made, so deleting documents costs time proportional to the number of
+ * documents involved, rather than to the total number of deleted documents.
+ * The log is folded into a new checkpoint by calling {@link #checkpoint()}.
+ * </p>
+ * <p>
+ * Deleted documents whose postings are about to be removed from the index
+ * (see {@link gate.mimir.IndexConfig#isPurgeDeletedDocuments()}) are marked
+ * as <i>purged</i> by calling {@link #purge(long, long)}. Purged documents
+ * stay deleted for good: undeleting them has no effect.
+ * </p>
+ */
+public class DeletedDocuments {
+
+  /**
+   * The name of the file (in the index directory) holding the last
+   * checkpoint.
+   */
+  public static final String CHECKPOINT_FILE_NAME = "deleted.bitmap";
+
+  /**
+   * The name of the file (in the index directory) holding the changes made
+   * since the last checkpoint.
+   */
+  public static final String LOG_FILE_NAME = "deleted.log";
+
+  /**
+   * The name of the file used by older versions for storing the (Java
+   * serialised) set of deleted document IDs. If found, and no checkpoint
+   * exists, its contents are imported.
+   */
+  public static final String LEGACY_FILE_NAME = "deleted.ser";
+
+  /**
+   * The number of log records after which {@link #needsCheckpoint()} returns
+   * <code>true</code>.
+   */
+  public static final int CHECKPOINT_INTERVAL = 100000;
+
+  private static final byte OP_DELETE = 1;
+
+  private static final byte OP_UNDELETE = 2;
+
+  private static final byte OP_PURGE = 3;
+
+  private static final Logger logger = LoggerFactory.getLogger(
+      DeletedDocuments.class);
+
+  /**
+   * The directory where the files are stored.
+   */
+  private final File directory;
+
+  /**
+   * The current state.
+   */
+  private volatile LongBitmap deleted;
+
+  /**
+   * The documents that have been purged (a subset of {@link #deleted}).
+   */
+  private volatile LongBitmap purged;
+
+  /**
+   * The stream used to append to the log.
+   */
+  private DataOutputStream log;
+
+  /**
+   * The number of records written to the log since the last checkpoint.
+   */
+  private int logRecords;
+
+  /**
+   * Lock used to serialise all changes (and writes to the files).
+   */
+  private final Object writeLock = new Object();
+
+  /**
+   * Opens (or creates) the set of deleted documents stored in a given
+   * directory.
+   * @param directory the index directory.
+   * @throws IOException
+   */
+  public DeletedDocuments(File directory) throws IOException {
+    this.directory = directory;
+    File checkpointFile = new File(directory, CHECKPOINT_FILE_NAME);
+    File legacyFile = new File(directory, LEGACY_FILE_NAME);
+    LongBitmap bitmap = LongBitmap.EMPTY;
+    LongBitmap purgedBitmap = LongBitmap.EMPTY;
+    boolean imported = false;
+    if(checkpointFile.exists()) {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(
+          new FileInputStream(checkpointFile)));
+      try {
+        bitmap = LongBitmap.read(in);
+        try {
+          purgedBitmap = LongBitmap.read(in);
+        } catch(EOFException e) {
+          // checkpoint written before purged documents were recorded
+        }
+      } finally {
+        in.close();
+      }
+    } else if(legacyFile.exists()) {
+      bitmap = readLegacyFile(legacyFile);
+      imported = true;
+    }
+    // replay the log
+    File logFile = new File(directory, LOG_FILE_NAME);
+    long validLength = 0;
+    if(logFile.exists()) {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(
+          new FileInputStream(logFile)));
+      try {
+        while(true) {
+          byte op;
+          long id;
+          try {
+            op = in.readByte();
+            id = in.readLong();
+          } catch(EOFException e) {
+            // end of log, or a record only partially written when the
+            // process was stopped: either way, we're done.
+            break;
+          }
+          if(op == OP_DELETE) {
+            bitmap = bitmap.add(id);
+          } else if(op == OP_UNDELETE) {
+            bitmap = bitmap.remove(id);
+          } else if(op == OP_PURGE) {
+            purgedBitmap = purgedBitmap.add(id);
+          } else {
+            logger.warn("Invalid record found in the deleted documents log " +
+                "at offset " + validLength + "; ignoring the rest of the log.");
+            break;
+          }
+          validLength += 9;
+          logRecords++;
+        }
+      } finally {
+        in.close();
+      }
+    }
+    deleted = bitmap;
+    purged = purgedBitmap;
+    if(imported) {
+      // write the imported data in the new format
+      checkpoint();
+      if(!legacyFile.delete()) {
+        logger.warn("Could not delete old deleted documents file " +
+            legacyFile.getAbsolutePath());
+      }
+    } else {
+      openLog(logFile, validLength);
+    }
+  }
+
+  /**
+   * Reads the set of deleted documents saved by older versions.
+   * @param legacyFile
+   * @return
+   * @throws IOException
+   */
+  @SuppressWarnings("unchecked")
+  private static LongBitmap readLegacyFile(File legacyFile)
+      throws IOException {
+    logger.info("Importing deleted documents from " +
+        legacyFile.getAbsolutePath());
+    ObjectInputStream ois = new ObjectInputStream(
+            new GZIPInputStream(
+            new BufferedInputStream(
+            new FileInputStream(legacyFile))));
+    try {
+      // an old index will have saved a Set<Integer>, a newer one will be
+      // Set<Long>
+      Set<? extends Number> savedSet = (Set<? extends Number>)ois.readObject();
+      long[] ids = new long[savedSet.size()];
+      int i = 0;
+      for(Number n : savedSet) {
+        ids[i++] = n.longValue();
+      }
+      return LongBitmap.EMPTY.add(ids);
+    } catch(ClassNotFoundException e) {
+      // this should never happen
+      throw new RuntimeException(e);
+    } finally {
+      ois.close();
+    }
+  }
+
+  /**
+   * Opens the log for appending, discarding anything after the given length
+   * (i.e. a partially written last record).
+   * @param logFile
+   * @param validLength
+   * @throws IOException
+   */
+  private void openLog(File logFile, long validLength) throws IOException {
+    if(logFile.exists() && logFile.length() != validLength) {
+      FileOutputStream fos = new FileOutputStream(logFile, true);
+      try {
+        fos.getChannel().truncate(validLength);
+      } finally {
+        fos.close();
+      }
+    }
+    log = new DataOutputStream(new BufferedOutputStream(
+        new FileOutputStream(logFile, true)));
+  }
+
+  /**
+   * Checks whether a given document is marked as deleted. This method does
+   * not block.
+   * @param documentId
+   * @return
+   */
+  public boolean isDeleted(long documentId) {
+    return deleted.contains(documentId);
+  }
+
+  /**
+   * Gets the current state, as an immutable bitmap. Callers that need to run
+   * many checks against a consistent view can use this instead of repeatedly
+   * calling {@link #isDeleted(long)}.
+   * @return
+   */
+  public LongBitmap getSnapshot() {
+    return deleted;
+  }
+
+  /**
+   * Checks whether a given document has been purged (see
+   * {@link #purge(long, long)}). This method does not block.
+   * @param documentId
+   * @return
+   */
+  public boolean isPurged(long documentId) {
+    return purged.contains(documentId);
+  }
+
+  /**
+   * Gets the set of purged documents, as an immutable bitmap.
+   * @return
+   */
+  public LongBitmap getPurgedSnapshot() {
+    return purged;
+  }
+
+  /**
+   * Gets the number of documents currently marked as deleted.
+   * @return
+   */
+  public long size() {
+    return deleted.cardinality();
+  }
+
+  /**
+   * Marks the given documents as deleted.
+   * @param documentIds
+   * @return <code>true</code> if any of the documents was not already marked
+   * as deleted.
+   * @throws IOException if the change could not be logged. The in-memory
+   * state is updated regardless.
+   */
+  public boolean delete(long... documentIds) throws IOException {
+    return update(documentIds, true);
+  }
+
+  /**
+   * Marks the given documents as <i>not</i> deleted. Purged documents cannot
+   * be undeleted, and are skipped.
+   * @param documentIds
+   * @return <code>true</code> if any of the documents was marked as deleted
+   * (and not purged).
+   * @throws IOException if the change could not be logged. The in-memory
+   * state is updated regardless.
+   */
+  public boolean undelete(long... documentIds) throws IOException {
+    return update(documentIds, false);
+  }
+
+  private boolean update(long[] documentIds, boolean delete)
+      throws IOException {
+    synchronized(writeLock) {
+      if(!delete && !purged.isEmpty()) {
+        documentIds = skipPurged(documentIds);
+      }
+      LongBitmap before = deleted;
+      LongBitmap after = delete ? before.add(documentIds) :
+          before.remove(documentIds);
+      if(after == before) return false;
+      deleted = after;
+      if(log == null) {
+        throw new IOException("Deleted documents log is closed.");
+      }
+      byte op = delete ? OP_DELETE : OP_UNDELETE;
+      for(long id : documentIds) {
+        // only log the IDs that actually changed state
+        if(before.contains(id) != delete) {
+          log.writeByte(op);
+          log.writeLong(id);
+          logRecords++;
+        }
+      }
+      log.flush();
+      return true;
+    }
+  }
+
+  /**
+   * Removes the purged documents from an array of IDs.
+   * @param documentIds
+   * @return
+   */
+  private long[] skipPurged(long[] documentIds) {
+    LongArrayList kept = new LongArrayList(documentIds.length);
+    for(long id : documentIds) {
+      if(purged.contains(id)) {
+        logger.warn("Document " + id + " has been purged from the index, " +
+            "so it cannot be undeleted.");
+      } else {
+        kept.add(id);
+      }
+    }
+    return kept.size() == documentIds.length ? documentIds :
+        kept.toLongArray();
+  }
+
+  /**
+   * Marks all the documents currently deleted in a range of IDs as purged,
+   * before their postings are removed from the index. After this, they can
+   * no longer be undeleted, so the returned set is exactly the set of
+   * documents in the range that may be purged.
+   * @param from the first document ID in the range.
+   * @param to the document ID after the range (exclusive).
+   * @return the set of deleted documents at the time of the call.
+   * @throws IOException if the change could not be logged.
+   */
+  public LongBitmap purge(long from, long to) throws IOException {
+    synchronized(writeLock) {
+      LongBitmap snapshot = deleted;
+      LongArrayList newlyPurged = new LongArrayList();
+      for(long id = snapshot.nextValue(from); id >= 0 && id < to;
+          id = snapshot.nextValue(id + 1)) {
+        if(!purged.contains(id)) newlyPurged.add(id);
+      }
+      if(newlyPurged.isEmpty()) return snapshot;
+      if(log == null) {
+        throw new IOException("Deleted documents log is closed.");
+      }
+      long[] ids = newlyPurged.toLongArray();
+      // log first: the purge must not happen unless it was recorded
+      for(long id : ids) {
+        log.writeByte(OP_PURGE);
+        log.writeLong(id);
+        logRecords++;
+      }
+      log.flush();
+      purged = purged.add(ids);
+      return snapshot;
+    }
+  }
+
+  /**
+   * Checks whether enough changes have been logged since the last checkpoint
+   * to make writing a new one worthwhile.
+   * @return
+   */
+  public boolean needsCheckpoint() {
+    synchronized(writeLock) {
+      return logRecords >= CHECKPOINT_INTERVAL;
+    }
+  }
+
+  /**
+   * Writes the current state to a new checkpoint file, and empties the log.
+   * @throws IOException
+   */
+  public void checkpoint() throws IOException {
+    synchronized(writeLock) {
+      File checkpointFile = new File(directory, CHECKPOINT_FILE_NAME);
+      File newFile = new File(directory, CHECKPOINT_FILE_NAME + ".new");
+      logger.debug("Writing deleted documents checkpoint");
+      FileOutputStream fos = new FileOutputStream(newFile);
+      try {
+        DataOutputStream out = new DataOutputStream(
+            new BufferedOutputStream(fos));
+        deleted.write(out);
+        purged.write(out);
+        out.flush();
+        fos.getFD().sync();
+      } finally {
+        fos.close();
+      }
+      // replace the old checkpoint atomically, so that a crash at any point
+      // leaves either the old checkpoint (plus the full log), or the new one
+      Files.move(newFile.toPath(), checkpointFile.toPath(),
+          StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      // the log is now redundant: start a new one
+      if(log != null) log.close();
+      File logFile = new File(directory, LOG_FILE_NAME);
+      log = new DataOutputStream(new BufferedOutputStream(
+          new FileOutputStream(logFile, false)));
+      logRecords = 0;
+      logger.debug("Writing deleted documents checkpoint completed.");
+    }
+  }
+
+  /**
+   * Closes the log. After this, no further changes can be made.
+   * @throws IOException
+   */
+  public void close() throws IOException {
+    synchronized(writeLock) {
+      if(log != null) {
+        log.close();
+        log = null;
+      }
+    }
+  }
+}
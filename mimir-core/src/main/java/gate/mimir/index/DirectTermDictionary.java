@@ -0,0 +1,427 @@
+/*
+ *  DirectTermDictionary.java
+ *
+ *  Copyright (c) 2007-2026, The University of Sheffield.
+ *
+ *  This file is part of GATE Mímir (see http://gate.ac.uk/family/mimir.html),
+ *  and is free software, licenced under the GNU Lesser General Public License,
+ *  Version 3, June 2007 (also included with this distribution as file
+ *  LICENCE-LGPL3.html).
+ *
+ *  $Id$
+ */
+package gate.mimir.index;
+
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import it.unimi.dsi.fastutil.longs.LongArrays;
+import it.unimi.dsi.fastutil.objects.AbstractObjectBigList;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * The dictionary of direct terms for an {@link AtomicIndex}: it assigns
+ * sequential IDs to terms, in the order they are first seen. The direct index
+ * uses these IDs as its document pointers.
+ * </p>
+ * <p>
+ * The term characters are stored in off-heap slabs, and the term IDs in an
+ * open-addressing hash table of <code>int</code>s, so the only per-term heap
+ * data are a few primitive array entries. This matters for annotation
+ * indexes, which can have many millions of distinct mention URIs.
+ * </p>
+ * <p>
+ * New terms can only be added from a single thread. Reading the term for a
+ * given ID (through {@link #get(long)}) is safe from any thread, at any time.
+ * </p>
+ * <p>
+ * On disk, the dictionary is a text file with one term per line, the line
+ * number being the term ID. New terms are appended to the file, which is
+ * never re-written (see {@link #save(File)}). A line terminator inside a
+ * term would shift the IDs of all the terms after it, so dictionaries
+ * created with <code>escapeTerms</code> set escape backslashes and line
+ * terminators (as <code>\\</code>, <code>\n</code> and <code>\r</code>).
+ * Others (such as the direct terms files, whose format predates escaping)
+ * replace line terminators with spaces when saving, so they should only be
+ * given terms without any: the atomic indexes replace the line terminators
+ * in all the terms they index (see
+ * {@link AtomicIndex#replaceLineTerminators(it.unimi.dsi.lang.MutableString)}),
+ * so their direct terms still match the inverted index terms when loaded.
+ * </p>
+ */
+public class DirectTermDictionary extends AbstractObjectBigList<String> {
+
+  private static final Logger logger = LoggerFactory.getLogger(
+      DirectTermDictionary.class);
+
+  private static final int SLAB_BITS = 20;
+
+  private static final int SLAB_SIZE = 1 << SLAB_BITS;
+
+  private static final int SLAB_MASK = SLAB_SIZE - 1;
+
+  private static final int INITIAL_CAPACITY = 1024;
+
+  /**
+   * The slabs holding the term characters: for each term, an int length,
+   * followed by the chars. Terms too long for a normal slab get a slab of
+   * their own. The array is replaced (never modified in place) when it
+   * grows, so readers always see a consistent copy.
+   */
+  private volatile ByteBuffer[] slabs = new ByteBuffer[16];
+
+  private int slabCount = 0;
+
+  /**
+   * The first free offset in the last slab.
+   */
+  private int currentOffset = SLAB_SIZE;
+
+  /**
+   * For each term ID, the address of the term characters: the slab number in
+   * the high bits and the offset in the low {@link #SLAB_BITS} bits.
+   */
+  private volatile long[] termAddress = new long[INITIAL_CAPACITY];
+
+  private int[] termHash = new int[INITIAL_CAPACITY];
+
+  /**
+   * Open-addressing hash table mapping terms to (ID + 1); 0 marks an empty
+   * slot. Only used by the thread adding terms.
+   */
+  private int[] table = new int[INITIAL_CAPACITY * 2];
+
+  private int tableMask = table.length - 1;
+
+  /**
+   * The number of terms. Written after all the data for a new term, so a
+   * reader that sees a term ID also sees its characters.
+   */
+  private volatile int size = 0;
+
+  /**
+   * The number of terms already written to disk by {@link #save(File)}.
+   */
+  private int savedSize = 0;
+
+  /**
+   * Are the terms escaped in the terms file?
+   */
+  private final boolean escapeTerms;
+
+  /**
+   * Creates a new, empty dictionary, saved without escaping.
+   */
+  public DirectTermDictionary() {
+    this(false);
+  }
+
+  /**
+   * Creates a new, empty dictionary.
+   * @param escapeTerms should backslashes and line terminators in the terms
+   * be escaped when saving?
+   */
+  public DirectTermDictionary(boolean escapeTerms) {
+    this.escapeTerms = escapeTerms;
+  }
+
+  /**
+   * Loads a dictionary from a terms file (one term per line), without
+   * escaping.
+   * @param termsFile the file to load from.
+   * @throws IOException
+   */
+  public DirectTermDictionary(File termsFile) throws IOException {
+    this(termsFile, false);
+  }
+
+  /**
+   * Loads a dictionary from a terms file (one term per line). An incomplete
+   * last line (e.g. left by a crash while appending) is removed from the
+   * file.
+   * @param termsFile the file to load from.
+   * @param escapeTerms were the terms escaped when they were saved?
+   * @throws IOException
+   */
+  public DirectTermDictionary(File termsFile, boolean escapeTerms)
+      throws IOException {
+    this.escapeTerms = escapeTerms;
+    truncateIncompleteLine(termsFile);
+    BufferedReader reader = new BufferedReader(new InputStreamReader(
+        new FileInputStream(termsFile), StandardCharsets.UTF_8), 64 * 1024);
+    try {
+      String line;
+      while((line = reader.readLine()) != null) {
+        if(escapeTerms) line = unescape(line);
+        // the line number is the term ID, so duplicates (which should never
+        // exist) are stored, but the hash table keeps the first ID
+        int hash = hash(line);
+        int slot = findSlot(line, hash);
+        int id = appendTerm(line, hash);
+        if(table[slot] == 0) {
+          table[slot] = id + 1;
+          if(size * 2 > table.length) rehash();
+        } else {
+          logger.warn("Duplicate direct term \"" + line + "\" in " +
+              termsFile);
+        }
+      }
+    } finally {
+      reader.close();
+    }
+    savedSize = size;
+  }
+
+  /**
+   * Makes sure the given file ends with a line terminator, cutting off any
+   * trailing partial line.
+   */
+  private static void truncateIncompleteLine(File termsFile)
+      throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(termsFile, "rw");
+    try {
+      long length = raf.length();
+      long end = length;
+      while(end > 0) {
+        raf.seek(end - 1);
+        if(raf.read() == '\n') break;
+        end--;
+      }
+      if(end < length) {
+        logger.warn("Removing incomplete last line from " + termsFile);
+        raf.setLength(end);
+      }
+    } finally {
+      raf.close();
+    }
+  }
+
+  /**
+   * Writes a term as a single line of the terms file.
+   */
+  private void writeTerm(Writer writer, String term) throws IOException {
+    for(int i = 0; i < term.length(); i++) {
+      char c = term.charAt(i);
+      switch(c) {
+        case '\\':
+          writer.write(escapeTerms ? "\\\\" : "\\");
+          break;
+        case '\n':
+          writer.write(escapeTerms ? "\\n" : " ");
+          break;
+        case '\r':
+          writer.write(escapeTerms ? "\\r" : " ");
+          break;
+        default:
+          writer.write(c);
+      }
+    }
+    writer.write('\n');
+  }
+
+  /**
+   * Reverses the escaping done by {@link #writeTerm(Writer, String)}.
+   */
+  private static String unescape(String line) {
+    int escape = line.indexOf('\\');
+    if(escape < 0) return line;
+    StringBuilder term = new StringBuilder(line.length());
+    term.append(line, 0, escape);
+    for(int i = escape; i < line.length(); i++) {
+      char c = line.charAt(i);
+      if(c == '\\' && i + 1 < line.length()) {
+        c = line.charAt(++i);
+        if(c == 'n') {
+          c = '\n';
+        } else if(c == 'r') {
+          c = '\r';
+        }
+      }
+      term.append(c);
+    }
+    return term.toString();
+  }
+
+  private static int hash(CharSequence term) {
+    int h = 0;
+    for(int i = 0; i < term.length(); i++) {
+      h = 31 * h + term.charAt(i);
+    }
+    // spread the bits, as the table size is a power of two
+    return h ^ (h >>> 16);
+  }
+
+  private boolean termEquals(int id, CharSequence term) {
+    long address = termAddress[id];
+    ByteBuffer slab = slabs[(int)(address >>> SLAB_BITS)];
+    int offset = (int)(address & SLAB_MASK);
+    int length = slab.getInt(offset);
+    if(length != term.length()) return false;
+    offset += 4;
+    for(int i = 0; i < length; i++) {
+      if(slab.getChar(offset + 2 * i) != term.charAt(i)) return false;
+    }
+    return true;
+  }
+
+  /**
+   * Finds the slot in the hash table for the given term.
+   * @return the slot, which is either empty, or contains the given term.
+   */
+  private int findSlot(CharSequence term, int hash) {
+    int slot = hash & tableMask;
+    while(table[slot] != 0 &&
+          (termHash[table[slot] - 1] != hash ||
+           !termEquals(table[slot] - 1, term))) {
+      slot = (slot + 1) & tableMask;
+    }
+    return slot;
+  }
+
+  private void rehash() {
+    if(table.length == 1 << 30) {
+      throw new IllegalStateException("Too many direct terms!");
+    }
+    int[] newTable = new int[table.length * 2];
+    int newMask = newTable.length - 1;
+    for(int id = 0; id < size; id++) {
+      int slot = termHash[id] & newMask;
+      while(newTable[slot] != 0) slot = (slot + 1) & newMask;
+      newTable[slot] = id + 1;
+    }
+    table = newTable;
+    tableMask = newMask;
+  }
+
+  /**
+   * Stores the characters of a new term, without touching the hash table.
+   * @return the ID of the new term.
+   */
+  private int appendTerm(CharSequence term, int hash) {
+    int id = size;
+    if(id == termHash.length) {
+      int newLength = termHash.length * 2;
+      termHash = IntArrays.grow(termHash, newLength);
+      termAddress = LongArrays.grow(termAddress, newLength);
+    }
+    int length = term.length();
+    int bytes = 4 + 2 * length;
+    if(currentOffset + bytes > SLAB_SIZE) {
+      if(slabCount == slabs.length) {
+        ByteBuffer[] newSlabs = new ByteBuffer[slabs.length * 2];
+        System.arraycopy(slabs, 0, newSlabs, 0, slabCount);
+        slabs = newSlabs;
+      }
+      slabs[slabCount++] = ByteBuffer.allocateDirect(
+          Math.max(bytes, SLAB_SIZE));
+      currentOffset = 0;
+    }
+    ByteBuffer slab = slabs[slabCount - 1];
+    int offset = currentOffset;
+    slab.putInt(offset, length);
+    for(int i = 0; i < length; i++) {
+      slab.putChar(offset + 4 + 2 * i, term.charAt(i));
+    }
+    // an over-sized slab is filled by a single term
+    currentOffset = bytes > SLAB_SIZE ? SLAB_SIZE : currentOffset + bytes;
+    termAddress[id] = ((long)(slabCount - 1) << SLAB_BITS) | offset;
+    termHash[id] = hash;
+    // publish the new term
+    size = id + 1;
+    return id;
+  }
+
+  /**
+   * Gets the ID for a term, adding the term if not already present. Must
+   * only be called from a single thread.
+   * @param term
+   * @return the term ID.
+   */
+  public long addTerm(CharSequence term) {
+    int hash = hash(term);
+    int slot = findSlot(term, hash);
+    if(table[slot] != 0) return table[slot] - 1;
+    int id = appendTerm(term, hash);
+    table[slot] = id + 1;
+    if(size * 2 > table.length) rehash();
+    return id;
+  }
+
+  /**
+   * Gets the ID for a term. Must only be called from the thread adding
+   * terms.
+   * @param term
+   * @return the term ID, or -1 if the term is not present.
+   */
+  public long getId(CharSequence term) {
+    int slot = findSlot(term, hash(term));
+    return table[slot] - 1;
+  }
+
+  @Override
+  public String get(long index) {
+    int currentSize = size;
+    if(index < 0 || index >= currentSize) {
+      throw new IndexOutOfBoundsException("No direct term with ID " + index);
+    }
+    long address = termAddress[(int)index];
+    ByteBuffer slab = slabs[(int)(address >>> SLAB_BITS)];
+    int offset = (int)(address & SLAB_MASK);
+    char[] chars = new char[slab.getInt(offset)];
+    offset += 4;
+    for(int i = 0; i < chars.length; i++) {
+      chars[i] = slab.getChar(offset + 2 * i);
+    }
+    return new String(chars);
+  }
+
+  @Override
+  public long size64() {
+    return size;
+  }
+
+  @Override
+  @Deprecated
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Writes the terms added since the last save (or since loading) to the
+   * end of a terms file, and forces them to disk. The file must be the one
+   * this dictionary was loaded from, or a new file.
+   * @param termsFile
+   * @throws IOException
+   */
+  public void save(File termsFile) throws IOException {
+    int currentSize = size;
+    if(savedSize == currentSize && termsFile.exists()) return;
+    FileOutputStream fos = new FileOutputStream(termsFile, true);
+    try {
+      Writer writer = new BufferedWriter(
+          new OutputStreamWriter(fos, StandardCharsets.UTF_8), 64 * 1024);
+      for(long id = savedSize; id < currentSize; id++) {
+        writeTerm(writer, get(id));
+      }
+      writer.flush();
+      fos.getChannel().force(true);
+    } finally {
+      fos.close();
+    }
+    savedSize = currentSize;
+  }
+}
@@ -16,19 +16,23 @@ package gate.mimir.index;
 
 
 import gate.mimir.MimirIndex;
+import gate.mimir.util.LongBitmap;
 import it.unimi.dsi.fastutil.longs.Long2ObjectLinkedOpenHashMap;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.ObjectStreamClass;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -36,29 +40,28 @@ import java.util.Comparator;
 import java.util.Enumeration;
 import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipException;
 import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
 import java.util.zip.ZipOutputStream;
 
+import org.apache.commons.io.IOUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 
 /**
  * A Mimir document collection. Consists of one or more zip files containing 
- * serialised {@link DocumentData} values. Each {@link MimirIndex} contains a
- * document collection.
+ * {@link DocumentData} values (encoded with {@link DocumentDataCodec}), or of
+ * a {@link SegmentDocumentStore}.
+ * Each {@link MimirIndex} contains a document collection.
  */
 public class DocumentCollection {
   
-  /**
-   * The maximum number of documents to be stored in the in-RAM document cache.
-   */
-  protected static final int DOCUMENT_DATA_CACHE_SIZE = 100;
-  
   /**
    * Class representing one of the collection (zip) files.
    */
@@ -120,6 +123,18 @@ public class DocumentCollection {
 	   * The number of documents contained.
 	   */
 	  protected int documentCount;
+	  
+	  /**
+	   * The number of references to this file: one held by the collection 
+	   * while the file is part of it, plus one for each reader currently 
+	   * using it. The zip file is closed when this reaches zero.
+	   */
+	  private final AtomicInteger references = new AtomicInteger(1);
+	  
+	  /**
+	   * Should the file be deleted when it gets closed?
+	   */
+	  private volatile boolean deleteWhenClosed = false;
 
 	  /**
      * Given the name of a zip file, this method returns its ID: the part of the 
@@ -139,6 +154,29 @@ public class DocumentCollection {
       return m.matches() ? Integer.parseInt(m.group(2)) : -1;
     }
     
+    /**
+     * Gets the number of the last collection file replaced by a combined 
+     * file (see {@link DocumentCollection#compact(LongBitmap)}), which is the
+     * second number in its ID (e.g. 5 for 
+     * &quot;mimir-collection-0-5.zip&quot;). For files that are not the
+     * result of a compaction, this is the same as the file number.
+     * @param fileName the file name to be parsed.
+     * @return the number, or -1 if the name is not that of a valid 
+     * collection file.
+     */
+    protected static int getLastCollectionFileNumber(String fileName) {
+      Matcher m = MIMIR_COLLECTION_PATTERN.matcher(fileName);
+      if(!m.matches()) return -1;
+      String suffix = m.group(3);
+      int digits = 0;
+      while(suffix != null && digits < suffix.length() && 
+            Character.isDigit(suffix.charAt(digits))) {
+        digits++;
+      }
+      return digits > 0 ? Integer.parseInt(suffix.substring(0, digits)) : 
+          Integer.parseInt(m.group(2));
+    }
+    
     public static String getCollectionFileName(String id) {
       return MIMIR_COLLECTION_BASENAME + id + MIMIR_COLLECTION_EXTENSION;
     }
@@ -180,19 +218,107 @@ public class DocumentCollection {
           zipFile.getEntry(Long.toString(documentID)) != null;
     }
     
+    /**
+     * Pins this file, so that it stays open while it is being read.
+     * @return <code>false</code> if the file has already been closed (after
+     * being replaced by a compaction), in which case it must not be used.
+     */
+    public boolean retain() {
+      while(true) {
+        int current = references.get();
+        if(current <= 0) return false;
+        if(references.compareAndSet(current, current + 1)) return true;
+      }
+    }
+    
+    /**
+     * Releases a reference obtained with {@link #retain()}. The last 
+     * release closes the file.
+     */
+    public void release() {
+      if(references.decrementAndGet() == 0) {
+        try {
+          zipFile.close();
+        } catch(IOException e) {
+          logger.warn("Could not close collection file " + file, e);
+        }
+        if(deleteWhenClosed && !file.delete()) {
+          logger.error("Could not delete old collection file " + file + 
+              ", which must be deleted before the index is next opened!");
+        }
+      }
+    }
+    
+    /**
+     * Releases the reference held by the collection, when this file is no 
+     * longer part of it. The file is closed (and optionally deleted) once 
+     * any readers still using it have finished.
+     * @param delete should the file be deleted after closing?
+     */
+    protected void retire(boolean delete) {
+      deleteWhenClosed = delete;
+      release();
+    }
+    
+    /**
+     * Checks whether this file has entries for any of the given deleted 
+     * documents, which would be dropped when compacting. The last entry is 
+     * not checked, as it is never dropped.
+     * @param deleted
+     * @return
+     */
+    protected boolean hasDeletedEntries(LongBitmap deleted) {
+      if(lastEntry < 0) return false;
+      long next = deleted.nextValue(firstEntry);
+      while(next >= 0 && next < lastEntry) {
+        if(zipFile.getEntry(Long.toString(next)) != null) return true;
+        next = deleted.nextValue(next + 1);
+      }
+      return false;
+    }
+    
     public DocumentData getDocumentData(Long documentID) throws IOException {
+      return getDocumentData(documentID, null);
+    }
+    
+    /**
+     * Reads the document data for a given document ID.
+     * @param documentID
+     * @param tokenDictionary the collection's token dictionary, if it has 
+     * one.
+     * @return
+     * @throws IOException
+     */
+    public DocumentData getDocumentData(Long documentID, 
+        DirectTermDictionary tokenDictionary) throws IOException {
+      byte[] data = readEntry(documentID);
+      return DocumentDataCodec.decode(data, 0, data.length, tokenDictionary);
+    }
+    
+    /**
+     * Reads part of the text of a document, only decoding the part of the 
+     * entry that holds it.
+     * @see DocumentCollection#getText(long, int, int)
+     */
+    public String[][] getText(long documentID, int termPosition, int length, 
+        DirectTermDictionary tokenDictionary) throws IOException {
+      byte[] data = readEntry(documentID);
+      return DocumentDataCodec.decodeText(data, 0, data.length, termPosition, 
+          length, tokenDictionary);
+    }
+    
+    /**
+     * Reads the (uncompressed) bytes of the entry for a document.
+     */
+    protected byte[] readEntry(long documentID) throws IOException {
       ZipEntry entry = zipFile.getEntry(Long.toString(documentID));
       if(entry == null) throw new NoSuchElementException(
           "No entry found for document ID " + documentID);
-      CustomObjectInputStream ois = null;
+      InputStream is = zipFile.getInputStream(entry);
       try {
-        ois = new CustomObjectInputStream(zipFile.getInputStream(entry));
-        return (DocumentData) ois.readObject();
-      } catch(ClassNotFoundException e) {
-        //invalid data read from the zip file
-        throw new IOException("Invalid data read from zip file!", e);
+        return IOUtils.toByteArray(is);
       } finally {
-        if(ois != null) ois.close();
+        is.close();
       }
     }
     
@@ -273,15 +399,32 @@ public class DocumentCollection {
      */
     protected ByteArrayOutputStream byteArrayOS;
     
+    /**
+     * The underlying file stream, used to force the data to disk.
+     */
+    protected FileOutputStream fileOutputStream;
+    
+    /**
+     * The dictionary used to store the tokens as IDs, or <code>null</code>.
+     */
+    protected DirectTermDictionary tokenDictionary;
+    
     public CollectionFileWriter(File file) throws IndexException {
+      this(file, null);
+    }
+    
+    public CollectionFileWriter(File file, 
+        DirectTermDictionary tokenDictionary) throws IndexException {
       this.zipFile = file;
+      this.tokenDictionary = tokenDictionary;
       if(zipFile.exists()) throw new IndexException("Collection zip file (" + 
           file.getAbsolutePath() + ") already exists!");
       byteArrayOS = new ByteArrayOutputStream();
       
       try {
+        fileOutputStream = new FileOutputStream(zipFile);
         zipOuputStream = new ZipOutputStream(new BufferedOutputStream(
-                new  FileOutputStream(zipFile)));
+                fileOutputStream));
       } catch(FileNotFoundException e) {
         throw new IndexException("Cannot write to collection zip file (" + 
                 zipFile.getAbsolutePath() + ")", e);
@@ -302,9 +445,7 @@ public class DocumentCollection {
      */
     public boolean writeDocumentData(long documentId, DocumentData document) throws IOException {
       //write the new document to the byte array
-      ObjectOutputStream objectOutStream = new ObjectOutputStream(byteArrayOS);
-      objectOutStream.writeObject(document);
-      objectOutStream.close();
+      byteArrayOS.write(DocumentDataCodec.encode(document, tokenDictionary));
 
       // check if this will take us over size
       if(currentLength + byteArrayOS.size() > ZIP_FILE_MAX_SIZE ||
@@ -323,22 +464,72 @@ public class DocumentCollection {
       byteArrayOS.reset();
       currentEntries++;
       // save the document data to the input buffer
-      inputBuffer.put(documentId, document);
+      synchronized(inputBuffer) {
+        inputBuffer.put(documentId, document);
+      }
       return true;
     }
 
     public void close() throws IOException {
+      // the input buffer is left alone, as it may still be used by readers 
+      // until the new collection file is made available
       if(zipOuputStream != null) zipOuputStream.close();
-      inputBuffer.clear();
+    }
+    
+    /**
+     * Forces all the entries written so far to disk, leaving the file open
+     * for further writes. The zip file has no central directory until it is
+     * closed, but the entries forced to disk can still be read sequentially
+     * (see {@link DocumentCollection#salvageCollectionFile(File)}).
+     * @throws IOException
+     */
+    public void sync() throws IOException {
+      zipOuputStream.flush();
+      fileOutputStream.getFD().sync();
     }
   }
   
   /**
-   * The zip files containing the document collection.
+   * The zip files containing the document collection, sorted by document 
+   * ID. The array is never modified: it gets replaced when files are added 
+   * or combined (while holding {@link #collectionFilesLock}), so readers can
+   * use it without locking. Readers must {@link CollectionFile#retain()} a 
+   * file before reading from it.
+   */
+  protected volatile CollectionFile[] collectionFiles = 
+      new CollectionFile[0];
+  
+  /**
+   * Lock held while replacing {@link #collectionFiles}.
+   */
+  private final Object collectionFilesLock = new Object();
+  
+  /**
+   * The writer for the zip file currently being written. This is replaced 
+   * only after any file it completed has been added to 
+   * {@link #collectionFiles}, so readers must read this before the files.
    */
-  protected List<CollectionFile> collectionFiles = null;
+  protected volatile CollectionFileWriter collectionFileWriter;
   
-  protected CollectionFileWriter collectionFileWriter;
+  /**
+   * The segment store holding the documents, if this collection does not 
+   * use zip files.
+   */
+  protected SegmentDocumentStore segmentStore;
+  
+  /**
+   * The name of the file holding the token dictionary, for collections that
+   * store the document tokens as IDs.
+   */
+  public static final String TOKEN_DICTIONARY_FILE_NAME = 
+      "mimir-documents.tokens";
+  
+  /**
+   * The dictionary used to store the document tokens as IDs (see 
+   * {@link DocumentDataCodec}), or <code>null</code> if the tokens are 
+   * stored as strings.
+   */
+  protected DirectTermDictionary tokenDictionary;
   
   
   private static Logger logger = LoggerFactory.getLogger(DocumentCollection.class);
@@ -352,7 +543,7 @@ public class DocumentCollection {
    * A cache of {@link DocumentData} values used for returning the various
    * document details (title, URI, text).
    */
-  protected Long2ObjectLinkedOpenHashMap<DocumentData> documentCache;
+  protected DocumentDataCache documentCache;
   
 
   
@@ -375,6 +566,12 @@ public class DocumentCollection {
    * not be greater than 4GB, in either case.
    */
   public static final int ZIP_FILE_MAX_ENTRIES = 250000;
+
+  /**
+   * The prefix added to the name of a collection file while it is being
+   * written by a compaction or a recovery.
+   */
+  protected static final String TEMP_FILE_PREFIX = "temp-";
   
 
   
@@ -392,18 +589,117 @@ public class DocumentCollection {
    * @throws IOException 
    */
   public DocumentCollection(File indexDirectory) throws IOException {
+    this(indexDirectory, false);
+  }
+  
+  /**
+   * Creates a DocumentCollection object for accessing the document data. 
+   * Existing collections keep the layout they were created with.
+   * @param indexDirectory
+   * @param useSegmentStore if the directory contains no documents yet, should
+   * they be stored in a {@link SegmentDocumentStore}, rather than zip files?
+   * @throws IOException 
+   */
+  public DocumentCollection(File indexDirectory, boolean useSegmentStore) 
+      throws IOException {
+    this(indexDirectory, useSegmentStore, false);
+  }
+  
+  /**
+   * Creates a DocumentCollection object for accessing the document data. 
+   * Existing collections keep the layout they were created with.
+   * @param indexDirectory
+   * @param useSegmentStore if the directory contains no documents yet, should
+   * they be stored in a {@link SegmentDocumentStore}, rather than zip files?
+   * @param useTokenIds should new documents have their tokens stored as IDs
+   * in a token dictionary, rather than as strings? Collections that already
+   * have a token dictionary always use it.
+   * @throws IOException 
+   */
+  public DocumentCollection(File indexDirectory, boolean useSegmentStore, 
+      boolean useTokenIds) throws IOException {
     this.indexDirectory = indexDirectory;
+    File tokenDictionaryFile = new File(indexDirectory, 
+        TOKEN_DICTIONARY_FILE_NAME);
+    if(tokenDictionaryFile.exists()) {
+      tokenDictionary = new DirectTermDictionary(tokenDictionaryFile, true);
+    } else if(useTokenIds) {
+      tokenDictionary = new DirectTermDictionary(true);
+    }
     
-    collectionFiles = new ArrayList<CollectionFile>();
+    List<CollectionFile> openedFiles = new ArrayList<CollectionFile>();
+    documentCache = new DocumentDataCache(
+        DocumentDataCache.DEFAULT_MAXIMUM_SIZE);
     // prepare for reading
-    for(File aCollectionFile : indexDirectory.listFiles(CollectionFile.FILENAME_FILTER)) {
-      collectionFiles.add(new CollectionFile(aCollectionFile));
+    File[] files = indexDirectory.listFiles(CollectionFile.FILENAME_FILTER);
+    if(SegmentDocumentStore.exists(indexDirectory) || 
+       (useSegmentStore && files.length == 0)) {
+      if(files.length > 0) {
+        throw new IOException("The directory " + indexDirectory + 
+            " contains both zip collection files and a document store. " +
+            "Was a conversion with " + 
+            gate.mimir.util.ConvertDocumentCollection.class.getName() + 
+            " interrupted?");
+      }
+      segmentStore = new SegmentDocumentStore(indexDirectory, 
+          tokenDictionary);
+      return;
+    }
+    // temporary files left by a compaction or a recovery that did not finish
+    File[] tempFiles = indexDirectory.listFiles(new FilenameFilter() {
+      @Override
+      public boolean accept(File dir, String name) {
+        return name.startsWith(TEMP_FILE_PREFIX + 
+            CollectionFile.MIMIR_COLLECTION_BASENAME);
+      }
+    });
+    for(File aTempFile : tempFiles) {
+      logger.warn("Deleting incomplete collection file " + aTempFile);
+      if(!aTempFile.delete()) {
+        throw new IOException("Could not delete " + aTempFile);
+      }
+    }
+    // the file being written when the process stopped (if any) is the last 
+    // one, and may be unreadable
+    File lastFile = null;
+    for(File aCollectionFile : files) {
+      if(lastFile == null || 
+         CollectionFile.getCollectionFileNumber(aCollectionFile.getName()) > 
+         CollectionFile.getCollectionFileNumber(lastFile.getName())) {
+        lastFile = aCollectionFile;
+      }
     }
-    Collections.sort(collectionFiles);
+    for(File aCollectionFile : files) {
+      try {
+        openedFiles.add(new CollectionFile(aCollectionFile));
+      } catch(IOException e) {
+        if(aCollectionFile != lastFile) throw e;
+        logger.warn("Could not open collection file " + 
+            aCollectionFile.getAbsolutePath() + ", which was probably not " +
+            "closed. Recovering the entries it contains.", e);
+        if(salvageCollectionFile(aCollectionFile)) {
+          openedFiles.add(new CollectionFile(aCollectionFile));
+        } else {
+          // the documents it contained will be written again when the 
+          // queued documents are replayed
+          File brokenFile = new File(indexDirectory, aCollectionFile.getName() + 
+              ".broken-" + System.currentTimeMillis());
+          logger.warn("No entries could be recovered from collection file " + 
+              aCollectionFile.getAbsolutePath() + ". Renaming it to " + 
+              brokenFile.getName());
+          if(!aCollectionFile.renameTo(brokenFile)) {
+            throw new IOException("Could not rename collection file " + 
+                aCollectionFile.getAbsolutePath(), e);
+          }
+        }
+      }
+    }
+    removeReplacedFiles(openedFiles);
+    Collections.sort(openedFiles);
     // sanity check
-    for(int i = 0;  i < collectionFiles.size() - 1; i++) {
-      CollectionFile first = collectionFiles.get(i);
-      CollectionFile second = collectionFiles.get(i + 1);
+    for(int i = 0;  i < openedFiles.size() - 1; i++) {
+      CollectionFile first = openedFiles.get(i);
+      CollectionFile second = openedFiles.get(i + 1);
       if(first.lastEntry >= second.firstEntry) {
         throw new IOException(
             "Invalid entries distribution: collection file " + 
@@ -413,15 +709,125 @@ public class DocumentCollection {
             "already seen in a previous collection file!");          
       }
     }
-    documentCache = new Long2ObjectLinkedOpenHashMap<DocumentData>();
-    
+    collectionFiles = openedFiles.toArray(
+        new CollectionFile[openedFiles.size()]);
     // prepare for writing
-    nextDocumentId = collectionFiles.isEmpty() ? 0 : 
-        (collectionFiles.get(collectionFiles.size() - 1).lastEntry + 1);
+    nextDocumentId = openedFiles.isEmpty() ? 0 : 
+        (openedFiles.get(openedFiles.size() - 1).lastEntry + 1);
     
   }
   
 
+  /**
+   * Removes the collection files that were replaced by a combined file (see 
+   * {@link #compact(LongBitmap)}), but not deleted, because the process 
+   * stopped first, or because they could not be deleted. The combined file
+   * is only given its final name once it is complete and on disk, and a file
+   * named &quot;mimir-collection-a-b.zip&quot; replaces all the files whose 
+   * numbers are between a and b. A single file rewritten to drop deleted 
+   * documents covers the same numbers as the file it replaced, but has fewer
+   * entries.
+   * @param files the opened collection files. The replaced ones are removed
+   * from the list, closed and deleted.
+   */
+  protected void removeReplacedFiles(List<CollectionFile> files) {
+    List<CollectionFile> sorted = new ArrayList<CollectionFile>(files);
+    // by first number, then widest range first, then fewest entries first
+    Collections.sort(sorted, new Comparator<CollectionFile>() {
+      @Override
+      public int compare(CollectionFile o1, CollectionFile o2) {
+        int res = Integer.compare(o1.collectionFileNumber, 
+            o2.collectionFileNumber);
+        if(res != 0) return res;
+        res = Integer.compare(
+            CollectionFile.getLastCollectionFileNumber(o2.file.getName()),
+            CollectionFile.getLastCollectionFileNumber(o1.file.getName()));
+        return res != 0 ? res : 
+            Integer.compare(o1.documentCount, o2.documentCount);
+      }
+    });
+    CollectionFile covering = null;
+    int coveredUpTo = -1;
+    for(CollectionFile aFile : sorted) {
+      int last = CollectionFile.getLastCollectionFileNumber(
+          aFile.file.getName());
+      if(covering != null && last <= coveredUpTo) {
+        logger.warn("Deleting collection file " + aFile.file.getName() + 
+            ", which was replaced by " + covering.file.getName() + 
+            " when the collection was last compacted.");
+        files.remove(aFile);
+        aFile.retire(true);
+      } else {
+        covering = aFile;
+        coveredUpTo = last;
+      }
+    }
+  }
+  
+  /**
+   * Rewrites a collection file that was still open for writing when the 
+   * process stopped (so it has no central directory), keeping all the 
+   * entries that were completely written, in order. Any entries written 
+   * after the last {@link #sync()} are kept too, if they are complete: the 
+   * documents they hold are skipped when the queued documents are replayed.
+   * @param file the collection file.
+   * @return <code>true</code> if the file was rewritten, <code>false</code> 
+   * if it contained no complete entries, in which case it is left unchanged.
+   * @throws IOException
+   */
+  protected boolean salvageCollectionFile(File file) throws IOException {
+    File tempFile = new File(indexDirectory, TEMP_FILE_PREFIX + file.getName());
+    int entries = 0;
+    ZipInputStream zis = new ZipInputStream(new BufferedInputStream(
+        new FileInputStream(file)));
+    try {
+      FileOutputStream fos = new FileOutputStream(tempFile);
+      ZipOutputStream zos = new ZipOutputStream(new BufferedOutputStream(fos));
+      try {
+        ByteArrayOutputStream entryData = new ByteArrayOutputStream();
+        byte[] buff = new byte[64 * 1024];
+        try {
+          ZipEntry entry = zis.getNextEntry();
+          while(entry != null) {
+            // read the whole entry first: the checksum is only verified at 
+            // the end
+            entryData.reset();
+            int read = zis.read(buff);
+            while(read >= 0) {
+              entryData.write(buff, 0, read);
+              read = zis.read(buff);
+            }
+            zos.putNextEntry(new ZipEntry(entry.getName()));
+            entryData.writeTo(zos);
+            zos.closeEntry();
+            entries++;
+            entry = zis.getNextEntry();
+          }
+        } catch(IOException e) {
+          // an entry that was only partially written: nothing after it can 
+          // be used
+          logger.debug("End of usable data in " + file, e);
+        }
+        zos.finish();
+        zos.flush();
+        fos.getFD().sync();
+      } finally {
+        zos.close();
+      }
+    } finally {
+      zis.close();
+    }
+    if(entries == 0) {
+      tempFile.delete();
+      return false;
+    }
+    Files.move(tempFile.toPath(), file.toPath(), 
+        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    logger.info("Recovered " + entries + " entries from collection file " + 
+        file.getAbsolutePath());
+    return true;
+  }
+
   /**
    * Gets the document data for a given document ID.
    * @param documentID the ID of the document to be retrieved.
@@ -432,39 +838,148 @@ public class DocumentCollection {
   public DocumentData getDocumentData(long documentID) throws IOException{
     if(closed) throw new IllegalStateException(
             "This document collection has already been closed!");
+    if(segmentStore != null) {
+      // documents still in RAM are not worth caching
+      if(documentID >= segmentStore.getPublishedDocumentCount()) {
+        return segmentStore.getDocumentData(documentID);
+      }
+      return documentCache.get(documentID, segmentLoader);
+    }
     DocumentData documentData = null;
-    if(collectionFiles.isEmpty() ||
-       documentID > collectionFiles.get(collectionFiles.size() - 1).lastEntry) {
+    // the writer must be read before the files (see collectionFileWriter)
+    CollectionFileWriter writer = collectionFileWriter;
+    CollectionFile[] files = collectionFiles;
+    boolean newDocument = files.length == 0 || 
+        documentID > files[files.length - 1].lastEntry;
+    if(newDocument) {
       // it's a new document that's not yet available from the zip files
-      documentData = collectionFileWriter != null ?
-          collectionFileWriter.inputBuffer.get(documentID):
-          null;
-    } else {
-      // it's an old document. Try the cache first
-      documentData = documentCache.getAndMoveToFirst(documentID);
-      if(documentData == null) {
-        // cache miss: we need to actually load it
-        //locate the right zip file
-        synchronized(collectionFiles) {
-          files: for(CollectionFile aColFile : collectionFiles) {
-            if(aColFile.containsDocument(documentID)) {
-              // we found the collection file containing the document
-              documentData = aColFile.getDocumentData(documentID);
-              documentCache.putAndMoveToFirst(documentID, documentData);
-              if(documentCache.size() > DOCUMENT_DATA_CACHE_SIZE) {
-                documentCache.removeLast();
-              }
-              break files;
-            }
-          } 
+      if(writer != null) {
+        synchronized(writer.inputBuffer) {
+          documentData = writer.inputBuffer.get(documentID);
         }
       }
+    } else {
+      // it's an old document: get it from the cache, or the zip files
+      documentData = documentCache.get(documentID, zipLoader);
     }
     if(documentData == null) throw new NoSuchElementException(
         "No entry found for document ID " + documentID);
     return documentData;  
   }
   
+  /**
+   * Gets part of the text of a document, as returned by 
+   * {@link DocumentData#getText(int, int)}. Unless the document is already 
+   * in RAM, only the part of the stored data holding the requested tokens is
+   * decoded, which is much cheaper than getting the whole 
+   * {@link DocumentData} for long documents. The document is not added to 
+   * the cache.
+   * @param documentID the ID of the document.
+   * @param termPosition the position of the first token required.
+   * @param length the number of tokens required, or a negative value for 
+   * all the tokens up to the end of the document.
+   * @return an array of two string arrays: the tokens, and the spaces 
+   * following them. 
+   * @throws IOException if there are problems accessing the underlying 
+   * files.
+   * @throws NoSuchElementException if the requested document ID is not found.
+   */
+  public String[][] getText(long documentID, int termPosition, int length)
+      throws IOException {
+    if(closed) throw new IllegalStateException(
+            "This document collection has already been closed!");
+    DocumentData cached = documentCache.getIfPresent(documentID);
+    if(cached != null) return cached.getText(termPosition, length);
+    if(segmentStore != null) {
+      return segmentStore.getText(documentID, termPosition, length);
+    }
+    CollectionFile colFile = retainCollectionFile(documentID);
+    if(colFile != null) {
+      try {
+        return colFile.getText(documentID, termPosition, length, 
+            tokenDictionary);
+      } finally {
+        colFile.release();
+      }
+    }
+    // a new document, not yet in the zip files
+    return getDocumentData(documentID).getText(termPosition, length);
+  }
+  
+  /**
+   * Loads documents from the zip files, for the document cache.
+   */
+  private final DocumentDataCache.Loader zipLoader = 
+      new DocumentDataCache.Loader() {
+    @Override
+    public DocumentData load(long documentId) throws IOException {
+      //locate the right zip file
+      CollectionFile colFile = retainCollectionFile(documentId);
+      if(colFile == null) throw new NoSuchElementException(
+          "No entry found for document ID " + documentId);
+      try {
+        return colFile.getDocumentData(documentId, tokenDictionary);
+      } finally {
+        colFile.release();
+      }
+    }
+  };
+  
+  /**
+   * Finds the zip file whose range of document IDs includes a given ID, and
+   * retains it. This does not lock: if the file found gets replaced by a 
+   * compaction in the meantime, the search is repeated on the new files.
+   * @param documentID
+   * @return the retained file, which must be released after use, or 
+   * <code>null</code> if no file covers the given ID.
+   */
+  protected CollectionFile retainCollectionFile(long documentID) {
+    while(true) {
+      CollectionFile found = null;
+      for(CollectionFile aColFile : collectionFiles) {
+        if(aColFile.firstEntry <= documentID && 
+           documentID <= aColFile.lastEntry) {
+          found = aColFile;
+          break;
+        }
+      }
+      if(found == null || found.retain()) return found;
+    }
+  }
+  
+  /**
+   * Adds a new file at the end of the collection, making its documents 
+   * readable.
+   */
+  private void addCollectionFile(CollectionFile colFile) {
+    synchronized(collectionFilesLock) {
+      CollectionFile[] files = collectionFiles;
+      CollectionFile[] newFiles = Arrays.copyOf(files, files.length + 1);
+      newFiles[files.length] = colFile;
+      collectionFiles = newFiles;
+    }
+  }
+  
+  /**
+   * Loads documents from the segment store, for the document cache.
+   */
+  private final DocumentDataCache.Loader segmentLoader = 
+      new DocumentDataCache.Loader() {
+    @Override
+    public DocumentData load(long documentId) throws IOException {
+      return segmentStore.getDocumentData(documentId);
+    }
+  };
+  
+  /**
+   * Gets the cache of {@link DocumentData} values, e.g. to change its size,
+   * or to get its statistics.
+   * @return
+   */
+  public DocumentDataCache getDocumentCache() {
+    return documentCache;
+  }
+  
   /**
    * Writes a new document to the underlying zip file. The documents added 
    * through this method will get automatically generated names starting from 
@@ -474,6 +989,15 @@ public class DocumentCollection {
    * collection file(s).
    */
   public void writeDocument(DocumentData document) throws IndexException{
+    if(segmentStore != null) {
+      try {
+        segmentStore.writeDocument(document);
+      } catch(IOException e) {
+        throw new IndexException("Problem while writing to the document store",
+            e);
+      }
+      return;
+    }
     if(collectionFileWriter == null) openCollectionWriter();
     
     try{
@@ -483,11 +1007,10 @@ public class DocumentCollection {
             document);
         if(!success) {
           // the current collection file is full: close it
+          saveTokenDictionary();
           collectionFileWriter.close();
-          synchronized(collectionFiles) {
-            // open the newly saved zip file
-            collectionFiles.add(new CollectionFile(collectionFileWriter.zipFile));
-          }
+          // open the newly saved zip file
+          addCollectionFile(new CollectionFile(collectionFileWriter.zipFile));
           // open a new one and try again
           openCollectionWriter();
         }   
@@ -499,6 +1022,57 @@ public class DocumentCollection {
     }
   }
   
+  /**
+   * Makes sure all the documents written so far are safely on disk: the 
+   * entries written to the current collection file are forced to disk, but 
+   * the file stays open, so that syncing often does not create many small 
+   * files. If the process stops before the file is closed, the synced 
+   * entries are recovered when the collection is next opened.
+   * @throws IndexException
+   */
+  public void sync() throws IndexException {
+    if(segmentStore != null) {
+      try {
+        segmentStore.sync();
+      } catch(IOException e) {
+        throw new IndexException("Problem while writing to the document store",
+            e);
+      }
+      return;
+    }
+    if(collectionFileWriter == null || 
+       collectionFileWriter.currentEntries == 0) return;
+    try {
+      saveTokenDictionary();
+      collectionFileWriter.sync();
+    } catch(IOException e) {
+      throw new IndexException("Problem while accessing the collection file", e);
+    }
+  }
+  
+  /**
+   * Writes any new tokens to the token dictionary file. This must happen 
+   * before any documents that refer to them become readable from the zip 
+   * files.
+   * @throws IOException
+   */
+  protected void saveTokenDictionary() throws IOException {
+    if(tokenDictionary != null) {
+      tokenDictionary.save(new File(indexDirectory, 
+          TOKEN_DICTIONARY_FILE_NAME));
+    }
+  }
+  
+  /**
+   * Gets the ID that the next document written to this collection will get, 
+   * which is the same as the number of documents written so far.
+   * @return
+   */
+  public long getNextDocumentId() {
+    if(segmentStore != null) return segmentStore.getNextDocumentId();
+    return nextDocumentId;
+  }
+  
   /**
    * Opens the current zip file and sets the {@link #zipFile} and 
    * {@link #zipOuputStream} values accordingly. 
@@ -506,15 +1080,18 @@ public class DocumentCollection {
    * be opened for writing.
    */
   protected void openCollectionWriter() throws IndexException{
-    int zipFileNumber = 0;
-    synchronized(collectionFiles) {
-      zipFileNumber = collectionFiles.isEmpty() ? 0 :
-        collectionFiles.get(collectionFiles.size() - 1).collectionFileNumber + 1; 
-    }
-    collectionFileWriter = new CollectionFileWriter(
-        new File(indexDirectory,
-            CollectionFile.getCollectionFileName(
-                Integer.toString(zipFileNumber))));
+    CollectionFile[] files = collectionFiles;
+    int zipFileNumber = files.length == 0 ? 0 :
+        files[files.length - 1].collectionFileNumber + 1;
+    File zipFile = new File(indexDirectory, 
+        CollectionFile.getCollectionFileName(Integer.toString(zipFileNumber)));
+    // files replaced by a compaction may still be in use
+    while(zipFile.exists()) {
+      zipFileNumber++;
+      zipFile = new File(indexDirectory, 
+          CollectionFile.getCollectionFileName(Integer.toString(zipFileNumber)));
+    }
+    collectionFileWriter = new CollectionFileWriter(zipFile, tokenDictionary);
   }
   
   /**
@@ -524,31 +1101,41 @@ public class DocumentCollection {
    * @throws IndexException 
    */
   public void close() throws IOException {
+    logger.debug(documentCache.toString());
+    if(segmentStore != null) {
+      closed = true;
+      segmentStore.close();
+      documentCache.clear();
+      return;
+    }
     // close the writer
-    if(collectionFileWriter != null) collectionFileWriter.close();
+    if(collectionFileWriter != null) {
+      saveTokenDictionary();
+      collectionFileWriter.close();
+    }
     // close the reader
     closed = true;
-    if(collectionFiles != null){
-      for(CollectionFile colFile : collectionFiles){
-        try {
-          colFile.close();
-        } catch(IOException e) {
-          // ignore
-        }
-      }
-      collectionFiles.clear();
-      collectionFiles = null;      
+    CollectionFile[] files;
+    synchronized(collectionFilesLock) {
+      files = collectionFiles;
+      collectionFiles = new CollectionFile[0];
+    }
+    // files still being read get closed when their readers finish
+    for(CollectionFile colFile : files) {
+      colFile.retire(false);
     }
     documentCache.clear();
   }
   
   
   /**
-   * Returns the number of archive files in this collection.
+   * Returns the number of archive files (zip files or store segments) in this
+   * collection.
    * @return
    */
   public int getArchiveCount() {
-    return collectionFiles.size();
+    if(segmentStore != null) return segmentStore.getSegmentCount();
+    return collectionFiles.length;
   }
   
   /**
@@ -561,31 +1148,59 @@ public class DocumentCollection {
    * @throws IOException
    * @throws IndexException 
    */
-  public synchronized void compact() throws ZipException, IOException, IndexException {
+  public void compact() throws ZipException, IOException, IndexException {
+    compact(null);
+  }
+  
+  /**
+   * Combines multiple smaller collection files into larger ones (see 
+   * {@link #compact()}), optionally also dropping the entries for deleted 
+   * documents. When deleted documents are given, any collection file that 
+   * contains some of them gets rewritten, even if it cannot be combined with
+   * any of its neighbours. The entry with the largest ID in each rewritten 
+   * run of files is always kept, so that the range of document IDs covered 
+   * by the collection (and hence the ID given to the next new document) does
+   * not change.
+   * 
+   * A collection using a {@link SegmentDocumentStore} never needs combining,
+   * so in that case only the deleted documents are removed (see 
+   * {@link SegmentDocumentStore#compact(LongBitmap)}).
+   * 
+   * @param deleted the IDs of the deleted documents, or <code>null</code> if
+   * no entries should be dropped.
+   * @throws ZipException
+   * @throws IOException
+   * @throws IndexException 
+   */
+  public synchronized void compact(LongBitmap deleted) throws ZipException, 
+      IOException, IndexException {
     logger.debug("Starting collection compact.");
+    if(segmentStore != null) {
+      if(deleted != null) {
+        segmentStore.compact(deleted);
+        // cached documents may no longer exist
+        documentCache.clear();
+      }
+      return;
+    }
     // find an interval of files that can be joined together
     // we search from the end toward the start so that we can modify the 
     // list without changing the yet-unvisited IDs.
-    CollectionFile[] colFilesArr = collectionFiles.toArray(
-        new CollectionFile[collectionFiles.size()]);
+    CollectionFile[] colFilesArr = collectionFiles;
     int intervalEnd = -1;
     int intervalLength = 0;
     int intervalEntries = 0;
     long intervalBytes = 0;
+    boolean intervalDirty = false;
     for(int i = colFilesArr.length -1; i >= 0; i--) {
       // is the current file small?
       boolean smallFile = 
           colFilesArr[i].documentCount < ZIP_FILE_MAX_ENTRIES &&
           colFilesArr[i].length < ZIP_FILE_MAX_SIZE;
-      if(intervalEnd < 0) { // we're looking for the first 'small' file
-        if(smallFile) {
-          // we found a small file: start a new interval
-          intervalEnd = i;
-          intervalLength = 1;
-          intervalEntries = colFilesArr[i].documentCount;
-          intervalBytes = colFilesArr[i].length;
-        }
-      } else { // we're trying to extend the current interval
+      // does it contain deleted documents that should be dropped?
+      boolean dirtyFile = deleted != null && 
+          colFilesArr[i].hasDeletedEntries(deleted);
+      if(intervalEnd >= 0) { // we're trying to extend the current interval
         boolean currentFileAccepted = 
             intervalEntries + colFilesArr[i].documentCount < ZIP_FILE_MAX_ENTRIES &&
             intervalBytes + colFilesArr[i].length < ZIP_FILE_MAX_SIZE;
@@ -594,77 +1209,13 @@ public class DocumentCollection {
           intervalEntries += colFilesArr[i].documentCount;
           intervalBytes += colFilesArr[i].length;
           intervalLength = intervalEnd - i + 1;
+          intervalDirty |= dirtyFile;
         }
         if(!currentFileAccepted || i == 0) {
           // end the current interval
-          if(intervalLength > 1){
-            int intervalStart = intervalEnd - intervalLength + 1;
-            // combine the files
-            // create the new file
-            String newFileName = "temp-" + 
-                CollectionFile.MIMIR_COLLECTION_BASENAME + 
-                colFilesArr[intervalStart].collectionFileNumber + 
-                "-" + 
-                colFilesArr[intervalEnd].collectionFileNumber + 
-                CollectionFile.MIMIR_COLLECTION_EXTENSION;
-            File newZipFile = new File(indexDirectory, newFileName);
-            ZipOutputStream  zos = new ZipOutputStream(new BufferedOutputStream(
-                      new  FileOutputStream(newZipFile)));
-            byte[] buff = new byte[1024 * 1024];
-            for(int j = intervalStart; j <= intervalEnd; j++) {
-              Enumeration<? extends ZipEntry> entries = 
-                  colFilesArr[j].zipFile.entries();
-              while(entries.hasMoreElements()) {
-                ZipEntry anEntry = entries.nextElement();
-                zos.putNextEntry(new ZipEntry(anEntry));
-                InputStream is = colFilesArr[j].zipFile.getInputStream(anEntry);
-                int read = is.read(buff);
-                while(read >= 0){
-                  zos.write(buff, 0, read);
-                  read = is.read(buff);
-                }
-                zos.closeEntry();
-              }
-            }
-            zos.close();
-            
-            //update the collection
-            synchronized(colFilesArr) {
-              //confirm that the collection files have not changed since we started
-              for(int j = intervalStart; j <= intervalEnd; j++) {
-                if(colFilesArr[j] != collectionFiles.get(j)) {
-                  logger.warn("Collection files have changed since the "
-                      + "compacting operation started. Compact aborted." + 
-                      "Details: " + colFilesArr[j].file.getAbsolutePath() + 
-                      " not the same as " + 
-                      collectionFiles.get(j).file.getAbsolutePath());
-
-                  // delete the newly created collection file
-                  newZipFile.delete();
-                  return;
-                }
-              }
-              // build name for new collection file
-              File newCollectionFile = new File(indexDirectory, 
-                  CollectionFile.getCollectionFileName(
-                      Integer.toString(colFilesArr[intervalStart].collectionFileNumber) + 
-                      "-" + 
-                      Integer.toString(colFilesArr[intervalEnd].collectionFileNumber)));
-              // delete the old files
-              for(int j = intervalStart; j <= intervalEnd; j++) {
-                CollectionFile oldColFile = collectionFiles.remove(intervalStart);
-                if(!oldColFile.file.delete()) {
-                  throw new IndexException(
-                      "Could not delete old collection file " + 
-                      oldColFile.file + "! " + 
-                      "Document collection now inconsistent.");
-                }
-              }
-              // rename temp file to new name
-              newZipFile.renameTo(newCollectionFile);
-              // add new collection file
-              collectionFiles.add(intervalStart, new CollectionFile(newCollectionFile));
-            }
+          if(intervalLength > 1 || intervalDirty) {
+            if(!combineFiles(colFilesArr, intervalEnd - intervalLength + 1, 
+                intervalEnd, deleted)) return;
           }
           // we found and merged an interval, 
           // or we only found an interval of length 1: start again
@@ -672,8 +1223,144 @@ public class DocumentCollection {
           intervalLength = 0;
           intervalEntries = 0;
           intervalBytes = 0;
+          intervalDirty = false;
         }
+        if(currentFileAccepted) continue;
       }
+      // we're looking for the first 'small' (or dirty) file
+      if(smallFile || dirtyFile) {
+        // start a new interval
+        intervalEnd = i;
+        intervalLength = 1;
+        intervalEntries = colFilesArr[i].documentCount;
+        intervalBytes = colFilesArr[i].length;
+        intervalDirty = dirtyFile;
+      }
+    }
+    // a dirty file at the start of the collection, on its own
+    if(intervalEnd >= 0 && (intervalLength > 1 || intervalDirty)) {
+      combineFiles(colFilesArr, intervalEnd - intervalLength + 1, intervalEnd,
+          deleted);
+    }
+  }
+  
+  /**
+   * Replaces a run of consecutive collection files with a single new file.
+   * @param colFilesArr the collection files, at the start of the compaction.
+   * @param intervalStart the index of the first file to be combined.
+   * @param intervalEnd the index of the last file to be combined (inclusive).
+   * @param deleted the IDs of the documents whose entries should be left out
+   * (except for the very last entry), or <code>null</code>.
+   * @return <code>false</code> if the collection files changed while the new
+   * file was being written, in which case the compaction must be abandoned.
+   * @throws IOException
+   * @throws IndexException
+   */
+  private boolean combineFiles(CollectionFile[] colFilesArr, int intervalStart,
+      int intervalEnd, LongBitmap deleted) throws IOException, IndexException {
+    // combine the files
+    // create the new file
+    String newFileName = TEMP_FILE_PREFIX + 
+        CollectionFile.MIMIR_COLLECTION_BASENAME + 
+        colFilesArr[intervalStart].collectionFileNumber + 
+        "-" + 
+        colFilesArr[intervalEnd].collectionFileNumber + 
+        CollectionFile.MIMIR_COLLECTION_EXTENSION;
+    File newZipFile = new File(indexDirectory, newFileName);
+    FileOutputStream fos = new FileOutputStream(newZipFile);
+    ZipOutputStream  zos = new ZipOutputStream(new BufferedOutputStream(fos));
+    long lastEntry = colFilesArr[intervalEnd].lastEntry;
+    int dropped = 0;
+    byte[] buff = new byte[1024 * 1024];
+    for(int j = intervalStart; j <= intervalEnd; j++) {
+      Enumeration<? extends ZipEntry> entries = 
+          colFilesArr[j].zipFile.entries();
+      while(entries.hasMoreElements()) {
+        ZipEntry anEntry = entries.nextElement();
+        if(deleted != null) {
+          try {
+            long entryId = Long.parseLong(anEntry.getName());
+            if(entryId != lastEntry && deleted.contains(entryId)) {
+              dropped++;
+              continue;
+            }
+          } catch(NumberFormatException e) {
+            // not a document entry: copy it over unchanged
+          }
+        }
+        zos.putNextEntry(new ZipEntry(anEntry));
+        InputStream is = colFilesArr[j].zipFile.getInputStream(anEntry);
+        int read = is.read(buff);
+        while(read >= 0){
+          zos.write(buff, 0, read);
+          read = is.read(buff);
+        }
+        zos.closeEntry();
+      }
+    }
+    // the new file must be complete on disk before it gets its final name, 
+    // which makes it replace the old files when the collection is opened
+    zos.finish();
+    zos.flush();
+    fos.getFD().sync();
+    zos.close();
+    if(dropped > 0) {
+      logger.info("Dropped " + dropped + " deleted documents from the " +
+          "document collection.");
+    }
+    
+    // build name for new collection file: the old files are still in use, 
+    // and one of them may have the same name (when a single file was 
+    // rewritten to drop deleted documents)
+    String newFileId = 
+        Integer.toString(colFilesArr[intervalStart].collectionFileNumber) + 
+        "-" + 
+        Integer.toString(colFilesArr[intervalEnd].collectionFileNumber);
+    File newCollectionFile = new File(indexDirectory, 
+        CollectionFile.getCollectionFileName(newFileId));
+    for(int suffix = 1; newCollectionFile.exists(); suffix++) {
+      newCollectionFile = new File(indexDirectory, 
+          CollectionFile.getCollectionFileName(newFileId + "-" + suffix));
+    }
+    // rename temp file to new name
+    if(!newZipFile.renameTo(newCollectionFile)) {
+      throw new IOException("Could not rename " + newZipFile + " to " + 
+          newCollectionFile);
+    }
+    CollectionFile newColFile = new CollectionFile(newCollectionFile);
+    
+    //update the collection
+    synchronized(collectionFilesLock) {
+      CollectionFile[] current = collectionFiles;
+      //confirm that the collection files have not changed since we started
+      for(int j = intervalStart; j <= intervalEnd; j++) {
+        if(j >= current.length || colFilesArr[j] != current[j]) {
+          logger.warn("Collection files have changed since the "
+              + "compacting operation started. Compact aborted." + 
+              "Details: " + colFilesArr[j].file.getAbsolutePath() + 
+              " not the same as " + (j < current.length ?
+              current[j].file.getAbsolutePath() : "(none)"));
+
+          // delete the newly created collection file
+          newColFile.retire(true);
+          return false;
+        }
+      }
+      // publish the new list of files
+      CollectionFile[] newFiles = new CollectionFile[current.length - 
+          (intervalEnd - intervalStart)];
+      System.arraycopy(current, 0, newFiles, 0, intervalStart);
+      newFiles[intervalStart] = newColFile;
+      System.arraycopy(current, intervalEnd + 1, newFiles, intervalStart + 1, 
+          current.length - intervalEnd - 1);
+      collectionFiles = newFiles;
+    }
+    // cached documents may no longer exist
+    if(dropped > 0) documentCache.clear();
+    // close and delete the old files, once their readers have finished
+    for(int j = intervalStart; j <= intervalEnd; j++) {
+      colFilesArr[j].retire(true);
     }
+    return true;
   }
 }
\ No newline at end of file
@@ -14,6 +14,8 @@
  */
 package gate.mimir.index;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.HashMap;
 
@@ -65,8 +67,31 @@ public class DocumentData implements Serializable {
    * @return the tokens
    */
   public String[] getTokens() {
+    if(tokenIds != null) resolveTokens();
     return tokens;
   }
+  
+  /**
+   * Looks up the strings for all the token IDs.
+   */
+  private synchronized void resolveTokens() {
+    if(tokens != null) return;
+    String[] resolved = new String[tokenIds.length];
+    for(int i = 0; i < tokenIds.length; i++) {
+      resolved[i] = getToken(i);
+    }
+    tokens = resolved;
+  }
+  
+  /**
+   * Gets a single token, only looking up its string (when the tokens are 
+   * stored as IDs) if all the tokens have not been looked up yet.
+   */
+  private String getToken(int position) {
+    if(tokenIds == null) return tokens[position];
+    int tokenId = tokenIds[position];
+    return tokenId < 0 ? null : tokenDictionary.get(tokenId);
+  }
 
   /**
    * @return the nonTokens
@@ -76,8 +101,9 @@ public class DocumentData implements Serializable {
   }
 
   public String[][] getText(int termPosition, int length) {
+    int tokenCount = tokenIds != null ? tokenIds.length : tokens.length;
     if(length < 0) {
-      length = tokens.length - termPosition;
+      length = tokenCount - termPosition;
       if(length < 0) {
         // still less than 0 means termPosition was beyond the end of the doc,
         // so return no tokens.
@@ -90,7 +116,7 @@ public class DocumentData implements Serializable {
     for(int i = 0; i < length; i++) {
       int docIdx = i + termPosition;
       result[0][i] = docIdx < 0 ? null : 
-          (docIdx < tokens.length ? tokens[docIdx] : null);
+          (docIdx < tokenCount ? getToken(docIdx) : null);
       result[1][i] = docIdx < 0 ? null : 
           (docIdx < nonTokens.length ? nonTokens[docIdx] : null);
     }
@@ -143,5 +169,26 @@ public class DocumentData implements Serializable {
    */
   protected HashMap<String, Serializable> metadata;
   
+  /**
+   * For documents read from a collection that stores the tokens as IDs (see
+   * {@link DocumentDataCodec}), the ID of each token in 
+   * {@link #tokenDictionary} (-1 for <code>null</code> tokens). The 
+   * {@link #tokens} array is only filled in when first requested.
+   */
+  protected transient int[] tokenIds;
+  
+  /**
+   * The dictionary for {@link #tokenIds}.
+   */
+  protected transient DirectTermDictionary tokenDictionary;
+  
+  /**
+   * Makes sure the token strings are included when serialising.
+   */
+  private void writeObject(ObjectOutputStream out) throws IOException {
+    getTokens();
+    out.defaultWriteObject();
+  }
+  
   
 }
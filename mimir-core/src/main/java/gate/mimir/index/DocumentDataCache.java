@@ -0,0 +1,366 @@
+/*
+ *  DocumentDataCache.java
+ *
+ *  Copyright (c) 2007-2026, The University of Sheffield.
+ *
+ *  This file is part of GATE Mímir (see http://gate.ac.uk/family/mimir.html),
+ *  and is free software, licenced under the GNU Lesser General Public License,
+ *  Version 3, June 2007 (also included with this distribution as file
+ *  LICENCE-LGPL3.html).
+ *
+ *  $Id$
+ */
+package gate.mimir.index;
+
+import it.unimi.dsi.fastutil.longs.Long2LongOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectLinkedOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Serializable;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * <p>
+ * A least-recently-used cache of {@link DocumentData} values, used by the
+ * {@link DocumentCollection}. The cache is bounded by the (estimated) number
+ * of bytes used by the cached values, rather than by the number of entries,
+ * so a few large documents cannot push the memory use up, and many small
+ * ones (e.g. the snippets for a page of results) do not evict each other
+ * needlessly.
+ * </p>
+ * <p>
+ * All methods are thread-safe. When several threads request the same
+ * document that is not in the cache, it is only loaded once: the first
+ * thread loads it, and the others wait for the result.
+ * </p>
+ */
+public class DocumentDataCache {
+
+  /**
+   * Loads a document on a cache miss.
+   */
+  public static interface Loader {
+    /**
+     * Loads the document data for a document.
+     * @param documentId
+     * @return the document data (never <code>null</code>).
+     * @throws IOException
+     * @throws java.util.NoSuchElementException if the document does not
+     * exist.
+     */
+    public DocumentData load(long documentId) throws IOException;
+  }
+
+  /**
+   * The default maximum size of the cached values: 32MB.
+   */
+  public static final long DEFAULT_MAXIMUM_SIZE = 32L * 1024 * 1024;
+
+  /**
+   * A load in progress, which other threads requesting the same document
+   * wait for.
+   */
+  private static class PendingLoad {
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    private DocumentData value;
+
+    private Throwable failure;
+
+    void complete(DocumentData value, Throwable failure) {
+      this.value = value;
+      this.failure = failure;
+      done.countDown();
+    }
+
+    DocumentData await(long documentId) throws IOException {
+      try {
+        done.await();
+      } catch(InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while waiting for " +
+            "document " + documentId + " to load");
+      }
+      if(failure instanceof RuntimeException) {
+        throw (RuntimeException)failure;
+      } else if(failure instanceof Error) {
+        throw (Error)failure;
+      } else if(failure != null) {
+        throw new IOException("Could not load document " + documentId,
+            failure);
+      }
+      return value;
+    }
+  }
+
+  /**
+   * The cached values, most recently used first.
+   */
+  private final Long2ObjectLinkedOpenHashMap<DocumentData> entries =
+      new Long2ObjectLinkedOpenHashMap<DocumentData>();
+
+  /**
+   * The estimated size of each cached value.
+   */
+  private final Long2LongOpenHashMap entrySizes = new Long2LongOpenHashMap();
+
+  private final Long2ObjectOpenHashMap<PendingLoad> pendingLoads =
+      new Long2ObjectOpenHashMap<PendingLoad>();
+
+  private long maximumSize;
+
+  private long size = 0;
+
+  /**
+   * Incremented every time the cache is cleared, so that values being
+   * loaded at the time are not added afterwards.
+   */
+  private long generation = 0;
+
+  private long hits = 0;
+
+  private long misses = 0;
+
+  private long coalescedLoads = 0;
+
+  private long evictions = 0;
+
+  /**
+   * Creates a new cache.
+   * @param maximumSize the maximum estimated size (in bytes) of the cached
+   * values.
+   */
+  public DocumentDataCache(long maximumSize) {
+    this.maximumSize = maximumSize;
+  }
+
+  /**
+   * Gets the document data for a document, from the cache if present, or
+   * else through the supplied loader. Only one thread loads any given
+   * document at a time: other threads requesting it in the meantime wait
+   * for the same result.
+   * @param documentId
+   * @param loader
+   * @return
+   * @throws IOException if the loader failed.
+   */
+  public DocumentData get(long documentId, Loader loader) throws IOException {
+    PendingLoad load;
+    boolean loading = false;
+    long loadGeneration;
+    synchronized(this) {
+      DocumentData cached = entries.getAndMoveToFirst(documentId);
+      if(cached != null) {
+        hits++;
+        return cached;
+      }
+      misses++;
+      load = pendingLoads.get(documentId);
+      if(load != null) {
+        coalescedLoads++;
+      } else {
+        load = new PendingLoad();
+        pendingLoads.put(documentId, load);
+        loading = true;
+      }
+      loadGeneration = generation;
+    }
+    if(!loading) return load.await(documentId);
+    DocumentData value = null;
+    Throwable failure = null;
+    try {
+      value = loader.load(documentId);
+      return value;
+    } catch(IOException e) {
+      failure = e;
+      throw e;
+    } catch(RuntimeException e) {
+      failure = e;
+      throw e;
+    } catch(Error e) {
+      failure = e;
+      throw e;
+    } finally {
+      synchronized(this) {
+        pendingLoads.remove(documentId);
+        if(value != null && generation == loadGeneration) {
+          put(documentId, value);
+        }
+      }
+      load.complete(value, failure);
+    }
+  }
+
+  /**
+   * Gets the cached value for a document, without loading it if it is not
+   * in the cache.
+   * @param documentId
+   * @return the cached value, or <code>null</code>.
+   */
+  public synchronized DocumentData getIfPresent(long documentId) {
+    DocumentData cached = entries.getAndMoveToFirst(documentId);
+    if(cached != null) hits++;
+    return cached;
+  }
+
+  /**
+   * Adds a value, evicting the least recently used ones as needed. Values
+   * larger than the whole cache are not stored.
+   */
+  private void put(long documentId, DocumentData value) {
+    long valueSize = estimateSize(value);
+    if(valueSize > maximumSize) return;
+    entries.putAndMoveToFirst(documentId, value);
+    entrySizes.put(documentId, valueSize);
+    size += valueSize;
+    evict();
+  }
+
+  /**
+   * Removes the least recently used values until the cache fits within its
+   * maximum size.
+   */
+  private void evict() {
+    while(size > maximumSize && !entries.isEmpty()) {
+      long documentId = entries.lastLongKey();
+      entries.removeLast();
+      size -= entrySizes.remove(documentId);
+      evictions++;
+    }
+  }
+
+  /**
+   * Removes all the cached values. Loads in progress complete normally, but
+   * their results are not cached.
+   */
+  public synchronized void clear() {
+    entries.clear();
+    entrySizes.clear();
+    size = 0;
+    generation++;
+  }
+
+  /**
+   * Changes the maximum size of the cache, evicting values if required.
+   * @param maximumSize the maximum estimated size (in bytes) of the cached
+   * values.
+   */
+  public synchronized void setMaximumSize(long maximumSize) {
+    this.maximumSize = maximumSize;
+    evict();
+  }
+
+  public synchronized long getMaximumSize() {
+    return maximumSize;
+  }
+
+  /**
+   * Gets the estimated size (in bytes) of the cached values.
+   * @return
+   */
+  public synchronized long getSize() {
+    return size;
+  }
+
+  /**
+   * Gets the number of cached values.
+   * @return
+   */
+  public synchronized int getEntryCount() {
+    return entries.size();
+  }
+
+  /**
+   * Gets the number of requests answered from the cache.
+   * @return
+   */
+  public synchronized long getHitCount() {
+    return hits;
+  }
+
+  /**
+   * Gets the number of requests for documents not in the cache. This
+   * includes the requests that waited for a load started by another thread
+   * (see {@link #getCoalescedLoadCount()}).
+   * @return
+   */
+  public synchronized long getMissCount() {
+    return misses;
+  }
+
+  /**
+   * Gets the number of requests for documents not in the cache that waited
+   * for another thread to load the document, instead of loading it again.
+   * @return
+   */
+  public synchronized long getCoalescedLoadCount() {
+    return coalescedLoads;
+  }
+
+  /**
+   * Gets the number of values removed to make space for new ones.
+   * @return
+   */
+  public synchronized long getEvictionCount() {
+    return evictions;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "Document cache: " + entries.size() + " documents, " + size +
+        " of " + maximumSize + " bytes; " + hits + " hits, " + misses +
+        " misses (" + coalescedLoads + " coalesced), " + evictions +
+        " evictions";
+  }
+
+  /**
+   * Estimates the memory used by a {@link DocumentData} value. Strings are
+   * counted as their characters plus a fixed overhead, and metadata values
+   * that are not strings as a fixed size. For documents whose tokens are
+   * stored as IDs, the token strings are only counted if they had already
+   * been looked up.
+   * @param document
+   * @return the estimated size, in bytes.
+   */
+  protected static long estimateSize(DocumentData document) {
+    long size = 64 + estimateSize(document.documentURI) +
+        estimateSize(document.documentTitle);
+    if(document.tokenIds != null) size += 16 + 4L * document.tokenIds.length;
+    size += estimateSize(document.tokens);
+    size += estimateSize(document.nonTokens);
+    if(document.metadata != null) {
+      for(Map.Entry<String, Serializable> aField :
+          document.metadata.entrySet()) {
+        size += 32 + estimateSize(aField.getKey());
+        Serializable value = aField.getValue();
+        if(value instanceof String) {
+          size += estimateSize((String)value);
+        } else if(value instanceof String[]) {
+          size += estimateSize((String[])value);
+        } else {
+          size += 64;
+        }
+      }
+    }
+    return size;
+  }
+
+  private static long estimateSize(String[] strings) {
+    if(strings == null) return 0;
+    long size = 16 + 8L * strings.length;
+    // identical strings (e.g. single spaces) are often shared
+    String previous = null;
+    for(String aString : strings) {
+      if(aString != previous) size += estimateSize(aString);
+      previous = aString;
+    }
+    return size;
+  }
+
+  private static long estimateSize(String string) {
+    return string == null ? 0 : 40 + 2L * string.length();
+  }
+}
@@ -0,0 +1,662 @@
+/*
+ *  DocumentDataCodec.java
+ *
+ *  Copyright (c) 2007-2026, The University of Sheffield.
+ *
+ *  This file is part of GATE Mímir (see http://gate.ac.uk/family/mimir.html),
+ *  and is free software, licenced under the GNU Lesser General Public License,
+ *  Version 3, June 2007 (also included with this distribution as file
+ *  LICENCE-LGPL3.html).
+ *
+ *  $Id$
+ */
+package gate.mimir.index;
+
+import it.unimi.dsi.fastutil.io.FastByteArrayOutputStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * <p>
+ * Binary encoding for {@link DocumentData} values, used by the
+ * {@link DocumentCollection} instead of Java serialisation, which is slow to
+ * decode and repeats the class descriptors for every document.
+ * </p>
+ * <p>
+ * An encoded document starts with the bytes {@link #MAGIC}, a version
+ * number and a set of flags, followed by:
+ * <ul>
+ *   <li>the URI and the title;</li>
+ *   <li>the tokens, then the non-tokens. Each starts with the number of
+ *   strings, and the end offset of each chunk of {@link #TEXT_CHUNK_SIZE}
+ *   strings (as fixed-size integers), so that the text around a hit can be
+ *   read without decoding the rest of the document (see
+ *   {@link #decodeText(byte[], int, int, int, int, DirectTermDictionary)});
+ *   </li>
+ *   <li>the metadata fields, each with a type tag. Strings, numbers, dates,
+ *   booleans and string arrays have their own encodings, and any other
+ *   values are stored Java-serialised.</li>
+ * </ul>
+ * Apart from the chunk offsets, all lengths and counts are variable-length
+ * integers, and all strings are UTF-8. Repeated strings (such as the spaces
+ * that make most of the non-tokens) are left to the compression of the
+ * collection files.
+ * </p>
+ * <p>
+ * When a token dictionary is supplied (see
+ * {@link #encode(DocumentData, DirectTermDictionary)}), the
+ * {@link #FLAG_TOKEN_IDS} flag is set, and the tokens are stored as their
+ * IDs in the dictionary (which are shared by all the documents in the
+ * collection). Such documents can only be decoded with the same dictionary,
+ * and their token strings are only looked up when requested.
+ * </p>
+ * <p>
+ * {@link #decode(byte[], int, int)} also accepts Java-serialised
+ * {@link DocumentData} values, as written by older versions.
+ * </p>
+ */
+public class DocumentDataCodec {
+
+  /**
+   * The bytes at the start of every encoded document. These can never start
+   * a Java serialisation stream.
+   */
+  protected static final byte[] MAGIC = new byte[] {'M', 'D'};
+
+  /**
+   * The current version of the encoding.
+   */
+  public static final int VERSION = 3;
+
+  /**
+   * Flag set for documents whose tokens are stored as IDs in a token
+   * dictionary.
+   */
+  public static final int FLAG_TOKEN_IDS = 1;
+
+  /**
+   * The number of tokens (or non-tokens) in each chunk of the text.
+   */
+  public static final int TEXT_CHUNK_SIZE = 64;
+
+  private static final int TAG_NULL = 0;
+
+  private static final int TAG_STRING = 1;
+
+  private static final int TAG_INTEGER = 2;
+
+  private static final int TAG_LONG = 3;
+
+  private static final int TAG_DOUBLE = 4;
+
+  private static final int TAG_FLOAT = 5;
+
+  private static final int TAG_BOOLEAN = 6;
+
+  private static final int TAG_DATE = 7;
+
+  private static final int TAG_STRING_ARRAY = 8;
+
+  private static final int TAG_SERIALISED = 9;
+
+  private DocumentDataCodec() {
+  }
+
+  /**
+   * Encodes a document.
+   * @param document
+   * @return the encoded bytes.
+   * @throws IOException if a metadata value cannot be serialised.
+   */
+  public static byte[] encode(DocumentData document) throws IOException {
+    return encode(document, null);
+  }
+
+  /**
+   * Encodes a document, storing its tokens as IDs in a token dictionary.
+   * Tokens not already in the dictionary are added to it, so this must only
+   * be called from the thread writing to the collection.
+   * @param document
+   * @param tokenDictionary the dictionary for the tokens, or
+   * <code>null</code> to store the token strings.
+   * @return the encoded bytes.
+   * @throws IOException if a metadata value cannot be serialised.
+   */
+  public static byte[] encode(DocumentData document,
+      DirectTermDictionary tokenDictionary) throws IOException {
+    FastByteArrayOutputStream out = new FastByteArrayOutputStream();
+    out.write(MAGIC);
+    writeVInt(out, VERSION);
+    writeVInt(out, tokenDictionary == null ? 0 : FLAG_TOKEN_IDS);
+    writeString(out, document.documentURI);
+    writeString(out, document.documentTitle);
+    writeText(out, document.getTokens(), tokenDictionary);
+    writeText(out, document.nonTokens, null);
+    // metadata
+    Map<String, Serializable> metadata = document.metadata;
+    writeVInt(out, metadata == null ? 0 : metadata.size() + 1);
+    if(metadata != null) {
+      for(Map.Entry<String, Serializable> aField : metadata.entrySet()) {
+        writeString(out, aField.getKey());
+        writeValue(out, aField.getValue());
+      }
+    }
+    out.trim();
+    return out.array;
+  }
+
+  /**
+   * Decodes a document encoded with {@link #encode(DocumentData)}, or
+   * serialised with an {@link ObjectOutputStream}.
+   * @param data the array holding the encoded document.
+   * @param offset the offset of the encoded document in the array.
+   * @param length the length of the encoded document.
+   * @return
+   * @throws IOException if the data is not valid, or stores the tokens as
+   * IDs.
+   */
+  public static DocumentData decode(byte[] data, int offset, int length)
+      throws IOException {
+    return decode(data, offset, length, null);
+  }
+
+  /**
+   * Decodes a document encoded with
+   * {@link #encode(DocumentData, DirectTermDictionary)}, or serialised with
+   * an {@link ObjectOutputStream}. The returned value keeps a reference to
+   * the token dictionary, and only looks up the token strings when they are
+   * requested.
+   * @param data the array holding the encoded document.
+   * @param offset the offset of the encoded document in the array.
+   * @param length the length of the encoded document.
+   * @param tokenDictionary the dictionary used when the document was
+   * encoded, or <code>null</code> if the collection has none.
+   * @return
+   * @throws IOException if the data is not valid.
+   */
+  public static DocumentData decode(byte[] data, int offset, int length,
+      DirectTermDictionary tokenDictionary) throws IOException {
+    if(!hasMagic(data, offset, length)) {
+      return deserialise(data, offset, length);
+    }
+    Reader in = new Reader(data, offset + MAGIC.length, offset + length);
+    int version = in.readVInt();
+    if(version != VERSION) {
+      throw new IOException("Unsupported document data version " + version);
+    }
+    int flags = in.readVInt();
+    String uri = in.readString();
+    String title = in.readString();
+    DocumentData document;
+    if((flags & FLAG_TOKEN_IDS) != 0) {
+      checkDictionary(tokenDictionary);
+      int[] tokenIds = in.readTokenIdText(tokenDictionary.size64());
+      document = new DocumentData(uri, title, null, in.readText());
+      if(tokenIds != null) {
+        document.tokenIds = tokenIds;
+        document.tokenDictionary = tokenDictionary;
+      }
+    } else {
+      String[] tokens = in.readText();
+      document = new DocumentData(uri, title, tokens, in.readText());
+    }
+    int fields = in.readVInt() - 1;
+    if(fields >= 0) {
+      document.metadata = new HashMap<String, Serializable>();
+      for(int i = 0; i < fields; i++) {
+        String name = in.readString();
+        document.metadata.put(name, in.readValue());
+      }
+    }
+    return document;
+  }
+
+  /**
+   * Decodes part of the text of a document, as returned by
+   * {@link DocumentData#getText(int, int)}. For documents encoded with the
+   * current version, only the chunks of tokens and non-tokens holding the
+   * requested positions are decoded (and only the token strings in the
+   * requested range are looked up in the token dictionary). The metadata is
+   * not read at all. Java-serialised documents are decoded completely.
+   * @param data the array holding the encoded document.
+   * @param offset the offset of the encoded document in the array.
+   * @param length the length of the encoded document.
+   * @param termPosition the position of the first token required.
+   * @param textLength the number of tokens required, or a negative value
+   * for all the tokens up to the end of the document.
+   * @param tokenDictionary the dictionary used when the document was
+   * encoded, or <code>null</code> if the collection has none.
+   * @return an array of two string arrays: the tokens, and the spaces
+   * following them.
+   * @throws IOException if the data is not valid.
+   */
+  public static String[][] decodeText(byte[] data, int offset, int length,
+      int termPosition, int textLength, DirectTermDictionary tokenDictionary)
+      throws IOException {
+    if(!hasMagic(data, offset, length)) {
+      return deserialise(data, offset, length).getText(termPosition,
+          textLength);
+    }
+    Reader in = new Reader(data, offset + MAGIC.length, offset + length);
+    int version = in.readVInt();
+    if(version != VERSION) {
+      throw new IOException("Unsupported document data version " + version);
+    }
+    boolean tokenIds = (in.readVInt() & FLAG_TOKEN_IDS) != 0;
+    if(tokenIds) checkDictionary(tokenDictionary);
+    // URI and title
+    in.skipString();
+    in.skipString();
+    if(textLength < 0) {
+      // up to the end of the tokens
+      int tokenCount = in.peekVInt() - 1;
+      textLength = Math.max(tokenCount - termPosition, 0);
+    }
+    String[][] result = new String[2][];
+    result[0] = new String[textLength];
+    result[1] = new String[textLength];
+    in.readTextWindow(termPosition, result[0],
+        tokenIds ? tokenDictionary : null);
+    in.readTextWindow(termPosition, result[1], null);
+    return result;
+  }
+
+  private static boolean hasMagic(byte[] data, int offset, int length) {
+    return length >= MAGIC.length && data[offset] == MAGIC[0] &&
+        data[offset + 1] == MAGIC[1];
+  }
+
+  private static void checkDictionary(DirectTermDictionary tokenDictionary)
+      throws IOException {
+    if(tokenDictionary == null) throw new IOException(
+        "The document data refers to a token dictionary, but none is " +
+        "available");
+  }
+
+  /**
+   * Reads a Java-serialised document.
+   */
+  private static DocumentData deserialise(byte[] data, int offset,
+      int length) throws IOException {
+    DocumentCollection.CustomObjectInputStream ois =
+        new DocumentCollection.CustomObjectInputStream(
+            new ByteArrayInputStream(data, offset, length));
+    try {
+      return (DocumentData)ois.readObject();
+    } catch(ClassNotFoundException e) {
+      throw new IOException("Invalid document data", e);
+    } catch(ClassCastException e) {
+      throw new IOException("Invalid document data", e);
+    } finally {
+      ois.close();
+    }
+  }
+
+  /**
+   * Writes the tokens or the non-tokens of a document: the number of
+   * strings plus one (0 for <code>null</code>), then the end offset of each
+   * chunk of {@link #TEXT_CHUNK_SIZE} strings, as 4-byte integers relative to
+   * the end of the offsets, and then the strings. If a token dictionary is
+   * given, the strings are written as their IDs plus one (0 for
+   * <code>null</code>).
+   */
+  private static void writeText(FastByteArrayOutputStream out,
+      String[] strings, DirectTermDictionary tokenDictionary)
+      throws IOException {
+    if(strings == null) {
+      writeVInt(out, 0);
+      return;
+    }
+    writeVInt(out, strings.length + 1);
+    FastByteArrayOutputStream text = new FastByteArrayOutputStream();
+    int[] chunkEnds = new int[chunkCount(strings.length)];
+    for(int i = 0; i < strings.length; i++) {
+      String aString = strings[i];
+      if(tokenDictionary != null) {
+        writeVLong(text, aString == null ? 0 : tokenDictionary.addTerm(aString) + 1);
+      } else {
+        writeString(text, aString);
+      }
+      if(i % TEXT_CHUNK_SIZE == TEXT_CHUNK_SIZE - 1 || i == strings.length - 1) {
+        chunkEnds[i / TEXT_CHUNK_SIZE] = text.length;
+      }
+    }
+    for(int anEnd : chunkEnds) writeInt(out, anEnd);
+    out.write(text.array, 0, text.length);
+  }
+
+  private static int chunkCount(int stringCount) {
+    return (stringCount + TEXT_CHUNK_SIZE - 1) / TEXT_CHUNK_SIZE;
+  }
+
+  private static void writeValue(FastByteArrayOutputStream out,
+      Serializable value) throws IOException {
+    if(value == null) {
+      out.write(TAG_NULL);
+    } else if(value instanceof String) {
+      out.write(TAG_STRING);
+      writeString(out, (String)value);
+    } else if(value instanceof Integer) {
+      out.write(TAG_INTEGER);
+      writeVLong(out, zigZag((Integer)value));
+    } else if(value instanceof Long) {
+      out.write(TAG_LONG);
+      writeVLong(out, zigZag((Long)value));
+    } else if(value instanceof Double) {
+      out.write(TAG_DOUBLE);
+      writeLong(out, Double.doubleToRawLongBits((Double)value));
+    } else if(value instanceof Float) {
+      out.write(TAG_FLOAT);
+      writeInt(out, Float.floatToRawIntBits((Float)value));
+    } else if(value instanceof Boolean) {
+      out.write(TAG_BOOLEAN);
+      out.write((Boolean)value ? 1 : 0);
+    } else if(value.getClass() == Date.class) {
+      out.write(TAG_DATE);
+      writeVLong(out, zigZag(((Date)value).getTime()));
+    } else if(value instanceof String[]) {
+      out.write(TAG_STRING_ARRAY);
+      String[] strings = (String[])value;
+      writeVInt(out, strings.length);
+      for(String aString : strings) writeString(out, aString);
+    } else {
+      out.write(TAG_SERIALISED);
+      FastByteArrayOutputStream bytes = new FastByteArrayOutputStream();
+      ObjectOutputStream oos = new ObjectOutputStream(bytes);
+      oos.writeObject(value);
+      oos.close();
+      writeVInt(out, bytes.length);
+      out.write(bytes.array, 0, bytes.length);
+    }
+  }
+
+  /**
+   * Writes a string as the length of its UTF-8 form plus one (0 for
+   * <code>null</code>), followed by the UTF-8 bytes.
+   */
+  private static void writeString(FastByteArrayOutputStream out,
+      String value) throws IOException {
+    if(value == null) {
+      writeVInt(out, 0);
+      return;
+    }
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    writeVInt(out, bytes.length + 1);
+    out.write(bytes, 0, bytes.length);
+  }
+
+  private static long zigZag(long value) {
+    return (value << 1) ^ (value >> 63);
+  }
+
+  private static long unZigZag(long value) {
+    return (value >>> 1) ^ -(value & 1);
+  }
+
+  private static void writeVInt(FastByteArrayOutputStream out, int value)
+      throws IOException {
+    writeVLong(out, value & 0xFFFFFFFFL);
+  }
+
+  private static void writeVLong(FastByteArrayOutputStream out, long value)
+      throws IOException {
+    while((value & ~0x7FL) != 0) {
+      out.write((int)((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+    out.write((int)value);
+  }
+
+  private static void writeLong(FastByteArrayOutputStream out, long value)
+      throws IOException {
+    writeInt(out, (int)(value >>> 32));
+    writeInt(out, (int)value);
+  }
+
+  private static void writeInt(FastByteArrayOutputStream out, int value)
+      throws IOException {
+    for(int shift = 24; shift >= 0; shift -= 8) {
+      out.write(value >>> shift);
+    }
+  }
+
+  /**
+   * Reads the encoded values from an array.
+   */
+  private static class Reader {
+    private final byte[] data;
+
+    private int position;
+
+    private final int end;
+
+    Reader(byte[] data, int position, int end) {
+      this.data = data;
+      this.position = position;
+      this.end = end;
+    }
+
+    private int readByte() throws IOException {
+      if(position >= end) throw new IOException(
+          "Unexpected end of document data");
+      return data[position++] & 0xFF;
+    }
+
+    long readVLong() throws IOException {
+      long value = 0;
+      for(int shift = 0; shift < 64; shift += 7) {
+        int b = readByte();
+        value |= (long)(b & 0x7F) << shift;
+        if((b & 0x80) == 0) return value;
+      }
+      throw new IOException("Invalid variable-length integer");
+    }
+
+    int readVInt() throws IOException {
+      long value = readVLong();
+      if(value > Integer.MAX_VALUE) {
+        throw new IOException("Invalid length or count: " + value);
+      }
+      return (int)value;
+    }
+
+    /**
+     * Reads a variable-length integer without moving past it.
+     */
+    int peekVInt() throws IOException {
+      int start = position;
+      int value = readVInt();
+      position = start;
+      return value;
+    }
+
+    void skip(int bytes) throws IOException {
+      if(bytes < 0 || bytes > end - position) throw new IOException(
+          "Unexpected end of document data");
+      position += bytes;
+    }
+
+    /**
+     * Reads a 4-byte integer at a given position, without moving.
+     */
+    int intAt(int at) throws IOException {
+      int start = position;
+      position = at;
+      int value = readInt();
+      position = start;
+      return value;
+    }
+
+    long readLong() throws IOException {
+      return ((long)readInt() << 32) | (readInt() & 0xFFFFFFFFL);
+    }
+
+    int readInt() throws IOException {
+      int value = 0;
+      for(int i = 0; i < 4; i++) value = (value << 8) | readByte();
+      return value;
+    }
+
+    String readString() throws IOException {
+      int length = readVInt() - 1;
+      if(length < 0) return null;
+      if(length > end - position) throw new IOException(
+          "Unexpected end of document data");
+      String value = new String(data, position, length,
+          StandardCharsets.UTF_8);
+      position += length;
+      return value;
+    }
+
+    void skipString() throws IOException {
+      int length = readVInt() - 1;
+      if(length > 0) skip(length);
+    }
+
+    /**
+     * Reads the number of strings in a text section (or -1 if the array was
+     * <code>null</code>), and skips the chunk offsets.
+     */
+    int readTextHeader() throws IOException {
+      int length = readVInt() - 1;
+      if(length > 0) skip(4 * chunkCount(length));
+      return length;
+    }
+
+    /**
+     * Reads a whole text section of strings.
+     */
+    String[] readText() throws IOException {
+      int length = readTextHeader();
+      if(length < 0) return null;
+      if(length > end - position) throw new IOException(
+          "Unexpected end of document data");
+      String[] strings = new String[length];
+      for(int i = 0; i < length; i++) strings[i] = readString();
+      return strings;
+    }
+
+    /**
+     * Reads a whole text section of token IDs. <code>null</code> tokens are
+     * returned as -1.
+     */
+    int[] readTokenIdText(long dictionarySize) throws IOException {
+      int length = readTextHeader();
+      if(length < 0) return null;
+      if(length > end - position) throw new IOException(
+          "Unexpected end of document data");
+      int[] tokenIds = new int[length];
+      for(int i = 0; i < length; i++) {
+        tokenIds[i] = readTokenId(dictionarySize);
+      }
+      return tokenIds;
+    }
+
+    int readTokenId(long dictionarySize) throws IOException {
+      long tokenId = readVLong() - 1;
+      if(tokenId >= dictionarySize) throw new IOException("Token ID " +
+          tokenId + " is not in the token dictionary, which has " +
+          dictionarySize + " terms");
+      return (int)tokenId;
+    }
+
+    /**
+     * Reads the strings for a range of positions from a text section, only
+     * decoding the chunks that contain them, and moves to the end of the
+     * section.
+     * @param from the position of the first string required (may be
+     * negative).
+     * @param window the array to fill with the strings from
+     * <code>from</code> onwards. Positions outside the section are left
+     * <code>null</code>.
+     * @param tokenDictionary the dictionary for sections holding token IDs,
+     * or <code>null</code>.
+     */
+    void readTextWindow(int from, String[] window,
+        DirectTermDictionary tokenDictionary) throws IOException {
+      int length = readVInt() - 1;
+      if(length <= 0) return;
+      int chunks = chunkCount(length);
+      int table = position;
+      skip(4 * chunks);
+      int textStart = position;
+      int textEnd = textStart + intAt(table + 4 * (chunks - 1));
+      if(textEnd < textStart || textEnd > end) throw new IOException(
+          "Invalid text chunk offsets");
+      int first = Math.max(from, 0);
+      int last = (int)Math.min((long)from + window.length, length);
+      if(first < last) {
+        int chunk = first / TEXT_CHUNK_SIZE;
+        position = textStart +
+            (chunk == 0 ? 0 : intAt(table + 4 * (chunk - 1)));
+        if(position < textStart || position > textEnd) throw new IOException(
+            "Invalid text chunk offsets");
+        long dictionarySize = tokenDictionary == null ? 0 :
+            tokenDictionary.size64();
+        for(int i = chunk * TEXT_CHUNK_SIZE; i < last; i++) {
+          if(tokenDictionary != null) {
+            int tokenId = readTokenId(dictionarySize);
+            if(i >= first && tokenId >= 0) {
+              window[i - from] = tokenDictionary.get(tokenId);
+            }
+          } else if(i >= first) {
+            window[i - from] = readString();
+          } else {
+            skipString();
+          }
+        }
+      }
+      position = textEnd;
+    }
+
+    Serializable readValue() throws IOException {
+      int tag = readByte();
+      switch(tag) {
+        case TAG_NULL:
+          return null;
+        case TAG_STRING:
+          return readString();
+        case TAG_INTEGER:
+          return (int)unZigZag(readVLong());
+        case TAG_LONG:
+          return unZigZag(readVLong());
+        case TAG_DOUBLE:
+          return Double.longBitsToDouble(readLong());
+        case TAG_FLOAT:
+          return Float.intBitsToFloat(readInt());
+        case TAG_BOOLEAN:
+          return readByte() != 0;
+        case TAG_DATE:
+          return new Date(unZigZag(readVLong()));
+        case TAG_STRING_ARRAY:
+          String[] strings = new String[readVInt()];
+          for(int i = 0; i < strings.length; i++) strings[i] = readString();
+          return strings;
+        case TAG_SERIALISED:
+          int length = readVInt();
+          if(length > end - position) throw new IOException(
+              "Unexpected end of document data");
+          DocumentCollection.CustomObjectInputStream ois =
+              new DocumentCollection.CustomObjectInputStream(
+                  new ByteArrayInputStream(data, position, length));
+          position += length;
+          try {
+            return (Serializable)ois.readObject();
+          } catch(ClassNotFoundException e) {
+            throw new IOException("Invalid metadata value", e);
+          } finally {
+            ois.close();
+          }
+        default:
+          throw new IOException("Unknown metadata type " + tag);
+      }
+    }
+  }
+}
@@ -0,0 +1,474 @@
+/*
+ *  DocumentQueueLog.java
+ *
+ *  Copyright (c) 2007-2026, The University of Sheffield.
+ *
+ *  This file is part of GATE Mímir (see http://gate.ac.uk/family/mimir.html),
+ *  and is free software, licenced under the GNU Lesser General Public License,
+ *  Version 3, June 2007 (also included with this distribution as file
+ *  LICENCE-LGPL3.html).
+ *
+ *  $Id$
+ */
+package gate.mimir.index;
+
+import gate.Document;
+import gate.Gate;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * A write-ahead log of the documents queued for indexing in a
+ * {@link gate.mimir.MimirIndex}. Each document is appended to the log (in
+ * serialised form) before it is handed to the sub-indexes, so that the
+ * documents that had not yet been written to disk when the process stopped
+ * can be indexed again when the index is re-opened.
+ * </p>
+ * <p>
+ * Documents are identified by the ID they get in the index, which is the
+ * same as their position in the log. The log is split into segment files,
+ * each named after the ID of the first document it contains. Appends are
+ * buffered, and only forced to disk when {@link #sync()} is called, so that
+ * many documents share the cost of each <tt>fsync</tt>. Whole segments are
+ * deleted once all the documents they contain have been written to disk by
+ * all the sub-indexes (see {@link #release(long)}).
+ * </p>
+ * <p>
+ * Each record holds the length of the serialised document, a CRC32 checksum,
+ * and the serialised data. A record only partially written when the process
+ * stopped is detected by its checksum, and discarded when the log is opened.
+ * </p>
+ */
+public class DocumentQueueLog {
+
+  /**
+   * Handler for the documents read when replaying the log.
+   */
+  public static interface DocumentHandler {
+    /**
+     * Called for each document read from the log, in order.
+     * @param documentId the ID of the document.
+     * @param document the document: either a GATE {@link Document}, or a
+     * {@link PretokenisedDocument}.
+     */
+    public void handleDocument(long documentId, Object document)
+        throws IOException, InterruptedException;
+  }
+
+  /**
+   * {@link ObjectInputStream} resolving classes through the GATE class
+   * loader, so that documents using classes from GATE plugins (e.g. as
+   * feature values) can be read.
+   */
+  protected static class GateObjectInputStream extends ObjectInputStream {
+    public GateObjectInputStream(InputStream in) throws IOException {
+      super(in);
+    }
+
+    @Override
+    protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException,
+        ClassNotFoundException {
+      try {
+        return super.resolveClass(desc);
+      } catch(ClassNotFoundException e) {
+        return Class.forName(desc.getName(), false, Gate.getClassLoader());
+      }
+    }
+  }
+
+  /**
+   * The prefix for the names of the segment files.
+   */
+  public static final String SEGMENT_FILE_PREFIX = "segment-";
+
+  /**
+   * The extension for the names of the segment files.
+   */
+  public static final String SEGMENT_FILE_EXTENSION = ".log";
+
+  /**
+   * The size (in bytes) after which a new segment is started.
+   */
+  public static final long SEGMENT_SIZE = 64 * 1024 * 1024;
+
+  /**
+   * How often (in milliseconds) the log should be forced to disk.
+   */
+  public static final int DEFAULT_SYNC_INTERVAL = 1000;
+
+  /**
+   * The size of the header at the start of each record: the length of the
+   * data (int) and its checksum (long).
+   */
+  private static final int RECORD_HEADER_SIZE = 4 + 8;
+
+  private static final FilenameFilter SEGMENT_FILENAME_FILTER =
+      new FilenameFilter() {
+    @Override
+    public boolean accept(File dir, String name) {
+      return name.startsWith(SEGMENT_FILE_PREFIX) &&
+          name.endsWith(SEGMENT_FILE_EXTENSION);
+    }
+  };
+
+  private static final Logger logger = LoggerFactory.getLogger(
+      DocumentQueueLog.class);
+
+  /**
+   * The directory containing the segment files.
+   */
+  protected final File directory;
+
+  /**
+   * The segment files, keyed by the ID of their first document.
+   */
+  protected final TreeMap<Long, File> segments = new TreeMap<Long, File>();
+
+  /**
+   * The ID for the next document to be appended.
+   */
+  protected long nextDocumentId;
+
+  /**
+   * The stream for the segment currently being written, or <code>null</code>
+   * if a new segment needs to be started at the next append.
+   */
+  protected FileOutputStream segmentStream;
+
+  protected DataOutputStream segmentOutput;
+
+  /**
+   * The number of bytes in the current segment.
+   */
+  protected long segmentLength;
+
+  /**
+   * Scratch buffer used for serialising the documents.
+   */
+  private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+  private final CRC32 crc = new CRC32();
+
+  /**
+   * Opens (or creates) the log stored in a given directory. Any incomplete
+   * record at the end of the log is discarded.
+   * @param directory the directory holding the log segments.
+   * @param nextDocumentId the ID of the next document to be indexed, used if
+   * the log is empty.
+   * @throws IOException
+   */
+  public DocumentQueueLog(File directory, long nextDocumentId)
+      throws IOException {
+    this.directory = directory;
+    if(!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Could not create directory " +
+          directory.getAbsolutePath());
+    }
+    for(File aFile : directory.listFiles(SEGMENT_FILENAME_FILTER)) {
+      String name = aFile.getName();
+      try {
+        segments.put(Long.parseLong(name.substring(SEGMENT_FILE_PREFIX.length(),
+            name.length() - SEGMENT_FILE_EXTENSION.length())), aFile);
+      } catch(NumberFormatException e) {
+        logger.warn("Ignoring unexpected file " + aFile.getAbsolutePath());
+      }
+    }
+    if(segments.isEmpty()) {
+      this.nextDocumentId = nextDocumentId;
+    } else {
+      // find the end of the last segment
+      Map.Entry<Long, File> last = segments.lastEntry();
+      long documents = 0;
+      long validLength = 0;
+      long fileLength = last.getValue().length();
+      DataInputStream input = new DataInputStream(new BufferedInputStream(
+          new FileInputStream(last.getValue())));
+      try {
+        byte[] data = new byte[0];
+        while(true) {
+          int length;
+          long checksum;
+          try {
+            length = input.readInt();
+            checksum = input.readLong();
+            // a length that does not fit in the rest of the file can only 
+            // come from a partially written header: don't try to allocate it
+            if(length < 0 || 
+               length > fileLength - validLength - RECORD_HEADER_SIZE) break;
+            if(data.length < length) data = new byte[length];
+            input.readFully(data, 0, length);
+          } catch(EOFException e) {
+            break;
+          }
+          crc.reset();
+          crc.update(data, 0, length);
+          if(crc.getValue() != checksum) break;
+          documents++;
+          validLength += RECORD_HEADER_SIZE + length;
+        }
+      } finally {
+        input.close();
+      }
+      if(validLength < last.getValue().length()) {
+        logger.warn("Discarding incomplete record at the end of " +
+            last.getValue().getAbsolutePath());
+        FileOutputStream fos = new FileOutputStream(last.getValue(), true);
+        try {
+          fos.getChannel().truncate(validLength);
+        } finally {
+          fos.close();
+        }
+      }
+      this.nextDocumentId = last.getKey() + documents;
+      // continue appending to the last segment
+      segmentStream = new FileOutputStream(last.getValue(), true);
+      segmentOutput = new DataOutputStream(new BufferedOutputStream(
+          segmentStream, 64 * 1024));
+      segmentLength = validLength;
+    }
+  }
+
+  /**
+   * Gets the ID of the first document still available in the log.
+   * @return
+   */
+  public synchronized long getFirstDocumentId() {
+    return segments.isEmpty() ? nextDocumentId : segments.firstKey();
+  }
+
+  /**
+   * Gets the ID of the next document to be appended to the log.
+   * @return
+   */
+  public synchronized long getNextDocumentId() {
+    return nextDocumentId;
+  }
+
+  /**
+   * Appends a document to the log. The data is buffered, and may not be
+   * safely on disk until the next call to {@link #sync()}.
+   * @param document the document to be logged: either a GATE 
+   * {@link Document}, or a {@link PretokenisedDocument}.
+   * @return the ID of the logged document.
+   * @throws IOException
+   */
+  public synchronized long append(Object document) throws IOException {
+    if(segmentOutput == null || segmentLength >= SEGMENT_SIZE) {
+      startSegment();
+    }
+    buffer.reset();
+    ObjectOutputStream oos = new ObjectOutputStream(buffer);
+    oos.writeObject(document);
+    oos.close();
+    crc.reset();
+    crc.update(buffer.toByteArray(), 0, buffer.size());
+    segmentOutput.writeInt(buffer.size());
+    segmentOutput.writeLong(crc.getValue());
+    buffer.writeTo(segmentOutput);
+    segmentLength += RECORD_HEADER_SIZE + buffer.size();
+    return nextDocumentId++;
+  }
+
+  /**
+   * Closes the current segment (after forcing it to disk), and starts a new
+   * one.
+   * @throws IOException
+   */
+  private void startSegment() throws IOException {
+    closeSegment();
+    File segmentFile = new File(directory, SEGMENT_FILE_PREFIX +
+        nextDocumentId + SEGMENT_FILE_EXTENSION);
+    segmentStream = new FileOutputStream(segmentFile);
+    segmentOutput = new DataOutputStream(new BufferedOutputStream(
+        segmentStream, 64 * 1024));
+    segmentLength = 0;
+    segments.put(nextDocumentId, segmentFile);
+  }
+
+  private void closeSegment() throws IOException {
+    if(segmentOutput != null) {
+      segmentOutput.flush();
+      segmentStream.getChannel().force(false);
+      segmentOutput.close();
+      segmentOutput = null;
+      segmentStream = null;
+    }
+  }
+
+  /**
+   * Forces all the documents appended so far to disk.
+   * @throws IOException
+   */
+  public void sync() throws IOException {
+    FileChannel channel;
+    synchronized(this) {
+      if(segmentOutput == null) return;
+      segmentOutput.flush();
+      channel = segmentStream.getChannel();
+    }
+    // appends can carry on while we wait for the disk
+    try {
+      channel.force(false);
+    } catch(ClosedChannelException e) {
+      // the segment was closed in the mean time, which also forced it
+    }
+  }
+
+  /**
+   * Notifies this log that all the documents with IDs smaller than the given
+   * value have been safely written to disk by all the sub-indexes, so they
+   * will never need replaying. All the segments containing only such
+   * documents are deleted.
+   * @param durableDocuments the number of documents safely on disk.
+   * @throws IOException
+   */
+  public synchronized void release(long durableDocuments) throws IOException {
+    while(!segments.isEmpty()) {
+      Map.Entry<Long, File> first = segments.firstEntry();
+      Long nextSegment = segments.higherKey(first.getKey());
+      long segmentEnd = nextSegment != null ? nextSegment : nextDocumentId;
+      if(segmentEnd > durableDocuments) break;
+      if(nextSegment == null) {
+        // this is the current segment
+        closeSegment();
+      }
+      if(!first.getValue().delete()) {
+        logger.warn("Could not delete log segment " +
+            first.getValue().getAbsolutePath());
+        break;
+      }
+      segments.remove(first.getKey());
+    }
+  }
+
+  /**
+   * Deletes all the segments, and restarts the log from a given document ID.
+   * @param nextDocumentId the ID of the next document to be appended.
+   * @throws IOException
+   */
+  public synchronized void reset(long nextDocumentId) throws IOException {
+    release(this.nextDocumentId);
+    if(!segments.isEmpty()) {
+      throw new IOException("Could not delete the queued documents log at " +
+          directory.getAbsolutePath());
+    }
+    this.nextDocumentId = nextDocumentId;
+  }
+
+  /**
+   * Reads back the documents in the log, starting from a given document ID
+   * and up to the end of the log.
+   * @param fromDocumentId the ID of the first document to be read.
+   * @param handler the handler receiving the documents.
+   * @throws IOException if the log does not contain the requested document,
+   * or the data cannot be read.
+   * @throws InterruptedException
+   */
+  public void replay(long fromDocumentId, DocumentHandler handler)
+      throws IOException, InterruptedException {
+    long endDocumentId;
+    TreeMap<Long, File> segmentsToRead;
+    synchronized(this) {
+      if(segmentOutput != null) segmentOutput.flush();
+      endDocumentId = nextDocumentId;
+      Long firstSegment = segments.floorKey(fromDocumentId);
+      if(fromDocumentId < endDocumentId && firstSegment == null) {
+        throw new IOException("Document " + fromDocumentId +
+            " is not available in the queued documents log.");
+      }
+      segmentsToRead = new TreeMap<Long, File>(segments.tailMap(
+          firstSegment != null ? firstSegment : fromDocumentId));
+    }
+    long documentId = -1;
+    for(Map.Entry<Long, File> aSegment : segmentsToRead.entrySet()) {
+      if(documentId >= 0 && documentId != aSegment.getKey()) {
+        throw new IOException("Queued documents log segment " +
+            aSegment.getValue().getAbsolutePath() + " does not start with " +
+            "the expected document " + documentId + ".");
+      }
+      documentId = aSegment.getKey();
+      long segmentSize = aSegment.getValue().length();
+      long offset = 0;
+      DataInputStream input = new DataInputStream(new BufferedInputStream(
+          new FileInputStream(aSegment.getValue())));
+      try {
+        byte[] data = new byte[0];
+        while(documentId < endDocumentId) {
+          int length;
+          try {
+            length = input.readInt();
+          } catch(EOFException e) {
+            // end of segment
+            break;
+          }
+          long checksum = input.readLong();
+          offset += RECORD_HEADER_SIZE;
+          if(length < 0 || length > segmentSize - offset) {
+            throw new IOException("Corrupted record for document " +
+                documentId + " in " + aSegment.getValue().getAbsolutePath());
+          }
+          offset += length;
+          if(data.length < length) data = new byte[length];
+          input.readFully(data, 0, length);
+          if(documentId >= fromDocumentId) {
+            CRC32 checker = new CRC32();
+            checker.update(data, 0, length);
+            if(checker.getValue() != checksum) {
+              throw new IOException("Corrupted record for document " +
+                  documentId + " in " + aSegment.getValue().getAbsolutePath());
+            }
+            ObjectInputStream ois = new GateObjectInputStream(
+                new ByteArrayInputStream(data, 0, length));
+            try {
+              handler.handleDocument(documentId, ois.readObject());
+            } catch(ClassNotFoundException e) {
+              throw new IOException("Could not read document " + documentId +
+                  " from the queued documents log.", e);
+            } finally {
+              ois.close();
+            }
+          }
+          documentId++;
+        }
+      } finally {
+        input.close();
+      }
+    }
+    if(fromDocumentId < endDocumentId && documentId < endDocumentId) {
+      throw new IOException("The queued documents log ended at document " +
+          documentId + ", before the expected " + endDocumentId + ".");
+    }
+  }
+
+  /**
+   * Forces any buffered data to disk, and closes the log.
+   * @throws IOException
+   */
+  public synchronized void close() throws IOException {
+    closeSegment();
+  }
+}
@@ -0,0 +1,265 @@
+/*
+ *  DocumentRingBuffer.java
+ *
+ *  Copyright (c) 2007-2026, The University of Sheffield.
+ *
+ *  This file is part of GATE Mímir (see http://gate.ac.uk/family/mimir.html),
+ *  and is free software, licenced under the GNU Lesser General Public License,
+ *  Version 3, June 2007 (also included with this distribution as file
+ *  LICENCE-LGPL3.html).
+ *
+ *  $Id$
+ */
+package gate.mimir.index;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * <p>
+ * A bounded ring buffer used to fan out the documents queued for indexing to
+ * all the sub-indexes of a {@link gate.mimir.MimirIndex}. Every document is
+ * published once, and read by each of the {@link Consumer}s, in publication
+ * order.
+ * </p>
+ * <p>
+ * Each consumer tracks its progress with two counters: the number of
+ * documents it has taken, which is only used by its own thread, and the
+ * number it has released (i.e. finished with). A consumer can be made to
+ * depend on other consumers, in which case it only sees the documents that
+ * all of those have released; this is how the index finds out which documents
+ * have been indexed by all its sub-indexes. Slots are re-used once the
+ * slowest of the consumers that nothing else depends on has released them,
+ * so ordering is guaranteed by construction.
+ * </p>
+ * <p>
+ * Waiting threads spin briefly, and then block. Publishing a document only
+ * involves a lock on the producer side (to make {@link #put(GATEDocument)}
+ * safe when called from several threads), and waking up sleeping threads, if
+ * there are any.
+ * </p>
+ */
+public class DocumentRingBuffer {
+
+  /**
+   * A reader of the documents published to the buffer. Each consumer must be
+   * used from a single thread.
+   */
+  public class Consumer {
+    /**
+     * The consumers whose released documents this consumer reads. If empty,
+     * this consumer reads the published documents.
+     */
+    private final Consumer[] dependencies;
+
+    /**
+     * The number of documents taken so far. Only accessed by the consumer
+     * thread.
+     */
+    private long taken = 0;
+
+    /**
+     * The number of documents known to be available (cached, to avoid
+     * reading the shared counters for every document). Only accessed by the
+     * consumer thread.
+     */
+    private long available = 0;
+
+    /**
+     * The number of documents released so far.
+     */
+    private volatile long released = 0;
+
+    private Consumer(Consumer[] dependencies) {
+      this.dependencies = dependencies;
+    }
+
+    /**
+     * Gets the next document, waiting for one to become available if
+     * necessary.
+     * @return
+     * @throws InterruptedException
+     */
+    public GATEDocument take() throws InterruptedException {
+      if(available <= taken) {
+        available = await(dependencies, taken + 1);
+      }
+      return slots[(int)(taken++ & mask)];
+    }
+
+    /**
+     * Notifies the buffer that this consumer has finished with the oldest
+     * document it has taken, but not yet released. Documents must be
+     * released in the order they were taken.
+     */
+    public void release() {
+      if(released >= taken) {
+        throw new IllegalStateException("No documents to release!");
+      }
+      // there is only one writer for this value
+      released = released + 1;
+      signal();
+    }
+
+    /**
+     * Gets the number of documents taken but not yet released.
+     * @return
+     */
+    public long getPendingCount() {
+      return taken - released;
+    }
+
+    /**
+     * Gets the buffer this consumer reads from.
+     * @return
+     */
+    public DocumentRingBuffer getRingBuffer() {
+      return DocumentRingBuffer.this;
+    }
+  }
+
+  /**
+   * The number of times a waiting thread re-checks its condition before
+   * blocking.
+   */
+  private static final int SPIN_TRIES = 100;
+
+  private final GATEDocument[] slots;
+
+  private final long mask;
+
+  /**
+   * The number of documents published so far.
+   */
+  private volatile long published = 0;
+
+  /**
+   * The consumers that no other consumer depends on. The producer needs to
+   * wait for the slowest of these before re-using a slot.
+   */
+  private volatile Consumer[] gatingConsumers = new Consumer[0];
+
+  /**
+   * Lock used by the threads that need to block.
+   */
+  private final Object waitLock = new Object();
+
+  /**
+   * The number of threads currently blocked (or about to block) on
+   * {@link #waitLock}.
+   */
+  private volatile int waiters = 0;
+
+  /**
+   * Creates a new ring buffer.
+   * @param capacity the minimum number of slots. The actual capacity is the
+   * smallest power of two not less than this value.
+   */
+  public DocumentRingBuffer(int capacity) {
+    int size = 1;
+    while(size < capacity) size <<= 1;
+    slots = new GATEDocument[size];
+    mask = size - 1;
+  }
+
+  /**
+   * Creates a new consumer. All consumers must be created before the first
+   * document is published.
+   * @param dependencies the consumers that must have released a document
+   * before the new consumer can take it. If none are given, the new consumer
+   * reads the documents as they are published.
+   * @return
+   */
+  public synchronized Consumer newConsumer(Consumer... dependencies) {
+    if(published > 0) {
+      throw new IllegalStateException(
+          "Consumers must be created before any documents are published!");
+    }
+    Consumer consumer = new Consumer(dependencies.clone());
+    List<Consumer> gating = new ArrayList<Consumer>(
+        Arrays.asList(gatingConsumers));
+    gating.removeAll(Arrays.asList(dependencies));
+    gating.add(consumer);
+    gatingConsumers = gating.toArray(new Consumer[gating.size()]);
+    return consumer;
+  }
+
+  /**
+   * Publishes a new document, waiting for a free slot if necessary.
+   * @param document
+   * @throws InterruptedException
+   */
+  public synchronized void put(GATEDocument document)
+      throws InterruptedException {
+    long sequence = published;
+    await(gatingConsumers, sequence + 1 - slots.length);
+    slots[(int)(sequence & mask)] = document;
+    published = sequence + 1;
+    signal();
+  }
+
+  /**
+   * Gets the number of slots in this buffer.
+   * @return
+   */
+  public int getCapacity() {
+    return slots.length;
+  }
+
+  /**
+   * Gets the number of documents available from a set of consumers: the
+   * smallest number released by any of them, or the number of published
+   * documents if the set is empty.
+   */
+  private long available(Consumer[] sources) {
+    if(sources.length == 0) return published;
+    long min = Long.MAX_VALUE;
+    for(Consumer aSource : sources) {
+      long released = aSource.released;
+      if(released < min) min = released;
+    }
+    return min;
+  }
+
+  /**
+   * Waits until at least the required number of documents are available
+   * from the given sources.
+   * @return the number of documents available.
+   * @throws InterruptedException
+   */
+  private long await(Consumer[] sources, long required)
+      throws InterruptedException {
+    long available = available(sources);
+    for(int i = 0; available < required && i < SPIN_TRIES; i++) {
+      Thread.yield();
+      available = available(sources);
+    }
+    if(available < required) {
+      synchronized(waitLock) {
+        // announce ourselves before the last check, so that any change made
+        // after it is followed by a notification
+        waiters++;
+        try {
+          while((available = available(sources)) < required) {
+            waitLock.wait();
+          }
+        } finally {
+          waiters--;
+        }
+      }
+    }
+    return available;
+  }
+
+  /**
+   * Wakes up the blocked threads, if there are any.
+   */
+  private void signal() {
+    if(waiters > 0) {
+      synchronized(waitLock) {
+        waitLock.notifyAll();
+      }
+    }
+  }
+}
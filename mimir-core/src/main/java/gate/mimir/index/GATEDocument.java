@@ -139,6 +139,12 @@ public class GATEDocument implements Document {
    */
   private gate.Document gateDocument;
   
+  /**
+   * The pre-tokenised document wrapped by this object, if it was not created
+   * from a GATE document.
+   */
+  private PretokenisedDocument pretokenisedDocument;
+  
   /**
    * A list of all the token annotations, sorted by offset. 
    */
@@ -204,6 +210,21 @@ public class GATEDocument implements Document {
     }
   }
   
+  /**
+   * Creates a GATEDocument for a document supplied in pre-tokenised form. 
+   * Such documents have no GATE document (see {@link #getDocument()}), and 
+   * no token annotations (see {@link #getTokenAnnots()}).
+   * @param pretokenisedDocument
+   * @param indexConfig
+   */
+  public GATEDocument(PretokenisedDocument pretokenisedDocument, 
+          IndexConfig indexConfig) {
+    this.pretokenisedDocument = pretokenisedDocument;
+    this.indexConfig = indexConfig;
+    this.tokenAnnots = new Annotation[0];
+    this.nonTokens = pretokenisedDocument.getNonTokens();
+  }
+  
   /* (non-Javadoc)
    * @see it.unimi.dsi.mg4j.document.Document#close()
    */
@@ -229,7 +250,8 @@ public class GATEDocument implements Document {
   
   /**
    * Obtains the GATE document wrapped by this object.
-   * @return the gateDocument
+   * @return the gateDocument, or <code>null</code> if this object wraps a 
+   * {@link PretokenisedDocument}.
    */
   public gate.Document getDocument() {
     return gateDocument;
@@ -246,6 +268,10 @@ public class GATEDocument implements Document {
    * @see it.unimi.dsi.mg4j.document.Document#title()
    */
   public CharSequence title() {
+    if(pretokenisedDocument != null) {
+      return pretokenisedDocument.getTitle() != null ? 
+          pretokenisedDocument.getTitle() : "";
+    }
     return gateDocument.getName();
   }
 
@@ -253,6 +279,7 @@ public class GATEDocument implements Document {
    * @see it.unimi.dsi.mg4j.document.Document#uri()
    */
   public synchronized CharSequence uri() {
+    if(pretokenisedDocument != null) return pretokenisedDocument.getUri();
     String uri = (String)gateDocument.getFeatures().get(
             indexConfig.getDocumentUriFeatureName());
     if(uri == null){
@@ -298,6 +325,15 @@ public class GATEDocument implements Document {
             indexConfig.getTokenIndexers()[field].getFeatureName());
   }
 
+  /**
+   * Obtains the pre-tokenised document wrapped by this object.
+   * @return the pre-tokenised document, or <code>null</code> if this object 
+   * wraps a GATE document.
+   */
+  public PretokenisedDocument getPretokenisedDocument() {
+    return pretokenisedDocument;
+  }
+  
   /**
    * Gets the array of offset-sorted token annotations for this document.
    * The value returned is the actual internally used array, so modifications 
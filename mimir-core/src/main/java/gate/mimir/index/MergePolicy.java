@@ -0,0 +1,35 @@
+/*
+ *  MergePolicy.java
+ *
+ *  Copyright (c) 2007-2026, The University of Sheffield.
+ *
+ *  This file is part of GATE Mímir (see http://gate.ac.uk/family/mimir.html),
+ *  and is free software, licenced under the GNU Lesser General Public License,
+ *  Version 3, June 2007 (also included with this distribution as file
+ *  LICENCE-LGPL3.html).
+ *
+ *  $Id$
+ */
+package gate.mimir.index;
+
+import java.io.Serializable;
+
+/**
+ * A policy deciding which of the on-disk batches of an {@link AtomicIndex} 
+ * should be merged together. Only contiguous runs of batches can be merged, 
+ * as the documents in each batch follow on from the ones in the previous 
+ * batch. If the merged run includes the first batch, the result becomes the 
+ * new head, otherwise it replaces the first tail in the run.
+ */
+public interface MergePolicy extends Serializable {
+  
+  /**
+   * Selects a run of batches to be merged.
+   * @param batchSizes the on-disk sizes (in bytes) of all the batches, in 
+   * document order (the head first, followed by the tails).
+   * @return a two-element array containing the index of the first batch to be
+   * merged and the index of the batch following the last one to be merged 
+   * (exclusive), or <code>null</code> if no merge is necessary.
+   */
+  public int[] findMerge(long[] batchSizes);
+}
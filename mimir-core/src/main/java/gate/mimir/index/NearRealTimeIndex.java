@@ -0,0 +1,114 @@
+/*
+ *  NearRealTimeIndex.java
+ *
+ *  Copyright (c) 2007-2026, The University of Sheffield.
+ *
+ *  This file is part of GATE Mímir (see http://gate.ac.uk/family/mimir.html),
+ *  and is free software, licenced under the GNU Lesser General Public License,
+ *  Version 3, June 2007 (also included with this distribution as file
+ *  LICENCE-LGPL3.html).
+ *
+ *  $Id$
+ */
+package gate.mimir.index;
+
+import it.unimi.di.big.mg4j.index.Index;
+import it.unimi.di.big.mg4j.index.IndexReader;
+import it.unimi.di.big.mg4j.index.TermProcessor;
+import it.unimi.dsi.fastutil.ints.AbstractIntBigList;
+
+/**
+ * A statistics-only view of an {@link AtomicIndex} that covers both the
+ * documents on disk and those still in RAM, as seen by a near-real-time
+ * search (see {@link AtomicIndex#getRamPostings(String)}). It is returned by
+ * the term query executors as their {@link Index}, so that scorers get the
+ * number of documents, the number of occurrences and the document sizes for
+ * all the documents they may be asked to score. It cannot be read:
+ * {@link #getReader(int)} always fails.
+ */
+public class NearRealTimeIndex extends Index {
+
+  private static final long serialVersionUID = -2101533578036931372L;
+
+  /**
+   * The document sizes list: on-disk documents are looked up in the on-disk
+   * index, the others in the atomic index.
+   */
+  protected static class SizesBigList extends AbstractIntBigList {
+
+    private final AtomicIndex atomicIndex;
+
+    private final Index diskIndex;
+
+    private final long diskDocuments;
+
+    private final long documentsCount;
+
+    protected SizesBigList(AtomicIndex atomicIndex, Index diskIndex,
+        long documentsCount) {
+      this.atomicIndex = atomicIndex;
+      this.diskIndex = diskIndex;
+      this.diskDocuments = diskIndex == null ? 0 : diskIndex.numberOfDocuments;
+      this.documentsCount = documentsCount;
+    }
+
+    @Override
+    public int getInt(long index) {
+      if(index < 0 || index >= documentsCount) {
+        throw new IndexOutOfBoundsException("Index (" + index +
+            ") is not in the range [0, " + documentsCount + ")");
+      }
+      return index < diskDocuments ? diskIndex.sizes.getInt(index) :
+          atomicIndex.getDocumentSize(index);
+    }
+
+    @Override
+    public long size64() {
+      return documentsCount;
+    }
+  }
+
+  /**
+   * The on-disk index covered by this view.
+   */
+  private final Index diskIndex;
+
+  /**
+   * Creates a new view.
+   * @param atomicIndex the atomic index being searched.
+   * @param diskIndex the on-disk index (may be <code>null</code>).
+   * @param documentsCount the total number of documents (on disk and in RAM)
+   * that can be searched.
+   * @param ramOccurrences the total size of the in-RAM documents that can be
+   * searched.
+   * @param termProcessor the term processor used by the atomic index.
+   */
+  public NearRealTimeIndex(AtomicIndex atomicIndex, Index diskIndex,
+      long documentsCount, long ramOccurrences, TermProcessor termProcessor) {
+    super(documentsCount,
+        diskIndex == null ? 0 : diskIndex.numberOfTerms,
+        diskIndex == null ? 0 : diskIndex.numberOfPostings,
+        (diskIndex == null ? 0 : diskIndex.numberOfOccurrences) +
+            ramOccurrences,
+        diskIndex == null ? 0 : diskIndex.maxCount,
+        null, true, true, termProcessor,
+        diskIndex == null ? null : diskIndex.field, null, null,
+        new SizesBigList(atomicIndex, diskIndex, documentsCount), null);
+    this.diskIndex = diskIndex;
+  }
+
+  /**
+   * Gets the on-disk index covered by this view.
+   * @return the on-disk index, or <code>null</code> if all the documents are
+   * still in RAM.
+   */
+  public Index getDiskIndex() {
+    return diskIndex;
+  }
+
+  @Override
+  public IndexReader getReader(int bufferSize) {
+    throw new UnsupportedOperationException(
+        "A near-real-time index view cannot be read!");
+  }
+}
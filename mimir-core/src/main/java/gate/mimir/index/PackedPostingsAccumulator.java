@@ -0,0 +1,539 @@
+/*
+ *  PackedPostingsAccumulator.java
+ *
+ *  Copyright (c) 2007-2026, The University of Sheffield.
+ *
+ *  This file is part of GATE Mímir (see http://gate.ac.uk/family/mimir.html),
+ *  and is free software, licenced under the GNU Lesser General Public License,
+ *  Version 3, June 2007 (also included with this distribution as file
+ *  LICENCE-LGPL3.html).
+ *
+ *  $Id$
+ */
+package gate.mimir.index;
+
+import gate.mimir.index.AtomicIndex.PostingsList;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import it.unimi.dsi.fastutil.longs.LongArrays;
+import it.unimi.dsi.lang.MutableString;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * <p>
+ * An in-RAM accumulator for the postings of an index batch, designed to keep
+ * the Java heap (and the garbage collector) out of the indexing hot path. It
+ * is an alternative to the map of {@link PostingsList} values used by
+ * {@link AtomicIndex}.
+ * </p>
+ * <p>
+ * The term characters and the postings are stored in large, pooled, off-heap
+ * slabs. Each term gets a chain of slices (of increasing size) in which its
+ * postings are written as a stream of variable-length integers: a new document
+ * is recorded as <tt>(docDelta &lt;&lt; 1) | 1</tt> followed by the first
+ * position; a further position in the same document is recorded as
+ * <tt>positionDelta &lt;&lt; 1</tt>. Terms are identified by <tt>int</tt>
+ * handles, stored in an open-addressing hash table. The only per-term heap
+ * data are a few primitive array entries.
+ * </p>
+ * <p>
+ * At batch writing time, the postings for each term are decoded into a
+ * (reusable) {@link PostingsList}, which knows how to write itself to an
+ * index writer.
+ * </p>
+ * <p>
+ * This class is not thread-safe. Concurrent calls to the read-only methods
+ * ({@link #getTermId(CharSequence)}, 
+ * {@link #decodePostings(int, PostingsList)}) are safe, as long as no 
+ * occurrences are being added at the same time.
+ * </p>
+ */
+public class PackedPostingsAccumulator {
+
+  /**
+   * A pool of large off-heap byte buffers, which are never released, so that
+   * they can be reused from one batch to the next. Addresses are
+   * <code>long</code> values: the slab number in the high bits and the offset
+   * within the slab in the low {@link #SLAB_BITS} bits. No allocation ever
+   * crosses a slab boundary. Blocks larger than {@link #SLAB_SIZE} get a 
+   * slab of their own; offsets inside such a block do not fit in an address,
+   * so it must be accessed through {@link #slab(long)} and 
+   * {@link #offset(long)}.
+   */
+  protected static class SlabPool {
+
+    protected static final int SLAB_BITS = 20;
+
+    protected static final int SLAB_SIZE = 1 << SLAB_BITS;
+
+    protected static final int SLAB_MASK = SLAB_SIZE - 1;
+
+    protected final List<ByteBuffer> slabs = new ArrayList<ByteBuffer>();
+
+    /**
+     * The slab currently being allocated from.
+     */
+    protected int currentSlab = -1;
+
+    /**
+     * The first free offset in the current slab.
+     */
+    protected int currentOffset = SLAB_SIZE;
+
+    /**
+     * Allocates a new block of memory.
+     * @param size the size (in bytes) of the block.
+     * @return the address of the new block.
+     */
+    public long allocate(int size) {
+      if(size > SLAB_SIZE) {
+        // an over-sized slab, filled by this block alone
+        currentSlab++;
+        if(currentSlab == slabs.size()) {
+          slabs.add(ByteBuffer.allocateDirect(size));
+        } else if(slabs.get(currentSlab).capacity() < size) {
+          slabs.set(currentSlab, ByteBuffer.allocateDirect(size));
+        }
+        currentOffset = SLAB_SIZE;
+        return (long)currentSlab << SLAB_BITS;
+      }
+      if(currentOffset + size > SLAB_SIZE) {
+        currentSlab++;
+        if(currentSlab == slabs.size()) {
+          slabs.add(ByteBuffer.allocateDirect(SLAB_SIZE));
+        }
+        currentOffset = 0;
+      }
+      long address = ((long)currentSlab << SLAB_BITS) | currentOffset;
+      currentOffset += size;
+      return address;
+    }
+
+    /**
+     * Gets the slab containing the block at a given address.
+     */
+    public ByteBuffer slab(long address) {
+      return slabs.get((int)(address >>> SLAB_BITS));
+    }
+
+    /**
+     * Gets the offset of a given address in its slab.
+     */
+    public int offset(long address) {
+      return (int)(address & SLAB_MASK);
+    }
+
+    public byte get(long address) {
+      return slabs.get((int)(address >>> SLAB_BITS)).get(
+          (int)(address & SLAB_MASK));
+    }
+
+    public void put(long address, byte value) {
+      slabs.get((int)(address >>> SLAB_BITS)).put(
+          (int)(address & SLAB_MASK), value);
+    }
+
+    public char getChar(long address) {
+      return slabs.get((int)(address >>> SLAB_BITS)).getChar(
+          (int)(address & SLAB_MASK));
+    }
+
+    public void putChar(long address, char value) {
+      slabs.get((int)(address >>> SLAB_BITS)).putChar(
+          (int)(address & SLAB_MASK), value);
+    }
+
+    public int getInt(long address) {
+      return slabs.get((int)(address >>> SLAB_BITS)).getInt(
+          (int)(address & SLAB_MASK));
+    }
+
+    public void putInt(long address, int value) {
+      slabs.get((int)(address >>> SLAB_BITS)).putInt(
+          (int)(address & SLAB_MASK), value);
+    }
+
+    public long getLong(long address) {
+      return slabs.get((int)(address >>> SLAB_BITS)).getLong(
+          (int)(address & SLAB_MASK));
+    }
+
+    public void putLong(long address, long value) {
+      slabs.get((int)(address >>> SLAB_BITS)).putLong(
+          (int)(address & SLAB_MASK), value);
+    }
+
+    /**
+     * Marks all the memory as free, without releasing the slabs.
+     */
+    public void clear() {
+      currentSlab = -1;
+      currentOffset = SLAB_SIZE;
+    }
+
+    /**
+     * Gets the amount of off-heap memory held by this pool.
+     * @return
+     */
+    public long capacity() {
+      long capacity = 0;
+      for(ByteBuffer aSlab : slabs) capacity += aSlab.capacity();
+      return capacity;
+    }
+  }
+
+  /**
+   * The sizes of the successive slices in a postings chain. The last 8 bytes
+   * of each slice store the address of the next one.
+   */
+  private static final int[] SLICE_SIZES = new int[] {
+    16, 32, 64, 128, 256, 512, 1024, 2048, 4096, 8192 };
+
+  /**
+   * The number of bytes used at the end of each slice for the address of the
+   * next one.
+   */
+  private static final int LINK_SIZE = 8;
+
+  private static final int INITIAL_CAPACITY = 1024;
+
+  /**
+   * Storage for term characters.
+   */
+  protected final SlabPool termPool = new SlabPool();
+
+  /**
+   * Storage for postings.
+   */
+  protected final SlabPool postingsPool = new SlabPool();
+
+  /**
+   * Open-addressing hash table mapping terms to (handle + 1); 0 marks an empty
+   * slot.
+   */
+  protected int[] table;
+
+  protected int tableMask;
+
+  /**
+   * The number of terms.
+   */
+  protected int size;
+
+  /**
+   * For each term handle, the address of the term characters (an int length,
+   * followed by the chars).
+   */
+  protected long[] termAddress;
+
+  protected int[] termHash;
+
+  /**
+   * For each term handle, the address of the first postings slice.
+   */
+  protected long[] postingsStart;
+
+  /**
+   * For each term handle, the address where the next postings byte is to be
+   * written.
+   */
+  protected long[] postingsWrite;
+
+  /**
+   * For each term handle, the address of the link at the end of the current
+   * slice.
+   */
+  protected long[] sliceEnd;
+
+  /**
+   * For each term handle, the level (index in {@link #SLICE_SIZES}) of the
+   * current slice.
+   */
+  protected int[] sliceLevel;
+
+  /**
+   * For each term handle, the last document pointer written.
+   */
+  protected int[] lastDocument;
+
+  /**
+   * For each term handle, the last position written in the last document.
+   */
+  protected int[] lastPosition;
+
+  public PackedPostingsAccumulator() {
+    table = new int[INITIAL_CAPACITY * 2];
+    tableMask = table.length - 1;
+    termAddress = new long[INITIAL_CAPACITY];
+    termHash = new int[INITIAL_CAPACITY];
+    postingsStart = new long[INITIAL_CAPACITY];
+    postingsWrite = new long[INITIAL_CAPACITY];
+    sliceEnd = new long[INITIAL_CAPACITY];
+    sliceLevel = new int[INITIAL_CAPACITY];
+    lastDocument = new int[INITIAL_CAPACITY];
+    lastPosition = new int[INITIAL_CAPACITY];
+  }
+
+  private static int hash(CharSequence term) {
+    int h = 0;
+    for(int i = 0; i < term.length(); i++) {
+      h = 31 * h + term.charAt(i);
+    }
+    // spread the bits, as the table size is a power of two
+    return h ^ (h >>> 16);
+  }
+
+  private boolean termEquals(int handle, CharSequence term) {
+    ByteBuffer slab = termPool.slab(termAddress[handle]);
+    int offset = termPool.offset(termAddress[handle]);
+    int length = slab.getInt(offset);
+    if(length != term.length()) return false;
+    offset += 4;
+    for(int i = 0; i < length; i++) {
+      if(slab.getChar(offset + 2 * i) != term.charAt(i)) return false;
+    }
+    return true;
+  }
+
+  /**
+   * Finds the slot in the hash table for the given term.
+   * @return the slot, which is either empty, or contains the given term.
+   */
+  private int findSlot(CharSequence term, int hash) {
+    int slot = hash & tableMask;
+    while(table[slot] != 0 &&
+          (termHash[table[slot] - 1] != hash ||
+           !termEquals(table[slot] - 1, term))) {
+      slot = (slot + 1) & tableMask;
+    }
+    return slot;
+  }
+
+  private void rehash() {
+    int[] newTable = new int[table.length * 2];
+    int newMask = newTable.length - 1;
+    for(int handle = 0; handle < size; handle++) {
+      int slot = termHash[handle] & newMask;
+      while(newTable[slot] != 0) slot = (slot + 1) & newMask;
+      newTable[slot] = handle + 1;
+    }
+    table = newTable;
+    tableMask = newMask;
+  }
+
+  /**
+   * Adds a new term, returning its handle.
+   */
+  private int addTerm(CharSequence term, int hash, int slot) {
+    int handle = size++;
+    if(handle == termAddress.length) {
+      int newLength = termAddress.length * 2;
+      termAddress = LongArrays.grow(termAddress, newLength);
+      termHash = IntArrays.grow(termHash, newLength);
+      postingsStart = LongArrays.grow(postingsStart, newLength);
+      postingsWrite = LongArrays.grow(postingsWrite, newLength);
+      sliceEnd = LongArrays.grow(sliceEnd, newLength);
+      sliceLevel = IntArrays.grow(sliceLevel, newLength);
+      lastDocument = IntArrays.grow(lastDocument, newLength);
+      lastPosition = IntArrays.grow(lastPosition, newLength);
+    }
+    int length = term.length();
+    long address = termPool.allocate(4 + 2 * length);
+    ByteBuffer slab = termPool.slab(address);
+    int offset = termPool.offset(address);
+    slab.putInt(offset, length);
+    for(int i = 0; i < length; i++) {
+      slab.putChar(offset + 4 + 2 * i, term.charAt(i));
+    }
+    termAddress[handle] = address;
+    termHash[handle] = hash;
+    long start = postingsPool.allocate(SLICE_SIZES[0]);
+    postingsStart[handle] = start;
+    postingsWrite[handle] = start;
+    sliceEnd[handle] = start + SLICE_SIZES[0] - LINK_SIZE;
+    sliceLevel[handle] = 0;
+    lastDocument[handle] = -1;
+    lastPosition[handle] = -1;
+    table[slot] = handle + 1;
+    if(size * 2 > table.length) rehash();
+    return handle;
+  }
+
+  /**
+   * Appends one byte to the postings of a term, moving to a new slice if
+   * needed.
+   */
+  private void writeByte(int handle, byte value) {
+    long address = postingsWrite[handle];
+    if(address == sliceEnd[handle]) {
+      int level = Math.min(sliceLevel[handle] + 1, SLICE_SIZES.length - 1);
+      long newSlice = postingsPool.allocate(SLICE_SIZES[level]);
+      postingsPool.putLong(address, newSlice);
+      sliceLevel[handle] = level;
+      sliceEnd[handle] = newSlice + SLICE_SIZES[level] - LINK_SIZE;
+      address = newSlice;
+    }
+    postingsPool.put(address, value);
+    postingsWrite[handle] = address + 1;
+  }
+
+  private void writeVarLong(int handle, long value) {
+    while((value & ~0x7FL) != 0) {
+      writeByte(handle, (byte)((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+    writeByte(handle, (byte)value);
+  }
+
+  /**
+   * Records one occurrence of a term.
+   * @param term the term.
+   * @param documentPointer the batch-local document pointer. Document pointers
+   * must be added in non-decreasing order.
+   * @param position the position of the term in the document.
+   * @return <code>true</code> if a new occurrence was recorded,
+   * <code>false</code> if the position was a duplicate (not greater than the
+   * last position recorded for the same term and document).
+   */
+  public boolean addOccurrence(CharSequence term, int documentPointer,
+      int position) {
+    int hash = hash(term);
+    int slot = findSlot(term, hash);
+    int handle = table[slot] != 0 ? table[slot] - 1 : addTerm(term, hash, slot);
+    if(documentPointer != lastDocument[handle]) {
+      writeVarLong(handle,
+          (((long)documentPointer - lastDocument[handle]) << 1) | 1);
+      writeVarLong(handle, position);
+      lastDocument[handle] = documentPointer;
+      lastPosition[handle] = position;
+      return true;
+    } else if(position > lastPosition[handle]) {
+      writeVarLong(handle, ((long)position - lastPosition[handle]) << 1);
+      lastPosition[handle] = position;
+      return true;
+    } else {
+      return false;
+    }
+  }
+
+  /**
+   * Gets the number of distinct terms.
+   * @return
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Finds the handle for a given term.
+   * @param term
+   * @return the handle, or -1 if the term is not present.
+   */
+  public int getTermId(CharSequence term) {
+    int slot = findSlot(term, hash(term));
+    return table[slot] - 1;
+  }
+
+  /**
+   * Copies the characters of a term into a mutable string.
+   * @param termId the term handle.
+   * @param target the string to be overwritten.
+   * @return the target string.
+   */
+  public MutableString getTerm(int termId, MutableString target) {
+    ByteBuffer slab = termPool.slab(termAddress[termId]);
+    int offset = termPool.offset(termAddress[termId]);
+    int length = slab.getInt(offset);
+    target.length(0);
+    for(int i = 0; i < length; i++) {
+      target.append(slab.getChar(offset + 4 + 2 * i));
+    }
+    return target;
+  }
+
+  /**
+   * Gets all the terms, in handle order (i.e. the order they were first seen).
+   * @return
+   */
+  public MutableString[] getTerms() {
+    MutableString[] terms = new MutableString[size];
+    for(int i = 0; i < size; i++) {
+      terms[i] = getTerm(i, new MutableString());
+    }
+    return terms;
+  }
+
+  /**
+   * Decodes the postings for one term.
+   * @param termId the term handle.
+   * @param target a postings list (storing positions) which is cleared and
+   * then filled with the term data. The list is flushed before returning.
+   * @return the target postings list.
+   */
+  public PostingsList decodePostings(int termId, PostingsList target) {
+    target.clear();
+    long address = postingsStart[termId];
+    long end = postingsWrite[termId];
+    int level = 0;
+    long currentSliceEnd = address + SLICE_SIZES[0] - LINK_SIZE;
+    long document = -1;
+    int position = -1;
+    boolean firstPosition = false;
+    long value = 0;
+    int shift = 0;
+    while(address != end) {
+      if(address == currentSliceEnd) {
+        address = postingsPool.getLong(address);
+        level = Math.min(level + 1, SLICE_SIZES.length - 1);
+        currentSliceEnd = address + SLICE_SIZES[level] - LINK_SIZE;
+        continue;
+      }
+      byte b = postingsPool.get(address++);
+      value |= (long)(b & 0x7F) << shift;
+      if((b & 0x80) != 0) {
+        shift += 7;
+        continue;
+      }
+      // a full value was read
+      if(firstPosition) {
+        // the first position in a document is not delta-coded
+        position = (int)value;
+        target.addPosition(position);
+        firstPosition = false;
+      } else if((value & 1) != 0) {
+        // new document: the next value is the first position
+        document += value >>> 1;
+        target.newDocumentPointer(document);
+        firstPosition = true;
+      } else {
+        position += (int)(value >>> 1);
+        target.addPosition(position);
+      }
+      value = 0;
+      shift = 0;
+    }
+    target.flush();
+    return target;
+  }
+
+  /**
+   * Gets the amount of off-heap memory used by this accumulator.
+   * @return
+   */
+  public long getOffHeapCapacity() {
+    return termPool.capacity() + postingsPool.capacity();
+  }
+
+  /**
+   * Removes all the data, keeping the off-heap buffers for reuse.
+   */
+  public void clear() {
+    termPool.clear();
+    postingsPool.clear();
+    Arrays.fill(table, 0);
+    size = 0;
+  }
+}
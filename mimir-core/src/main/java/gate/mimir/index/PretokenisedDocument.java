@@ -0,0 +1,242 @@
+/*
+ *  PretokenisedDocument.java
+ *
+ *  Copyright (c) 2007-2026, The University of Sheffield.
+ *
+ *  This file is part of GATE Mímir (see http://gate.ac.uk/family/mimir.html),
+ *  and is free software, licenced under the GNU Lesser General Public License,
+ *  Version 3, June 2007 (also included with this distribution as file
+ *  LICENCE-LGPL3.html).
+ *
+ *  $Id$
+ */
+package gate.mimir.index;
+
+import gate.Annotation;
+import gate.Document;
+import gate.FeatureMap;
+import gate.Factory;
+import gate.annotation.AnnotationImpl;
+import gate.annotation.NodeImpl;
+import gate.corpora.DocumentImpl;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>
+ * A lightweight, array-based document that can be indexed without building a
+ * GATE {@link Document} (see
+ * {@link gate.mimir.MimirIndex#indexDocument(PretokenisedDocument)}). This is
+ * useful when re-indexing content that has already been analysed, e.g. from
+ * an existing token store.
+ * </p>
+ * <p>
+ * The document content is described as a sequence of tokens. Each token
+ * feature used by the index is supplied as a column: an array holding the
+ * feature value for each token. Semantic annotations are supplied as spans
+ * of tokens, with their features already resolved. The values for the
+ * {@link DocumentData} stored in the document collection (URI, title, the
+ * text between tokens, and any metadata fields) are given directly, so the
+ * {@link gate.mimir.DocumentMetadataHelper}s configured for the index are not
+ * used.
+ * </p>
+ * <p>
+ * The annotations are presented to the
+ * {@link gate.mimir.SemanticAnnotationHelper}s as GATE {@link Annotation}s
+ * whose start and end offsets are <em>token positions</em>, rather than
+ * character offsets. Helpers in document mode receive a content-less GATE
+ * document holding the document features.
+ * </p>
+ */
+public class PretokenisedDocument implements Serializable {
+
+  private static final long serialVersionUID = 4316487236508810227L;
+
+  /**
+   * A semantic annotation spanning a range of tokens. The offsets of its
+   * nodes are token positions.
+   */
+  private static class TokenSpanAnnotation extends AnnotationImpl {
+    private static final long serialVersionUID = -4750283106421857382L;
+
+    public TokenSpanAnnotation(int id, String type, int startToken,
+        int endToken, FeatureMap features) {
+      super(id, new NodeImpl(2 * id, (long)startToken),
+          new NodeImpl(2 * id + 1, (long)endToken), type, features);
+    }
+  }
+
+  private final String uri;
+
+  private final String title;
+
+  /**
+   * The document text following each token.
+   */
+  private final String[] nonTokens;
+
+  /**
+   * The token feature values, keyed by feature name.
+   */
+  private final Map<String, String[]> tokenFeatures;
+
+  private final List<Annotation> annotations;
+
+  private FeatureMap features;
+
+  /**
+   * The metadata fields for the {@link DocumentData}.
+   */
+  private final HashMap<String, Serializable> metadata;
+
+  /**
+   * Document used to pass the document features to the semantic annotation
+   * helpers. Created when first needed.
+   */
+  private transient Document featuresDocument;
+
+  /**
+   * Creates a new pre-tokenised document.
+   * @param uri the URI for the new document.
+   * @param title the title for the new document.
+   * @param nonTokens the document text following each token (i.e. the
+   * spaces between tokens). The length of this array sets the number of
+   * tokens in the document.
+   */
+  public PretokenisedDocument(String uri, String title, String[] nonTokens) {
+    if(uri == null) throw new IllegalArgumentException(
+        "A URI is required for each document!");
+    this.uri = uri;
+    this.title = title;
+    this.nonTokens = nonTokens;
+    this.tokenFeatures = new HashMap<String, String[]>();
+    this.annotations = new ArrayList<Annotation>();
+    this.metadata = new HashMap<String, Serializable>();
+  }
+
+  /**
+   * Sets the values of a token feature.
+   * @param featureName the name of the feature.
+   * @param values the value of the feature for each token. Tokens with a
+   * <code>null</code> value are indexed as empty strings.
+   */
+  public void setTokenFeature(String featureName, String[] values) {
+    if(values.length != nonTokens.length) {
+      throw new IllegalArgumentException("Got " + values.length +
+          " values for feature " + featureName + ", but the document has " +
+          nonTokens.length + " tokens!");
+    }
+    tokenFeatures.put(featureName, values);
+  }
+
+  /**
+   * Gets the values of a token feature.
+   * @param featureName
+   * @return the value of the feature for each token, or <code>null</code>
+   * if the feature was not set.
+   */
+  public String[] getTokenFeature(String featureName) {
+    return tokenFeatures.get(featureName);
+  }
+
+  /**
+   * Adds a semantic annotation.
+   * @param type the annotation type.
+   * @param startToken the position of the first token covered by the
+   * annotation.
+   * @param endToken the position after the last token covered by the
+   * annotation.
+   * @param features the annotation features.
+   */
+  public void addAnnotation(String type, int startToken, int endToken,
+      FeatureMap features) {
+    if(startToken < 0 || endToken < startToken ||
+       startToken >= nonTokens.length) {
+      throw new IllegalArgumentException("Invalid token span [" +
+          startToken + ", " + endToken + ") for a document with " +
+          nonTokens.length + " tokens!");
+    }
+    annotations.add(new TokenSpanAnnotation(annotations.size(), type,
+        startToken, endToken, 
+        features != null ? features : Factory.newFeatureMap()));
+  }
+
+  /**
+   * Gets the semantic annotations, in the order they were added. The offsets
+   * of the annotations are token positions.
+   * @return
+   */
+  public List<Annotation> getAnnotations() {
+    return Collections.unmodifiableList(annotations);
+  }
+
+  /**
+   * Sets the document features, which are made available to the semantic
+   * annotation helpers in document mode.
+   * @param features
+   */
+  public void setFeatures(FeatureMap features) {
+    this.features = features;
+  }
+
+  public FeatureMap getFeatures() {
+    return features;
+  }
+
+  /**
+   * Adds a metadata field to the {@link DocumentData} stored for this
+   * document.
+   * @param fieldName
+   * @param fieldValue
+   */
+  public void putMetadataField(String fieldName, Serializable fieldValue) {
+    metadata.put(fieldName, fieldValue);
+  }
+
+  public Map<String, Serializable> getMetadata() {
+    return metadata;
+  }
+
+  public String getUri() {
+    return uri;
+  }
+
+  public String getTitle() {
+    return title;
+  }
+
+  public String[] getNonTokens() {
+    return nonTokens;
+  }
+
+  /**
+   * Gets the number of tokens in this document.
+   * @return
+   */
+  public int getTokenCount() {
+    return nonTokens.length;
+  }
+
+  /**
+   * Gets a content-less GATE document holding the features of this document,
+   * used to call {@link gate.mimir.SemanticAnnotationHelper#documentStart(
+   * Document)}. The document is not registered with GATE, so it does not
+   * need deleting.
+   * @return
+   */
+  public synchronized Document getFeaturesDocument() {
+    if(featuresDocument == null) {
+      DocumentImpl document = new DocumentImpl();
+      document.setName(title);
+      document.setFeatures(features != null ? features :
+          Factory.newFeatureMap());
+      featuresDocument = document;
+    }
+    return featuresDocument;
+  }
+}
@@ -0,0 +1,253 @@
+/*
+ *  RamPostings.java
+ *
+ *  Copyright (c) 2007-2026, The University of Sheffield.
+ *
+ *  This file is part of GATE Mímir (see http://gate.ac.uk/family/mimir.html),
+ *  and is free software, licenced under the GNU Lesser General Public License,
+ *  Version 3, June 2007 (also included with this distribution as file
+ *  LICENCE-LGPL3.html).
+ *
+ *  $Id$
+ */
+package gate.mimir.index;
+
+import it.unimi.di.big.mg4j.index.Index;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import it.unimi.dsi.fastutil.ints.IntComparator;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+
+/**
+ * <p>
+ * An immutable, point-in-time copy of the postings for one term from the
+ * in-RAM (not yet written) batches of an {@link AtomicIndex}, used to make
+ * newly indexed documents searchable before they are synced to disk.
+ * </p>
+ * <p>
+ * A snapshot also records the on-disk {@link Index} that was current when it
+ * was taken, so that searches see each document exactly once: all the
+ * documents in the on-disk index come first, followed by the in-RAM ones,
+ * which use the same (global) document IDs they will have once written to
+ * disk.
+ * </p>
+ */
+public class RamPostings {
+
+  /**
+   * Collects the data for a new {@link RamPostings} instance. Documents may
+   * be added in any order (e.g. when they come from several indexing
+   * slices), but each document must only be added once.
+   */
+  public static class Builder {
+
+    private final LongArrayList documents = new LongArrayList();
+
+    private final IntArrayList counts = new IntArrayList();
+
+    private final IntArrayList positions;
+
+    private boolean sorted = true;
+
+    public Builder(boolean storePositions) {
+      positions = storePositions ? new IntArrayList() : null;
+    }
+
+    /**
+     * Starts a new document.
+     * @param document the global document ID.
+     * @param count the number of occurrences in the document. If positions
+     * are stored, exactly this many positions must be added next.
+     */
+    public void addDocument(long document, int count) {
+      if(!documents.isEmpty() &&
+         document < documents.getLong(documents.size() - 1)) {
+        sorted = false;
+      }
+      documents.add(document);
+      counts.add(count);
+    }
+
+    public void addPosition(int position) {
+      positions.add(position);
+    }
+
+    /**
+     * Builds the postings snapshot.
+     * @param diskIndex the on-disk index current at the time the snapshot
+     * was taken (may be <code>null</code> if nothing was written yet).
+     * @param documentsCount the total number of documents visible in the
+     * snapshot (on disk and in RAM).
+     * @return
+     */
+    public RamPostings build(Index diskIndex, long documentsCount) {
+      int size = documents.size();
+      final long[] docs = documents.toLongArray();
+      int[] docCounts = counts.toIntArray();
+      int[] offsets = null;
+      int[] docPositions = null;
+      if(positions != null) {
+        offsets = new int[size + 1];
+        for(int i = 0; i < size; i++) {
+          offsets[i + 1] = offsets[i] + docCounts[i];
+        }
+        docPositions = positions.toIntArray();
+      }
+      if(!sorted) {
+        // sort the documents (and their data) by ID
+        int[] perm = new int[size];
+        for(int i = 0; i < size; i++) perm[i] = i;
+        IntArrays.quickSort(perm, new IntComparator() {
+          @Override
+          public int compare(Integer one, Integer other) {
+            return compare(one.intValue(), other.intValue());
+          }
+
+          @Override
+          public int compare(int one, int other) {
+            return Long.compare(docs[one], docs[other]);
+          }
+        });
+        long[] sortedDocs = new long[size];
+        int[] sortedCounts = new int[size];
+        int[] sortedOffsets = offsets != null ? new int[size + 1] : null;
+        int[] sortedPositions = docPositions != null ?
+            new int[docPositions.length] : null;
+        for(int i = 0; i < size; i++) {
+          sortedDocs[i] = docs[perm[i]];
+          sortedCounts[i] = docCounts[perm[i]];
+          if(sortedPositions != null) {
+            System.arraycopy(docPositions, offsets[perm[i]], sortedPositions,
+                sortedOffsets[i], sortedCounts[i]);
+            sortedOffsets[i + 1] = sortedOffsets[i] + sortedCounts[i];
+          }
+        }
+        return new RamPostings(diskIndex, documentsCount, sortedDocs,
+            sortedCounts, sortedOffsets, sortedPositions);
+      } else {
+        return new RamPostings(diskIndex, documentsCount, docs, docCounts,
+            offsets, docPositions);
+      }
+    }
+  }
+
+  /**
+   * The on-disk index at the time this snapshot was taken.
+   */
+  private final Index diskIndex;
+
+  /**
+   * The total number of documents (on disk and in RAM) visible in this
+   * snapshot.
+   */
+  private final long documentsCount;
+
+  /**
+   * The (global) IDs of the documents containing the term, in ascending
+   * order.
+   */
+  private final long[] documents;
+
+  /**
+   * The number of occurrences for each document.
+   */
+  private final int[] counts;
+
+  /**
+   * For each document, the offset in {@link #positions} of its first
+   * position, or <code>null</code> if positions are not stored.
+   */
+  private final int[] positionOffsets;
+
+  /**
+   * The positions for all the documents.
+   */
+  private final int[] positions;
+
+  private RamPostings(Index diskIndex, long documentsCount, long[] documents,
+      int[] counts, int[] positionOffsets, int[] positions) {
+    this.diskIndex = diskIndex;
+    this.documentsCount = documentsCount;
+    this.documents = documents;
+    this.counts = counts;
+    this.positionOffsets = positionOffsets;
+    this.positions = positions;
+  }
+
+  /**
+   * Gets the on-disk index that was current when this snapshot was taken.
+   * Its documents all precede the ones in this snapshot.
+   * @return the on-disk index, or <code>null</code> if none was written yet.
+   */
+  public Index getDiskIndex() {
+    return diskIndex;
+  }
+
+  /**
+   * Gets the total number of documents (on disk and in RAM) that were
+   * searchable when this snapshot was taken.
+   * @return
+   */
+  public long getDocumentsCount() {
+    return documentsCount;
+  }
+
+  /**
+   * Gets the number of in-RAM documents containing the term.
+   * @return
+   */
+  public int size() {
+    return documents.length;
+  }
+
+  /**
+   * Gets the ID of the document at a given rank.
+   * @param index
+   * @return
+   */
+  public long getDocument(int index) {
+    return documents[index];
+  }
+
+  /**
+   * Gets the number of occurrences in the document at a given rank.
+   * @param index
+   * @return
+   */
+  public int getCount(int index) {
+    return counts[index];
+  }
+
+  /**
+   * Gets one of the positions in the document at a given rank.
+   * @param index the rank of the document.
+   * @param position the index of the position, between 0 and
+   * {@link #getCount(int)} - 1.
+   * @return
+   */
+  public int getPosition(int index, int position) {
+    return positions[positionOffsets[index] + position];
+  }
+
+  /**
+   * Finds the first document with an ID greater than or equal to a given
+   * value.
+   * @param document the document ID sought.
+   * @param fromIndex the rank from which to start searching.
+   * @return the rank of the first document found, or {@link #size()} if
+   * there is no such document.
+   */
+  public int find(long document, int fromIndex) {
+    int low = fromIndex;
+    int high = documents.length;
+    while(low < high) {
+      int mid = (low + high) >>> 1;
+      if(documents[mid] < document) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+}
@@ -0,0 +1,1179 @@
+/*
+ *  SegmentDocumentStore.java
+ *
+ *  Copyright (c) 2007-2026, The University of Sheffield.
+ *
+ *  This file is part of GATE Mímir (see http://gate.ac.uk/family/mimir.html),
+ *  and is free software, licenced under the GNU Lesser General Public License,
+ *  Version 3, June 2007 (also included with this distribution as file
+ *  LICENCE-LGPL3.html).
+ *
+ *  $Id$
+ */
+package gate.mimir.index;
+
+import gate.mimir.util.LongBitmap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.NoSuchElementException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * An append-only store for the {@link DocumentData} values of an index, used
+ * by the {@link DocumentCollection} as an alternative to the zip files.
+ * </p>
+ * <p>
+ * The encoded documents (see {@link DocumentDataCodec}) are grouped into blocks of up to
+ * {@link #BLOCK_SIZE} bytes, and each block is compressed as a whole, which
+ * compresses much better than individual documents. Blocks are appended to
+ * segment files of up to {@link #SEGMENT_MAX_SIZE} bytes. A dense offsets
+ * file holds, for each document ID, a <code>long</code> with the segment
+ * number, the offset of the block within the segment, and the position of
+ * the document within the block (or {@link #NO_ENTRY} for documents that have
+ * been removed).
+ * </p>
+ * <p>
+ * The segments and the offsets file are memory-mapped, and reads do not take
+ * any locks: they work on an immutable {@link State} that is replaced
+ * whenever new documents are made readable, or segments are rewritten.
+ * Documents are written from a single thread; they are kept in RAM until the
+ * offsets for the block they are in are written out (at least every
+ * {@link #INPUT_BUFFER_SIZE} documents).
+ * </p>
+ * <p>
+ * On disk, each block is: the compressed length, the uncompressed length,
+ * and the CRC32 of the compressed data (3 <code>int</code>s), followed by the
+ * compressed data. Uncompressed, a block is the number of records, then the
+ * document ID and the end offset of each record, then the encoded
+ * documents.
+ * </p>
+ */
+public class SegmentDocumentStore {
+
+  /**
+   * Immutable view of the readable part of the store.
+   */
+  private static class State {
+    /**
+     * The mapped segments, indexed by segment number. Segments that do not
+     * exist (any more) are <code>null</code>.
+     */
+    final ByteBuffer[] segments;
+
+    /**
+     * The mapped offsets file, in chunks of {@link #OFFSETS_CHUNK_SIZE}
+     * entries.
+     */
+    final LongBuffer[] offsets;
+
+    /**
+     * The number of documents (readable entries in the offsets file).
+     */
+    final long documentCount;
+
+    State(ByteBuffer[] segments, LongBuffer[] offsets, long documentCount) {
+      this.segments = segments;
+      this.offsets = offsets;
+      this.documentCount = documentCount;
+    }
+  }
+
+  /**
+   * Accumulates records into a block, and produces its on-disk form.
+   */
+  private static class BlockBuilder {
+    private final ByteArrayOutputStream data = new ByteArrayOutputStream();
+
+    private final LongArrayList documentIds = new LongArrayList();
+
+    private final IntArrayList recordEnds = new IntArrayList();
+
+    private final Deflater deflater = new Deflater();
+
+    void add(long documentId, byte[] record, int offset, int length) {
+      data.write(record, offset, length);
+      documentIds.add(documentId);
+      recordEnds.add(data.size());
+    }
+
+    boolean isEmpty() {
+      return documentIds.isEmpty();
+    }
+
+    int size() {
+      return documentIds.size();
+    }
+
+    boolean isFull() {
+      return data.size() >= BLOCK_SIZE ||
+          documentIds.size() >= MAX_BLOCK_RECORDS;
+    }
+
+    /**
+     * Builds the on-disk block for the records added so far, and starts a
+     * new (empty) block.
+     * @return a buffer with the block header and data.
+     */
+    ByteBuffer build() {
+      int count = documentIds.size();
+      ByteBuffer uncompressed = ByteBuffer.allocate(
+          4 + count * 12 + data.size());
+      uncompressed.putInt(count);
+      for(int i = 0; i < count; i++) {
+        uncompressed.putLong(documentIds.getLong(i));
+        uncompressed.putInt(recordEnds.getInt(i));
+      }
+      uncompressed.put(data.toByteArray());
+      byte[] input = uncompressed.array();
+      deflater.reset();
+      deflater.setInput(input);
+      deflater.finish();
+      ByteArrayOutputStream compressed = new ByteArrayOutputStream(
+          input.length / 2 + 64);
+      byte[] buffer = new byte[64 * 1024];
+      while(!deflater.finished()) {
+        int written = deflater.deflate(buffer);
+        compressed.write(buffer, 0, written);
+      }
+      CRC32 crc = new CRC32();
+      byte[] compressedBytes = compressed.toByteArray();
+      crc.update(compressedBytes);
+      ByteBuffer block = ByteBuffer.allocate(
+          BLOCK_HEADER_SIZE + compressedBytes.length);
+      block.putInt(compressedBytes.length);
+      block.putInt(input.length);
+      block.putInt((int)crc.getValue());
+      block.put(compressedBytes);
+      block.flip();
+      data.reset();
+      documentIds.clear();
+      recordEnds.clear();
+      return block;
+    }
+
+    void close() {
+      deflater.end();
+    }
+  }
+
+  /**
+   * The prefix for the segment file names.
+   */
+  public static final String SEGMENT_FILE_BASENAME = "mimir-documents-";
+
+  /**
+   * The file extension for the segment files.
+   */
+  public static final String SEGMENT_FILE_EXTENSION = ".seg";
+
+  /**
+   * The name of the offsets file.
+   */
+  public static final String OFFSETS_FILE_NAME = "mimir-documents.offsets";
+
+  /**
+   * The name of the file holding the number of offsets file entries last
+   * forced to disk by {@link #sync()}.
+   */
+  public static final String SYNCED_COUNT_FILE_NAME = "mimir-documents.synced";
+
+  /**
+   * The suffix added to a segment being written by a compaction.
+   */
+  protected static final String TEMP_SUFFIX = ".tmp";
+
+  protected static final Pattern SEGMENT_FILE_PATTERN = Pattern.compile(
+      "\\Q" + SEGMENT_FILE_BASENAME + "\\E(\\d+)\\Q" +
+      SEGMENT_FILE_EXTENSION + "\\E");
+
+  /**
+   * Accepts the names of the segment files.
+   */
+  public static final FilenameFilter FILENAME_FILTER = new FilenameFilter() {
+    @Override
+    public boolean accept(File dir, String name) {
+      return SEGMENT_FILE_PATTERN.matcher(name).matches();
+    }
+  };
+
+  /**
+   * The size (in bytes) a segment file may reach before a new one is
+   * started.
+   */
+  public static final long SEGMENT_MAX_SIZE = 1L << 30;
+
+  /**
+   * The uncompressed size (in bytes) a block may reach before it gets
+   * written. Blocks holding large documents can be larger than this.
+   */
+  protected static final int BLOCK_SIZE = 64 * 1024;
+
+  /**
+   * The maximum number of documents in a block.
+   */
+  protected static final int MAX_BLOCK_RECORDS = 256;
+
+  /**
+   * The maximum number of documents kept in RAM until they become readable
+   * from the mapped files.
+   */
+  protected static final int INPUT_BUFFER_SIZE = 1000;
+
+  /**
+   * The offsets file value for documents that are not in the store.
+   */
+  protected static final long NO_ENTRY = -1;
+
+  private static final int BLOCK_HEADER_SIZE = 12;
+
+  private static final int RECORD_BITS = 8;
+
+  private static final int OFFSET_BITS = 31;
+
+  private static final int OFFSETS_CHUNK_BITS = 20;
+
+  private static final int OFFSETS_CHUNK_SIZE = 1 << OFFSETS_CHUNK_BITS;
+
+  private static final long OFFSETS_CHUNK_MASK = OFFSETS_CHUNK_SIZE - 1;
+
+  private static final Logger logger = LoggerFactory.getLogger(
+      SegmentDocumentStore.class);
+
+  /**
+   * The directory containing the store files.
+   */
+  protected final File directory;
+
+  /**
+   * The dictionary used to store the document tokens as IDs, or
+   * <code>null</code>. It is saved (to
+   * {@link DocumentCollection#TOKEN_DICTIONARY_FILE_NAME} in
+   * {@link #directory}) before any offsets referring to the new documents
+   * are written.
+   */
+  protected final DirectTermDictionary tokenDictionary;
+
+  /**
+   * The current readable state.
+   */
+  private volatile State state;
+
+  private volatile boolean closed = false;
+
+  /**
+   * Lock held while compacting, which only excludes other compactions:
+   * the state itself is updated while holding the lock on <code>this</code>.
+   */
+  private final Object compactionLock = new Object();
+
+  /**
+   * The channel for the offsets file, used for appending new entries, and
+   * for updating the entries for documents moved by a compaction.
+   */
+  private final FileChannel offsetsChannel;
+
+  private final RandomAccessFile offsetsFile;
+
+  /**
+   * The file holding the number of entries at the last sync (see
+   * {@link #SYNCED_COUNT_FILE_NAME}).
+   */
+  private final RandomAccessFile syncedCountFile;
+
+  /**
+   * The number for the next new segment. Guarded by <code>this</code>.
+   */
+  private int nextSegmentNumber;
+
+  /**
+   * The segment currently being written to, or -1 if none.
+   */
+  private volatile int activeSegment = -1;
+
+  private RandomAccessFile activeSegmentFile;
+
+  private long activeSegmentLength;
+
+  /**
+   * The block currently being built by the writer.
+   */
+  private final BlockBuilder block = new BlockBuilder();
+
+  /**
+   * For each record in {@link #block}, its position in
+   * {@link #unpublishedEntries}.
+   */
+  private final IntArrayList blockEntryPositions = new IntArrayList();
+
+  /**
+   * The offsets entries for the documents written since the last time the
+   * offsets file was updated, starting with the document ID
+   * {@link #publishedCount}.
+   */
+  private final LongArrayList unpublishedEntries = new LongArrayList();
+
+  /**
+   * The segments written to since the offsets file was last updated.
+   */
+  private final IntArrayList touchedSegments = new IntArrayList();
+
+  /**
+   * The number of entries in the offsets file.
+   */
+  private long publishedCount;
+
+  /**
+   * Documents written, but not yet readable from the mapped files.
+   */
+  private final Long2ObjectOpenHashMap<DocumentData> inputBuffer =
+      new Long2ObjectOpenHashMap<DocumentData>();
+
+  /**
+   * Checks whether a directory contains a segment store.
+   * @param directory
+   * @return
+   */
+  public static boolean exists(File directory) {
+    return new File(directory, OFFSETS_FILE_NAME).exists();
+  }
+
+  public static String getSegmentFileName(int segmentNumber) {
+    return SEGMENT_FILE_BASENAME + segmentNumber + SEGMENT_FILE_EXTENSION;
+  }
+
+  private static long address(int segment, long offset, int record) {
+    return ((long)segment << (OFFSET_BITS + RECORD_BITS)) |
+        (offset << RECORD_BITS) | record;
+  }
+
+  private static int segmentOf(long address) {
+    return (int)(address >>> (OFFSET_BITS + RECORD_BITS));
+  }
+
+  private static int offsetOf(long address) {
+    return (int)((address >>> RECORD_BITS) & ((1L << OFFSET_BITS) - 1));
+  }
+
+  private static int recordOf(long address) {
+    return (int)(address & ((1 << RECORD_BITS) - 1));
+  }
+
+  /**
+   * Opens the store in the given directory, creating a new, empty store if
+   * there is none. Any data written after the last sync that did not make it
+   * to disk (e.g. if the process stopped while writing) is discarded.
+   * @param directory
+   * @throws IOException
+   */
+  public SegmentDocumentStore(File directory) throws IOException {
+    this(directory, null);
+  }
+
+  /**
+   * Opens the store in the given directory, creating a new, empty store if
+   * there is none.
+   * @param directory
+   * @param tokenDictionary the dictionary for documents encoded with their
+   * tokens stored as IDs (see {@link DocumentDataCodec}), or
+   * <code>null</code>. New documents are written that way when this is set.
+   * @throws IOException if the files cannot be opened, or the documents
+   * that had been synced to disk are damaged.
+   */
+  public SegmentDocumentStore(File directory,
+      DirectTermDictionary tokenDictionary) throws IOException {
+    this.directory = directory;
+    this.tokenDictionary = tokenDictionary;
+    // segments left over by an interrupted compaction
+    File[] tempFiles = directory.listFiles(new FilenameFilter() {
+      @Override
+      public boolean accept(File dir, String name) {
+        return name.startsWith(SEGMENT_FILE_BASENAME) &&
+            name.endsWith(SEGMENT_FILE_EXTENSION + TEMP_SUFFIX);
+      }
+    });
+    for(File aTempFile : tempFiles) {
+      logger.warn("Deleting incomplete segment file " + aTempFile);
+      if(!aTempFile.delete()) {
+        throw new IOException("Could not delete " + aTempFile);
+      }
+    }
+    ByteBuffer[] segments = new ByteBuffer[0];
+    nextSegmentNumber = 0;
+    for(File aSegmentFile : directory.listFiles(FILENAME_FILTER)) {
+      Matcher m = SEGMENT_FILE_PATTERN.matcher(aSegmentFile.getName());
+      m.matches();
+      int segment = Integer.parseInt(m.group(1));
+      if(segment >= segments.length) {
+        ByteBuffer[] newSegments = new ByteBuffer[segment + 1];
+        System.arraycopy(segments, 0, newSegments, 0, segments.length);
+        segments = newSegments;
+      }
+      segments[segment] = mapSegment(segment);
+      nextSegmentNumber = Math.max(nextSegmentNumber, segment + 1);
+    }
+    File offsetsPath = new File(directory, OFFSETS_FILE_NAME);
+    boolean newStore = !offsetsPath.exists();
+    offsetsFile = new RandomAccessFile(offsetsPath, "rw");
+    offsetsChannel = offsetsFile.getChannel();
+    syncedCountFile = new RandomAccessFile(
+        new File(directory, SYNCED_COUNT_FILE_NAME), "rw");
+    // stores written by older versions have no synced count: all their 
+    // entries are checked as if written after the last sync
+    long syncedCount = newStore || syncedCountFile.length() < 8 ? 0 :
+        syncedCountFile.readLong();
+    long count = offsetsChannel.size() / 8;
+    if(syncedCount > count) {
+      closeFiles();
+      throw new IOException("The offsets file in " + directory + " has " +
+          count + " entries, but " + syncedCount + " were synced to disk.");
+    }
+    if(offsetsChannel.size() % 8 != 0) offsetsChannel.truncate(count * 8);
+    LongBuffer[] offsets = mapOffsets(new LongBuffer[0], 0, count);
+    State newState = new State(segments, offsets, count);
+    // the segment data (and the directory entries for new segments) are 
+    // forced to disk before the offsets referring to them, so an entry 
+    // pointing outside the segments can only have been written after the 
+    // last sync, as were all the entries after it
+    for(long documentId = 0; documentId < count; documentId++) {
+      if(!isValidEntry(segments, readEntry(newState, documentId))) {
+        if(documentId < syncedCount) {
+          closeFiles();
+          throw new IOException("Invalid offset for document " + documentId +
+              ", which was synced to disk: the document store in " + 
+              directory + " is damaged.");
+        }
+        count = documentId;
+        break;
+      }
+    }
+    // drop the trailing entries pointing to data that did not make it to disk
+    long lastEntry = NO_ENTRY;
+    while(count > 0) {
+      lastEntry = readEntry(newState, count - 1);
+      if(lastEntry == NO_ENTRY ||
+         readBlock(segments, lastEntry, count - 1) != null) break;
+      if(count <= syncedCount) {
+        closeFiles();
+        throw new IOException("Invalid data for document " + (count - 1) +
+            ", which was synced to disk: the document store in " + 
+            directory + " is damaged.");
+      }
+      lastEntry = NO_ENTRY;
+      count--;
+    }
+    if(count < newState.documentCount) {
+      logger.warn("Dropping " + (newState.documentCount - count) +
+          " incompletely written documents from " + directory);
+      offsetsChannel.truncate(count * 8);
+      newState = new State(segments,
+          mapOffsets(new LongBuffer[0], 0, count), count);
+    }
+    if(count != syncedCount) {
+      // the entries that survived are the new synced ones
+      offsetsChannel.force(false);
+      writeSyncedCount(count);
+    }
+    state = newState;
+    publishedCount = count;
+    // continue writing to the last segment, if it holds the last document
+    if(lastEntry != NO_ENTRY && segmentOf(lastEntry) == nextSegmentNumber - 1) {
+      ByteBuffer segment = segments[segmentOf(lastEntry)];
+      int offset = offsetOf(lastEntry);
+      long end = offset + BLOCK_HEADER_SIZE + segment.getInt(offset);
+      if(end < SEGMENT_MAX_SIZE) {
+        activeSegment = segmentOf(lastEntry);
+        activeSegmentFile = new RandomAccessFile(
+            new File(directory, getSegmentFileName(activeSegment)), "rw");
+        if(activeSegmentFile.length() > end) {
+          logger.warn("Truncating segment " + activeSegment + " to " + end +
+              " bytes.");
+          activeSegmentFile.setLength(end);
+          // no readers yet, so the array can be updated in place
+          segments[activeSegment] = mapSegment(activeSegment);
+        }
+        activeSegmentLength = end;
+      }
+    }
+  }
+
+  /**
+   * Closes the files opened by the constructor when it fails, without 
+   * writing anything.
+   */
+  private void closeFiles() throws IOException {
+    closed = true;
+    block.close();
+    try {
+      offsetsFile.close();
+    } finally {
+      syncedCountFile.close();
+    }
+  }
+
+  /**
+   * Maps (the current length of) a segment file.
+   */
+  private ByteBuffer mapSegment(int segment) throws IOException {
+    RandomAccessFile file = new RandomAccessFile(
+        new File(directory, getSegmentFileName(segment)), "r");
+    try {
+      return file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+          file.length());
+    } finally {
+      // the mapping stays valid after the channel is closed
+      file.close();
+    }
+  }
+
+  /**
+   * Maps the offsets file chunks that changed when the number of entries
+   * grew from <code>oldCount</code> to <code>newCount</code>.
+   * @return the new chunks array.
+   */
+  private LongBuffer[] mapOffsets(LongBuffer[] chunks, long oldCount,
+      long newCount) throws IOException {
+    int chunkCount = (int)((newCount + OFFSETS_CHUNK_SIZE - 1) >>>
+        OFFSETS_CHUNK_BITS);
+    LongBuffer[] newChunks = new LongBuffer[chunkCount];
+    System.arraycopy(chunks, 0, newChunks, 0,
+        Math.min(chunks.length, chunkCount));
+    for(int chunk = (int)(oldCount >>> OFFSETS_CHUNK_BITS);
+        chunk < chunkCount; chunk++) {
+      long start = (long)chunk << OFFSETS_CHUNK_BITS;
+      long entries = Math.min(OFFSETS_CHUNK_SIZE, newCount - start);
+      newChunks[chunk] = offsetsChannel.map(FileChannel.MapMode.READ_ONLY,
+          start * 8, entries * 8).asLongBuffer();
+    }
+    return newChunks;
+  }
+
+  /**
+   * Checks that an offsets file entry points to a block header inside an
+   * existing segment, and that the block ends inside the segment. The block
+   * data itself is not checked.
+   */
+  private static boolean isValidEntry(ByteBuffer[] segments, long address) {
+    if(address == NO_ENTRY) return true;
+    int segmentNumber = segmentOf(address);
+    if(segmentNumber >= segments.length || segments[segmentNumber] == null) {
+      return false;
+    }
+    ByteBuffer segment = segments[segmentNumber];
+    int offset = offsetOf(address);
+    if((long)offset + BLOCK_HEADER_SIZE > segment.limit()) return false;
+    int compressedLength = segment.getInt(offset);
+    return compressedLength >= 0 &&
+        offset + BLOCK_HEADER_SIZE + (long)compressedLength <= segment.limit();
+  }
+
+  private static long readEntry(State state, long documentId) {
+    return state.offsets[(int)(documentId >>> OFFSETS_CHUNK_BITS)].get(
+        (int)(documentId & OFFSETS_CHUNK_MASK));
+  }
+
+  /**
+   * Reads and decompresses the block containing a record, checking that the
+   * record is there.
+   * @return the uncompressed block, or <code>null</code> if the block or the
+   * record are not valid.
+   */
+  private static ByteBuffer readBlock(ByteBuffer[] segments, long address,
+      long documentId) {
+    int segmentNumber = segmentOf(address);
+    if(segmentNumber >= segments.length || segments[segmentNumber] == null) {
+      return null;
+    }
+    ByteBuffer block = readBlock(segments[segmentNumber],
+        offsetOf(address));
+    if(block == null) return null;
+    int record = recordOf(address);
+    if(record >= block.getInt(0) ||
+       block.getLong(4 + record * 12) != documentId) return null;
+    return block;
+  }
+
+  /**
+   * Reads and decompresses the block starting at a given offset.
+   * @return the uncompressed block, or <code>null</code> if there is no valid
+   * block at that offset.
+   */
+  private static ByteBuffer readBlock(ByteBuffer segment, int offset) {
+    if(offset < 0 || offset + BLOCK_HEADER_SIZE > segment.limit()) {
+      return null;
+    }
+    int compressedLength = segment.getInt(offset);
+    int uncompressedLength = segment.getInt(offset + 4);
+    if(compressedLength < 0 || uncompressedLength < 4 ||
+       offset + BLOCK_HEADER_SIZE + (long)compressedLength > segment.limit()) {
+      return null;
+    }
+    byte[] compressed = new byte[compressedLength];
+    ByteBuffer view = segment.duplicate();
+    view.position(offset + BLOCK_HEADER_SIZE);
+    view.get(compressed);
+    CRC32 crc = new CRC32();
+    crc.update(compressed);
+    if((int)crc.getValue() != segment.getInt(offset + 8)) return null;
+    byte[] uncompressed = new byte[uncompressedLength];
+    Inflater inflater = new Inflater();
+    try {
+      inflater.setInput(compressed);
+      int read = 0;
+      while(read < uncompressedLength && !inflater.finished()) {
+        int n = inflater.inflate(uncompressed, read,
+            uncompressedLength - read);
+        if(n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+          return null;
+        }
+        read += n;
+      }
+      if(read < uncompressedLength) return null;
+    } catch(DataFormatException e) {
+      return null;
+    } finally {
+      inflater.end();
+    }
+    return ByteBuffer.wrap(uncompressed);
+  }
+
+  /**
+   * Gets the position of a record in an uncompressed block.
+   */
+  private static int getRecordStart(ByteBuffer block, int record) {
+    int dataStart = 4 + block.getInt(0) * 12;
+    return record == 0 ? dataStart :
+        dataStart + block.getInt(4 + (record - 1) * 12 + 8);
+  }
+
+  /**
+   * Gets the length of a record in an uncompressed block.
+   */
+  private static int getRecordLength(ByteBuffer block, int record) {
+    int start = record == 0 ? 0 : block.getInt(4 + (record - 1) * 12 + 8);
+    return block.getInt(4 + record * 12 + 8) - start;
+  }
+
+  /**
+   * Gets the document data for a given document ID. This method can be
+   * called from any thread, and does not block.
+   * @param documentId
+   * @return
+   * @throws IOException if the stored data cannot be read.
+   * @throws NoSuchElementException if the requested document ID is not found.
+   */
+  public DocumentData getDocumentData(long documentId) throws IOException {
+    while(true) {
+      ByteBuffer record = findRecord(documentId);
+      if(record != null) {
+        return DocumentDataCodec.decode(record.array(), record.position(),
+            record.remaining(), tokenDictionary);
+      }
+      DocumentData documentData = getBufferedDocument(documentId);
+      if(documentData != null) return documentData;
+    }
+  }
+
+  /**
+   * Gets part of the text of a document, as returned by
+   * {@link DocumentData#getText(int, int)}, only decoding the part of the
+   * document that holds it (see {@link DocumentDataCodec#decodeText(byte[],
+   * int, int, int, int, DirectTermDictionary)}). This method can be called
+   * from any thread, and does not block.
+   * @param documentId
+   * @param termPosition the position of the first token required.
+   * @param length the number of tokens required, or a negative value for
+   * all the tokens up to the end of the document.
+   * @return
+   * @throws IOException if the stored data cannot be read.
+   * @throws NoSuchElementException if the requested document ID is not found.
+   */
+  public String[][] getText(long documentId, int termPosition, int length)
+      throws IOException {
+    while(true) {
+      ByteBuffer record = findRecord(documentId);
+      if(record != null) {
+        return DocumentDataCodec.decodeText(record.array(), record.position(),
+            record.remaining(), termPosition, length, tokenDictionary);
+      }
+      DocumentData documentData = getBufferedDocument(documentId);
+      if(documentData != null) {
+        return documentData.getText(termPosition, length);
+      }
+    }
+  }
+
+  /**
+   * Finds the encoded data for a document.
+   * @param documentId
+   * @return a buffer wrapping the (uncompressed) block holding the document,
+   * with the position and limit set to the start and end of the document, or
+   * <code>null</code> if the document is not published yet.
+   * @throws IOException if the stored data cannot be read.
+   * @throws NoSuchElementException if the requested document ID is not found.
+   */
+  private ByteBuffer findRecord(long documentId) throws IOException {
+    if(closed) throw new IllegalStateException(
+        "This document store has already been closed!");
+    if(documentId < 0) throw new NoSuchElementException(
+        "No entry found for document ID " + documentId);
+    State currentState = state;
+    if(documentId >= currentState.documentCount) return null;
+    while(true) {
+      long address = readEntry(currentState, documentId);
+      if(address == NO_ENTRY) throw new NoSuchElementException(
+          "No entry found for document ID " + documentId);
+      int segment = segmentOf(address);
+      if(segment < currentState.segments.length &&
+         currentState.segments[segment] != null) {
+        ByteBuffer block = readBlock(currentState.segments, address,
+            documentId);
+        if(block == null) throw new IOException("Invalid data for document " +
+            documentId + " in segment " + segment);
+        int record = recordOf(address);
+        return ByteBuffer.wrap(block.array(), getRecordStart(block, record),
+            getRecordLength(block, record));
+      }
+      // the document was moved by a compaction since we got the state
+      State newState = state;
+      if(newState == currentState) {
+        throw new IOException("Document " + documentId +
+            " refers to missing segment " + segment);
+      }
+      currentState = newState;
+    }
+  }
+
+  /**
+   * Gets a document that has not been published yet.
+   * @param documentId
+   * @return the document data, or <code>null</code> if the document has
+   * been published in the meantime.
+   * @throws NoSuchElementException if the requested document ID is not found.
+   */
+  private DocumentData getBufferedDocument(long documentId) {
+    DocumentData documentData;
+    synchronized(inputBuffer) {
+      documentData = inputBuffer.get(documentId);
+    }
+    // the input buffer is cleared after the state is updated
+    if(documentData == null && documentId >= state.documentCount) {
+      throw new NoSuchElementException(
+          "No entry found for document ID " + documentId);
+    }
+    return documentData;
+  }
+
+  /**
+   * Gets the ID for the next document written to this store.
+   * @return
+   */
+  public long getNextDocumentId() {
+    return publishedCount + unpublishedEntries.size();
+  }
+
+  /**
+   * Gets the number of documents that can be read from the mapped files
+   * (rather than from RAM). This method can be called from any thread.
+   * @return
+   */
+  public long getPublishedDocumentCount() {
+    return state.documentCount;
+  }
+
+  /**
+   * Gets the number of segment files.
+   * @return
+   */
+  public int getSegmentCount() {
+    int count = 0;
+    for(ByteBuffer aSegment : state.segments) {
+      if(aSegment != null) count++;
+    }
+    return count;
+  }
+
+  /**
+   * Writes a new document, which gets the next document ID.
+   * @param document
+   * @throws IOException
+   */
+  public void writeDocument(DocumentData document) throws IOException {
+    byte[] data = DocumentDataCodec.encode(document, tokenDictionary);
+    long documentId = getNextDocumentId();
+    synchronized(inputBuffer) {
+      inputBuffer.put(documentId, document);
+    }
+    writeRecord(documentId, data);
+  }
+
+  /**
+   * Writes an already serialised document with a given ID, which must not
+   * be smaller than {@link #getNextDocumentId()}. Any skipped IDs are
+   * recorded as missing. The document cannot be read until the next
+   * {@link #sync()}. This is used when converting existing collections.
+   * @param documentId
+   * @param serialisedData the {@link DocumentData} value, encoded with
+   * {@link DocumentDataCodec} (or serialised with an 
+   * {@link java.io.ObjectOutputStream}, as in older zip collections).
+   * @throws IOException
+   */
+  public void writeSerialisedDocument(long documentId, byte[] serialisedData)
+      throws IOException {
+    if(documentId < getNextDocumentId()) {
+      throw new IllegalArgumentException("Document ID " + documentId +
+          " has already been written!");
+    }
+    while(getNextDocumentId() < documentId) unpublishedEntries.add(NO_ENTRY);
+    writeRecord(documentId, serialisedData);
+  }
+
+  private void writeRecord(long documentId, byte[] data) throws IOException {
+    if(closed) throw new IllegalStateException(
+        "This document store has already been closed!");
+    blockEntryPositions.add(unpublishedEntries.size());
+    unpublishedEntries.add(NO_ENTRY);
+    block.add(documentId, data, 0, data.length);
+    if(block.isFull()) flushBlock();
+    if(unpublishedEntries.size() >= INPUT_BUFFER_SIZE) publish();
+  }
+
+  /**
+   * Writes the current block (if not empty) to the active segment, starting a
+   * new segment if needed.
+   */
+  private void flushBlock() throws IOException {
+    if(block.isEmpty()) return;
+    int records = block.size();
+    ByteBuffer data = block.build();
+    if(activeSegmentFile == null ||
+       (activeSegmentLength > 0 &&
+        activeSegmentLength + data.remaining() > SEGMENT_MAX_SIZE)) {
+      startSegment();
+    }
+    if(activeSegmentLength + data.remaining() > Integer.MAX_VALUE) {
+      throw new IOException("Document too large for the document store!");
+    }
+    long offset = activeSegmentLength;
+    writeFully(activeSegmentFile.getChannel(), data, offset);
+    activeSegmentLength += BLOCK_HEADER_SIZE + data.getInt(0);
+    for(int i = 0; i < records; i++) {
+      unpublishedEntries.set(blockEntryPositions.getInt(i),
+          address(activeSegment, offset, i));
+    }
+    blockEntryPositions.clear();
+    if(!touchedSegments.contains(activeSegment)) {
+      touchedSegments.add(activeSegment);
+    }
+  }
+
+  /**
+   * Closes the active segment (if any), and starts a new one.
+   */
+  private void startSegment() throws IOException {
+    if(activeSegmentFile != null) {
+      activeSegmentFile.getChannel().force(false);
+      activeSegmentFile.close();
+    }
+    int segment;
+    synchronized(this) {
+      segment = nextSegmentNumber++;
+    }
+    activeSegmentFile = new RandomAccessFile(
+        new File(directory, getSegmentFileName(segment)), "rw");
+    // the new file must not disappear after its offsets have been synced
+    AtomicIndex.syncDirectory(directory);
+    activeSegmentLength = 0;
+    activeSegment = segment;
+  }
+
+  private static void writeFully(FileChannel channel, ByteBuffer data,
+      long position) throws IOException {
+    ByteBuffer view = data.duplicate();
+    while(view.hasRemaining()) {
+      position += channel.write(view, position);
+    }
+  }
+
+  /**
+   * Writes the entries for all the written blocks to the offsets file, and
+   * makes the documents readable from the mapped files.
+   */
+  private void publish() throws IOException {
+    flushBlock();
+    if(unpublishedEntries.isEmpty()) return;
+    // the data must be on disk before the offsets referring to it (segments
+    // other than the active one were forced when they were closed)
+    if(activeSegmentFile != null) activeSegmentFile.getChannel().force(false);
+    if(tokenDictionary != null) {
+      tokenDictionary.save(new File(directory,
+          DocumentCollection.TOKEN_DICTIONARY_FILE_NAME));
+    }
+    int count = unpublishedEntries.size();
+    ByteBuffer entries = ByteBuffer.allocate(count * 8);
+    for(int i = 0; i < count; i++) {
+      entries.putLong(unpublishedEntries.getLong(i));
+    }
+    entries.flip();
+    writeFully(offsetsChannel, entries, publishedCount * 8);
+    long newCount = publishedCount + count;
+    synchronized(this) {
+      State oldState = state;
+      ByteBuffer[] segments = oldState.segments;
+      for(int i = 0; i < touchedSegments.size(); i++) {
+        int segment = touchedSegments.getInt(i);
+        if(segment >= segments.length) {
+          ByteBuffer[] newSegments = new ByteBuffer[segment + 1];
+          System.arraycopy(segments, 0, newSegments, 0, segments.length);
+          segments = newSegments;
+        } else if(segments == oldState.segments) {
+          segments = segments.clone();
+        }
+        segments[segment] = mapSegment(segment);
+      }
+      state = new State(segments,
+          mapOffsets(oldState.offsets, publishedCount, newCount), newCount);
+    }
+    publishedCount = newCount;
+    unpublishedEntries.clear();
+    touchedSegments.clear();
+    synchronized(inputBuffer) {
+      inputBuffer.clear();
+    }
+  }
+
+  /**
+   * Makes all the documents written so far readable from the mapped files,
+   * and forces them to disk.
+   * @throws IOException
+   */
+  public void sync() throws IOException {
+    publish();
+    offsetsChannel.force(false);
+    writeSyncedCount(publishedCount);
+  }
+
+  /**
+   * Records the number of offsets file entries that are safely on disk.
+   */
+  private void writeSyncedCount(long count) throws IOException {
+    syncedCountFile.seek(0);
+    syncedCountFile.writeLong(count);
+    syncedCountFile.getChannel().force(false);
+  }
+
+  /**
+   * Removes all the documents with IDs from the given value onwards. The
+   * segment data is left in place, and gets ignored.
+   * @param documentCount the number of documents to keep.
+   * @throws IOException
+   */
+  public synchronized void truncate(long documentCount) throws IOException {
+    sync();
+    if(documentCount >= publishedCount) return;
+    // lower the synced count first, so it never exceeds the entries
+    writeSyncedCount(documentCount);
+    offsetsChannel.truncate(documentCount * 8);
+    offsetsChannel.force(false);
+    state = new State(state.segments,
+        mapOffsets(new LongBuffer[0], 0, documentCount), documentCount);
+    publishedCount = documentCount;
+  }
+
+  /**
+   * Writes any pending documents to disk, and closes the store.
+   * @throws IOException
+   */
+  public void close() throws IOException {
+    if(closed) return;
+    try {
+      sync();
+    } finally {
+      closed = true;
+      block.close();
+      if(activeSegmentFile != null) activeSegmentFile.close();
+      offsetsFile.close();
+      syncedCountFile.close();
+      synchronized(inputBuffer) {
+        inputBuffer.clear();
+      }
+    }
+  }
+
+  /**
+   * Removes the deleted documents from the store. Each segment that holds
+   * some of them is rewritten (as a new segment) without them. The segment
+   * currently being written to is left alone. Readers are not blocked: the
+   * new segments are made available before the offsets are updated, and
+   * the old ones are removed afterwards.
+   * @param deleted the IDs of the documents to be removed.
+   * @throws IOException
+   */
+  public void compact(LongBitmap deleted) throws IOException {
+    synchronized(compactionLock) {
+      State startState = state;
+      int skippedSegment = activeSegment;
+      // find the segments containing deleted documents
+      IntArrayList dirtySegments = new IntArrayList();
+      long next = deleted.nextValue(0);
+      while(next >= 0 && next < startState.documentCount) {
+        long address = readEntry(startState, next);
+        if(address != NO_ENTRY && segmentOf(address) != skippedSegment &&
+           !dirtySegments.contains(segmentOf(address))) {
+          dirtySegments.add(segmentOf(address));
+        }
+        next = deleted.nextValue(next + 1);
+      }
+      for(int i = 0; i < dirtySegments.size(); i++) {
+        rewriteSegment(dirtySegments.getInt(i), deleted);
+      }
+    }
+  }
+
+  /**
+   * Copies the live documents in a segment to a new segment, and removes the
+   * old one.
+   */
+  private void rewriteSegment(int oldSegment, LongBitmap deleted)
+      throws IOException {
+    ByteBuffer source = state.segments[oldSegment];
+    int newSegment;
+    synchronized(this) {
+      newSegment = nextSegmentNumber++;
+    }
+    File newFile = new File(directory, getSegmentFileName(newSegment));
+    File tempFile = new File(directory, newFile.getName() + TEMP_SUFFIX);
+    RandomAccessFile output = new RandomAccessFile(tempFile, "rw");
+    BlockBuilder builder = new BlockBuilder();
+    // the IDs and new addresses of the documents that are kept
+    LongArrayList keptIds = new LongArrayList();
+    LongArrayList keptAddresses = new LongArrayList();
+    LongArrayList droppedIds = new LongArrayList();
+    try {
+      long outputLength = 0;
+      int offset = 0;
+      while(offset < source.limit()) {
+        ByteBuffer block = readBlock(source, offset);
+        if(block == null) {
+          logger.warn("Invalid block at offset " + offset + " in segment " +
+              oldSegment + "; the rest of the segment is ignored.");
+          break;
+        }
+        for(int record = 0; record < block.getInt(0); record++) {
+          long documentId = block.getLong(4 + record * 12);
+          // only copy the records that are still in use
+          if(documentId >= state.documentCount ||
+             readEntry(state, documentId) !=
+                 address(oldSegment, offset, record)) continue;
+          if(deleted.contains(documentId)) {
+            droppedIds.add(documentId);
+            continue;
+          }
+          keptIds.add(documentId);
+          builder.add(documentId, block.array(),
+              getRecordStart(block, record), getRecordLength(block, record));
+          if(builder.isFull()) {
+            outputLength = writeBlock(builder, output, outputLength,
+                newSegment, keptAddresses);
+          }
+        }
+        offset += BLOCK_HEADER_SIZE + source.getInt(offset);
+      }
+      writeBlock(builder, output, outputLength, newSegment, keptAddresses);
+      output.getChannel().force(false);
+    } finally {
+      output.close();
+      builder.close();
+    }
+    if(!tempFile.renameTo(newFile)) {
+      throw new IOException("Could not rename " + tempFile + " to " +
+          newFile);
+    }
+    // the rename must be on disk before the offsets pointing to the new 
+    // segment are, otherwise a crash could lose the only copy of the 
+    // documents once the old segment is deleted
+    AtomicIndex.syncDirectory(directory);
+    // make the new segment available
+    ByteBuffer newBuffer = mapSegment(newSegment);
+    synchronized(this) {
+      State oldState = state;
+      ByteBuffer[] segments = new ByteBuffer[Math.max(newSegment + 1,
+          oldState.segments.length)];
+      System.arraycopy(oldState.segments, 0, segments, 0,
+          oldState.segments.length);
+      segments[newSegment] = newBuffer;
+      state = new State(segments, oldState.offsets, oldState.documentCount);
+    }
+    // point the offsets to the new locations
+    ByteBuffer entry = ByteBuffer.allocate(8);
+    for(int i = 0; i < keptIds.size(); i++) {
+      writeEntry(entry, keptIds.getLong(i), keptAddresses.getLong(i));
+    }
+    for(int i = 0; i < droppedIds.size(); i++) {
+      writeEntry(entry, droppedIds.getLong(i), NO_ENTRY);
+    }
+    offsetsChannel.force(false);
+    // remove the old segment; readers still using it keep their mapping
+    synchronized(this) {
+      State oldState = state;
+      ByteBuffer[] segments = oldState.segments.clone();
+      segments[oldSegment] = null;
+      state = new State(segments, oldState.offsets, oldState.documentCount);
+    }
+    File oldFile = new File(directory, getSegmentFileName(oldSegment));
+    if(!oldFile.delete()) {
+      throw new IOException("Could not delete old segment file " + oldFile);
+    }
+    if(droppedIds.size() > 0) {
+      logger.info("Dropped " + droppedIds.size() + " deleted documents from the " +
+          "document store.");
+    }
+  }
+
+  private void writeEntry(ByteBuffer buffer, long documentId, long address)
+      throws IOException {
+    buffer.clear();
+    buffer.putLong(address);
+    buffer.flip();
+    writeFully(offsetsChannel, buffer, documentId * 8);
+  }
+
+  /**
+   * Writes a block built during a compaction, and adds the new addresses of
+   * its records to the given list.
+   * @return the new length of the output file.
+   */
+  private static long writeBlock(BlockBuilder builder,
+      RandomAccessFile output, long outputLength, int segment,
+      LongArrayList addresses) throws IOException {
+    if(builder.isEmpty()) return outputLength;
+    int records = builder.size();
+    ByteBuffer data = builder.build();
+    if(outputLength + data.remaining() > Integer.MAX_VALUE) {
+      throw new IOException("Compacted segment too large!");
+    }
+    writeFully(output.getChannel(), data, outputLength);
+    for(int record = 0; record < records; record++) {
+      addresses.add(address(segment, outputLength, record));
+    }
+    return outputLength + data.remaining();
+  }
+}
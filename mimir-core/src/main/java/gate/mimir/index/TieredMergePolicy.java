@@ -0,0 +1,165 @@
+/*
+ *  TieredMergePolicy.java
+ *
+ *  Copyright (c) 2007-2026, The University of Sheffield.
+ *
+ *  This file is part of GATE Mímir (see http://gate.ac.uk/family/mimir.html),
+ *  and is free software, licenced under the GNU Lesser General Public License,
+ *  Version 3, June 2007 (also included with this distribution as file
+ *  LICENCE-LGPL3.html).
+ *
+ *  $Id$
+ */
+package gate.mimir.index;
+
+/**
+ * <p>
+ * A size-tiered {@link MergePolicy}. Batches are assigned to tiers according 
+ * to their size: a batch is in tier <em>t</em> if its size is between 
+ * <tt>minimumBatchSize * mergeFactor<sup>t</sup></tt> and 
+ * <tt>minimumBatchSize * mergeFactor<sup>t+1</sup></tt>. Whenever 
+ * {@link #getMergeFactor()} adjacent batches are in the same tier, they are
+ * merged into one batch, which will normally belong to the next tier.
+ * </p>
+ * <p>
+ * Each document is therefore rewritten about once per tier, i.e. a 
+ * logarithmic number of times, rather than on every compaction. Merges 
+ * that would rewrite more than {@link #getMaximumMergeSize()} bytes are 
+ * never selected, so the largest batches eventually stop being merged.
+ * </p>
+ */
+public class TieredMergePolicy implements MergePolicy {
+  
+  private static final long serialVersionUID = 3254893412767829451L;
+
+  /**
+   * The default value for {@link #mergeFactor}.
+   */
+  public static final int DEFAULT_MERGE_FACTOR = 8;
+  
+  /**
+   * The default value for {@link #minimumBatchSize} (4 MB).
+   */
+  public static final long DEFAULT_MINIMUM_BATCH_SIZE = 4L * 1024 * 1024;
+  
+  /**
+   * The default value for {@link #maximumMergeSize} (8 GB).
+   */
+  public static final long DEFAULT_MAXIMUM_MERGE_SIZE = 
+      8L * 1024 * 1024 * 1024;
+  
+  /**
+   * The number of same-tier batches that get merged together.
+   */
+  private int mergeFactor = DEFAULT_MERGE_FACTOR;
+  
+  /**
+   * Batches smaller than this size (in bytes) are all considered to be in the
+   * first tier.
+   */
+  private long minimumBatchSize = DEFAULT_MINIMUM_BATCH_SIZE;
+  
+  /**
+   * The maximum number of bytes to be rewritten by a single merge.
+   */
+  private long maximumMergeSize = DEFAULT_MAXIMUM_MERGE_SIZE;
+  
+  public TieredMergePolicy() {
+  }
+  
+  public TieredMergePolicy(int mergeFactor, long minimumBatchSize, 
+      long maximumMergeSize) {
+    this.mergeFactor = mergeFactor;
+    this.minimumBatchSize = minimumBatchSize;
+    this.maximumMergeSize = maximumMergeSize;
+  }
+  
+  /**
+   * Calculates the tier for a batch of a given size.
+   * @param size
+   * @return
+   */
+  protected int tier(long size) {
+    int tier = 0;
+    long tierLimit = Math.max(minimumBatchSize, 1) * mergeFactor;
+    while(size >= tierLimit && tierLimit > 0) {
+      tier++;
+      tierLimit *= mergeFactor;
+    }
+    return tier;
+  }
+  
+  /**
+   * Finds the newest run of {@link #mergeFactor} adjacent batches in the same
+   * tier, whose total size is within {@link #maximumMergeSize}.
+   */
+  @Override
+  public int[] findMerge(long[] batchSizes) {
+    if(mergeFactor < 2 || batchSizes.length < mergeFactor) return null;
+    int[] tiers = new int[batchSizes.length];
+    for(int i = 0; i < batchSizes.length; i++) {
+      tiers[i] = tier(batchSizes[i]);
+    }
+    // look for runs starting from the newest batches, as these are the 
+    // smallest, and cheapest to merge
+    for(int end = batchSizes.length; end >= mergeFactor; end--) {
+      int start = end - mergeFactor;
+      boolean sameTier = true;
+      long mergeSize = 0;
+      for(int i = start; i < end; i++) {
+        if(tiers[i] != tiers[start]) {
+          sameTier = false;
+          break;
+        }
+        mergeSize += batchSizes[i];
+      }
+      if(sameTier && mergeSize <= maximumMergeSize) {
+        return new int[]{start, end};
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Gets the number of same-tier batches that get merged together.
+   * 
+   * Defaults to {@value #DEFAULT_MERGE_FACTOR}.
+   * @return
+   */
+  public int getMergeFactor() {
+    return mergeFactor;
+  }
+
+  public void setMergeFactor(int mergeFactor) {
+    this.mergeFactor = mergeFactor;
+  }
+
+  /**
+   * Gets the size (in bytes) below which all batches are considered to be in
+   * the first tier.
+   * 
+   * Defaults to {@value #DEFAULT_MINIMUM_BATCH_SIZE}.
+   * @return
+   */
+  public long getMinimumBatchSize() {
+    return minimumBatchSize;
+  }
+
+  public void setMinimumBatchSize(long minimumBatchSize) {
+    this.minimumBatchSize = minimumBatchSize;
+  }
+
+  /**
+   * Gets the maximum number of bytes that a single merge may rewrite.
+   * 
+   * Defaults to {@value #DEFAULT_MAXIMUM_MERGE_SIZE}.
+   * @return
+   */
+  public long getMaximumMergeSize() {
+    return maximumMergeSize;
+  }
+
+  public void setMaximumMergeSize(long maximumMergeSize) {
+    this.maximumMergeSize = maximumMergeSize;
+  }
+}
@@ -0,0 +1,90 @@
+/*
+ *  DocumentsPage.java
+ *
+ *  Copyright (c) 2007-2026, The University of Sheffield.
+ *
+ *  This file is part of GATE Mímir (see http://gate.ac.uk/family/mimir.html),
+ *  and is free software, licenced under the GNU Lesser General Public License,
+ *  Version 3, June 2007 (also included with this distribution as file
+ *  LICENCE-LGPL3.html).
+ *
+ *  $Id$
+ */
+package gate.mimir.search;
+
+import java.io.Serializable;
+
+/**
+ * A page of result documents, in ranking order, as returned by 
+ * {@link QueryRunner#getDocumentsAfter(double, long, int)}. The score and ID 
+ * of the last document are the key for requesting the following page.
+ */
+public class DocumentsPage implements Serializable {
+
+  private static final long serialVersionUID = -2514380916325574390L;
+
+  /**
+   * The score to use for requesting the first page.
+   */
+  public static final double FIRST_PAGE_SCORE = Double.POSITIVE_INFINITY;
+  
+  /**
+   * The document ID to use for requesting the first page.
+   */
+  public static final long FIRST_PAGE_DOCUMENT_ID = -1;
+
+  /**
+   * The IDs of the documents, in ranking order.
+   */
+  protected long[] documentIds;
+  
+  /**
+   * The scores of the documents, aligned with {@link #documentIds}.
+   */
+  protected double[] documentScores;
+  
+  public DocumentsPage(long[] documentIds, double[] documentScores) {
+    if(documentIds.length != documentScores.length) {
+      throw new IllegalArgumentException("Got " + documentIds.length + 
+          " document IDs, but " + documentScores.length + " scores!");
+    }
+    this.documentIds = documentIds;
+    this.documentScores = documentScores;
+  }
+
+  public long[] getDocumentIds() {
+    return documentIds;
+  }
+
+  public double[] getDocumentScores() {
+    return documentScores;
+  }
+  
+  /**
+   * Gets the number of documents in this page.
+   * @return
+   */
+  public int size() {
+    return documentIds.length;
+  }
+  
+  /**
+   * Gets the ID of the last document in this page, to be used for requesting
+   * the next page.
+   * @return the document ID, or <code>-1</code> if the page is empty.
+   */
+  public long getLastDocumentId() {
+    return documentIds.length > 0 ? documentIds[documentIds.length - 1] : -1;
+  }
+  
+  /**
+   * Gets the score of the last document in this page, to be used for 
+   * requesting the next page.
+   * @return the score, or {@link Double#NEGATIVE_INFINITY} if the page is 
+   * empty.
+   */
+  public double getLastDocumentScore() {
+    return documentScores.length > 0 ? 
+        documentScores[documentScores.length - 1] : Double.NEGATIVE_INFINITY;
+  }
+}
@@ -218,6 +218,33 @@ public class FederatedQueryRunner implements QueryRunner {
         rank2subRank.getLong(rank));
   }
 
+  /* (non-Javadoc)
+   * @see gate.mimir.search.QueryRunner#getDocumentsAfter(double, long, int)
+   */
+  @Override
+  public DocumentsPage getDocumentsAfter(double afterScore,
+    long afterDocumentId, int size) throws IOException {
+    // within each sub-runner, the order of the sub-IDs is the same as the 
+    // order of the federated IDs, so the next page is made of the best 
+    // documents from the next page of each sub-runner
+    RankingQueryRunnerImpl.TopScores top = 
+        new RankingQueryRunnerImpl.TopScores(size);
+    for(int i = 0; i < subRunners.length; i++) {
+      // the largest sub-ID whose federated ID is not after afterDocumentId
+      long subAfterId = Math.floorDiv(afterDocumentId - i, 
+          (long)subRunners.length);
+      DocumentsPage subPage = subRunners[i].getDocumentsAfter(afterScore, 
+          subAfterId, size);
+      for(int j = 0; j < subPage.size(); j++) {
+        top.offer(subPage.getDocumentIds()[j] * subRunners.length + i, 
+            subPage.getDocumentScores()[j]);
+      }
+    }
+    double[] pageScores = new double[top.size()];
+    long[] pageIds = top.drain(pageScores);
+    return new DocumentsPage(pageIds, pageScores);
+  }
+
   /* (non-Javadoc)
    * @see gate.mimir.search.QueryRunner#getDocumentHits(int)
    */
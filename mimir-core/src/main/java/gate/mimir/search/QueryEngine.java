@@ -32,6 +32,8 @@ import gate.mimir.search.query.QueryNode;
 import gate.mimir.search.query.parser.ParseException;
 import gate.mimir.search.query.parser.QueryParser;
 import gate.mimir.search.score.MimirScorer;
+import it.unimi.dsi.fastutil.bytes.ByteArrayList;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
 
 import java.io.IOException;
 import java.io.Serializable;
@@ -79,6 +81,19 @@ public class QueryEngine {
    * @see #setDocumentBlockSize(int)
    */
   public static final int DEFAULT_DOCUMENT_BLOCK_SIZE = 1000;
+  
+  /**
+   * The default maximum number of hits recorded for each ranked query.
+   * @see #setRecordedHitsLimit(long)
+   */
+  public static final long DEFAULT_RECORDED_HITS_LIMIT = 1000000;
+  
+  /**
+   * The smallest number of documents worth searching as a separate range, 
+   * when queries are run in parallel.
+   * @see #setParallelism(int)
+   */
+  public static final long MINIMUM_RANGE_SIZE = 10000;
 
   /**
    * The index being searched.
@@ -121,6 +136,27 @@ public class QueryEngine {
    */
   private int documentBlockSize = DEFAULT_DOCUMENT_BLOCK_SIZE;
   
+  /**
+   * The number of ranges of documents each query is split into, which are 
+   * searched in parallel.
+   */
+  private int parallelism = 1;
+  
+  /**
+   * The maximum number of documents returned by ranked queries.
+   */
+  private int rankingLimit = 0;
+  
+  /**
+   * The maximum number of hits recorded for each ranked query.
+   */
+  private long recordedHitsLimit = DEFAULT_RECORDED_HITS_LIMIT;
+  
+  /**
+   * The cache of query results, shared by all the queries run by this engine.
+   */
+  protected QueryResultsCache queryResultsCache;
+  
   /**
    * A list of currently active QueryRunners. This is used to close all active 
    * runners when the query engine itself is closed (thus releasing all open 
@@ -170,6 +206,82 @@ public class QueryEngine {
     this.documentBlockSize = documentBlockSize;
   }
 
+  /**
+   * Gets the number of threads used for searching the documents matching 
+   * a query.
+   * @see #setParallelism(int)
+   * @return
+   */
+  public int getParallelism() {
+    return parallelism;
+  }
+  
+  /**
+   * Sets the number of threads used for searching the documents matching a 
+   * query. When this is larger than 1, the document IDs of the index are 
+   * split into ranges (following the index batches where possible), and 
+   * each range is searched by its own {@link QueryExecutor}, running on the 
+   * {@link #getExecutor()}. The results of all ranges are then merged in 
+   * document ID order, so the results are the same as when searching 
+   * sequentially. Defaults to 1 (no parallel searching).
+   * @param parallelism
+   */
+  public void setParallelism(int parallelism) {
+    this.parallelism = parallelism;
+  }
+
+  /**
+   * Gets the maximum number of documents returned by ranked queries.
+   * @see #setRankingLimit(int)
+   * @return
+   */
+  public int getRankingLimit() {
+    return rankingLimit;
+  }
+  
+  /**
+   * Limits the number of documents returned by ranked queries (i.e. when a
+   * scorer source is set): only the given number of best scoring documents
+   * are kept, in a bounded heap, while the others are counted and dropped 
+   * (see {@link RankingQueryRunnerImpl#getMatchingDocumentsCount()}). This
+   * saves memory and ranking time for queries matching many documents, when
+   * only the first pages of results are ever looked at. With a 
+   * {@link gate.mimir.search.score.BoundedScorer}, such as 
+   * {@link gate.mimir.search.score.BM25ScoringQueryExecutor}, the documents
+   * of term queries, and of disjunctions of terms, that cannot score high 
+   * enough are also skipped without being scored. Defaults to 0 (all 
+   * documents are returned).
+   * @param rankingLimit
+   */
+  public void setRankingLimit(int rankingLimit) {
+    this.rankingLimit = rankingLimit;
+  }
+
+  /**
+   * Gets the maximum number of hits recorded for each ranked query.
+   * @see #setRecordedHitsLimit(long)
+   * @return
+   */
+  public long getRecordedHitsLimit() {
+    return recordedHitsLimit;
+  }
+  
+  /**
+   * Sets the maximum number of hits recorded for each ranked query. When 
+   * ranking, the hits of the matching documents are recorded (see 
+   * {@link RecordedHits}) while the documents are first scored, so that 
+   * fetching the hits for the documents in rank order does not need to run 
+   * the query again. Each recorded hit uses about 12 bytes. Once the limit 
+   * is reached, the hits for the remaining documents are obtained by running
+   * the query again, as needed. Recording is not used when sub-bindings are 
+   * enabled, or when a ranking limit is set. Defaults to 
+   * {@link #DEFAULT_RECORDED_HITS_LIMIT}; 0 disables recording.
+   * @param recordedHitsLimit
+   */
+  public void setRecordedHitsLimit(long recordedHitsLimit) {
+    this.recordedHitsLimit = recordedHitsLimit;
+  }
+
   /**
    * Gets the current source of scorers.
    * @see #setScorerSource(Callable)
@@ -186,6 +298,36 @@ public class QueryEngine {
    */
   public void setScorerSource(Callable<MimirScorer> scorerSource) {
     this.scorerSource = scorerSource;
+    // cached results depend on the scorer
+    queryResultsCache.clear();
+  }
+
+  /**
+   * Gets the cache of query results used by this engine.
+   * @see #setQueryResultsCacheSize(long)
+   * @return
+   */
+  public QueryResultsCache getQueryResultsCache() {
+    return queryResultsCache;
+  }
+
+  /**
+   * Sets the maximum (estimated) size, in bytes, of the cache of query 
+   * results. The IDs and scores of the documents matching each query are 
+   * cached, so when the same query (in the sense of 
+   * {@link QueryResultsCache#getKey(QueryNode)}) is run again, the documents
+   * are available immediately. Only the documents added to the index since 
+   * the query was cached are searched again (or, for ranked queries, whose 
+   * scores change when documents are added, the whole index), and deleted 
+   * documents are skipped. Hits are still obtained by running the query, 
+   * for the documents requested. Ranked queries run with a ranking limit 
+   * (see {@link #setRankingLimit(int)}) are not cached, as only their best 
+   * documents are kept. Defaults to 
+   * {@link QueryResultsCache#DEFAULT_MAXIMUM_SIZE}; 0 disables the cache.
+   * @param queryResultsCacheSize
+   */
+  public void setQueryResultsCacheSize(long queryResultsCacheSize) {
+    queryResultsCache.setMaximumSize(queryResultsCacheSize);
   }
 
   /**
@@ -320,6 +462,8 @@ public class QueryEngine {
     activeQueryRunners = Collections.synchronizedList(
         new ArrayList<QueryRunner>());
     subBindingsEnabled = false;
+    queryResultsCache = new QueryResultsCache(
+        QueryResultsCache.DEFAULT_MAXIMUM_SIZE);
   }
 
 //  /**
@@ -398,6 +542,9 @@ public class QueryEngine {
    */
   public QueryRunner getQueryRunner(QueryNode query) throws IOException {
     logger.info("Executing query: " + query.toString());
+    // read before the executor is built, so that the executor sees at least
+    // these documents
+    long documentsEnd = index.getIndexedDocumentsCount();
     QueryExecutor qExecutor = query.getQueryExecutor(this);
     QueryRunner qRunner;
     MimirScorer scorer = null;
@@ -406,11 +553,57 @@ public class QueryEngine {
     } catch(Exception e) {
       logger.error("Could not obtain a scorer. Running query unranked.", e);
     }
-    qRunner = new RankingQueryRunnerImpl(qExecutor, scorer);
+    ByteArrayList cacheKey = queryResultsCache.getMaximumSize() > 0 ? 
+        QueryResultsCache.getKey(query) : null;
+    qRunner = new RankingQueryRunnerImpl(qExecutor, scorer, 
+        getDocumentRangeStarts(), cacheKey != null ? queryResultsCache : null,
+        cacheKey, documentsEnd);
     activeQueryRunners.add(qRunner);
     return qRunner;
   }
   
+  /**
+   * Splits the document IDs into the ranges to be searched in parallel (see 
+   * {@link #setParallelism(int)}). Ranges end at a batch boundary when that 
+   * keeps them roughly the same size, and batches that are too large get 
+   * split. The last range is open-ended, so it also includes any documents
+   * added while the query runs. 
+   * @return the first document ID of each range, in increasing order, or 
+   * <code>null</code> if the query should not be run in parallel.
+   */
+  protected long[] getDocumentRangeStarts() {
+    if(parallelism <= 1) return null;
+    long total = index.getIndexedDocumentsCount();
+    long rangeSize = Math.max(MINIMUM_RANGE_SIZE, 
+        (total + parallelism - 1) / parallelism);
+    if(total < 2 * rangeSize) return null;
+    AtomicTokenIndex tokenIndex = index.getTokenIndex(null);
+    long[] batchStarts = tokenIndex != null ? 
+        tokenIndex.getBatchStarts() : new long[0];
+    LongArrayList rangeStarts = new LongArrayList();
+    rangeStarts.add(0);
+    long rangeStart = 0;
+    for(int i = 1; i <= batchStarts.length; i++) {
+      long batchEnd = i < batchStarts.length ? batchStarts[i] : total;
+      // split batches that are too large
+      while(batchEnd - rangeStart > rangeSize) {
+        rangeStart += rangeSize;
+        rangeStarts.add(rangeStart);
+      }
+      // end the range with the batch, if the range is large enough
+      if(batchEnd < total && batchEnd - rangeStart >= rangeSize / 2) {
+        rangeStart = batchEnd;
+        rangeStarts.add(rangeStart);
+      }
+    }
+    // documents in RAM are not part of any batch
+    while(total - rangeStart > rangeSize) {
+      rangeStart += rangeSize;
+      rangeStarts.add(rangeStart);
+    }
+    return rangeStarts.size() > 1 ? rangeStarts.toLongArray() : null;
+  }
+  
   /**
    * Notifies the QueryEngine that the given QueryRunner has been closed. 
    * @param qRunner
@@ -520,20 +713,17 @@ public class QueryEngine {
    */
   public String[][] getRightContext(Binding hit, int numTokens)
   throws IndexException {
-    DocumentData docData;
-    try {
-      docData = index.getDocumentData(hit.getDocumentId());
-    } catch(IOException e) {
-      throw new IndexException(e);
-    }
+    // the document length comes from the index, so the document text does 
+    // not need loading 
+    int documentLength = index.getDocumentSize(hit.getDocumentId());
     int startOffset = hit.getTermPosition() + hit.getLength();
-    if(startOffset >= docData.getTokens().length) {
+    if(startOffset >= documentLength) {
       // hit is at the end of the document
       return new String[][]{new String[0], new String[0]};
     }
-    if(startOffset + numTokens > docData.getTokens().length) {
+    if(startOffset + numTokens > documentLength) {
       // fewer than numTokens tokens of right context available, adjust
-      numTokens = docData.getTokens().length - startOffset;
+      numTokens = documentLength - startOffset;
     }
     return getText(hit.getDocumentId(), startOffset, numTokens);
   }
@@ -565,7 +755,7 @@ public class QueryEngine {
   public String[][] getText(long documentID, int termPosition, int length)
   throws IndexException {
     try {
-      return index.getDocumentData(documentID).getText(termPosition, length);
+      return index.getDocumentText(documentID, termPosition, length);
     } catch(IOException e) {
       throw new IndexException(e); 
     }
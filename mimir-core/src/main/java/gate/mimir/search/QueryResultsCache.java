@@ -0,0 +1,523 @@
+/*
+ *  QueryResultsCache.java
+ *
+ *  Copyright (c) 2007-2026, The University of Sheffield.
+ *
+ *  This file is part of GATE Mímir (see http://gate.ac.uk/family/mimir.html),
+ *  and is free software, licenced under the GNU Lesser General Public License,
+ *  Version 3, June 2007 (also included with this distribution as file
+ *  LICENCE-LGPL3.html).
+ *
+ *  $Id$
+ */
+package gate.mimir.search;
+
+import gate.mimir.Constraint;
+import gate.mimir.search.query.AbstractOverlapQuery;
+import gate.mimir.search.query.AndQuery;
+import gate.mimir.search.query.AnnotationQuery;
+import gate.mimir.search.query.ConstQuery;
+import gate.mimir.search.query.ContainsQuery;
+import gate.mimir.search.query.GapQuery;
+import gate.mimir.search.query.MinusQuery;
+import gate.mimir.search.query.OrQuery;
+import gate.mimir.search.query.QueryNode;
+import gate.mimir.search.query.RepeatsQuery;
+import gate.mimir.search.query.SequenceQuery;
+import gate.mimir.search.query.SequenceQuery.Gap;
+import gate.mimir.search.query.TermQuery;
+import gate.mimir.search.query.WithinQuery;
+import it.unimi.dsi.fastutil.bytes.ByteArrayList;
+import it.unimi.dsi.fastutil.objects.Object2LongOpenHashMap;
+import it.unimi.dsi.fastutil.objects.Object2ObjectLinkedOpenHashMap;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * <p>
+ * A least-recently-used cache of query results (the IDs and scores of the
+ * matching documents), shared by all the queries run by a {@link QueryEngine},
+ * so that popular queries do not need to be run again for each user. Like the
+ * {@link gate.mimir.index.DocumentDataCache}, the cache is bounded by the
+ * (estimated) number of bytes used by the cached values.
+ * </p>
+ * <p>
+ * Queries are identified by a canonical binary form of their
+ * {@link QueryNode} tree (see {@link #getKey(QueryNode)}), so the same query
+ * sent by different clients is found in the cache.
+ * </p>
+ * <p>
+ * Each entry records the number of documents in the index when the query was
+ * run: entries are only valid for the documents below that limit, and it is
+ * up to the {@link RankingQueryRunnerImpl} to search the documents added
+ * since, to skip those deleted since, or to ignore the entry when it cannot
+ * be used. All methods are thread-safe.
+ * </p>
+ */
+public class QueryResultsCache {
+
+  /**
+   * The results of a query, as stored in the cache.
+   */
+  public static class QueryResults {
+
+    private final long[] documentIds;
+
+    private final double[] documentScores;
+
+    private final long matchingDocumentsCount;
+
+    private final long documentsEnd;
+
+    /**
+     * @param documentIds the IDs of the documents found, in increasing order.
+     * @param documentScores the scores of the documents, or <code>null</code>
+     * if the query was not ranked.
+     * @param matchingDocumentsCount the number of matching documents.
+     * @param documentsEnd the number of documents in the index when the query
+     * was run: all stored document IDs are smaller than this.
+     */
+    public QueryResults(long[] documentIds, double[] documentScores,
+        long matchingDocumentsCount, long documentsEnd) {
+      this.documentIds = documentIds;
+      this.documentScores = documentScores;
+      this.matchingDocumentsCount = matchingDocumentsCount;
+      this.documentsEnd = documentsEnd;
+    }
+
+    public long[] getDocumentIds() {
+      return documentIds;
+    }
+
+    public double[] getDocumentScores() {
+      return documentScores;
+    }
+
+    public long getMatchingDocumentsCount() {
+      return matchingDocumentsCount;
+    }
+
+    public long getDocumentsEnd() {
+      return documentsEnd;
+    }
+
+    /**
+     * Estimates the memory used by these results.
+     * @return the estimated size, in bytes.
+     */
+    protected long estimateSize() {
+      return 64 + 16 + 8L * documentIds.length +
+          (documentScores != null ? 16 + 8L * documentScores.length : 0);
+    }
+  }
+
+  /**
+   * The default maximum size of the cached values: 32MB.
+   */
+  public static final long DEFAULT_MAXIMUM_SIZE = 32L * 1024 * 1024;
+
+  /**
+   * The cached values, most recently used first.
+   */
+  private final Object2ObjectLinkedOpenHashMap<ByteArrayList, QueryResults>
+      entries = new Object2ObjectLinkedOpenHashMap<ByteArrayList, QueryResults>();
+
+  /**
+   * The estimated size of each cached value (including its key).
+   */
+  private final Object2LongOpenHashMap<ByteArrayList> entrySizes =
+      new Object2LongOpenHashMap<ByteArrayList>();
+
+  private long maximumSize;
+
+  private long size = 0;
+
+  /**
+   * Incremented every time the cache is cleared, so that the results of
+   * queries started before are not added afterwards.
+   */
+  private long generation = 0;
+
+  private long hits = 0;
+
+  private long misses = 0;
+
+  private long evictions = 0;
+
+  /**
+   * Creates a new cache.
+   * @param maximumSize the maximum estimated size (in bytes) of the cached
+   * values.
+   */
+  public QueryResultsCache(long maximumSize) {
+    this.maximumSize = maximumSize;
+  }
+
+  /**
+   * Gets the key used for a query. This is a canonical binary form of its
+   * {@link QueryNode} tree: for each node, its type, followed by all the
+   * fields that affect its results (terms, index names, constraints, gaps,
+   * etc.), and its sub-queries, in order. Unordered values (the constraints
+   * of an {@link AnnotationQuery}, and any sets or maps used as constraint 
+   * values) are sorted, so their order does not matter. The key does not 
+   * depend on object identities, or on the Java serialisation of the 
+   * classes involved. Queries that are equivalent but written differently 
+   * (e.g. with the operands of an OR or AND in a different order) get 
+   * different keys.
+   * @param query
+   * @return the key, or <code>null</code> if the query contains node types
+   * or constraint values not known here (in which case its results are not
+   * cached).
+   */
+  public static ByteArrayList getKey(QueryNode query) {
+    try {
+      return ByteArrayList.wrap(encode(query));
+    } catch(IllegalArgumentException e) {
+      return null;
+    }
+  }
+
+  private static final byte NULL = 0;
+
+  private static final byte NODE = 1;
+
+  private static final byte STRING = 2;
+
+  private static final byte NUMBER = 3;
+
+  private static final byte BOOLEAN = 4;
+
+  private static final byte CHARACTER = 5;
+
+  private static final byte ENUM = 6;
+
+  private static final byte ARRAY = 7;
+
+  private static final byte LIST = 8;
+
+  private static final byte SET = 9;
+
+  private static final byte MAP = 10;
+
+  /**
+   * Encodes a value (a query node, or any of the values it holds) in its
+   * canonical form.
+   * @throws IllegalArgumentException if the value has an unknown type.
+   */
+  private static byte[] encode(Object value) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream output = new DataOutputStream(bytes);
+    try {
+      write(output, value);
+      output.close();
+    } catch(IOException e) {
+      // this should never happen when writing to memory
+      throw new RuntimeException(e);
+    }
+    return bytes.toByteArray();
+  }
+
+  private static void write(DataOutputStream output, Object value)
+      throws IOException {
+    if(value == null) {
+      output.writeByte(NULL);
+    } else if(value instanceof QueryNode) {
+      output.writeByte(NODE);
+      writeNode(output, (QueryNode)value);
+    } else if(value instanceof String) {
+      output.writeByte(STRING);
+      writeString(output, (String)value);
+    } else if(value instanceof Number &&
+        value.getClass().getName().startsWith("java.")) {
+      // the type is kept, so 1 and 1.0 are different values
+      output.writeByte(NUMBER);
+      writeString(output, value.getClass().getName());
+      writeString(output, value.toString());
+    } else if(value instanceof Boolean) {
+      output.writeByte(BOOLEAN);
+      output.writeBoolean((Boolean)value);
+    } else if(value instanceof Character) {
+      output.writeByte(CHARACTER);
+      output.writeChar((Character)value);
+    } else if(value instanceof Enum) {
+      output.writeByte(ENUM);
+      writeString(output, ((Enum<?>)value).getDeclaringClass().getName());
+      writeString(output, ((Enum<?>)value).name());
+    } else if(value.getClass().isArray()) {
+      output.writeByte(ARRAY);
+      int length = Array.getLength(value);
+      output.writeInt(length);
+      for(int i = 0; i < length; i++) write(output, Array.get(value, i));
+    } else if(value instanceof List) {
+      output.writeByte(LIST);
+      List<?> list = (List<?>)value;
+      output.writeInt(list.size());
+      for(Object anElement : list) write(output, anElement);
+    } else if(value instanceof Set) {
+      output.writeByte(SET);
+      writeSorted(output, (Set<?>)value);
+    } else if(value instanceof Map) {
+      output.writeByte(MAP);
+      // the entries are sorted by their keys, which are unique
+      List<ByteArrayList> entries = new ArrayList<ByteArrayList>();
+      for(Map.Entry<?, ?> anEntry : ((Map<?, ?>)value).entrySet()) {
+        ByteArrayList entry = ByteArrayList.wrap(encode(anEntry.getKey()));
+        entry.addElements(entry.size(), encode(anEntry.getValue()));
+        entries.add(entry);
+      }
+      Collections.sort(entries);
+      output.writeInt(entries.size());
+      for(ByteArrayList anEntry : entries) {
+        output.write(anEntry.elements(), 0, anEntry.size());
+      }
+    } else {
+      throw new IllegalArgumentException("Values of type " + 
+          value.getClass().getName() + " cannot be used in cache keys.");
+    }
+  }
+
+  /**
+   * Writes a collection of values, in the order of their encodings.
+   */
+  private static void writeSorted(DataOutputStream output,
+      Collection<?> values) throws IOException {
+    List<ByteArrayList> encoded = new ArrayList<ByteArrayList>(values.size());
+    for(Object aValue : values) encoded.add(ByteArrayList.wrap(encode(aValue)));
+    Collections.sort(encoded);
+    output.writeInt(encoded.size());
+    for(ByteArrayList aValue : encoded) {
+      output.write(aValue.elements(), 0, aValue.size());
+    }
+  }
+
+  private static void writeString(DataOutputStream output, String value)
+      throws IOException {
+    output.writeInt(value.length());
+    output.writeChars(value);
+  }
+
+  /**
+   * Writes the type and the fields of a query node. Only the node types 
+   * known here are accepted: subclasses may have fields of their own.
+   */
+  private static void writeNode(DataOutputStream output, QueryNode node)
+      throws IOException {
+    Class<?> type = node.getClass();
+    writeString(output, type.getName());
+    if(type == TermQuery.class) {
+      TermQuery termQuery = (TermQuery)node;
+      write(output, termQuery.getIndexType());
+      write(output, termQuery.getIndexName());
+      CharSequence term = termQuery.getTerm();
+      write(output, term != null ? term.toString() : null);
+      output.writeLong(termQuery.getTermId());
+      output.writeInt(termQuery.getLength());
+    } else if(type == AnnotationQuery.class) {
+      AnnotationQuery annotationQuery = (AnnotationQuery)node;
+      write(output, annotationQuery.getAnnotationType());
+      // all the constraints must be satisfied, in any order
+      List<Constraint> constraints = annotationQuery.getConstraints();
+      if(constraints == null) {
+        output.writeByte(NULL);
+      } else {
+        output.writeByte(SET);
+        List<List<Object>> fields = new ArrayList<List<Object>>();
+        for(Constraint aConstraint : constraints) {
+          fields.add(Arrays.asList(aConstraint.getPredicate(),
+              aConstraint.getFeatureName(), aConstraint.getValue()));
+        }
+        writeSorted(output, fields);
+      }
+    } else if(type == SequenceQuery.class) {
+      SequenceQuery sequenceQuery = (SequenceQuery)node;
+      write(output, sequenceQuery.getNodes());
+      Gap[] gaps = sequenceQuery.getGaps();
+      if(gaps == null) {
+        output.writeByte(NULL);
+      } else {
+        output.writeByte(ARRAY);
+        output.writeInt(gaps.length);
+        for(Gap aGap : gaps) {
+          if(aGap == null) {
+            output.writeByte(NULL);
+          } else {
+            output.writeByte(ARRAY);
+            output.writeInt(aGap.getMin());
+            output.writeInt(aGap.getMax());
+          }
+        }
+      }
+    } else if(type == AndQuery.class) {
+      write(output, ((AndQuery)node).getNodes());
+    } else if(type == OrQuery.class) {
+      write(output, ((OrQuery)node).getNodes());
+    } else if(type == MinusQuery.class) {
+      write(output, ((MinusQuery)node).getLeft());
+      write(output, ((MinusQuery)node).getRight());
+    } else if(type == GapQuery.class) {
+      output.writeInt(((GapQuery)node).getGap());
+      write(output, ((GapQuery)node).getWrappedQuery());
+    } else if(type == RepeatsQuery.class) {
+      RepeatsQuery repeatsQuery = (RepeatsQuery)node;
+      output.writeInt(repeatsQuery.getMin());
+      output.writeInt(repeatsQuery.getMax());
+      write(output, repeatsQuery.getWrappedQuery());
+    } else if(type == WithinQuery.class || type == ContainsQuery.class) {
+      write(output, ((AbstractOverlapQuery)node).getInnerQuery());
+      write(output, ((AbstractOverlapQuery)node).getOuterQuery());
+    } else if(type == ConstQuery.class) {
+      write(output, ((ConstQuery)node).getDocumentIds());
+    } else {
+      throw new IllegalArgumentException("Query nodes of type " + 
+          type.getName() + " cannot be used in cache keys.");
+    }
+  }
+
+  /**
+   * Gets the cached results for a query.
+   * @param key the query key (see {@link #getKey(QueryNode)}).
+   * @return the cached results, or <code>null</code>.
+   */
+  public synchronized QueryResults get(ByteArrayList key) {
+    QueryResults cached = entries.getAndMoveToFirst(key);
+    if(cached != null) hits++;
+    else misses++;
+    return cached;
+  }
+
+  /**
+   * Gets the current generation of the cache, which is incremented every time
+   * the cache is cleared.
+   * @return
+   */
+  public synchronized long getGeneration() {
+    return generation;
+  }
+
+  /**
+   * Adds (or replaces) the results of a query, evicting the least recently
+   * used ones as needed. Results larger than the whole cache are not stored.
+   * @param key the query key (see {@link #getKey(QueryNode)}).
+   * @param results
+   * @param queryGeneration the generation of the cache (see
+   * {@link #getGeneration()}) when the query was started. If the cache has
+   * been cleared since, the results are not stored.
+   */
+  public synchronized void put(ByteArrayList key, QueryResults results,
+      long queryGeneration) {
+    if(queryGeneration != generation) return;
+    remove(key);
+    long valueSize = 64 + key.size() + results.estimateSize();
+    if(valueSize > maximumSize) return;
+    entries.putAndMoveToFirst(key, results);
+    entrySizes.put(key, valueSize);
+    size += valueSize;
+    evict();
+  }
+
+  /**
+   * Removes the cached results for a query, if present.
+   * @param key
+   */
+  public synchronized void remove(ByteArrayList key) {
+    if(entries.remove(key) != null) {
+      size -= entrySizes.removeLong(key);
+    }
+  }
+
+  /**
+   * Removes the least recently used values until the cache fits within its
+   * maximum size.
+   */
+  private void evict() {
+    while(size > maximumSize && !entries.isEmpty()) {
+      ByteArrayList key = entries.lastKey();
+      entries.removeLast();
+      size -= entrySizes.removeLong(key);
+      evictions++;
+    }
+  }
+
+  /**
+   * Removes all the cached values. This is needed when the results of
+   * queries already run may have changed in ways the cache cannot detect
+   * (e.g. when documents are undeleted, or the scorer is changed).
+   */
+  public synchronized void clear() {
+    entries.clear();
+    entrySizes.clear();
+    size = 0;
+    generation++;
+  }
+
+  /**
+   * Changes the maximum size of the cache, evicting values if required.
+   * @param maximumSize the maximum estimated size (in bytes) of the cached
+   * values. If 0, no results are cached.
+   */
+  public synchronized void setMaximumSize(long maximumSize) {
+    this.maximumSize = maximumSize;
+    evict();
+  }
+
+  public synchronized long getMaximumSize() {
+    return maximumSize;
+  }
+
+  /**
+   * Gets the estimated size (in bytes) of the cached values.
+   * @return
+   */
+  public synchronized long getSize() {
+    return size;
+  }
+
+  /**
+   * Gets the number of cached values.
+   * @return
+   */
+  public synchronized int getEntryCount() {
+    return entries.size();
+  }
+
+  /**
+   * Gets the number of requests answered from the cache.
+   * @return
+   */
+  public synchronized long getHitCount() {
+    return hits;
+  }
+
+  /**
+   * Gets the number of requests for queries not in the cache.
+   * @return
+   */
+  public synchronized long getMissCount() {
+    return misses;
+  }
+
+  /**
+   * Gets the number of values removed to make space for new ones.
+   * @return
+   */
+  public synchronized long getEvictionCount() {
+    return evictions;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "Query results cache: " + entries.size() + " queries, " + size +
+        " of " + maximumSize + " bytes; " + hits + " hits, " + misses +
+        " misses, " + evictions + " evictions";
+  }
+}
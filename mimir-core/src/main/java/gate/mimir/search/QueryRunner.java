@@ -99,6 +99,34 @@ public interface QueryRunner {
   public double getDocumentScore(long rank)  throws IndexOutOfBoundsException, 
       IOException ;
   
+  /**
+   * Gets a page of result documents, in ranking order, starting with the 
+   * document that follows a given one ("search after"). Documents are ordered
+   * by decreasing score, and documents with the same score by increasing 
+   * document ID (for query runners that do not rank, all documents have the
+   * {@link #DEFAULT_SCORE}, so they are in document ID order). The position of 
+   * the previous document is given by its score and ID rather than by its 
+   * rank, so each page is found without ranking (or keeping) all the 
+   * previous pages, which makes paging deep into the results much cheaper 
+   * than using {@link #getDocumentID(long)}. 
+   * 
+   * This method waits for the search to complete, if necessary. The order 
+   * returned may differ from the rank order for documents with equal scores.
+   * 
+   * @param afterScore the score of the last document of the previous page 
+   * (see {@link DocumentsPage#getLastDocumentScore()}).
+   * @param afterDocumentId the ID of the last document of the previous page 
+   * (see {@link DocumentsPage#getLastDocumentId()}). The first page is 
+   * obtained with {@link DocumentsPage#FIRST_PAGE_SCORE} and 
+   * {@link DocumentsPage#FIRST_PAGE_DOCUMENT_ID}.
+   * @param size the maximum number of documents to return.
+   * @return the page of documents, which is empty if there are no more 
+   * documents.
+   * @throws IOException
+   */
+  public DocumentsPage getDocumentsAfter(double afterScore, 
+      long afterDocumentId, int size) throws IOException;
+  
   /**
    * Retrieves the hits within a given result document.
    * @param rank the index of the desired document in the list of documents.
@@ -17,10 +17,20 @@ package gate.mimir.search;
 
 import gate.mimir.index.IndexException;
 import gate.mimir.search.query.Binding;
+import gate.mimir.search.query.OrQuery;
 import gate.mimir.search.query.QueryExecutor;
 import gate.mimir.search.query.QueryNode;
+import gate.mimir.search.query.TermQuery;
+import gate.mimir.search.score.BoundedScorer;
 import gate.mimir.search.score.MimirScorer;
+import it.unimi.di.big.mg4j.index.IndexIterator;
+import it.unimi.di.big.mg4j.search.visitor.AbstractDocumentIteratorVisitor;
+import it.unimi.dsi.fastutil.bytes.ByteArrayList;
+import it.unimi.dsi.fastutil.doubles.DoubleArrayList;
+import it.unimi.dsi.fastutil.ints.AbstractIntComparator;
+import it.unimi.dsi.fastutil.ints.IntArrays;
 import it.unimi.dsi.fastutil.doubles.DoubleBigArrayBigList;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
 import it.unimi.dsi.fastutil.longs.LongBigArrayBigList;
 import it.unimi.dsi.fastutil.longs.LongBigList;
 import it.unimi.dsi.fastutil.objects.Object2ObjectAVLTreeMap;
@@ -28,6 +38,8 @@ import it.unimi.dsi.fastutil.objects.ObjectArrayList;
 import it.unimi.dsi.fastutil.objects.ObjectBigArrayBigList;
 import it.unimi.dsi.fastutil.objects.ObjectBigList;
 import it.unimi.dsi.fastutil.objects.ObjectList;
+import it.unimi.dsi.fastutil.objects.Reference2DoubleMap;
+import it.unimi.dsi.fastutil.objects.Reference2DoubleOpenHashMap;
 
 import java.io.IOException;
 import java.io.Serializable;
@@ -39,6 +51,8 @@ import java.util.Map;
 import java.util.Set;
 import java.util.SortedMap;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.FutureTask;
 import java.util.concurrent.LinkedBlockingQueue;
@@ -87,6 +101,132 @@ public class RankingQueryRunnerImpl implements QueryRunner {
   }
    
   
+  /**
+   * A bounded heap keeping the best scoring entries offered to it. Entries 
+   * are identified by a key (a document ID or an index in 
+   * {@link RankingQueryRunnerImpl#documentIds}); entries with the same score 
+   * are ordered by increasing key, so that the order is the same as when 
+   * sorting all the entries.
+   */
+  protected static class TopScores {
+    private final long[] keys;
+    
+    private final double[] scores;
+    
+    private int size;
+    
+    /**
+     * @param capacity the number of entries kept.
+     */
+    public TopScores(int capacity) {
+      keys = new long[capacity];
+      scores = new double[capacity];
+      size = 0;
+    }
+    
+    public int size() {
+      return size;
+    }
+    
+    /**
+     * Is the heap full, so that new entries are only kept if they are better
+     * than the worst entry kept so far?
+     * @return
+     */
+    public boolean isFull() {
+      return size == keys.length;
+    }
+    
+    /**
+     * Gets the score of the worst entry kept so far.
+     * @return the score, or {@link Double#NEGATIVE_INFINITY} if the heap is
+     * empty.
+     */
+    public double getMinScore() {
+      return size > 0 ? scores[0] : Double.NEGATIVE_INFINITY;
+    }
+    
+    /**
+     * Offers a new entry, which is kept if the heap is not full, or if it is
+     * better than the worst entry kept so far (which then gets dropped).
+     * @param key
+     * @param score
+     * @return <code>true</code> if the entry was kept.
+     */
+    public boolean offer(long key, double score) {
+      if(size < keys.length) {
+        keys[size] = key;
+        scores[size] = score;
+        siftUp(size++);
+        return true;
+      } else if(size > 0 && 
+          (score > scores[0] || (score == scores[0] && key < keys[0]))) {
+        keys[0] = key;
+        scores[0] = score;
+        siftDown(0);
+        return true;
+      }
+      return false;
+    }
+    
+    /**
+     * Removes all the entries, returning their keys best first.
+     * @param entryScores if not <code>null</code>, an array of at least 
+     * {@link #size()} elements, which receives the scores of the returned
+     * keys.
+     * @return
+     */
+    public long[] drain(double[] entryScores) {
+      long[] res = new long[size];
+      for(int i = size - 1; i >= 0; i--) {
+        res[i] = keys[0];
+        if(entryScores != null) entryScores[i] = scores[0];
+        size--;
+        keys[0] = keys[size];
+        scores[0] = scores[size];
+        siftDown(0);
+      }
+      return res;
+    }
+    
+    /**
+     * Is the entry at position i worse than the one at position j?
+     */
+    private boolean worse(int i, int j) {
+      return scores[i] < scores[j] || 
+          (scores[i] == scores[j] && keys[i] > keys[j]);
+    }
+    
+    private void swap(int i, int j) {
+      long key = keys[i];
+      keys[i] = keys[j];
+      keys[j] = key;
+      double score = scores[i];
+      scores[i] = scores[j];
+      scores[j] = score;
+    }
+    
+    private void siftUp(int i) {
+      while(i > 0) {
+        int parent = (i - 1) >>> 1;
+        if(!worse(i, parent)) break;
+        swap(i, parent);
+        i = parent;
+      }
+    }
+    
+    private void siftDown(int i) {
+      while(true) {
+        int child = 2 * i + 1;
+        if(child >= size) break;
+        if(child + 1 < size && worse(child + 1, child)) child++;
+        if(!worse(child, i)) break;
+        swap(i, child);
+        i = child;
+      }
+    }
+  }
+  
   /**
    * Collects the document hits (i.e. {@link Binding}s) for the documents 
    * between the two provided ranks (indexes in the {@link #documentsOrder} 
@@ -124,9 +264,25 @@ public class RankingQueryRunnerImpl implements QueryRunner {
         Arrays.sort(documentIndexes);
       }
       
+      long first = start;
+      long last = end;
+      if(documentIndexes != null && recordedHits != null) {
+        // use the hits recorded while scoring, and only run the query again 
+        // for the documents that were not recorded
+        LongArrayList pendingIndexes = new LongArrayList();
+        for(long docIndex : documentIndexes) {
+          List<Binding> hits = getRecordedHits(documentIds.getLong(docIndex));
+          if(hits != null) documentHits.set(docIndex, hits);
+          else pendingIndexes.add(docIndex);
+        }
+        if(pendingIndexes.isEmpty()) return;
+        documentIndexes = pendingIndexes.toLongArray();
+        first = 0;
+        last = documentIndexes.length;
+      }
       try {
         // see if we can get at the first document
-        long docIndex = (documentIndexes != null ? documentIndexes[0] : start);
+        long docIndex = (documentIndexes != null ? documentIndexes[0] : first);
         long docId = documentIds.getLong(docIndex);
         if(queryExecutor.getLatestDocument() < 0 ||
            queryExecutor.getLatestDocument() >= docId) {
@@ -136,9 +292,9 @@ public class RankingQueryRunnerImpl implements QueryRunner {
                   queryEngine);
           oldExecutor.close();
         }
-        for(long i = start; i < end; i++) {
+        for(long i = first; i < last; i++) {
           docIndex = (documentIndexes != null ? 
-              documentIndexes[(int)(i - start)] : i);
+              documentIndexes[(int)(i - first)] : i);
           docId = documentIds.getLong(docIndex);
           // don't need to check for deletion here as we know for sure that this
           // doc ID is ok.  The only exception would be if it was deleted since
@@ -203,8 +359,32 @@ public class RankingQueryRunnerImpl implements QueryRunner {
     @Override
     public void run() {
       try{
+        if(cachedResults != null) {
+          collectCached();
+          return;
+        }
+        if(documentRangeStarts != null) {
+          collectRanges();
+          return;
+        }
         // collect all documents and their scores
+        RecordedHits recorder = null;
+        if(recordingHits()) {
+          recorder = new RecordedHits(queryEngine.getRecordedHitsLimit());
+          queryExecutor = recorder.record(queryExecutor);
+        }
         if(ranking) scorer.wrap(queryExecutor);
+        if(ranking && rankingLimit > 0) {
+          // only keep the best documents
+          TopScores top = new TopScores(rankingLimit);
+          matchingDocumentsCount = collectTopScores(queryExecutor, scorer, 0, 
+              Long.MAX_VALUE, top);
+          addTopDocuments(top);
+          storeResults();
+          allDocIdsCollected = true;
+          rankDocuments(docBlockSize -1);
+          return;
+        }
         long docId = nextNotDeleted();
         while(docId >= 0) {
           // enlarge the hits list
@@ -213,7 +393,7 @@ public class RankingQueryRunnerImpl implements QueryRunner {
             documentHits.add(null);
           } else {
             // not scoring: also collect the hits for the first block of documents
-            if(docId < docBlockSize) {
+            if(documentHits.size64() < docBlockSize) {
               ObjectList<Binding> hits = new ObjectArrayList<Binding>();
               Binding hit = queryExecutor.nextHit();
               while(hit != null) {
@@ -227,8 +407,11 @@ public class RankingQueryRunnerImpl implements QueryRunner {
           }
           // and store the new doc ID
           documentIds.add(docId);
+          matchingDocumentsCount++;
           docId = nextNotDeleted();
         }
+        if(recorder != null) recordedHits = new RecordedHits[]{recorder};
+        storeResults();
         allDocIdsCollected = true;
         if(ranking) {
           // now rank the first batch of documents
@@ -247,6 +430,234 @@ public class RankingQueryRunnerImpl implements QueryRunner {
         }
       }
     }
+    
+    /**
+     * Collects the results for all the ranges of document IDs in parallel, 
+     * and appends them to the results lists in document ID order.
+     * @throws Exception
+     */
+    protected void collectRanges() throws Exception {
+      List<FutureTask<RangeCollector>> rangeTasks = 
+          new ObjectArrayList<FutureTask<RangeCollector>>();
+      RecordedHits[] rangeRecorders = null;
+      if(recordingHits()) {
+        rangeRecorders = new RecordedHits[documentRangeStarts.length];
+        for(int i = 0; i < rangeRecorders.length; i++) {
+          rangeRecorders[i] = new RecordedHits(
+              queryEngine.getRecordedHitsLimit() / rangeRecorders.length);
+        }
+      }
+      for(int i = 0; i < documentRangeStarts.length; i++) {
+        long rangeEnd = i < documentRangeStarts.length - 1 ? 
+            documentRangeStarts[i + 1] : Long.MAX_VALUE;
+        FutureTask<RangeCollector> task = new FutureTask<RangeCollector>(
+            new RangeCollector(documentRangeStarts[i], rangeEnd, i == 0, 
+                rangeRecorders != null ? rangeRecorders[i] : null));
+        rangeTasks.add(task);
+        // the first range is collected by this thread
+        if(i == 0) continue;
+        if(queryEngine.getExecutor() != null) {
+          try {
+            queryEngine.getExecutor().execute(task);
+          } catch(RejectedExecutionException e) {
+            // this thread will run it when it gets there
+          }
+        } else {
+          Thread theThread = new Thread(task, 
+              RankingQueryRunnerImpl.class.getName());
+          theThread.setDaemon(true);
+          theThread.start();
+        }
+      }
+      TopScores top = ranking && rankingLimit > 0 ? 
+          new TopScores(rankingLimit) : null;
+      for(FutureTask<RangeCollector> task : rangeTasks) {
+        // runs the task here if no other thread has started it yet, so we 
+        // never wait for a busy executor
+        task.run();
+        RangeCollector range;
+        try {
+          range = task.get();
+        } catch(ExecutionException e) {
+          if(e.getCause() instanceof Exception) throw (Exception)e.getCause();
+          throw e;
+        }
+        if(closed) return;
+        matchingDocumentsCount += range.matchingDocumentsCount;
+        if(top != null) {
+          for(int i = 0; i < range.documentIds.size(); i++) {
+            top.offer(range.documentIds.getLong(i), 
+                range.documentScores.getDouble(i));
+          }
+          continue;
+        }
+        for(int i = 0; i < range.documentIds.size(); i++) {
+          if(ranking) {
+            documentScores.add(range.documentScores.getDouble(i));
+            documentHits.add(null);
+          } else {
+            documentHits.add(documentHits.size64() < docBlockSize ? 
+                range.documentHits.get(i) : null);
+          }
+          documentIds.add(range.documentIds.getLong(i));
+        }
+      }
+      if(top != null) addTopDocuments(top);
+      recordedHits = rangeRecorders;
+      storeResults();
+      allDocIdsCollected = true;
+      if(ranking) rankDocuments(docBlockSize -1);
+    }
+    
+    /**
+     * Uses the results found in the cache, skipping the documents deleted 
+     * since they were cached. When not ranking, the documents added since 
+     * are also searched, and the cache is updated to include them.
+     * @throws IOException
+     */
+    protected void collectCached() throws IOException {
+      long[] cachedIds = cachedResults.getDocumentIds();
+      double[] cachedScores = cachedResults.getDocumentScores();
+      long deletedCount = 0;
+      for(int i = 0; i < cachedIds.length; i++) {
+        if(queryEngine.getIndex().isDeleted(cachedIds[i])) {
+          deletedCount++;
+          continue;
+        }
+        if(ranking) documentScores.add(cachedScores[i]);
+        documentHits.add(null);
+        documentIds.add(cachedIds[i]);
+      }
+      matchingDocumentsCount = 
+          cachedResults.getMatchingDocumentsCount() - deletedCount;
+      if(!ranking && cachedResults.getDocumentsEnd() < documentsEnd) {
+        // search the documents added since the results were cached
+        long docId = queryExecutor.nextDocument(
+            cachedResults.getDocumentsEnd() - 1);
+        while(docId >= 0 && !closed) {
+          if(!queryEngine.getIndex().isDeleted(docId)) {
+            documentHits.add(null);
+            documentIds.add(docId);
+            matchingDocumentsCount++;
+          }
+          docId = queryExecutor.nextDocument(-1);
+        }
+        storeResults();
+      }
+      allDocIdsCollected = true;
+      if(ranking) {
+        rankDocuments(docBlockSize -1);
+      } else if(documentIds.size64() > 0) {
+        // this task is also responsible for the hits of the first block
+        new HitsCollector(0, Math.min(docBlockSize, 
+            documentIds.size64())).run();
+      }
+    }
+  }
+  
+  /**
+   * Collects the IDs of the matching documents in a range of document IDs, 
+   * together with their scores (when ranking) or the hits for the first 
+   * block of documents in the range (when not ranking), using its own 
+   * {@link QueryExecutor}. Used when the query is searched in parallel (see
+   * {@link QueryEngine#setParallelism(int)}).
+   */
+  protected class RangeCollector implements Callable<RangeCollector> {
+    /**
+     * The first document ID in the range.
+     */
+    protected long start;
+    
+    /**
+     * The end of the range (exclusive).
+     */
+    protected long end;
+    
+    /**
+     * Should this range use the query runner's own executor and scorer?
+     */
+    protected boolean sharedExecutor;
+    
+    /**
+     * Where the hits of the documents in this range are recorded, or 
+     * <code>null</code>.
+     */
+    protected RecordedHits recorder;
+    
+    protected LongArrayList documentIds = new LongArrayList();
+    
+    protected DoubleArrayList documentScores = new DoubleArrayList();
+    
+    protected ObjectArrayList<List<Binding>> documentHits = 
+        new ObjectArrayList<List<Binding>>();
+    
+    /**
+     * The number of matching documents in the range, which may be more than 
+     * the number of documents kept, if a ranking limit is used.
+     */
+    protected long matchingDocumentsCount = 0;
+    
+    public RangeCollector(long start, long end, boolean sharedExecutor, 
+        RecordedHits recorder) {
+      this.start = start;
+      this.end = end;
+      this.sharedExecutor = sharedExecutor;
+      this.recorder = recorder;
+    }
+    
+    @Override
+    public RangeCollector call() throws Exception {
+      if(closed) return this;
+      QueryExecutor executor = sharedExecutor ? queryExecutor : 
+          queryExecutor.getQueryNode().getQueryExecutor(queryEngine);
+      if(recorder != null) executor = recorder.record(executor);
+      try {
+        MimirScorer rangeScorer = null;
+        if(ranking) {
+          rangeScorer = sharedExecutor ? scorer : 
+              queryEngine.getScorerSource().call();
+          rangeScorer.wrap(executor);
+        }
+        if(ranking && rankingLimit > 0) {
+          TopScores top = new TopScores(rankingLimit);
+          matchingDocumentsCount = collectTopScores(executor, rangeScorer, 
+              start, end, top);
+          double[] topScores = new double[top.size()];
+          long[] topIds = top.drain(topScores);
+          for(int i = 0; i < topIds.length; i++) {
+            documentIds.add(topIds[i]);
+            documentScores.add(topScores[i]);
+          }
+          return this;
+        }
+        long docId = ranking ? rangeScorer.nextDocument(start - 1) : 
+            executor.nextDocument(start - 1);
+        while(docId >= 0 && docId < end && !closed) {
+          if(!queryEngine.getIndex().isDeleted(docId)) {
+            matchingDocumentsCount++;
+            if(ranking) {
+              documentScores.add(rangeScorer.score());
+            } else if(documentHits.size() < docBlockSize) {
+              List<Binding> hits = new ObjectArrayList<Binding>();
+              Binding hit = executor.nextHit();
+              while(hit != null) {
+                hits.add(hit);
+                hit = executor.nextHit();
+              }
+              documentHits.add(hits);
+            } else {
+              documentHits.add(null);
+            }
+            documentIds.add(docId);
+          }
+          docId = ranking ? rangeScorer.nextDocument(-1) : 
+              executor.nextDocument(-1);
+        }
+      } finally {
+        if(!sharedExecutor) executor.close();
+      }
+      return this;
+    }
   }
   
   /**
@@ -335,6 +746,63 @@ public class RankingQueryRunnerImpl implements QueryRunner {
    */
   protected volatile FutureTask<Object> docIdCollectorFuture;
   
+  /**
+   * The first document ID of each of the ranges searched in parallel, or 
+   * <code>null</code> if the documents are searched sequentially.
+   */
+  protected long[] documentRangeStarts;
+  
+  /**
+   * When ranking, the maximum number of (best scoring) documents kept, or 0 
+   * if all matching documents are kept.
+   * @see QueryEngine#setRankingLimit(int)
+   */
+  protected int rankingLimit;
+  
+  /**
+   * The hits recorded while the documents were scored (one store for each 
+   * range of document IDs), or <code>null</code> if hits are not recorded.
+   * Set once all the document IDs have been collected.
+   * @see QueryEngine#setRecordedHitsLimit(long)
+   */
+  protected volatile RecordedHits[] recordedHits;
+  
+  /**
+   * The cache the results of this query are stored in, or <code>null</code>.
+   * @see QueryEngine#setQueryResultsCacheSize(long)
+   */
+  protected QueryResultsCache resultsCache;
+  
+  /**
+   * The key of this query in the {@link #resultsCache}.
+   */
+  protected ByteArrayList resultsCacheKey;
+  
+  /**
+   * The generation of the {@link #resultsCache} when this query was started.
+   */
+  protected long resultsCacheGeneration;
+  
+  /**
+   * The results of this query found in the {@link #resultsCache}, or 
+   * <code>null</code> if the query needs to be run.
+   */
+  protected QueryResultsCache.QueryResults cachedResults;
+  
+  /**
+   * The number of documents in the index when this query was started, read
+   * before the query executor was created. Only the documents with smaller 
+   * IDs are stored in the {@link #resultsCache}, as later documents may 
+   * have been added while the query was running, and may or may not have 
+   * been seen by the executor.
+   */
+  protected long documentsEnd;
+  
+  /**
+   * The number of documents found to match the query so far.
+   */
+  protected volatile long matchingDocumentsCount = 0;
+  
   /**
    * Internal flag used to mark when this query runner has been closed.
    */
@@ -348,12 +816,75 @@ public class RankingQueryRunnerImpl implements QueryRunner {
    * @throws IOException
    */
   public RankingQueryRunnerImpl(QueryExecutor executor, MimirScorer scorer) throws IOException {
+    this(executor, scorer, null);
+  }
+  
+  /**
+   * Creates a query runner that searches several ranges of document IDs in 
+   * parallel.
+   * @param executor the {@link QueryExecutor} for the query being executed,
+   * which is used for the first range. The other ranges use new executors 
+   * for the same query.
+   * @param scorer the {@link MimirScorer} to use for ranking, or 
+   * <code>null</code>. The other ranges use new scorers, obtained from the
+   * {@link QueryEngine#getScorerSource()}.
+   * @param documentRangeStarts the first document ID of each range, in 
+   * increasing order (the last range is open-ended). If <code>null</code>, 
+   * the documents are searched sequentially.
+   * @throws IOException
+   */
+  public RankingQueryRunnerImpl(QueryExecutor executor, MimirScorer scorer, 
+      long[] documentRangeStarts) throws IOException {
+    this(executor, scorer, documentRangeStarts, null, null, 0);
+  }
+  
+  /**
+   * Creates a query runner that uses (and updates) a cache of query results.
+   * @param executor the {@link QueryExecutor} for the query being executed.
+   * @param scorer the {@link MimirScorer} to use for ranking, or 
+   * <code>null</code>.
+   * @param documentRangeStarts the first document ID of each range searched
+   * in parallel, or <code>null</code>.
+   * @param resultsCache the cache of query results, or <code>null</code>.
+   * @param resultsCacheKey the key of the query in the cache (see 
+   * {@link QueryResultsCache#getKey(QueryNode)}).
+   * @param documentsEnd the number of documents in the index, read before 
+   * the executor was created (so the executor searches at least these 
+   * documents). Only used with the cache: see {@link #documentsEnd}.
+   * @throws IOException
+   */
+  public RankingQueryRunnerImpl(QueryExecutor executor, MimirScorer scorer, 
+      long[] documentRangeStarts, QueryResultsCache resultsCache, 
+      ByteArrayList resultsCacheKey, long documentsEnd) throws IOException {
     this.queryExecutor = executor;
     this.scorer = scorer;
     this.closed = false;
     ranking = scorer != null;
     queryEngine = queryExecutor.getQueryEngine();
     docBlockSize = queryEngine.getDocumentBlockSize();
+    rankingLimit = queryEngine.getRankingLimit();
+    if(documentRangeStarts != null && documentRangeStarts.length > 1 &&
+       (!ranking || queryEngine.getScorerSource() != null)) {
+      this.documentRangeStarts = documentRangeStarts;
+    }
+    // with a ranking limit, only the best documents are kept (and, with a 
+    // bounded scorer, the matching documents count is only a lower bound), 
+    // so the results cannot be cached, or be found from cached results
+    if(resultsCache != null && resultsCacheKey != null && 
+       !(ranking && rankingLimit > 0)) {
+      this.resultsCache = resultsCache;
+      this.resultsCacheKey = resultsCacheKey;
+      resultsCacheGeneration = resultsCache.getGeneration();
+      this.documentsEnd = documentsEnd;
+      cachedResults = resultsCache.get(resultsCacheKey);
+      // the scores of ranked results change when documents are added
+      if(cachedResults != null && 
+         ((cachedResults.getDocumentScores() != null) != ranking ||
+          (ranking && cachedResults.getDocumentsEnd() != documentsEnd) ||
+          cachedResults.getDocumentsEnd() > documentsEnd)) {
+        cachedResults = null;
+      }
+    }
     documentIds = new LongBigArrayBigList();
     documentHits = new ObjectBigArrayBigList<List<Binding>>();
     if(scorer != null) {
@@ -438,6 +969,20 @@ public class RankingQueryRunnerImpl implements QueryRunner {
     return documentIds.size64();
   }
   
+  /**
+   * Gets the number of documents found to match the query so far. This is 
+   * the same as {@link #getDocumentsCurrentCount()}, unless a ranking limit
+   * is used (see {@link QueryEngine#setRankingLimit(int)}), in which case 
+   * only the best documents are returned, but all the matching documents are
+   * counted. When the scorer allows documents that cannot make it into the
+   * best ones to be skipped (see {@link BoundedScorer}), the skipped 
+   * documents are not counted, so this is only a lower bound.
+   * @return
+   */
+  public long getMatchingDocumentsCount() {
+    return matchingDocumentsCount;
+  }
+  
   /* (non-Javadoc)
    * @see gate.mimir.search.QueryRunner#getDocumentID(int)
    */
@@ -453,6 +998,72 @@ public class RankingQueryRunnerImpl implements QueryRunner {
         DEFAULT_SCORE;
   }
 
+  /* (non-Javadoc)
+   * @see gate.mimir.search.QueryRunner#getDocumentsAfter(double, long, int)
+   */
+  @Override
+  public DocumentsPage getDocumentsAfter(double afterScore, 
+      long afterDocumentId, int size) throws IOException {
+    if(!ranking) {
+      // all documents have the same score, and are in ID order (which is 
+      // also the order they are added in): only wait if we do not have 
+      // enough of them yet
+      long documentCount = documentIds.size64();
+      long first;
+      if(afterScore > DEFAULT_SCORE) first = 0;
+      else if(afterScore == DEFAULT_SCORE) {
+        first = findFirstIndexAfter(afterDocumentId, documentCount);
+      } else first = Long.MAX_VALUE;
+      if(first < Long.MAX_VALUE && !allDocIdsCollected && 
+         documentCount - first < size) {
+        getDocumentsCountSync();
+        documentCount = documentIds.size64();
+      }
+      int pageSize = (int)Math.max(0, Math.min(size, documentCount - first));
+      long[] pageIds = new long[pageSize];
+      double[] pageScores = new double[pageSize];
+      for(int i = 0; i < pageSize; i++) {
+        pageIds[i] = documentIds.getLong(first + i);
+        pageScores[i] = DEFAULT_SCORE;
+      }
+      return new DocumentsPage(pageIds, pageScores);
+    }
+    getDocumentsCountSync();
+    long documentCount = documentIds.size64();
+    // one pass over all the documents, keeping the best ones after the key
+    TopScores top = new TopScores((int)Math.min(size, documentCount));
+    for(long i = 0; i < documentCount; i++) {
+      long documentId = documentIds.getLong(i);
+      double documentScore = documentScores.getDouble(i);
+      if(documentScore > afterScore || 
+         (documentScore == afterScore && documentId <= afterDocumentId)) {
+        continue;
+      }
+      top.offer(documentId, documentScore);
+    }
+    double[] pageScores = new double[top.size()];
+    long[] pageIds = top.drain(pageScores);
+    return new DocumentsPage(pageIds, pageScores);
+  }
+  
+  /**
+   * Finds the index in {@link #documentIds} of the first document with an ID
+   * larger than the given one.
+   * @param documentId
+   * @param documentCount the number of document IDs to search.
+   * @return
+   */
+  protected long findFirstIndexAfter(long documentId, long documentCount) {
+    long low = 0;
+    long high = documentCount;
+    while(low < high) {
+      long mid = (low + high) >>> 1;
+      if(documentIds.getLong(mid) <= documentId) low = mid + 1;
+      else high = mid;
+    }
+    return low;
+  }
+
   /* (non-Javadoc)
    * @see gate.mimir.search.QueryRunner#getDocumentHits(int)
    */
@@ -506,7 +1117,9 @@ public class RankingQueryRunnerImpl implements QueryRunner {
    * {@link #documentsOrder} list, making sure that the document at provided 
    * rank is included (if such a document exists). If the provided rank is 
    * larger than the number of result documents, then all documents will be
-   * ranked before this method returns. 
+   * ranked before this method returns. The next documents are selected with
+   * a bounded heap, so each call takes O(n log k) time for n documents and a 
+   * block of k ranks. 
    * This is the only method that writes to the {@link #documentsOrder} list.
    * This method is executed synchronously in the client thread.
    *  
@@ -524,46 +1137,29 @@ public class RankingQueryRunnerImpl implements QueryRunner {
         // extend the size of the chunk of documents to be ranked
         rankRangeEnd = rankRangeStart + docBlockSize; 
       }
-      // the document with the minimum score already ranked.
-      long smallestOldScoreDocId = rankRangeStart > 0 ? 
-        documentIds.getLong(documentsOrder.getLong(rankRangeStart -1))
-        : -1;
-      // the score for the document above, which is a the upper limit for new scores
-      double smallestOldScore = rankRangeStart > 0 ? 
-          documentScores.getDouble(documentsOrder.getLong(rankRangeStart -1))
-          : Double.POSITIVE_INFINITY;
+      long documentCount = documentIds.size64();
+      rankRangeEnd = Math.min(rankRangeEnd, documentCount);
+      if(rankRangeEnd <= rankRangeStart) return;
+      // the last document already ranked, and its score, which is the upper
+      // limit for new scores
+      long lastRankedIndex = rankRangeStart > 0 ? 
+          documentsOrder.getLong(rankRangeStart -1) : -1;
+      double lastRankedScore = rankRangeStart > 0 ? 
+          documentScores.getDouble(lastRankedIndex) : Double.POSITIVE_INFINITY;
       // now collect some more documents
-      for(long i = 0; i < documentIds.size64(); i++) {
-        long documentId = documentIds.getLong(i);
+      TopScores top = new TopScores((int)(rankRangeEnd - rankRangeStart));
+      for(long i = 0; i < documentCount; i++) {
         double documentScore = documentScores.getDouble(i);
-        // the index for the document with the smallest score, 
-        // from the new ones being ranked 
-        long smallestDocIndex = rankRangeStart < documentsOrder.size64() ?
-            documentsOrder.getLong(rankRangeStart) : -1;
-        // the smallest score that's been seen in this new round 
-        double smallestNewScore = smallestDocIndex == -1 ? Double.NEGATIVE_INFINITY : 
-            documentScores.getDouble(smallestDocIndex);
-        // we care about this new document if:
-        // - we haven't collected enough documents yet, or
-        // - it has a better score than the smallest score so far, but a 
-        // smaller score than the maximum permitted score (i.e. it has not 
-        // already been ranked)., or
-        // - it's a new document (i.e. with an ID strictly larger) with the same 
-        // score as the largest permitted score
-        if(documentsOrder.size64() < rankRangeEnd
-           || 
-           (documentScore > smallestNewScore && documentScore < smallestOldScore) 
-           ||
-           (documentScore == smallestOldScore && documentId > smallestOldScoreDocId)
-           ) {
-          // find the rank for the new doc in the documentsOrder list, and insert
-          documentsOrder.add(findRank(documentScore, rankRangeStart, 
-              documentsOrder.size64()), i);
-          // if we have too many documents, drop the lowest scoring one
-          if(documentsOrder.size64() > rankRangeEnd) {
-            documentsOrder.removeLong(documentsOrder.size64() - 1);
-          }          
+        // skip the documents that have already been ranked: those with a 
+        // better score, or the same score and a smaller ID
+        if(documentScore > lastRankedScore || 
+           (documentScore == lastRankedScore && i <= lastRankedIndex)) {
+          continue;
         }
+        top.offer(i, documentScore);
+      }
+      for(long documentIndex : top.drain(null)) {
+        documentsOrder.add(documentIndex);
       }
       // start collecting the hits for the newly ranked documents (in a new thread)
       if(documentsOrder.size64() > rankRangeStart){
@@ -573,39 +1169,236 @@ public class RankingQueryRunnerImpl implements QueryRunner {
   }
   
   /**
-   * Given a document score, finds the correct insertion point into the 
-   * {@link #documentsOrder} list, within a given range of ranks.
-   * This method performs binary search followed by a linear scan so that the 
-   * returned insertion point is the largest correct one (i.e. later documents 
-   * with the same score get sorted after earlier ones, thus keeping the sorting
-   * stable).
-   *      
-   * @param documentScore the score for the new document.
-   * @param start the start of the search range within {@link #documentsOrder} 
-   * @param end the end of the search range within {@link #documentsOrder} 
-   * @return the largest correct insertion point
-   */
-  protected long findRank(double documentScore, long start, long end) {
-    // standard binary search
-    double midVal;
-    end--;
-    while (start <= end) {
-     long mid = (start + end) >>> 1;
-     midVal = documentScores.getDouble(documentsOrder.getLong(mid));
-     // note that the documentOrder list is in decreasing score order!
-     if (midVal > documentScore) start = mid + 1;
-     else if (midVal < documentScore) end = mid - 1;
-     else {
-       // we found a doc with exactly the same score: scan to the right
-       while(documentsOrder.size64() < mid && 
-             documentScores.getDouble(documentsOrder.getLong(mid)) == 
-           documentScore){
-         mid++;
-       }
-       return mid;
-     }
-    }
-    return start;
+   * Should the hits be recorded while the documents are first scored? This
+   * is only useful when ranking all the documents (when not ranking, the
+   * hits are collected in document order anyway), and is not supported for
+   * hits with sub-bindings.
+   * @return
+   */
+  protected boolean recordingHits() {
+    return ranking && rankingLimit <= 0 &&
+        !queryEngine.isSubBindingsEnabled() &&
+        queryEngine.getRecordedHitsLimit() > 0;
+  }
+
+  /**
+   * Gets the recorded hits for a document.
+   * @param documentId
+   * @return the hits, or <code>null</code> if they were not recorded.
+   */
+  protected List<Binding> getRecordedHits(long documentId) {
+    RecordedHits[] recorders = recordedHits;
+    if(recorders == null) return null;
+    for(RecordedHits aRecorder : recorders) {
+      List<Binding> hits = aRecorder.getHits(documentId);
+      if(hits != null) return hits;
+    }
+    return null;
+  }
+
+  /**
+   * Stores the documents found in the {@link #resultsCache}, once all have
+   * been collected. Only the documents with IDs smaller than 
+   * {@link #documentsEnd} are stored.
+   */
+  protected void storeResults() {
+    if(resultsCache == null || closed) return;
+    LongArrayList ids = new LongArrayList();
+    DoubleArrayList scores = ranking ? new DoubleArrayList() : null;
+    for(long i = 0; i < documentIds.size64(); i++) {
+      long docId = documentIds.getLong(i);
+      if(docId >= documentsEnd) break;
+      ids.add(docId);
+      if(ranking) scores.add(documentScores.getDouble(i));
+    }
+    long matchingCount = matchingDocumentsCount - 
+        (documentIds.size64() - ids.size());
+    resultsCache.put(resultsCacheKey, new QueryResultsCache.QueryResults(
+        ids.toLongArray(), ranking ? scores.toDoubleArray() : null, 
+        matchingCount, documentsEnd), resultsCacheGeneration);
+  }
+  
+  /**
+   * Scores the documents matching the query in a range of document IDs, 
+   * keeping the best ones. 
+   * 
+   * If the query is a term, or a disjunction of terms, and the scorer can 
+   * bound the score added by each term (see {@link BoundedScorer}), the 
+   * documents that cannot score higher than the worst one kept are skipped 
+   * without being scored (the MaxScore algorithm). Once the bounds of the 
+   * least significant terms add up to no more than that score, a document 
+   * matching none of the other terms cannot make it, so candidate documents 
+   * are only taken from the other terms, and the query executor skips 
+   * ahead to them.
+   * 
+   * @param executor the query executor wrapped by the scorer.
+   * @param rangeScorer the scorer.
+   * @param start the first document ID in the range.
+   * @param end the end of the range (exclusive).
+   * @param top where the best documents are kept.
+   * @return the number of matching documents found. When documents are 
+   * skipped, those matching only the least significant terms are not 
+   * counted.
+   * @throws IOException
+   */
+  protected long collectTopScores(QueryExecutor executor, 
+      MimirScorer rangeScorer, long start, long end, TopScores top) 
+      throws IOException {
+    Reference2DoubleMap<QueryNode> termBounds = 
+        getTermBounds(executor, rangeScorer);
+    long count = 0;
+    if(termBounds == null || termBounds.size() == 1) {
+      // score every document, but stop once the only term's bound is no
+      // higher than the worst score kept
+      double maxScore = termBounds != null ? 
+          termBounds.values().iterator().nextDouble() : 
+          Double.POSITIVE_INFINITY;
+      long docId = rangeScorer.nextDocument(start - 1);
+      while(docId >= 0 && docId < end && !closed) {
+        if(top.isFull() && maxScore <= top.getMinScore()) break;
+        if(!queryEngine.getIndex().isDeleted(docId)) {
+          count++;
+          top.offer(docId, rangeScorer.score());
+        }
+        docId = rangeScorer.nextDocument(-1);
+      }
+      return count;
+    }
+    // sort the terms by increasing bound
+    final QueryNode[] terms = termBounds.keySet().toArray(
+        new QueryNode[termBounds.size()]);
+    final double[] bounds = new double[terms.length];
+    for(int i = 0; i < terms.length; i++) {
+      bounds[i] = termBounds.getDouble(terms[i]);
+    }
+    int[] order = new int[terms.length];
+    for(int i = 0; i < order.length; i++) order[i] = i;
+    IntArrays.quickSort(order, new AbstractIntComparator() {
+      @Override
+      public int compare(int k1, int k2) {
+        return Double.compare(bounds[k1], bounds[k2]);
+      }
+    });
+    // separate executors, which find the candidate documents
+    QueryExecutor[] termExecutors = new QueryExecutor[terms.length];
+    long[] termDocuments = new long[terms.length];
+    // the sum of the bounds of each term and all the ones before it
+    double[] boundSums = new double[terms.length];
+    try {
+      for(int i = 0; i < terms.length; i++) {
+        termExecutors[i] = terms[order[i]].getQueryExecutor(queryEngine);
+        termDocuments[i] = termExecutors[i].nextDocument(start - 1);
+        boundSums[i] = (i > 0 ? boundSums[i - 1] : 0) + bounds[order[i]];
+      }
+      // the first term that can still find documents good enough on its own
+      int essential = 0;
+      long scorerDocument = start - 1;
+      while(!closed) {
+        double minScore = top.isFull() ? top.getMinScore() : 
+            Double.NEGATIVE_INFINITY;
+        while(essential < terms.length && boundSums[essential] <= minScore) {
+          essential++;
+        }
+        long candidate = -1;
+        for(int i = essential; i < terms.length; i++) {
+          if(termDocuments[i] >= 0 && 
+             (candidate < 0 || termDocuments[i] < candidate)) {
+            candidate = termDocuments[i];
+          }
+        }
+        if(candidate < 0 || candidate >= end) break;
+        double maxScore = essential > 0 ? boundSums[essential - 1] : 0;
+        for(int i = essential; i < terms.length; i++) {
+          if(termDocuments[i] == candidate) {
+            maxScore += bounds[order[i]];
+            termDocuments[i] = termExecutors[i].nextDocument(candidate);
+          }
+        }
+        if(queryEngine.getIndex().isDeleted(candidate)) continue;
+        if(scorerDocument < candidate) {
+          scorerDocument = rangeScorer.nextDocument(candidate - 1);
+          // the scorer's executor may not see documents added since it was 
+          // created
+          if(scorerDocument < 0) break;
+        }
+        if(scorerDocument != candidate) continue;
+        count++;
+        if(maxScore > minScore) top.offer(candidate, rangeScorer.score());
+      }
+    } finally {
+      for(QueryExecutor aTermExecutor : termExecutors) {
+        if(aTermExecutor != null) aTermExecutor.close();
+      }
+    }
+    return count;
+  }
+  
+  /**
+   * Gets the score bounds for the terms of the query, if the query is a 
+   * term, or a disjunction of terms, and the scorer is a 
+   * {@link BoundedScorer}. The bounds are obtained from the term executors 
+   * found in the executor wrapped by the scorer, so they use the same index
+   * statistics as the scorer. 
+   * @param executor the query executor wrapped by the scorer.
+   * @param rangeScorer the scorer.
+   * @return the bound of each term query, or <code>null</code> if the bounds
+   * are not known. Terms with no matching documents are not included.
+   * @throws IOException
+   */
+  protected Reference2DoubleMap<QueryNode> getTermBounds(
+      QueryExecutor executor, MimirScorer rangeScorer) throws IOException {
+    if(!(rangeScorer instanceof BoundedScorer)) return null;
+    QueryNode node = queryExecutor.getQueryNode();
+    if(node instanceof OrQuery) {
+      for(QueryNode aNode : ((OrQuery)node).getNodes()) {
+        if(!(aNode instanceof TermQuery)) return null;
+      }
+    } else if(!(node instanceof TermQuery)) {
+      return null;
+    }
+    final BoundedScorer boundedScorer = (BoundedScorer)rangeScorer;
+    final Reference2DoubleOpenHashMap<QueryNode> bounds = 
+        new Reference2DoubleOpenHashMap<QueryNode>();
+    Boolean found = executor.accept(new AbstractDocumentIteratorVisitor() {
+      @Override
+      public Boolean visit(IndexIterator term) throws IOException {
+        if(!(term instanceof QueryExecutor)) return null;
+        // a term repeated in the query adds up its bound
+        QueryNode termNode = ((QueryExecutor)term).getQueryNode();
+        bounds.put(termNode, bounds.getDouble(termNode) + 
+            boundedScorer.getMaxScore(term));
+        return Boolean.TRUE;
+      }
+    });
+    if(found == null || bounds.isEmpty()) return null;
+    for(double aBound : bounds.values()) {
+      if(Double.isNaN(aBound) || Double.isInfinite(aBound)) return null;
+    }
+    return bounds;
+  }
+  
+  /**
+   * Stores the documents kept when a ranking limit is used, in document ID 
+   * order.
+   * @param top
+   */
+  protected void addTopDocuments(TopScores top) {
+    double[] topScores = new double[top.size()];
+    long[] topIds = top.drain(topScores);
+    int[] order = new int[topIds.length];
+    for(int i = 0; i < order.length; i++) order[i] = i;
+    final long[] ids = topIds;
+    IntArrays.quickSort(order, new AbstractIntComparator() {
+      @Override
+      public int compare(int k1, int k2) {
+        return Long.compare(ids[k1], ids[k2]);
+      }
+    });
+    for(int i : order) {
+      documentScores.add(topScores[i]);
+      documentHits.add(null);
+      documentIds.add(topIds[i]);
+    }
   }
   
   /**
@@ -0,0 +1,314 @@
+/*
+ *  RecordedHits.java
+ *
+ *  Copyright (c) 2007-2026, The University of Sheffield.
+ *
+ *  This file is part of GATE Mímir (see http://gate.ac.uk/family/mimir.html),
+ *  and is free software, licenced under the GNU Lesser General Public License,
+ *  Version 3, June 2007 (also included with this distribution as file
+ *  LICENCE-LGPL3.html).
+ *
+ *  $Id$
+ */
+package gate.mimir.search;
+
+import gate.mimir.search.query.AbstractQueryExecutor;
+import gate.mimir.search.query.Binding;
+import gate.mimir.search.query.QueryExecutor;
+import gate.mimir.search.query.QueryNode;
+import it.unimi.di.big.mg4j.index.Index;
+import it.unimi.di.big.mg4j.search.DocumentIterator;
+import it.unimi.di.big.mg4j.search.IntervalIterator;
+import it.unimi.di.big.mg4j.search.visitor.DocumentIteratorVisitor;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntBigArrayBigList;
+import it.unimi.dsi.fastutil.longs.LongBigArrayBigList;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import it.unimi.dsi.fastutil.objects.Reference2ReferenceMap;
+import it.unimi.dsi.fastutil.objects.ReferenceSet;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * A compact store for the hits of the documents found by a query, recorded
+ * while the documents are first enumerated (see {@link #record(QueryExecutor)}),
+ * so that they can later be returned in any order without running the query
+ * again. Each hit takes 3 ints (the term position, the length, and the query
+ * node). Hits with sub-bindings are not supported.
+ *
+ * The number of hits stored is limited: once the limit is reached, no more
+ * documents are added, so the store then contains the hits for a prefix of
+ * the documents.
+ */
+public class RecordedHits {
+
+  /**
+   * An executor that passes through all the calls to an underlying executor,
+   * and records all the hits of each document it visits. Hits not requested
+   * by the client are read when moving to the next document.
+   */
+  protected class Recorder extends AbstractQueryExecutor {
+
+    protected QueryExecutor underlyingExecutor;
+
+    /**
+     * The hits recorded so far for the current document.
+     */
+    protected IntArrayList documentHits;
+
+    /**
+     * Are the hits of the current document being recorded?
+     */
+    protected boolean recording;
+
+    protected Recorder(QueryExecutor underlyingExecutor) {
+      super(underlyingExecutor.getQueryEngine(),
+          underlyingExecutor.getQueryNode());
+      this.underlyingExecutor = underlyingExecutor;
+      documentHits = new IntArrayList();
+      recording = false;
+    }
+
+    @Override
+    public long nextDocument(long greaterThan) throws IOException {
+      if(recording) {
+        // read the remaining hits of the current document
+        Binding hit = underlyingExecutor.nextHit();
+        while(hit != null && recording) {
+          recordHit(hit);
+          hit = underlyingExecutor.nextHit();
+        }
+        finishDocument();
+      }
+      latestDocument = underlyingExecutor.nextDocument(greaterThan);
+      recording = latestDocument >= 0 && !isFull();
+      return latestDocument;
+    }
+
+    @Override
+    public Binding nextHit() throws IOException {
+      Binding hit = underlyingExecutor.nextHit();
+      if(recording) {
+        if(hit != null) recordHit(hit);
+        else finishDocument();
+      }
+      return hit;
+    }
+
+    protected void recordHit(Binding hit) {
+      if(hit.getContainedBindings() != null) {
+        // not supported: stop recording
+        recording = false;
+        documentHits.clear();
+        setFull();
+      } else {
+        documentHits.add(hit.getTermPosition());
+        documentHits.add(hit.getLength());
+        documentHits.add(getQueryNodeIndex(hit.getQueryNode()));
+      }
+    }
+
+    protected void finishDocument() {
+      if(recording) addDocument(latestDocument, documentHits);
+      recording = false;
+      documentHits.clear();
+    }
+
+    @Override
+    public void close() throws IOException {
+      super.close();
+      underlyingExecutor.close();
+    }
+
+    @Override
+    public ReferenceSet<Index> indices() {
+      return underlyingExecutor.indices();
+    }
+
+    @Override
+    public <T> T accept(DocumentIteratorVisitor<T> visitor) throws IOException {
+      return underlyingExecutor.accept(visitor);
+    }
+
+    @Override
+    public <T> T acceptOnTruePaths(DocumentIteratorVisitor<T> visitor)
+      throws IOException {
+      return underlyingExecutor.acceptOnTruePaths(visitor);
+    }
+
+    @Override
+    public IntervalIterator intervalIterator() throws IOException {
+      return underlyingExecutor.intervalIterator();
+    }
+
+    @Override
+    public IntervalIterator intervalIterator(Index index) throws IOException {
+      return underlyingExecutor.intervalIterator(index);
+    }
+
+    @Override
+    public Reference2ReferenceMap<Index, IntervalIterator> intervalIterators()
+      throws IOException {
+      return underlyingExecutor.intervalIterators();
+    }
+
+    @Override
+    public double weight() {
+      return underlyingExecutor.weight();
+    }
+
+    @Override
+    public DocumentIterator weight(double weight) {
+      return underlyingExecutor.weight(weight);
+    }
+
+    @Override
+    public boolean mayHaveNext() {
+      return underlyingExecutor.mayHaveNext();
+    }
+  }
+
+  /**
+   * The maximum number of hits stored.
+   */
+  protected final long maximumHits;
+
+  /**
+   * The IDs of the documents stored, in increasing order.
+   */
+  protected final LongBigArrayBigList documentIds;
+
+  /**
+   * For each document, the index of its first hit.
+   */
+  protected final LongBigArrayBigList firstHits;
+
+  /**
+   * The term position, length and query node index for each hit.
+   */
+  protected final IntBigArrayBigList hitData;
+
+  /**
+   * The query nodes of the stored hits.
+   */
+  protected final List<QueryNode> queryNodes;
+
+  /**
+   * Set when no more documents can be added.
+   */
+  protected volatile boolean full;
+
+  /**
+   * Creates a new store.
+   * @param maximumHits the maximum number of hits stored.
+   */
+  public RecordedHits(long maximumHits) {
+    this.maximumHits = maximumHits;
+    documentIds = new LongBigArrayBigList();
+    firstHits = new LongBigArrayBigList();
+    hitData = new IntBigArrayBigList();
+    queryNodes = new ObjectArrayList<QueryNode>();
+    full = false;
+  }
+
+  /**
+   * Wraps a query executor so that the hits of all the documents it returns
+   * get stored here. The documents must not be visited by any other
+   * recorder for this store.
+   * @param executor
+   * @return an executor returning the same documents and hits as the
+   * supplied one.
+   */
+  public QueryExecutor record(QueryExecutor executor) {
+    return new Recorder(executor);
+  }
+
+  /**
+   * Gets the recorded hits for a given document.
+   * @param documentId
+   * @return the hits, or <code>null</code> if the document was not recorded.
+   */
+  public synchronized List<Binding> getHits(long documentId) {
+    long low = 0;
+    long high = documentIds.size64() - 1;
+    while(low <= high) {
+      long mid = (low + high) >>> 1;
+      long midId = documentIds.getLong(mid);
+      if(midId < documentId) low = mid + 1;
+      else if(midId > documentId) high = mid - 1;
+      else {
+        long first = firstHits.getLong(mid);
+        long last = mid + 1 < firstHits.size64() ?
+            firstHits.getLong(mid + 1) : hitData.size64() / 3;
+        List<Binding> hits = new ObjectArrayList<Binding>((int)(last - first));
+        for(long i = first * 3; i < last * 3; i += 3) {
+          hits.add(new Binding(queryNodes.get(hitData.getInt(i + 2)),
+              documentId, hitData.getInt(i), hitData.getInt(i + 1), null));
+        }
+        return hits;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Has the maximum number of hits been reached?
+   * @return
+   */
+  public boolean isFull() {
+    return full;
+  }
+
+  protected void setFull() {
+    full = true;
+  }
+
+  /**
+   * Gets the number of documents stored.
+   * @return
+   */
+  public synchronized long getDocumentCount() {
+    return documentIds.size64();
+  }
+
+  /**
+   * Gets the number of hits stored.
+   * @return
+   */
+  public synchronized long getHitCount() {
+    return hitData.size64() / 3;
+  }
+
+  /**
+   * Stores the hits for a new document.
+   * @param documentId the document ID, which must be larger than those of
+   * the documents already stored.
+   * @param hits the term position, length and query node index of each hit.
+   */
+  protected synchronized void addDocument(long documentId, IntArrayList hits) {
+    if(full) return;
+    if(hitData.size64() + hits.size() > maximumHits * 3) {
+      full = true;
+      return;
+    }
+    documentIds.add(documentId);
+    firstHits.add(hitData.size64() / 3);
+    for(int i = 0; i < hits.size(); i++) {
+      hitData.add(hits.getInt(i));
+    }
+  }
+
+  /**
+   * Gets the index of a query node in {@link #queryNodes}, adding it if
+   * necessary. There are only a few different query nodes in the hits
+   * returned by a query, so a linear search is used.
+   */
+  protected synchronized int getQueryNodeIndex(QueryNode queryNode) {
+    for(int i = 0; i < queryNodes.size(); i++) {
+      if(queryNodes.get(i) == queryNode) return i;
+    }
+    queryNodes.add(queryNode);
+    return queryNodes.size() - 1;
+  }
+}
@@ -17,19 +17,24 @@ package gate.mimir.search.query;
 
 import gate.mimir.IndexConfig;
 import gate.mimir.index.AtomicIndex;
+import gate.mimir.index.RamPostings;
 import gate.mimir.search.IndexReaderPool;
 import gate.mimir.search.QueryEngine;
 import it.unimi.dsi.fastutil.ints.IntIterator;
 import it.unimi.dsi.fastutil.objects.Reference2ReferenceMap;
+import it.unimi.dsi.fastutil.objects.Reference2ReferenceMaps;
 import it.unimi.dsi.fastutil.objects.ReferenceSet;
+import it.unimi.dsi.fastutil.objects.ReferenceSets;
 import it.unimi.dsi.lang.MutableString;
 import it.unimi.di.big.mg4j.index.Index;
 import it.unimi.di.big.mg4j.index.IndexIterator;
 import it.unimi.di.big.mg4j.index.IndexIterators;
 import it.unimi.di.big.mg4j.index.IndexReader;
+import it.unimi.di.big.mg4j.index.TermProcessor;
 import it.unimi.di.big.mg4j.index.payload.Payload;
 import it.unimi.di.big.mg4j.search.DocumentIterator;
 import it.unimi.di.big.mg4j.search.IntervalIterator;
+import it.unimi.di.big.mg4j.search.IntervalIterators;
 import it.unimi.di.big.mg4j.search.visitor.DocumentIteratorVisitor;
 
 import java.io.IOException;
@@ -104,6 +109,56 @@ public class TermQuery implements QueryNode {
      */
     private IntIterator positionsIterator;
     
+    /**
+     * A snapshot of the postings for the query term from the in-RAM batches
+     * of the {@link #atomicIndex}, or <code>null</code> if near-real-time 
+     * search is not enabled. Its documents all follow the on-disk ones.
+     */
+    private RamPostings ramPostings;
+    
+    /**
+     * The total number of documents that can be searched by this executor.
+     */
+    private long documentsCount;
+    
+    /**
+     * Set to <code>true</code> once the on-disk documents have been 
+     * exhausted, and the results are coming from {@link #ramPostings}.
+     */
+    private boolean inRam;
+    
+    /**
+     * The rank of the latest document in {@link #ramPostings}.
+     */
+    private int ramDocument = -1;
+    
+    /**
+     * The next position to be returned for the latest in-RAM document.
+     */
+    private int ramPosition;
+    
+    /**
+     * The query term, after processing with the index term processor.
+     */
+    private String processedTerm;
+    
+    /**
+     * The index returned by {@link #index()}. When near-real-time search is 
+     * enabled, this is a view over both the on-disk and the in-RAM documents
+     * (see {@link AtomicIndex#getNearRealTimeIndex(RamPostings)}), so that 
+     * scorers can work with the in-RAM documents too.
+     */
+    private Index index;
+    
+    /**
+     * The identifier set by {@link #id(int)}.
+     */
+    private int id;
+    
+    /**
+     * The weight set by {@link #weight(double)}.
+     */
+    private double weight = 1.0;
     
     /**
      * @param node
@@ -117,23 +172,41 @@ public class TermQuery implements QueryNode {
 
       if(atomicIndex == null) throw new IllegalArgumentException(
               "No index provided for field " + node.getIndexName() + "!");
-      Index mg4jIndex = atomicIndex.getIndex();
+      //use the term processor for the query term
+      TermProcessor termProcessor = atomicIndex.getIndex() != null ?
+          atomicIndex.getIndex().termProcessor : 
+          atomicIndex.getTermProcessor();
+      MutableString mutableString = new MutableString(query.getTerm());
+      if(termProcessor != null) termProcessor.processTerm(mutableString);
+      // the same as for the indexed terms
+      AtomicIndex.replaceLineTerminators(mutableString);
+      processedTerm = mutableString.toString();
+      Index mg4jIndex;
+      if(atomicIndex.isNearRealTimeSearch()) {
+        // get the in-RAM postings, and the matching on-disk index
+        ramPostings = atomicIndex.getRamPostings(mutableString.toString());
+        mg4jIndex = ramPostings.getDiskIndex();
+        documentsCount = ramPostings.getDocumentsCount();
+      } else {
+        mg4jIndex = atomicIndex.getIndex();
+        documentsCount = mg4jIndex != null ? mg4jIndex.numberOfDocuments : 0;
+      }
       if(mg4jIndex != null) {
         indexReader = mg4jIndex.getReader();      
         // if we have the term ID, use that
         if(query.termId != DocumentIterator.END_OF_LIST) {
           this.indexIterator = indexReader.documents(query.termId);
           // set the term (used by rankers)
-          MutableString mutableString = new MutableString(query.getTerm());
-          atomicIndex.getIndex().termProcessor.processTerm(mutableString);
           this.indexIterator.term(mutableString);
         } else {
-          //use the term processor for the query term
-          MutableString mutableString = new MutableString(query.getTerm());
-          atomicIndex.getIndex().termProcessor.processTerm(mutableString);
           this.indexIterator = indexReader.documents(mutableString.toString());        
         }        
       } else {
+        // nothing on disk: only the in-RAM documents (if any) can match
+        inRam = true;
+      }
+      if(indexIterator == null && 
+         (ramPostings == null || ramPostings.size() == 0)) {
         // the atomic index is empty: we have exhausted the search already
         latestDocument = -1;
       }
@@ -145,27 +218,38 @@ public class TermQuery implements QueryNode {
      * @see gate.mimir.search.query.QueryExecutor#nextDocument()
      */
     public long nextDocument(long from) throws IOException {
-      if(closed || from+1 >= atomicIndex.getIndex().numberOfDocuments) return latestDocument = -1;
+      if(closed || from+1 >= documentsCount) return latestDocument = -1;
       if(latestDocument == -1){
         //we have exhausted the search already
         return latestDocument;
       }
       
-      if (from >= latestDocument){
-        //we do need to skip
-        latestDocument = indexIterator.skipTo(from + 1);
-      }else{
-        //from is lower than latest document, 
-        //so we just return the next document
-        latestDocument = indexIterator.nextDocument();
+      if(!inRam) {
+        long nextDocument;
+        if (from >= latestDocument){
+          //we do need to skip
+          nextDocument = indexIterator.skipTo(from + 1);
+        }else{
+          //from is lower than latest document, 
+          //so we just return the next document
+          nextDocument = indexIterator.nextDocument();
+        }
+        if(nextDocument != DocumentIterator.END_OF_LIST){
+          positionsIterator = IndexIterators.positionIterator(indexIterator);
+          return latestDocument = nextDocument;
+        }
+        // the on-disk documents are exhausted: continue in RAM
+        inRam = true;
       }
-      if(latestDocument == DocumentIterator.END_OF_LIST){
-        //no more documents available
-        latestDocument = -1;
-      } else {
-        positionsIterator = IndexIterators.positionIterator(indexIterator);
+      if(ramPostings != null) {
+        ramDocument = ramPostings.find(from + 1, ramDocument + 1);
+        if(ramDocument < ramPostings.size()) {
+          ramPosition = 0;
+          return latestDocument = ramPostings.getDocument(ramDocument);
+        }
       }
-      return latestDocument;
+      //no more documents available
+      return latestDocument = -1;
     }
 
     /* (non-Javadoc)
@@ -173,6 +257,16 @@ public class TermQuery implements QueryNode {
      */
     public Binding nextHit() throws IOException{
       if(closed) return null;
+      if(inRam) {
+        if(latestDocument >= 0 && 
+           ramPosition < ramPostings.getCount(ramDocument)) {
+          int position = ramPostings.getPosition(ramDocument, ramPosition++);
+          return new Binding(query, latestDocument, position, query.length, 
+              null);
+        } else {
+          return null;
+        }
+      }
       if(positionsIterator == null) positionsIterator = 
           IndexIterators.positionIterator(indexIterator);
       if(latestDocument >= 0 && positionsIterator.hasNext()){
@@ -218,89 +312,128 @@ public class TermQuery implements QueryNode {
     }
 
     public Index index() {
-      return indexIterator.index();
+      if(index == null) {
+        if(ramPostings != null) {
+          index = atomicIndex.getNearRealTimeIndex(ramPostings);
+        } else if(indexIterator != null) {
+          index = indexIterator.index();
+        } else {
+          index = atomicIndex.getIndex();
+        }
+      }
+      return index;
     }
 
     public IntervalIterator intervalIterator() throws IOException {
-      return indexIterator.intervalIterator();
+      // in-RAM documents have no intervals: they simply match
+      return inRam ? IntervalIterators.TRUE : indexIterator.intervalIterator();
     }
 
     public long frequency() throws IOException {
-      return indexIterator.frequency();
+      return (indexIterator != null ? indexIterator.frequency() : 0) +
+          (ramPostings != null ? ramPostings.size() : 0);
     }
 
     public IntervalIterator intervalIterator(Index index) throws IOException {
-      return indexIterator.intervalIterator(index);
+      return index == index() ? intervalIterator() : IntervalIterators.FALSE;
     }
 
     public Payload payload() throws IOException {
-      return indexIterator.payload();
+      return inRam ? null : indexIterator.payload();
     }
 
     public int count() throws IOException {
-      return indexIterator.count();
+      return inRam ? ramPostings.getCount(ramDocument) : indexIterator.count();
     }
 
     public Reference2ReferenceMap<Index, IntervalIterator> intervalIterators()
       throws IOException {
-      return indexIterator.intervalIterators();
+      return Reference2ReferenceMaps.singleton(index(), intervalIterator());
     }
 
     public ReferenceSet<Index> indices() {
-      return indexIterator.indices();
+      Index index = index();
+      return index != null ? index.singletonSet : 
+          ReferenceSets.<Index>emptySet();
     }
 
     public IndexIterator id(int id) {
-      return indexIterator.id(id);
+      this.id = id;
+      if(indexIterator != null) indexIterator.id(id);
+      return this;
     }
 
     public long nextDocument() throws IOException {
-      return indexIterator.nextDocument();
+      long next = nextDocument(Math.max(latestDocument, -1));
+      return next < 0 ? DocumentIterator.END_OF_LIST : next;
     }
 
     public int id() {
-      return indexIterator.id();
+      return id;
     }
 
     public long document() {
+      if(inRam) {
+        return latestDocument >= 0 ? latestDocument : 
+            DocumentIterator.END_OF_LIST;
+      }
       return indexIterator.document();
     }
 
     public <T> T accept(DocumentIteratorVisitor<T> visitor) throws IOException {
-      return indexIterator.accept(visitor);
+      // visit this executor, rather than the on-disk iterator, so that the 
+      // in-RAM documents are also seen
+      return visitor.visit(this);
     }
 
     public <T> T acceptOnTruePaths(DocumentIteratorVisitor<T> visitor)
       throws IOException {
-      return indexIterator.acceptOnTruePaths(visitor);
+      return visitor.visit(this);
     }
 
     public void dispose() throws IOException {
-      indexIterator.dispose();
+      if(indexIterator != null) indexIterator.dispose();
     }
 
     public long termNumber() {
-      return indexIterator.termNumber();
+      if(indexIterator != null) {
+        try {
+          long termNumber = indexIterator.termNumber();
+          if(termNumber >= 0) return termNumber;
+        } catch(UnsupportedOperationException e) {
+          // the iterators of clusters with several batches have no term number
+        }
+      }
+      if(query.termId != DocumentIterator.END_OF_LIST) return query.termId;
+      // the term is only in RAM: scorers use the term number to tell terms 
+      // apart, so return a negative number that depends on the term
+      return -2 - (processedTerm.hashCode() & 0x7fffffffL);
     }
 
     public String term() {
-      return indexIterator.term();
+      return processedTerm;
     }
 
     public IndexIterator term(CharSequence term) {
-      return indexIterator.term(term);
+      processedTerm = term.toString();
+      if(indexIterator != null) indexIterator.term(term);
+      return this;
     }
 
     public IndexIterator weight(double weight) {
-      return indexIterator.weight(weight);
+      this.weight = weight;
+      if(indexIterator != null) indexIterator.weight(weight);
+      return this;
     }
 
     public long skipTo(long n) throws IOException {
-      return indexIterator.skipTo(n);
+      if(latestDocument >= n) return latestDocument;
+      long next = nextDocument(n - 1);
+      return next < 0 ? DocumentIterator.END_OF_LIST : next;
     }
 
     public double weight() {
-      return indexIterator.weight();
+      return weight;
     }
     
   }
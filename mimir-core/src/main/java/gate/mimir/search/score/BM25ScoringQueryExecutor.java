@@ -0,0 +1,98 @@
+/*
+ *  BM25ScoringQueryExecutor.java
+ *
+ *  Copyright (c) 2007-2026, The University of Sheffield.
+ *
+ *  This file is part of GATE Mímir (see http://gate.ac.uk/family/mimir.html),
+ *  and is free software, licenced under the GNU Lesser General Public License,
+ *  Version 3, June 2007 (also included with this distribution as file
+ *  LICENCE-LGPL3.html).
+ *
+ *  $Id$
+ */
+package gate.mimir.search.score;
+
+import it.unimi.di.big.mg4j.index.Index;
+import it.unimi.di.big.mg4j.index.IndexIterator;
+import it.unimi.di.big.mg4j.search.score.BM25Scorer;
+import it.unimi.di.big.mg4j.search.score.DelegatingScorer;
+import it.unimi.dsi.fastutil.doubles.DoubleIterator;
+import it.unimi.dsi.fastutil.objects.Reference2DoubleMap;
+
+import java.io.IOException;
+
+/**
+ * A {@link DelegatingScoringQueryExecutor} using an MG4J {@link BM25Scorer},
+ * which also provides the score bounds of the query terms, so that
+ * documents can be skipped when a ranking limit is used.
+ */
+public class BM25ScoringQueryExecutor extends DelegatingScoringQueryExecutor
+    implements BoundedScorer {
+
+  private final double k1;
+
+  private final double b;
+
+  /**
+   * Creates a scorer with the default BM25 parameters.
+   * @throws IOException
+   */
+  public BM25ScoringQueryExecutor() throws IOException {
+    this(BM25Scorer.DEFAULT_K1, BM25Scorer.DEFAULT_B);
+  }
+
+  /**
+   * @param k1 the BM25 k1 parameter.
+   * @param b the BM25 b parameter.
+   * @throws IOException
+   */
+  public BM25ScoringQueryExecutor(double k1, double b) throws IOException {
+    super(new BM25Scorer(k1, b));
+    this.k1 = k1;
+    this.b = b;
+  }
+
+  /**
+   * The BM25 score of a term in a document is
+   * <code>(k1 + 1) * idf * weight * c / (c + k1 * ((1 - b) + b * size /
+   * averageSize))</code>, where <code>c</code> is the count of the term in
+   * the document, so it is always less than <code>(k1 + 1) * idf *
+   * weight</code>. The IDF is computed the same way as {@link BM25Scorer}
+   * does, and the weight is the largest index weight.
+   */
+  @Override
+  public double getMaxScore(IndexIterator term) throws IOException {
+    Index index = term.index();
+    long frequency = term.frequency();
+    double idf = Math.max(BM25Scorer.EPSILON_SCORE, Math.log(
+        (index.numberOfDocuments - frequency + 0.5) / (frequency + 0.5)));
+    return Math.max(0, (k1 + 1) * idf * getMaxWeight());
+  }
+
+  /**
+   * Gets the largest weight given to an index. When no weights have been
+   * set, all the indexes have a weight of 1.
+   */
+  protected double getMaxWeight() {
+    Reference2DoubleMap<Index> weights = getWeights();
+    if(weights.isEmpty()) return 1;
+    double maxWeight = 0;
+    DoubleIterator weightsIterator = weights.values().iterator();
+    while(weightsIterator.hasNext()) {
+      maxWeight = Math.max(maxWeight, weightsIterator.nextDouble());
+    }
+    return maxWeight;
+  }
+
+  @Override
+  public DelegatingScorer copy() {
+    try {
+      BM25ScoringQueryExecutor copy = new BM25ScoringQueryExecutor(k1, b);
+      Reference2DoubleMap<Index> weights = getWeights();
+      if(!weights.isEmpty()) copy.setWeights(weights);
+      return copy;
+    } catch(IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+}
@@ -0,0 +1,40 @@
+/*
+ *  BoundedScorer.java
+ *
+ *  Copyright (c) 2007-2026, The University of Sheffield.
+ *
+ *  This file is part of GATE Mímir (see http://gate.ac.uk/family/mimir.html),
+ *  and is free software, licenced under the GNU Lesser General Public License,
+ *  Version 3, June 2007 (also included with this distribution as file
+ *  LICENCE-LGPL3.html).
+ *
+ *  $Id$
+ */
+package gate.mimir.search.score;
+
+import it.unimi.di.big.mg4j.index.IndexIterator;
+
+import java.io.IOException;
+
+/**
+ * A {@link MimirScorer} that can tell how much each term of a query can add
+ * to the score of a document. The score of a document must be no more than
+ * the sum of the bounds of the terms it matches.
+ *
+ * When a ranking limit is used (see
+ * {@link gate.mimir.search.QueryEngine#setRankingLimit(int)}), this allows
+ * the documents of a term query, or of a disjunction of terms, that cannot
+ * score higher than the worst document kept so far to be skipped without
+ * being scored.
+ */
+public interface BoundedScorer extends MimirScorer {
+
+  /**
+   * Gets the most a term can add to the score of a document.
+   * @param term one of the index iterators found in the executor wrapped by
+   * this scorer.
+   * @return the bound, or {@link Double#POSITIVE_INFINITY} if not known.
+   * @throws IOException
+   */
+  public double getMaxScore(IndexIterator term) throws IOException;
+}
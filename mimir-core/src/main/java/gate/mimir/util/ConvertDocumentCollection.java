@@ -0,0 +1,237 @@
+/*
+ *  ConvertDocumentCollection.java
+ *
+ *  Copyright (c) 2007-2026, The University of Sheffield.
+ *
+ *  This file is part of GATE Mímir (see http://gate.ac.uk/family/mimir.html),
+ *  and is free software, licenced under the GNU Lesser General Public License,
+ *  Version 3, June 2007 (also included with this distribution as file
+ *  LICENCE-LGPL3.html).
+ *
+ *  $Id$
+ */
+package gate.mimir.util;
+
+import gate.mimir.index.DirectTermDictionary;
+import gate.mimir.index.DocumentCollection;
+import gate.mimir.index.DocumentDataCodec;
+import gate.mimir.index.IndexException;
+import gate.mimir.index.SegmentDocumentStore;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Converts the document collection of an index from zip files to a
+ * {@link SegmentDocumentStore}. The documents keep their IDs, and are
+ * re-encoded with {@link DocumentDataCodec}; any that cannot be decoded here
+ * (e.g. because their metadata uses classes from a GATE plugin) are copied
+ * unchanged. The index must be closed while it is being converted.
+ *
+ * The original zip files are moved to a sub-directory of the index directory
+ * (named {@value #BACKUP_DIRECTORY_NAME}), which can be deleted once the
+ * converted index has been checked.
+ */
+public class ConvertDocumentCollection {
+
+  private static final Logger log = LoggerFactory.getLogger(
+      ConvertDocumentCollection.class);
+
+  /**
+   * The directory (inside the index directory) where the zip files are
+   * moved after conversion.
+   */
+  public static final String BACKUP_DIRECTORY_NAME = "zip-collection-backup";
+
+  /**
+   * The directory (inside the index directory) where the new store is
+   * created, before being moved into place.
+   */
+  protected static final String TEMP_DIRECTORY_NAME = "document-store-new";
+
+  /**
+   * A zip collection file, with the sorted IDs of the documents it contains.
+   */
+  private static class ZipCollectionFile {
+    File file;
+
+    long[] documentIds;
+  }
+
+  public static void main(String... args) throws Exception {
+    if(args.length != 1) {
+      System.err.println("Usage: " + ConvertDocumentCollection.class.getName()
+          + " <index directory>");
+      System.exit(1);
+    }
+    convert(new File(args[0]));
+  }
+
+  /**
+   * Converts the document collection in the given index directory.
+   * @param indexDirectory the top-level directory of the Mimir index
+   * (containing config.xml).
+   * @throws IOException
+   * @throws IndexException if the index does not have a zip collection, or a
+   * previous conversion was interrupted.
+   */
+  public static void convert(File indexDirectory) throws IOException,
+      IndexException {
+    if(SegmentDocumentStore.exists(indexDirectory)) {
+      throw new IndexException("The index at " + indexDirectory +
+          " already has a document store. If a previous conversion was " +
+          "interrupted, delete the " + SegmentDocumentStore.OFFSETS_FILE_NAME +
+          ", " + SegmentDocumentStore.SYNCED_COUNT_FILE_NAME + " and " + 
+          SegmentDocumentStore.SEGMENT_FILE_BASENAME + "*" +
+          SegmentDocumentStore.SEGMENT_FILE_EXTENSION + " files, and try " +
+          "again.");
+    }
+    File[] zipFiles = indexDirectory.listFiles(
+        DocumentCollection.CollectionFile.FILENAME_FILTER);
+    if(zipFiles == null || zipFiles.length == 0) {
+      throw new IndexException("No zip collection files found in " +
+          indexDirectory);
+    }
+    File backupDirectory = new File(indexDirectory, BACKUP_DIRECTORY_NAME);
+    if(backupDirectory.exists()) {
+      throw new IndexException("Backup location " + backupDirectory +
+          " already exists!");
+    }
+    File tempDirectory = new File(indexDirectory, TEMP_DIRECTORY_NAME);
+    if(tempDirectory.exists()) {
+      log.info("Deleting incomplete document store at " + tempDirectory);
+      FileUtils.deleteDirectory(tempDirectory);
+    }
+    if(!tempDirectory.mkdirs()) {
+      throw new IOException("Could not create " + tempDirectory);
+    }
+
+    // find the documents in each file, and the order of the files
+    List<ZipCollectionFile> collectionFiles =
+        new ArrayList<ZipCollectionFile>();
+    for(File aZipFile : zipFiles) {
+      ZipCollectionFile collectionFile = new ZipCollectionFile();
+      collectionFile.file = aZipFile;
+      LongArrayList documentIds = new LongArrayList();
+      ZipFile zip = new ZipFile(aZipFile);
+      try {
+        Enumeration<? extends ZipEntry> entries = zip.entries();
+        while(entries.hasMoreElements()) {
+          String entryName = entries.nextElement().getName();
+          try {
+            documentIds.add(Long.parseLong(entryName));
+          } catch(NumberFormatException e) {
+            log.warn("Ignoring unparseable zip entry name " + entryName +
+                " in " + aZipFile);
+          }
+        }
+      } finally {
+        zip.close();
+      }
+      if(documentIds.isEmpty()) continue;
+      collectionFile.documentIds = documentIds.toLongArray();
+      Arrays.sort(collectionFile.documentIds);
+      collectionFiles.add(collectionFile);
+    }
+    Collections.sort(collectionFiles, new Comparator<ZipCollectionFile>() {
+      @Override
+      public int compare(ZipCollectionFile o1, ZipCollectionFile o2) {
+        return Long.compare(o1.documentIds[0], o2.documentIds[0]);
+      }
+    });
+
+    // documents with their tokens stored as IDs keep using the same
+    // dictionary, which stays where it is
+    File tokenDictionaryFile = new File(indexDirectory,
+        DocumentCollection.TOKEN_DICTIONARY_FILE_NAME);
+    DirectTermDictionary tokenDictionary = tokenDictionaryFile.exists() ?
+        new DirectTermDictionary(tokenDictionaryFile, true) : null;
+
+    // copy the documents
+    SegmentDocumentStore store = new SegmentDocumentStore(tempDirectory);
+    long documents = 0;
+    long copied = 0;
+    try {
+      for(ZipCollectionFile aCollectionFile : collectionFiles) {
+        log.info("Converting " + aCollectionFile.file.getName());
+        ZipFile zip = new ZipFile(aCollectionFile.file);
+        try {
+          for(long documentId : aCollectionFile.documentIds) {
+            if(documentId < store.getNextDocumentId()) {
+              throw new IndexException("Document " + documentId + " in " +
+                  aCollectionFile.file + " was already found in a previous " +
+                  "collection file!");
+            }
+            InputStream input = zip.getInputStream(
+                zip.getEntry(Long.toString(documentId)));
+            byte[] data;
+            try {
+              data = IOUtils.toByteArray(input);
+            } finally {
+              input.close();
+            }
+            try {
+              data = DocumentDataCodec.encode(
+                  DocumentDataCodec.decode(data, 0, data.length,
+                      tokenDictionary), tokenDictionary);
+            } catch(IOException e) {
+              copied++;
+            }
+            store.writeSerialisedDocument(documentId, data);
+            documents++;
+          }
+        } finally {
+          zip.close();
+        }
+      }
+    } finally {
+      store.close();
+    }
+    // all the tokens were already there, so this normally writes nothing
+    if(tokenDictionary != null) tokenDictionary.save(tokenDictionaryFile);
+
+    // move the new store into place, and then the zip files out of the way:
+    // if interrupted in between, the index refuses to open
+    for(File aStoreFile : tempDirectory.listFiles()) {
+      File dest = new File(indexDirectory, aStoreFile.getName());
+      if(!aStoreFile.renameTo(dest)) {
+        throw new IOException("Could not rename " + aStoreFile + " to " +
+            dest);
+      }
+    }
+    if(!tempDirectory.delete()) {
+      log.warn("Could not delete " + tempDirectory);
+    }
+    if(!backupDirectory.mkdirs()) {
+      throw new IOException("Could not create " + backupDirectory);
+    }
+    for(File aZipFile : zipFiles) {
+      File dest = new File(backupDirectory, aZipFile.getName());
+      if(!aZipFile.renameTo(dest)) {
+        throw new IOException("Could not move " + aZipFile + " to " +
+            backupDirectory);
+      }
+    }
+    if(copied > 0) {
+      log.warn(copied + " documents could not be decoded, and were copied " +
+          "unchanged.");
+    }
+    log.info("Converted " + documents + " documents. The original zip " +
+        "files are in " + backupDirectory + ", and can be deleted.");
+  }
+}
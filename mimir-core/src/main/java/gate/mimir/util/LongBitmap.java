@@ -0,0 +1,468 @@
+/*
+ *  LongBitmap.java
+ *
+ *  Copyright (c) 2007-2026, The University of Sheffield.
+ *
+ *  This file is part of GATE Mímir (see http://gate.ac.uk/family/mimir.html),
+ *  and is free software, licenced under the GNU Lesser General Public License,
+ *  Version 3, June 2007 (also included with this distribution as file
+ *  LICENCE-LGPL3.html).
+ *
+ *  $Id$
+ */
+package gate.mimir.util;
+
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * <p>
+ * An immutable, compressed set of non-negative <tt>long</tt> values, in the
+ * style of a Roaring bitmap. The values are split into chunks of 2<sup>16</sup>
+ * consecutive values, sharing the same high bits. Each non-empty chunk is
+ * stored either as a sorted array of 16-bit values (if sparse), or as a
+ * plain 2<sup>16</sup> bit bitmap (if dense).
+ * </p>
+ * <p>
+ * Instances never change, so they can be read by any number of threads
+ * without locking. Updates ({@link #add(long[])}, {@link #remove(long[])})
+ * return a new instance, which shares all the unmodified chunks with the old
+ * one.
+ * </p>
+ */
+public final class LongBitmap {
+
+  /**
+   * A chunk of values sharing the same high bits. Containers are only
+   * modified while a new bitmap is being built.
+   */
+  private static abstract class Container {
+    abstract boolean contains(int low);
+
+    abstract int cardinality();
+
+    /**
+     * Adds a value, returning the container to be used from now on (which may
+     * be a new one, if the representation had to change).
+     */
+    abstract Container add(int low);
+
+    /**
+     * Removes a value, returning the container to be used from now on.
+     */
+    abstract Container remove(int low);
+
+    abstract Container copy();
+
+    abstract void write(DataOutput out) throws IOException;
+  }
+
+  /**
+   * The maximum number of values stored in an {@link ArrayContainer}. Above
+   * this size, a {@link BitmapContainer} takes less space.
+   */
+  private static final int MAX_ARRAY_SIZE = 4096;
+
+  private static final byte ARRAY_CONTAINER = 0;
+
+  private static final byte BITMAP_CONTAINER = 1;
+
+  /**
+   * The magic number at the start of the serialised form.
+   */
+  private static final int MAGIC = 0x4C424D50;
+
+  private static final int VERSION = 1;
+
+  private static final class ArrayContainer extends Container {
+    char[] values;
+    int size;
+
+    ArrayContainer(char[] values, int size) {
+      this.values = values;
+      this.size = size;
+    }
+
+    private int find(int low) {
+      int from = 0;
+      int to = size - 1;
+      while(from <= to) {
+        int mid = (from + to) >>> 1;
+        int midVal = values[mid];
+        if(midVal < low) from = mid + 1;
+        else if(midVal > low) to = mid - 1;
+        else return mid;
+      }
+      return -(from + 1);
+    }
+
+    @Override
+    boolean contains(int low) {
+      return find(low) >= 0;
+    }
+
+    @Override
+    int cardinality() {
+      return size;
+    }
+
+    @Override
+    Container add(int low) {
+      int pos = find(low);
+      if(pos >= 0) return this;
+      if(size == MAX_ARRAY_SIZE) {
+        return toBitmap().add(low);
+      }
+      pos = -pos - 1;
+      if(size == values.length) {
+        values = Arrays.copyOf(values,
+            Math.min(MAX_ARRAY_SIZE, Math.max(4, size * 2)));
+      }
+      System.arraycopy(values, pos, values, pos + 1, size - pos);
+      values[pos] = (char)low;
+      size++;
+      return this;
+    }
+
+    @Override
+    Container remove(int low) {
+      int pos = find(low);
+      if(pos >= 0) {
+        System.arraycopy(values, pos + 1, values, pos, size - pos - 1);
+        size--;
+      }
+      return this;
+    }
+
+    private BitmapContainer toBitmap() {
+      BitmapContainer bitmap = new BitmapContainer(new long[1024], 0);
+      for(int i = 0; i < size; i++) {
+        bitmap.add(values[i]);
+      }
+      return bitmap;
+    }
+
+    @Override
+    Container copy() {
+      return new ArrayContainer(Arrays.copyOf(values, values.length), size);
+    }
+
+    @Override
+    void write(DataOutput out) throws IOException {
+      out.writeByte(ARRAY_CONTAINER);
+      out.writeInt(size);
+      for(int i = 0; i < size; i++) {
+        out.writeChar(values[i]);
+      }
+    }
+  }
+
+  private static final class BitmapContainer extends Container {
+    final long[] words;
+    int cardinality;
+
+    BitmapContainer(long[] words, int cardinality) {
+      this.words = words;
+      this.cardinality = cardinality;
+    }
+
+    @Override
+    boolean contains(int low) {
+      return (words[low >>> 6] & (1L << low)) != 0;
+    }
+
+    @Override
+    int cardinality() {
+      return cardinality;
+    }
+
+    @Override
+    Container add(int low) {
+      long before = words[low >>> 6];
+      long after = before | (1L << low);
+      if(before != after) {
+        words[low >>> 6] = after;
+        cardinality++;
+      }
+      return this;
+    }
+
+    @Override
+    Container remove(int low) {
+      long before = words[low >>> 6];
+      long after = before & ~(1L << low);
+      if(before != after) {
+        words[low >>> 6] = after;
+        cardinality--;
+        if(cardinality < MAX_ARRAY_SIZE / 2) {
+          return toArray();
+        }
+      }
+      return this;
+    }
+
+    private ArrayContainer toArray() {
+      char[] values = new char[cardinality];
+      int size = 0;
+      for(int i = 0; i < words.length; i++) {
+        long word = words[i];
+        while(word != 0) {
+          int bit = Long.numberOfTrailingZeros(word);
+          values[size++] = (char)((i << 6) + bit);
+          word &= word - 1;
+        }
+      }
+      return new ArrayContainer(values, size);
+    }
+
+    @Override
+    Container copy() {
+      return new BitmapContainer(words.clone(), cardinality);
+    }
+
+    @Override
+    void write(DataOutput out) throws IOException {
+      out.writeByte(BITMAP_CONTAINER);
+      out.writeInt(cardinality);
+      for(long word : words) {
+        out.writeLong(word);
+      }
+    }
+  }
+
+  /**
+   * The empty bitmap.
+   */
+  public static final LongBitmap EMPTY = new LongBitmap(new long[0],
+      new Container[0], 0);
+
+  /**
+   * The high bits (value &gt;&gt;&gt; 16) for each chunk, in ascending order.
+   */
+  private final long[] keys;
+
+  /**
+   * The containers for the chunks, aligned with {@link #keys}.
+   */
+  private final Container[] containers;
+
+  /**
+   * The total number of values.
+   */
+  private final long cardinality;
+
+  private LongBitmap(long[] keys, Container[] containers, long cardinality) {
+    this.keys = keys;
+    this.containers = containers;
+    this.cardinality = cardinality;
+  }
+
+  /**
+   * Checks whether a value is a member of this set.
+   * @param value
+   * @return
+   */
+  public boolean contains(long value) {
+    if(value < 0) return false;
+    int index = Arrays.binarySearch(keys, value >>> 16);
+    return index >= 0 && containers[index].contains((int)(value & 0xFFFF));
+  }
+
+  /**
+   * Gets the number of values in this set.
+   * @return
+   */
+  public long cardinality() {
+    return cardinality;
+  }
+
+  public boolean isEmpty() {
+    return cardinality == 0;
+  }
+
+  /**
+   * Gets the smallest member of this set that is greater than or equal to
+   * the given value.
+   * @param value
+   * @return the value found, or -1 if there is none.
+   */
+  public long nextValue(long value) {
+    if(value < 0) value = 0;
+    int index = Arrays.binarySearch(keys, value >>> 16);
+    int low = (int)(value & 0xFFFF);
+    if(index < 0) {
+      index = -index - 1;
+      low = 0;
+    }
+    for(; index < keys.length; index++, low = 0) {
+      Container container = containers[index];
+      int found = -1;
+      if(container instanceof ArrayContainer) {
+        ArrayContainer array = (ArrayContainer)container;
+        int pos = array.find(low);
+        if(pos < 0) pos = -pos - 1;
+        if(pos < array.size) found = array.values[pos];
+      } else {
+        long[] words = ((BitmapContainer)container).words;
+        int wordIndex = low >>> 6;
+        long word = words[wordIndex] & (-1L << low);
+        while(true) {
+          if(word != 0) {
+            found = (wordIndex << 6) + Long.numberOfTrailingZeros(word);
+            break;
+          }
+          if(++wordIndex == words.length) break;
+          word = words[wordIndex];
+        }
+      }
+      if(found >= 0) return (keys[index] << 16) | found;
+    }
+    return -1;
+  }
+
+  /**
+   * Creates a new bitmap, containing all the values in this one, plus the
+   * given ones.
+   * @param values the values to be added.
+   * @return the new bitmap, or this bitmap if it already contained all the
+   * given values.
+   */
+  public LongBitmap add(long... values) {
+    return update(values, true);
+  }
+
+  /**
+   * Creates a new bitmap, containing all the values in this one, except the
+   * given ones.
+   * @param values the values to be removed.
+   * @return the new bitmap, or this bitmap if it contained none of the given
+   * values.
+   */
+  public LongBitmap remove(long... values) {
+    return update(values, false);
+  }
+
+  private LongBitmap update(long[] values, boolean add) {
+    long[] sorted = values.clone();
+    Arrays.sort(sorted);
+    LongArrayList newKeys = new LongArrayList(keys.length + 1);
+    List<Container> newContainers = new ArrayList<Container>(keys.length + 1);
+    long newCardinality = 0;
+    boolean changed = false;
+    int i = 0;
+    int j = 0;
+    // skip any negative values
+    while(j < sorted.length && sorted[j] < 0) j++;
+    while(j < sorted.length) {
+      long key = sorted[j] >>> 16;
+      // copy the unchanged chunks
+      while(i < keys.length && keys[i] < key) {
+        newKeys.add(keys[i]);
+        newContainers.add(containers[i]);
+        newCardinality += containers[i].cardinality();
+        i++;
+      }
+      Container original = null;
+      if(i < keys.length && keys[i] == key) {
+        original = containers[i++];
+      }
+      Container container = original != null ? original.copy() :
+          (add ? new ArrayContainer(new char[4], 0) : null);
+      while(j < sorted.length && (sorted[j] >>> 16) == key) {
+        if(container != null) {
+          container = add ? container.add((int)(sorted[j] & 0xFFFF)) :
+              container.remove((int)(sorted[j] & 0xFFFF));
+        }
+        j++;
+      }
+      if(container != null) {
+        int originalCardinality = original != null ? original.cardinality() : 0;
+        if(container.cardinality() != originalCardinality) {
+          changed = true;
+        } else {
+          // no change: keep sharing the old container
+          container = original;
+        }
+        if(container != null && container.cardinality() > 0) {
+          newKeys.add(key);
+          newContainers.add(container);
+          newCardinality += container.cardinality();
+        }
+      }
+    }
+    if(!changed) return this;
+    // copy the remaining chunks
+    for(; i < keys.length; i++) {
+      newKeys.add(keys[i]);
+      newContainers.add(containers[i]);
+      newCardinality += containers[i].cardinality();
+    }
+    return new LongBitmap(newKeys.toLongArray(),
+        newContainers.toArray(new Container[newContainers.size()]),
+        newCardinality);
+  }
+
+  /**
+   * Writes this bitmap to a data output.
+   * @param out
+   * @throws IOException
+   */
+  public void write(DataOutput out) throws IOException {
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    out.writeInt(keys.length);
+    for(int i = 0; i < keys.length; i++) {
+      out.writeLong(keys[i]);
+      containers[i].write(out);
+    }
+  }
+
+  /**
+   * Reads a bitmap previously saved with {@link #write(DataOutput)}.
+   * @param in
+   * @return
+   * @throws IOException if the data is not a valid bitmap.
+   */
+  public static LongBitmap read(DataInput in) throws IOException {
+    if(in.readInt() != MAGIC) {
+      throw new IOException("Invalid bitmap data: wrong magic number");
+    }
+    int version = in.readInt();
+    if(version != VERSION) {
+      throw new IOException("Unsupported bitmap format version " + version);
+    }
+    int chunks = in.readInt();
+    long[] keys = new long[chunks];
+    Container[] containers = new Container[chunks];
+    long cardinality = 0;
+    for(int i = 0; i < chunks; i++) {
+      keys[i] = in.readLong();
+      byte type = in.readByte();
+      int size = in.readInt();
+      if(type == ARRAY_CONTAINER) {
+        char[] values = new char[size];
+        for(int k = 0; k < size; k++) {
+          values[k] = in.readChar();
+        }
+        containers[i] = new ArrayContainer(values, size);
+      } else if(type == BITMAP_CONTAINER) {
+        long[] words = new long[1024];
+        for(int k = 0; k < words.length; k++) {
+          words[k] = in.readLong();
+        }
+        containers[i] = new BitmapContainer(words, size);
+      } else {
+        throw new IOException("Invalid bitmap data: unknown container type " +
+            type);
+      }
+      cardinality += size;
+    }
+    return new LongBitmap(keys, containers, cardinality);
+  }
+}
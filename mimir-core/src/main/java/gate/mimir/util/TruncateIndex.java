@@ -22,6 +22,7 @@ import gate.mimir.IndexConfig.TokenIndexerConfig;
 import gate.mimir.MimirIndex;
 import gate.mimir.index.AtomicIndex;
 import gate.mimir.index.DocumentCollection;
+import gate.mimir.index.SegmentDocumentStore;
 import gate.util.maven.Utils;
 import it.unimi.di.big.mg4j.index.CompressionFlags;
 import it.unimi.di.big.mg4j.index.CompressionFlags.Coding;
@@ -219,6 +220,15 @@ public class TruncateIndex {
    *          (containing config.xml)
    */
   public static void truncateIndex(File indexDirectory) throws Exception {
+    // 0. The queued documents log (if any) describes the index before 
+    // truncation, so it can no longer be replayed
+    File queueLogDir = new File(indexDirectory, 
+            AtomicIndex.DOCUMENTS_QUEUE_FILE_NAME);
+    if(queueLogDir.exists()) {
+      log.info("Deleting queued documents log at " + queueLogDir);
+      FileUtils.deleteDirectory(queueLogDir);
+    }
+
     // 1. Repair the last zip file in the DocumentCollection
     repairLastZip(indexDirectory);
 
@@ -440,6 +450,15 @@ public class TruncateIndex {
 
   public static long totalDocumentsInZipCollection(File indexDirectory)
           throws IOException {
+    if(SegmentDocumentStore.exists(indexDirectory)) {
+      // opening the store drops any incompletely written documents
+      SegmentDocumentStore store = new SegmentDocumentStore(indexDirectory);
+      try {
+        return store.getNextDocumentId();
+      } finally {
+        store.close();
+      }
+    }
     long totalDocs = 0;
     File[] zipCollectionFiles =
             indexDirectory
@@ -455,6 +474,16 @@ public class TruncateIndex {
 
   public static void truncateZipCollectionTo(File indexDirectory, long numDocs)
           throws IOException {
+    if(SegmentDocumentStore.exists(indexDirectory)) {
+      SegmentDocumentStore store = new SegmentDocumentStore(indexDirectory);
+      try {
+        store.truncate(numDocs);
+      } finally {
+        store.close();
+      }
+      log.info("Truncated document store to " + numDocs + " documents");
+      return;
+    }
     File[] zipCollectionFiles =
             indexDirectory
                     .listFiles(DocumentCollection.CollectionFile.FILENAME_FILTER);
@@ -0,0 +1,165 @@
+/*
+ *  TestDeletedDocuments.java
+ *
+ *  Copyright (c) 2007-2026, The University of Sheffield.
+ *
+ *  This file is part of GATE Mímir (see http://gate.ac.uk/family/mimir.html),
+ *  and is free software, licenced under the GNU Lesser General Public License,
+ *  Version 3, June 2007 (also included with this distribution as file
+ *  LICENCE-LGPL3.html).
+ *
+ *  $Id$
+ */
+package gate.mimir.index;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for {@link DeletedDocuments}.
+ */
+public class TestDeletedDocuments {
+
+  private File directory;
+
+  @Before
+  public void setUp() throws Exception {
+    directory = File.createTempFile("mimir-deleted", null);
+    directory.delete();
+    directory.mkdirs();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    FileUtils.deleteDirectory(directory);
+  }
+
+  @Test
+  public void testDeleteAndUndelete() throws Exception {
+    DeletedDocuments deleted = new DeletedDocuments(directory);
+    assertTrue(deleted.delete(1, 5, 100000));
+    assertFalse(deleted.delete(5));
+    assertTrue(deleted.undelete(5, 7));
+    assertFalse(deleted.undelete(7));
+    assertEquals(2, deleted.size());
+    assertTrue(deleted.isDeleted(1));
+    assertFalse(deleted.isDeleted(5));
+    assertTrue(deleted.getSnapshot().contains(100000));
+    deleted.close();
+  }
+
+  /**
+   * Changes survive re-opening, whether they are in the log or in a
+   * checkpoint.
+   */
+  @Test
+  public void testReopen() throws Exception {
+    DeletedDocuments deleted = new DeletedDocuments(directory);
+    deleted.delete(1, 2, 3);
+    deleted.checkpoint();
+    deleted.undelete(2);
+    deleted.delete(4);
+    deleted.close();
+    assertTrue(new File(directory,
+        DeletedDocuments.CHECKPOINT_FILE_NAME).exists());
+
+    deleted = new DeletedDocuments(directory);
+    assertEquals(3, deleted.size());
+    assertTrue(deleted.isDeleted(1));
+    assertFalse(deleted.isDeleted(2));
+    assertTrue(deleted.isDeleted(4));
+    deleted.delete(2);
+    deleted.close();
+
+    deleted = new DeletedDocuments(directory);
+    assertEquals(4, deleted.size());
+    deleted.close();
+  }
+
+  /**
+   * A record only partially written when the process stopped is dropped, and
+   * the log can still be appended to.
+   */
+  @Test
+  public void testPartialLogRecord() throws Exception {
+    DeletedDocuments deleted = new DeletedDocuments(directory);
+    deleted.delete(10, 20);
+    deleted.close();
+    File logFile = new File(directory, DeletedDocuments.LOG_FILE_NAME);
+    FileOutputStream out = new FileOutputStream(logFile, true);
+    out.write(new byte[] {1, 0, 0, 0});
+    out.close();
+
+    deleted = new DeletedDocuments(directory);
+    assertEquals(2, deleted.size());
+    deleted.delete(30);
+    deleted.close();
+    deleted = new DeletedDocuments(directory);
+    assertEquals(3, deleted.size());
+    assertTrue(deleted.isDeleted(30));
+    deleted.close();
+  }
+
+  /**
+   * Purged documents cannot be undeleted, including after re-opening.
+   */
+  @Test
+  public void testPurge() throws Exception {
+    DeletedDocuments deleted = new DeletedDocuments(directory);
+    deleted.delete(1, 5, 12);
+    assertTrue(deleted.purge(0, 10).contains(12));
+    assertTrue(deleted.isPurged(5));
+    assertFalse(deleted.isPurged(12));
+    assertFalse(deleted.undelete(1, 5));
+    assertTrue(deleted.undelete(1, 12));
+    assertEquals(2, deleted.size());
+    assertTrue(deleted.isDeleted(1));
+    deleted.close();
+
+    deleted = new DeletedDocuments(directory);
+    assertEquals(2, deleted.getPurgedSnapshot().cardinality());
+    assertFalse(deleted.undelete(5));
+    deleted.checkpoint();
+    deleted.close();
+
+    deleted = new DeletedDocuments(directory);
+    assertTrue(deleted.isPurged(1));
+    assertTrue(deleted.isDeleted(5));
+    assertFalse(deleted.undelete(1));
+    deleted.close();
+  }
+
+  @Test
+  public void testLegacyImport() throws Exception {
+    File legacyFile = new File(directory, DeletedDocuments.LEGACY_FILE_NAME);
+    ObjectOutputStream oos = new ObjectOutputStream(new GZIPOutputStream(
+        new BufferedOutputStream(new FileOutputStream(legacyFile))));
+    oos.writeObject(new HashSet<Integer>(Arrays.asList(3, 9)));
+    oos.close();
+
+    DeletedDocuments deleted = new DeletedDocuments(directory);
+    assertEquals(2, deleted.size());
+    assertTrue(deleted.isDeleted(9));
+    assertFalse(legacyFile.exists());
+    deleted.delete(12);
+    deleted.close();
+
+    deleted = new DeletedDocuments(directory);
+    assertEquals(3, deleted.size());
+    deleted.close();
+  }
+}
@@ -0,0 +1,171 @@
+/*
+ *  TestDirectTermDictionary.java
+ *
+ *  Copyright (c) 2007-2026, The University of Sheffield.
+ *
+ *  This file is part of GATE Mímir (see http://gate.ac.uk/family/mimir.html),
+ *  and is free software, licenced under the GNU Lesser General Public License,
+ *  Version 3, June 2007 (also included with this distribution as file
+ *  LICENCE-LGPL3.html).
+ *
+ *  $Id$
+ */
+package gate.mimir.index;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for {@link DirectTermDictionary}.
+ */
+public class TestDirectTermDictionary {
+
+  private File termsFile;
+
+  @Before
+  public void setUp() throws Exception {
+    termsFile = File.createTempFile("mimir-terms", null);
+    termsFile.delete();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    termsFile.delete();
+  }
+
+  @Test
+  public void testAddAndGet() {
+    DirectTermDictionary dictionary = new DirectTermDictionary();
+    assertEquals(0, dictionary.addTerm("b"));
+    assertEquals(1, dictionary.addTerm("a"));
+    assertEquals(0, dictionary.addTerm("b"));
+    assertEquals(2, dictionary.addTerm(""));
+    assertEquals(3, dictionary.size64());
+    assertEquals(1, dictionary.getId("a"));
+    assertEquals(-1, dictionary.getId("c"));
+    assertEquals("b", dictionary.get(0));
+    assertEquals("", dictionary.get(2));
+  }
+
+  @Test(expected = IndexOutOfBoundsException.class)
+  public void testMissingId() {
+    new DirectTermDictionary().get(0);
+  }
+
+  /**
+   * Adds enough terms to fill several slabs and rehash the table many times,
+   * plus a term too long for a normal slab.
+   */
+  @Test
+  public void testManyTerms() throws Exception {
+    DirectTermDictionary dictionary = new DirectTermDictionary();
+    char[] chars = new char[1 << 20];
+    Arrays.fill(chars, 'x');
+    String longTerm = new String(chars);
+    for(int i = 0; i < 200000; i++) {
+      assertEquals(i <= 1000 ? i : i + 1, dictionary.addTerm("term-" + i));
+      if(i == 1000) assertEquals(1001, dictionary.addTerm(longTerm));
+    }
+    assertEquals(200001, dictionary.size64());
+    assertEquals("term-0", dictionary.get(0));
+    assertEquals(longTerm, dictionary.get(1001));
+    assertEquals(1001, dictionary.getId(longTerm));
+    assertEquals(1002, dictionary.getId("term-1001"));
+    assertEquals("term-199999", dictionary.get(200000));
+
+    dictionary.save(termsFile);
+    DirectTermDictionary loaded = new DirectTermDictionary(termsFile);
+    assertEquals(dictionary.size64(), loaded.size64());
+    assertEquals(longTerm, loaded.get(1001));
+    assertEquals(150001, loaded.getId("term-150000"));
+  }
+
+  /**
+   * Saving only appends the terms added since the last save.
+   */
+  @Test
+  public void testIncrementalSave() throws Exception {
+    DirectTermDictionary dictionary = new DirectTermDictionary();
+    dictionary.addTerm("one");
+    dictionary.save(termsFile);
+    dictionary.addTerm("two");
+    dictionary.save(termsFile);
+    dictionary.save(termsFile);
+    assertEquals("one\ntwo\n", FileUtils.readFileToString(termsFile,
+        StandardCharsets.UTF_8));
+
+    DirectTermDictionary loaded = new DirectTermDictionary(termsFile);
+    loaded.addTerm("three");
+    loaded.save(termsFile);
+    loaded = new DirectTermDictionary(termsFile);
+    assertEquals(2, loaded.getId("three"));
+  }
+
+  /**
+   * Escaped dictionaries keep terms containing line terminators and
+   * backslashes, without shifting the IDs of the following terms.
+   */
+  @Test
+  public void testEscapedTerms() throws Exception {
+    String[] terms = new String[] {"a\nb", "c\rd", "back\\slash", "\\n",
+        "\r\n", "plain"};
+    DirectTermDictionary dictionary = new DirectTermDictionary(true);
+    for(String aTerm : terms) dictionary.addTerm(aTerm);
+    dictionary.save(termsFile);
+
+    DirectTermDictionary loaded = new DirectTermDictionary(termsFile, true);
+    assertEquals(terms.length, loaded.size64());
+    for(int i = 0; i < terms.length; i++) {
+      assertEquals(terms[i], loaded.get(i));
+      assertEquals(i, loaded.getId(terms[i]));
+    }
+  }
+
+  /**
+   * Unescaped dictionaries (the older format) replace line terminators with
+   * spaces, and leave backslashes alone.
+   */
+  @Test
+  public void testUnescapedTerms() throws Exception {
+    DirectTermDictionary dictionary = new DirectTermDictionary();
+    dictionary.addTerm("a\nb");
+    dictionary.addTerm("back\\slash");
+    dictionary.addTerm("last");
+    dictionary.save(termsFile);
+    assertEquals("a b\nback\\slash\nlast\n", FileUtils.readFileToString(
+        termsFile, StandardCharsets.UTF_8));
+    DirectTermDictionary loaded = new DirectTermDictionary(termsFile);
+    assertEquals("back\\slash", loaded.get(1));
+    assertEquals(2, loaded.getId("last"));
+  }
+
+  /**
+   * An incomplete last line, left by a crash while saving, is dropped.
+   */
+  @Test
+  public void testIncompleteLastLine() throws Exception {
+    DirectTermDictionary dictionary = new DirectTermDictionary();
+    dictionary.addTerm("one");
+    dictionary.addTerm("two");
+    dictionary.save(termsFile);
+    FileOutputStream out = new FileOutputStream(termsFile, true);
+    out.write("thr".getBytes(StandardCharsets.UTF_8));
+    out.close();
+
+    DirectTermDictionary loaded = new DirectTermDictionary(termsFile);
+    assertEquals(2, loaded.size64());
+    loaded.addTerm("three");
+    loaded.save(termsFile);
+    assertEquals("one\ntwo\nthree\n", FileUtils.readFileToString(termsFile,
+        StandardCharsets.UTF_8));
+  }
+}
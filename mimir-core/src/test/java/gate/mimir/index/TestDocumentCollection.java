@@ -0,0 +1,208 @@
+/*
+ *  TestDocumentCollection.java
+ *
+ *  Copyright (c) 2007-2026, The University of Sheffield.
+ *
+ *  This file is part of GATE Mímir (see http://gate.ac.uk/family/mimir.html),
+ *  and is free software, licenced under the GNU Lesser General Public License,
+ *  Version 3, June 2007 (also included with this distribution as file
+ *  LICENCE-LGPL3.html).
+ *
+ *  $Id$
+ */
+package gate.mimir.index;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import gate.mimir.util.LongBitmap;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.NoSuchElementException;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for {@link DocumentCollection}, using zip collection files.
+ */
+public class TestDocumentCollection {
+
+  private File directory;
+
+  @Before
+  public void setUp() throws Exception {
+    directory = File.createTempFile("mimir-collection", null);
+    directory.delete();
+    directory.mkdirs();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    FileUtils.deleteDirectory(directory);
+  }
+
+  private static DocumentData document(int i) {
+    return new DocumentData("doc" + i, "Document " + i,
+        new String[] {"token", Integer.toString(i)}, new String[] {" ", ""});
+  }
+
+  private static File collectionFile(File directory, String id) {
+    return new File(directory,
+        DocumentCollection.CollectionFile.getCollectionFileName(id));
+  }
+
+  /**
+   * Syncing forces the documents to disk, but does not start a new file.
+   */
+  @Test
+  public void testSyncKeepsFileOpen() throws Exception {
+    DocumentCollection collection = new DocumentCollection(directory);
+    for(int i = 0; i < 3; i++) {
+      collection.writeDocument(document(i));
+      collection.sync();
+    }
+    assertEquals(0, collection.getArchiveCount());
+    assertEquals("Document 1", collection.getDocumentData(1)
+        .getDocumentTitle());
+    collection.close();
+
+    collection = new DocumentCollection(directory);
+    assertEquals(1, collection.getArchiveCount());
+    assertEquals(3, collection.getNextDocumentId());
+    assertEquals("Document 2", collection.getDocumentData(2)
+        .getDocumentTitle());
+    collection.close();
+  }
+
+  /**
+   * The synced entries of a file that was never closed are recovered, and a
+   * partially written entry after them is dropped.
+   */
+  @Test
+  public void testRecoverUnclosedFile() throws Exception {
+    DocumentCollection crashed = new DocumentCollection(directory);
+    for(int i = 0; i < 3; i++) {
+      crashed.writeDocument(document(i));
+    }
+    crashed.sync();
+    FileOutputStream partialEntry = new FileOutputStream(
+        collectionFile(directory, "0"), true);
+    partialEntry.write(new byte[] {'P', 'K', 3, 4, 20, 0, 8});
+    partialEntry.close();
+
+    DocumentCollection collection = new DocumentCollection(directory);
+    try {
+      assertEquals(3, collection.getNextDocumentId());
+      for(int i = 0; i < 3; i++) {
+        assertEquals("doc" + i,
+            collection.getDocumentData(i).getDocumentURI());
+      }
+      collection.writeDocument(document(3));
+    } finally {
+      collection.close();
+      crashed.close();
+    }
+    collection = new DocumentCollection(directory);
+    assertEquals(4, collection.getNextDocumentId());
+    assertEquals(2, collection.getArchiveCount());
+    collection.close();
+  }
+
+  /**
+   * Writes each document to its own collection file.
+   */
+  private void writeSeparateFiles(int count) throws Exception {
+    for(int i = 0; i < count; i++) {
+      DocumentCollection collection = new DocumentCollection(directory);
+      collection.writeDocument(document(i));
+      collection.close();
+    }
+  }
+
+  /**
+   * The files replaced by a compaction that were not deleted (e.g. because
+   * the process stopped) are deleted when the collection is opened.
+   */
+  @Test
+  public void testCompactionLeftovers() throws Exception {
+    writeSeparateFiles(3);
+    File backup = new File(directory, "backup");
+    backup.mkdir();
+    for(int i = 0; i < 2; i++) {
+      FileUtils.copyFileToDirectory(collectionFile(directory,
+          Integer.toString(i)), backup);
+    }
+    DocumentCollection collection = new DocumentCollection(directory);
+    assertEquals(3, collection.getArchiveCount());
+    collection.compact();
+    assertEquals(1, collection.getArchiveCount());
+    collection.close();
+    assertTrue(collectionFile(directory, "0-2").exists());
+    // put back some of the replaced files, as if they had not been deleted
+    for(File aFile : backup.listFiles()) {
+      FileUtils.copyFileToDirectory(aFile, directory);
+    }
+    // and a combined file that was not completely written
+    new FileOutputStream(new File(directory, "temp-" +
+        DocumentCollection.CollectionFile.getCollectionFileName("0-1")))
+        .close();
+
+    collection = new DocumentCollection(directory);
+    try {
+      assertEquals(1, collection.getArchiveCount());
+      assertEquals(3, collection.getNextDocumentId());
+      for(int i = 0; i < 3; i++) {
+        assertEquals("doc" + i,
+            collection.getDocumentData(i).getDocumentURI());
+      }
+    } finally {
+      collection.close();
+    }
+    assertFalse(collectionFile(directory, "0").exists());
+    assertFalse(collectionFile(directory, "1").exists());
+    assertEquals(1, directory.list(
+        DocumentCollection.CollectionFile.FILENAME_FILTER).length);
+  }
+
+  /**
+   * A single file rewritten to drop deleted documents replaces the old one,
+   * which has the same range of file numbers, but more entries.
+   */
+  @Test
+  public void testRewriteLeftovers() throws Exception {
+    DocumentCollection collection = new DocumentCollection(directory);
+    for(int i = 0; i < 3; i++) collection.writeDocument(document(i));
+    collection.close();
+    File backup = new File(directory, "backup");
+    backup.mkdir();
+    FileUtils.copyFileToDirectory(collectionFile(directory, "0"), backup);
+    collection = new DocumentCollection(directory);
+    collection.compact(LongBitmap.EMPTY.add(1));
+    collection.close();
+    FileUtils.copyFileToDirectory(new File(backup,
+        collectionFile(directory, "0").getName()), directory);
+    assertTrue(collectionFile(directory, "0-0").exists());
+
+    collection = new DocumentCollection(directory);
+    try {
+      assertEquals(1, collection.getArchiveCount());
+      assertEquals(3, collection.getNextDocumentId());
+      assertEquals("doc2", collection.getDocumentData(2).getDocumentURI());
+      try {
+        collection.getDocumentData(1);
+        fail("Deleted document found");
+      } catch(NoSuchElementException e) {
+        // expected
+      }
+    } finally {
+      collection.close();
+    }
+    assertFalse(collectionFile(directory, "0").exists());
+  }
+}
@@ -0,0 +1,277 @@
+/*
+ *  TestDocumentDataCache.java
+ *
+ *  Copyright (c) 2007-2026, The University of Sheffield.
+ *
+ *  This file is part of GATE Mímir (see http://gate.ac.uk/family/mimir.html),
+ *  and is free software, licenced under the GNU Lesser General Public License,
+ *  Version 3, June 2007 (also included with this distribution as file
+ *  LICENCE-LGPL3.html).
+ *
+ *  $Id$
+ */
+package gate.mimir.index;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link DocumentDataCache}.
+ */
+public class TestDocumentDataCache {
+
+  /**
+   * Creates documents of the same size, and counts the loads.
+   */
+  private static class CountingLoader implements DocumentDataCache.Loader {
+    final AtomicInteger loads = new AtomicInteger();
+
+    @Override
+    public DocumentData load(long documentId) throws IOException {
+      loads.incrementAndGet();
+      return document(documentId);
+    }
+  }
+
+  private static DocumentData document(long documentId) {
+    return new DocumentData("doc" + (1000 + documentId), "Document",
+        new String[] {"a", "b"}, new String[] {" ", ""});
+  }
+
+  private static final long DOCUMENT_SIZE =
+      DocumentDataCache.estimateSize(document(0));
+
+  @Test
+  public void testHitsAndMisses() throws Exception {
+    DocumentDataCache cache = new DocumentDataCache(DOCUMENT_SIZE * 10);
+    CountingLoader loader = new CountingLoader();
+    assertNull(cache.getIfPresent(1));
+    DocumentData loaded = cache.get(1, loader);
+    assertSame(loaded, cache.get(1, loader));
+    assertSame(loaded, cache.getIfPresent(1));
+    assertEquals(1, loader.loads.get());
+    assertEquals(2, cache.getHitCount());
+    assertEquals(1, cache.getMissCount());
+    assertEquals(1, cache.getEntryCount());
+    assertEquals(DOCUMENT_SIZE, cache.getSize());
+  }
+
+  /**
+   * The least recently used documents are evicted when the size limit is
+   * reached.
+   */
+  @Test
+  public void testEviction() throws Exception {
+    DocumentDataCache cache = new DocumentDataCache(DOCUMENT_SIZE * 3);
+    CountingLoader loader = new CountingLoader();
+    cache.get(1, loader);
+    cache.get(2, loader);
+    cache.get(3, loader);
+    // 1 becomes the most recently used
+    cache.get(1, loader);
+    cache.get(4, loader);
+    assertEquals(3, cache.getEntryCount());
+    assertEquals(1, cache.getEvictionCount());
+    assertNull(cache.getIfPresent(2));
+    assertNotNull(cache.getIfPresent(1));
+    assertNotNull(cache.getIfPresent(3));
+    assertNotNull(cache.getIfPresent(4));
+    assertTrue(cache.getSize() <= cache.getMaximumSize());
+
+    // shrinking the cache evicts the least recently used documents
+    cache.setMaximumSize(DOCUMENT_SIZE);
+    assertEquals(1, cache.getEntryCount());
+    assertNotNull(cache.getIfPresent(4));
+  }
+
+  @Test
+  public void testOversizedDocument() throws Exception {
+    DocumentDataCache cache = new DocumentDataCache(DOCUMENT_SIZE - 1);
+    CountingLoader loader = new CountingLoader();
+    assertNotNull(cache.get(1, loader));
+    assertEquals(0, cache.getEntryCount());
+    assertEquals(0, cache.getSize());
+    cache.get(1, loader);
+    assertEquals(2, loader.loads.get());
+  }
+
+  @Test
+  public void testClear() throws Exception {
+    DocumentDataCache cache = new DocumentDataCache(DOCUMENT_SIZE * 10);
+    CountingLoader loader = new CountingLoader();
+    cache.get(1, loader);
+    cache.get(2, loader);
+    cache.clear();
+    assertEquals(0, cache.getEntryCount());
+    assertEquals(0, cache.getSize());
+    cache.get(1, loader);
+    assertEquals(3, loader.loads.get());
+  }
+
+  /**
+   * A document loaded while the cache is cleared is returned, but not
+   * cached.
+   */
+  @Test
+  public void testClearDuringLoad() throws Exception {
+    final DocumentDataCache cache = new DocumentDataCache(DOCUMENT_SIZE * 10);
+    DocumentData loaded = cache.get(1, new DocumentDataCache.Loader() {
+      @Override
+      public DocumentData load(long documentId) throws IOException {
+        cache.clear();
+        return document(documentId);
+      }
+    });
+    assertNotNull(loaded);
+    assertNull(cache.getIfPresent(1));
+  }
+
+  /**
+   * Failed loads are reported, and not cached.
+   */
+  @Test
+  public void testFailedLoad() throws Exception {
+    DocumentDataCache cache = new DocumentDataCache(DOCUMENT_SIZE * 10);
+    try {
+      cache.get(1, new DocumentDataCache.Loader() {
+        @Override
+        public DocumentData load(long documentId) throws IOException {
+          throw new IOException("Broken");
+        }
+      });
+      fail("The load failure was not reported");
+    } catch(IOException e) {
+      assertEquals("Broken", e.getMessage());
+    }
+    assertEquals(0, cache.getEntryCount());
+    CountingLoader loader = new CountingLoader();
+    assertNotNull(cache.get(1, loader));
+    assertEquals(1, loader.loads.get());
+  }
+
+  /**
+   * A loader that waits to be told to finish, and fails if asked to.
+   */
+  private static class BlockingLoader implements DocumentDataCache.Loader {
+    final CountDownLatch started = new CountDownLatch(1);
+
+    final CountDownLatch finish = new CountDownLatch(1);
+
+    final AtomicInteger loads = new AtomicInteger();
+
+    final boolean fail;
+
+    BlockingLoader(boolean fail) {
+      this.fail = fail;
+    }
+
+    @Override
+    public DocumentData load(long documentId) throws IOException {
+      loads.incrementAndGet();
+      started.countDown();
+      try {
+        finish.await();
+      } catch(InterruptedException e) {
+        throw new IOException(e);
+      }
+      if(fail) throw new IllegalStateException("Broken");
+      return document(documentId);
+    }
+  }
+
+  /**
+   * Requests the same document from three threads, the last two while the
+   * first one is loading it.
+   * @return the results of the three requests.
+   */
+  private static List<Future<DocumentData>> requestConcurrently(
+      final DocumentDataCache cache, final BlockingLoader loader)
+      throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(3);
+    try {
+      Callable<DocumentData> request = new Callable<DocumentData>() {
+        @Override
+        public DocumentData call() throws Exception {
+          return cache.get(1, loader);
+        }
+      };
+      List<Future<DocumentData>> results =
+          new ArrayList<Future<DocumentData>>();
+      results.add(executor.submit(request));
+      assertTrue(loader.started.await(10, TimeUnit.SECONDS));
+      results.add(executor.submit(request));
+      results.add(executor.submit(request));
+      long start = System.currentTimeMillis();
+      while(cache.getCoalescedLoadCount() < 2) {
+        assertTrue("Requests not waiting for the load",
+            System.currentTimeMillis() - start < 10000);
+        Thread.sleep(5);
+      }
+      loader.finish.countDown();
+      for(Future<DocumentData> aResult : results) {
+        try {
+          aResult.get(10, TimeUnit.SECONDS);
+        } catch(ExecutionException e) {
+          // checked by the caller
+        }
+      }
+      return results;
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Concurrent requests for the same document only load it once, and all
+   * get the same value.
+   */
+  @Test
+  public void testCoalescedLoads() throws Exception {
+    DocumentDataCache cache = new DocumentDataCache(DOCUMENT_SIZE * 10);
+    BlockingLoader loader = new BlockingLoader(false);
+    List<Future<DocumentData>> results = requestConcurrently(cache, loader);
+    assertEquals(1, loader.loads.get());
+    DocumentData value = results.get(0).get();
+    assertSame(value, results.get(1).get());
+    assertSame(value, results.get(2).get());
+    assertSame(value, cache.getIfPresent(1));
+  }
+
+  /**
+   * Concurrent requests waiting for a load that fails all get the failure.
+   */
+  @Test
+  public void testCoalescedFailedLoad() throws Exception {
+    DocumentDataCache cache = new DocumentDataCache(DOCUMENT_SIZE * 10);
+    BlockingLoader loader = new BlockingLoader(true);
+    List<Future<DocumentData>> results = requestConcurrently(cache, loader);
+    assertEquals(1, loader.loads.get());
+    for(Future<DocumentData> aResult : results) {
+      try {
+        aResult.get();
+        fail("The load failure was not reported");
+      } catch(ExecutionException e) {
+        assertTrue(e.getCause() instanceof IllegalStateException);
+      }
+    }
+    assertNull(cache.getIfPresent(1));
+  }
+}
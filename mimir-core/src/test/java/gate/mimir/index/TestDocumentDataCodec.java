@@ -0,0 +1,232 @@
+/*
+ *  TestDocumentDataCodec.java
+ *
+ *  Copyright (c) 2007-2026, The University of Sheffield.
+ *
+ *  This file is part of GATE Mímir (see http://gate.ac.uk/family/mimir.html),
+ *  and is free software, licenced under the GNU Lesser General Public License,
+ *  Version 3, June 2007 (also included with this distribution as file
+ *  LICENCE-LGPL3.html).
+ *
+ *  $Id$
+ */
+package gate.mimir.index;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link DocumentDataCodec}.
+ */
+public class TestDocumentDataCodec {
+
+  /**
+   * Creates a document with the given number of tokens, some of them
+   * <code>null</code>, so that the text spans several chunks.
+   */
+  private static DocumentData document(int tokenCount) {
+    String[] tokens = new String[tokenCount];
+    String[] nonTokens = new String[tokenCount];
+    for(int i = 0; i < tokenCount; i++) {
+      tokens[i] = i % 10 == 9 ? null : "tokén" + (i % 17);
+      nonTokens[i] = i % 5 == 4 ? "\n" : " ";
+    }
+    return new DocumentData("http://example.com/doc?id=" + tokenCount,
+        "Document – " + tokenCount, tokens, nonTokens);
+  }
+
+  /**
+   * Copies the encoded data to a larger array, at a non-zero offset, and
+   * decodes it from there.
+   */
+  private static DocumentData decode(byte[] encoded,
+      DirectTermDictionary tokenDictionary) throws IOException {
+    byte[] data = new byte[encoded.length + 10];
+    Arrays.fill(data, (byte)'M');
+    System.arraycopy(encoded, 0, data, 7, encoded.length);
+    return DocumentDataCodec.decode(data, 7, encoded.length,
+        tokenDictionary);
+  }
+
+  private static void assertSameDocument(DocumentData expected,
+      DocumentData actual) {
+    assertEquals(expected.getDocumentURI(), actual.getDocumentURI());
+    assertEquals(expected.getDocumentTitle(), actual.getDocumentTitle());
+    assertArrayEquals(expected.getTokens(), actual.getTokens());
+    assertArrayEquals(expected.getNonTokens(), actual.getNonTokens());
+  }
+
+  @Test
+  public void testRoundTrip() throws Exception {
+    for(int tokenCount : new int[] {0, 1,
+        DocumentDataCodec.TEXT_CHUNK_SIZE,
+        DocumentDataCodec.TEXT_CHUNK_SIZE + 1, 1000}) {
+      DocumentData document = document(tokenCount);
+      assertSameDocument(document,
+          decode(DocumentDataCodec.encode(document), null));
+    }
+  }
+
+  @Test
+  public void testNullValues() throws Exception {
+    DocumentData document = new DocumentData(null, null, null, null);
+    DocumentData decoded = decode(DocumentDataCodec.encode(document), null);
+    assertNull(decoded.getDocumentURI());
+    assertNull(decoded.getDocumentTitle());
+    assertNull(decoded.getTokens());
+    assertNull(decoded.getNonTokens());
+    assertNull(decoded.getMetadataField("anything"));
+  }
+
+  @Test
+  public void testMetadata() throws Exception {
+    DocumentData document = document(3);
+    ArrayList<String> list = new ArrayList<String>(Arrays.asList("a", "b"));
+    document.putMetadataField("string", "value");
+    document.putMetadataField("int", -42);
+    document.putMetadataField("long", Long.MIN_VALUE);
+    document.putMetadataField("double", 3.25);
+    document.putMetadataField("float", -1.5f);
+    document.putMetadataField("boolean", true);
+    document.putMetadataField("date", new Date(1234567890123L));
+    document.putMetadataField("strings", new String[] {"x", null, "z"});
+    document.putMetadataField("null", null);
+    // anything else is Java-serialised
+    document.putMetadataField("list", list);
+    DocumentData decoded = decode(DocumentDataCodec.encode(document), null);
+    assertSameDocument(document, decoded);
+    assertEquals("value", decoded.getMetadataField("string"));
+    assertEquals(-42, decoded.getMetadataField("int"));
+    assertEquals(Long.MIN_VALUE, decoded.getMetadataField("long"));
+    assertEquals(3.25, decoded.getMetadataField("double"));
+    assertEquals(-1.5f, decoded.getMetadataField("float"));
+    assertEquals(Boolean.TRUE, decoded.getMetadataField("boolean"));
+    assertEquals(new Date(1234567890123L), decoded.getMetadataField("date"));
+    assertArrayEquals(new String[] {"x", null, "z"},
+        (String[])decoded.getMetadataField("strings"));
+    assertNull(decoded.getMetadataField("null"));
+    assertEquals(list, decoded.getMetadataField("list"));
+  }
+
+  @Test
+  public void testTokenIds() throws Exception {
+    DirectTermDictionary dictionary = new DirectTermDictionary();
+    DocumentData first = document(200);
+    DocumentData second = document(50);
+    byte[] firstData = DocumentDataCodec.encode(first, dictionary);
+    byte[] secondData = DocumentDataCodec.encode(second, dictionary);
+    // the tokens are shared between the documents
+    assertEquals(17, dictionary.size64());
+    assertSameDocument(first, decode(firstData, dictionary));
+    assertSameDocument(second, decode(secondData, dictionary));
+  }
+
+  @Test(expected = IOException.class)
+  public void testTokenIdsNeedDictionary() throws Exception {
+    DirectTermDictionary dictionary = new DirectTermDictionary();
+    decode(DocumentDataCodec.encode(document(5), dictionary), null);
+  }
+
+  /**
+   * Java-serialised documents, as written by older versions, can still be
+   * decoded.
+   */
+  @Test
+  public void testSerialisedDocument() throws Exception {
+    DocumentData document = document(70);
+    document.putMetadataField("int", 7);
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ObjectOutputStream oos = new ObjectOutputStream(bytes);
+    oos.writeObject(document);
+    oos.close();
+    DocumentData decoded = decode(bytes.toByteArray(), null);
+    assertSameDocument(document, decoded);
+    assertEquals(7, decoded.getMetadataField("int"));
+  }
+
+  /**
+   * Checks that decoding windows of the text gives the same results as
+   * {@link DocumentData#getText(int, int)}, for windows starting before,
+   * inside and after the document, and crossing chunk boundaries.
+   */
+  private static void assertTextWindows(DocumentData document, byte[] data,
+      DirectTermDictionary tokenDictionary) throws IOException {
+    int tokenCount = document.getTokens().length;
+    int chunk = DocumentDataCodec.TEXT_CHUNK_SIZE;
+    int[] starts = new int[] {-5, 0, 1, chunk - 1, chunk, chunk + 3,
+        tokenCount - 1, tokenCount, tokenCount + 2};
+    int[] lengths = new int[] {-1, 0, 1, 2, 10, chunk + 1, 3 * chunk};
+    for(int start : starts) {
+      for(int length : lengths) {
+        String[][] expected = document.getText(start, length);
+        String[][] actual = DocumentDataCodec.decodeText(data, 0,
+            data.length, start, length, tokenDictionary);
+        String window = "window " + start + "+" + length;
+        assertArrayEquals(window, expected[0], actual[0]);
+        assertArrayEquals(window, expected[1], actual[1]);
+      }
+    }
+  }
+
+  @Test
+  public void testDecodeText() throws Exception {
+    for(int tokenCount : new int[] {1, DocumentDataCodec.TEXT_CHUNK_SIZE,
+        3 * DocumentDataCodec.TEXT_CHUNK_SIZE + 5}) {
+      DocumentData document = document(tokenCount);
+      assertTextWindows(document, DocumentDataCodec.encode(document), null);
+    }
+  }
+
+  @Test
+  public void testDecodeTextWithTokenIds() throws Exception {
+    DirectTermDictionary dictionary = new DirectTermDictionary();
+    DocumentData document = document(3 * DocumentDataCodec.TEXT_CHUNK_SIZE +
+        5);
+    assertTextWindows(document,
+        DocumentDataCodec.encode(document, dictionary), dictionary);
+  }
+
+  @Test
+  public void testDecodeTextSerialised() throws Exception {
+    DocumentData document = document(100);
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ObjectOutputStream oos = new ObjectOutputStream(bytes);
+    oos.writeObject(document);
+    oos.close();
+    assertTextWindows(document, bytes.toByteArray(), null);
+  }
+
+  /**
+   * Only the current version of the encoding is supported.
+   */
+  @Test
+  public void testUnsupportedVersion() throws Exception {
+    byte[] data = DocumentDataCodec.encode(document(5));
+    // the version follows the magic bytes
+    assertEquals(DocumentDataCodec.VERSION, data[2]);
+    data[2] = 1;
+    try {
+      DocumentDataCodec.decode(data, 0, data.length);
+      fail("Decoded an unsupported version");
+    } catch(IOException e) {
+      // expected
+    }
+    try {
+      DocumentDataCodec.decodeText(data, 0, data.length, 0, 2, null);
+      fail("Decoded an unsupported version");
+    } catch(IOException e) {
+      // expected
+    }
+  }
+}
@@ -0,0 +1,163 @@
+/*
+ *  TestDocumentQueueLog.java
+ *
+ *  Copyright (c) 2007-2026, The University of Sheffield.
+ *
+ *  This file is part of GATE Mímir (see http://gate.ac.uk/family/mimir.html),
+ *  and is free software, licenced under the GNU Lesser General Public License,
+ *  Version 3, June 2007 (also included with this distribution as file
+ *  LICENCE-LGPL3.html).
+ *
+ *  $Id$
+ */
+package gate.mimir.index;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for {@link DocumentQueueLog}, using strings as the logged documents.
+ */
+public class TestDocumentQueueLog {
+
+  private File directory;
+
+  @Before
+  public void setUp() throws Exception {
+    directory = File.createTempFile("mimir-queue", null);
+    directory.delete();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    FileUtils.deleteDirectory(directory);
+  }
+
+  private File segmentFile(long firstDocumentId) {
+    return new File(directory, DocumentQueueLog.SEGMENT_FILE_PREFIX +
+        firstDocumentId + DocumentQueueLog.SEGMENT_FILE_EXTENSION);
+  }
+
+  /**
+   * Replays a log, returning the IDs and documents read, as a string.
+   */
+  private static String replay(DocumentQueueLog log, long fromDocumentId)
+      throws Exception {
+    final List<String> documents = new ArrayList<String>();
+    log.replay(fromDocumentId, new DocumentQueueLog.DocumentHandler() {
+      @Override
+      public void handleDocument(long documentId, Object document) {
+        documents.add(documentId + "=" + document);
+      }
+    });
+    return documents.toString();
+  }
+
+  /**
+   * Appends the end of a record, as left by a process stopped while
+   * writing it.
+   */
+  private static void appendRecordHeader(File segment, int length,
+      int dataLength) throws Exception {
+    DataOutputStream out = new DataOutputStream(
+        new FileOutputStream(segment, true));
+    try {
+      out.writeInt(length);
+      out.writeLong(0);
+      out.write(new byte[dataLength]);
+    } finally {
+      out.close();
+    }
+  }
+
+  private DocumentQueueLog createLog(long firstDocumentId, String... documents)
+      throws Exception {
+    DocumentQueueLog log = new DocumentQueueLog(directory, firstDocumentId);
+    for(String aDocument : documents) log.append(aDocument);
+    return log;
+  }
+
+  @Test
+  public void testReplay() throws Exception {
+    DocumentQueueLog log = createLog(10, "a", "b", "c");
+    assertEquals(10, log.getFirstDocumentId());
+    assertEquals(13, log.getNextDocumentId());
+    assertEquals("[10=a, 11=b, 12=c]", replay(log, 10));
+    assertEquals("[12=c]", replay(log, 12));
+    assertEquals("[]", replay(log, 13));
+    log.close();
+
+    // the next document ID given when re-opening is only used for a new log
+    log = new DocumentQueueLog(directory, 0);
+    assertEquals(13, log.getNextDocumentId());
+    log.append("d");
+    assertEquals("[11=b, 12=c, 13=d]", replay(log, 11));
+    log.close();
+  }
+
+  /**
+   * A record only partially written when the process stopped is discarded
+   * when the log is re-opened.
+   */
+  @Test
+  public void testTruncatedTailRecord() throws Exception {
+    createLog(0, "a", "b").close();
+    long validLength = segmentFile(0).length();
+    appendRecordHeader(segmentFile(0), 100, 10);
+
+    DocumentQueueLog log = new DocumentQueueLog(directory, 0);
+    assertEquals(2, log.getNextDocumentId());
+    assertEquals(validLength, segmentFile(0).length());
+    log.append("c");
+    log.close();
+    log = new DocumentQueueLog(directory, 0);
+    assertEquals("[0=a, 1=b, 2=c]", replay(log, 0));
+    log.close();
+  }
+
+  /**
+   * A damaged record header claiming more data than the file holds ends the
+   * log, without the data being read.
+   */
+  @Test
+  public void testOversizedRecordLength() throws Exception {
+    createLog(0, "a").close();
+    long validLength = segmentFile(0).length();
+    appendRecordHeader(segmentFile(0), Integer.MAX_VALUE - 8, 0);
+
+    DocumentQueueLog log = new DocumentQueueLog(directory, 0);
+    assertEquals(1, log.getNextDocumentId());
+    assertEquals(validLength, segmentFile(0).length());
+    assertEquals("[0=a]", replay(log, 0));
+    log.close();
+  }
+
+  /**
+   * Only whole segments holding released documents are deleted.
+   */
+  @Test
+  public void testRelease() throws Exception {
+    DocumentQueueLog log = createLog(0, "a", "b");
+    log.close();
+    log = new DocumentQueueLog(directory, 0);
+    log.append("c");
+    log.release(1);
+    assertEquals(0, log.getFirstDocumentId());
+    assertEquals("[1=b, 2=c]", replay(log, 1));
+    log.release(3);
+    assertEquals(3, log.getFirstDocumentId());
+    log.append("d");
+    assertEquals("[3=d]", replay(log, 3));
+    log.close();
+  }
+}
@@ -0,0 +1,184 @@
+/*
+ *  TestDocumentRingBuffer.java
+ *
+ *  Copyright (c) 2007-2026, The University of Sheffield.
+ *
+ *  This file is part of GATE Mímir (see http://gate.ac.uk/family/mimir.html),
+ *  and is free software, licenced under the GNU Lesser General Public License,
+ *  Version 3, June 2007 (also included with this distribution as file
+ *  LICENCE-LGPL3.html).
+ *
+ *  $Id$
+ */
+package gate.mimir.index;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link DocumentRingBuffer}.
+ */
+public class TestDocumentRingBuffer {
+
+  private static GATEDocument[] documents(int count) {
+    GATEDocument[] documents = new GATEDocument[count];
+    for(int i = 0; i < count; i++) {
+      documents[i] = new GATEDocument() { };
+    }
+    return documents;
+  }
+
+  @Test
+  public void testSingleConsumer() throws Exception {
+    DocumentRingBuffer buffer = new DocumentRingBuffer(3);
+    assertEquals(4, buffer.getCapacity());
+    DocumentRingBuffer.Consumer consumer = buffer.newConsumer();
+    GATEDocument[] documents = documents(10);
+    for(int i = 0; i < documents.length; i++) {
+      buffer.put(documents[i]);
+      assertSame(documents[i], consumer.take());
+      assertEquals(1, consumer.getPendingCount());
+      consumer.release();
+    }
+    assertEquals(0, consumer.getPendingCount());
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testReleaseWithoutTake() {
+    new DocumentRingBuffer(4).newConsumer().release();
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testConsumerAfterPublish() throws Exception {
+    DocumentRingBuffer buffer = new DocumentRingBuffer(4);
+    buffer.newConsumer();
+    buffer.put(documents(1)[0]);
+    buffer.newConsumer();
+  }
+
+  /**
+   * A dependent consumer only sees the documents released by all the
+   * consumers it depends on.
+   */
+  @Test
+  public void testDependentConsumer() throws Exception {
+    final DocumentRingBuffer buffer = new DocumentRingBuffer(4);
+    DocumentRingBuffer.Consumer first = buffer.newConsumer();
+    DocumentRingBuffer.Consumer second = buffer.newConsumer();
+    final DocumentRingBuffer.Consumer dependent =
+        buffer.newConsumer(first, second);
+    GATEDocument[] documents = documents(2);
+    buffer.put(documents[0]);
+    buffer.put(documents[1]);
+    first.take();
+    first.take();
+    first.release();
+    second.take();
+
+    final AtomicReference<GATEDocument> taken =
+        new AtomicReference<GATEDocument>();
+    final CountDownLatch done = new CountDownLatch(1);
+    Thread reader = new Thread() {
+      @Override
+      public void run() {
+        try {
+          taken.set(dependent.take());
+          done.countDown();
+        } catch(InterruptedException e) {
+          // test fails below
+        }
+      }
+    };
+    reader.start();
+    assertFalse(done.await(100, TimeUnit.MILLISECONDS));
+    second.release();
+    assertTrue(done.await(10, TimeUnit.SECONDS));
+    assertSame(documents[0], taken.get());
+    reader.join();
+  }
+
+  /**
+   * The producer waits for the slowest consumer before re-using a slot.
+   */
+  @Test
+  public void testProducerWaitsWhenFull() throws Exception {
+    final DocumentRingBuffer buffer = new DocumentRingBuffer(2);
+    DocumentRingBuffer.Consumer consumer = buffer.newConsumer();
+    final GATEDocument[] documents = documents(3);
+    buffer.put(documents[0]);
+    buffer.put(documents[1]);
+    final CountDownLatch done = new CountDownLatch(1);
+    Thread producer = new Thread() {
+      @Override
+      public void run() {
+        try {
+          buffer.put(documents[2]);
+          done.countDown();
+        } catch(InterruptedException e) {
+          // test fails below
+        }
+      }
+    };
+    producer.start();
+    // taking is not enough: the slot is only free once released
+    assertSame(documents[0], consumer.take());
+    assertFalse(done.await(100, TimeUnit.MILLISECONDS));
+    consumer.release();
+    assertTrue(done.await(10, TimeUnit.SECONDS));
+    assertSame(documents[1], consumer.take());
+    assertSame(documents[2], consumer.take());
+    producer.join();
+  }
+
+  /**
+   * Several consumers, each on its own thread, all see every document in
+   * order.
+   */
+  @Test
+  public void testConcurrentConsumers() throws Exception {
+    final DocumentRingBuffer buffer = new DocumentRingBuffer(16);
+    final GATEDocument[] documents = documents(20000);
+    DocumentRingBuffer.Consumer first = buffer.newConsumer();
+    DocumentRingBuffer.Consumer second = buffer.newConsumer();
+    DocumentRingBuffer.Consumer last = buffer.newConsumer(first, second);
+    final DocumentRingBuffer.Consumer[] consumers =
+        new DocumentRingBuffer.Consumer[] {first, second, last};
+    final AtomicReference<String> failure = new AtomicReference<String>();
+    Thread[] threads = new Thread[consumers.length];
+    for(int i = 0; i < threads.length; i++) {
+      final DocumentRingBuffer.Consumer consumer = consumers[i];
+      threads[i] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            for(int j = 0; j < documents.length; j++) {
+              if(consumer.take() != documents[j]) {
+                failure.set("Wrong document at position " + j);
+              }
+              consumer.release();
+            }
+          } catch(InterruptedException e) {
+            failure.set("Interrupted");
+          }
+        }
+      };
+      threads[i].start();
+    }
+    for(GATEDocument aDocument : documents) {
+      buffer.put(aDocument);
+    }
+    for(Thread aThread : threads) {
+      aThread.join(30000);
+      assertFalse(aThread.isAlive());
+    }
+    assertEquals(null, failure.get());
+  }
+}
@@ -0,0 +1,123 @@
+/*
+ *  TestPackedPostingsAccumulator.java
+ *
+ *  Copyright (c) 2007-2026, The University of Sheffield.
+ *
+ *  This file is part of GATE Mímir (see http://gate.ac.uk/family/mimir.html),
+ *  and is free software, licenced under the GNU Lesser General Public License,
+ *  Version 3, June 2007 (also included with this distribution as file
+ *  LICENCE-LGPL3.html).
+ *
+ *  $Id$
+ */
+package gate.mimir.index;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import gate.mimir.index.AtomicIndex.PostingsList;
+import it.unimi.dsi.lang.MutableString;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link PackedPostingsAccumulator}.
+ */
+public class TestPackedPostingsAccumulator {
+
+  private static String postings(PackedPostingsAccumulator accumulator,
+      String term) {
+    int termId = accumulator.getTermId(term);
+    return accumulator.decodePostings(termId, new PostingsList(true))
+        .toString();
+  }
+
+  @Test
+  public void testRoundTrip() {
+    PackedPostingsAccumulator accumulator = new PackedPostingsAccumulator();
+    assertTrue(accumulator.addOccurrence("a", 0, 1));
+    assertTrue(accumulator.addOccurrence("a", 0, 3));
+    assertTrue(accumulator.addOccurrence("b", 0, 2));
+    assertTrue(accumulator.addOccurrence("a", 5, 2));
+    assertTrue(accumulator.addOccurrence("b", 300, 70000));
+
+    assertEquals(2, accumulator.size());
+    assertEquals(0, accumulator.getTermId("a"));
+    assertEquals(1, accumulator.getTermId("b"));
+    assertEquals(-1, accumulator.getTermId("c"));
+    assertEquals("0(1, 3) ; 5(2) ", postings(accumulator, "a"));
+    assertEquals("0(2) ; 300(70000) ", postings(accumulator, "b"));
+    assertEquals("b", accumulator.getTerm(1, new MutableString()).toString());
+  }
+
+  @Test
+  public void testDuplicatePositions() {
+    PackedPostingsAccumulator accumulator = new PackedPostingsAccumulator();
+    assertTrue(accumulator.addOccurrence("a", 0, 4));
+    assertFalse(accumulator.addOccurrence("a", 0, 4));
+    assertFalse(accumulator.addOccurrence("a", 0, 2));
+    assertTrue(accumulator.addOccurrence("a", 1, 2));
+    assertEquals("0(4) ; 1(2) ", postings(accumulator, "a"));
+  }
+
+  /**
+   * Writes enough postings for one term to use every slice size, and enough
+   * terms to rehash the table several times.
+   */
+  @Test
+  public void testManyTermsAndPostings() {
+    PackedPostingsAccumulator accumulator = new PackedPostingsAccumulator();
+    Random random = new Random(42);
+    StringBuilder expected = new StringBuilder();
+    int position = 0;
+    for(int doc = 0; doc < 20000; doc++) {
+      int first = random.nextInt(1000);
+      int second = first + 1 + random.nextInt(100000);
+      accumulator.addOccurrence("frequent", doc, first);
+      accumulator.addOccurrence("frequent", doc, second);
+      expected.append(doc).append("(").append(first).append(", ")
+          .append(second).append(") ; ");
+      accumulator.addOccurrence("term" + doc, doc, position++);
+    }
+    expected.setLength(expected.length() - 2);
+    assertEquals(20001, accumulator.size());
+    assertEquals(expected.toString(), postings(accumulator, "frequent"));
+    for(int doc = 0; doc < 20000; doc += 997) {
+      assertEquals(doc + "(" + doc + ") ",
+          postings(accumulator, "term" + doc));
+    }
+  }
+
+  /**
+   * A term too long for a normal slab gets a slab of its own.
+   */
+  @Test
+  public void testOversizedTerm() {
+    PackedPostingsAccumulator accumulator = new PackedPostingsAccumulator();
+    char[] chars = new char[PackedPostingsAccumulator.SlabPool.SLAB_SIZE];
+    for(int i = 0; i < chars.length; i++) chars[i] = (char)('a' + i % 26);
+    String longTerm = new String(chars);
+    accumulator.addOccurrence("before", 0, 0);
+    accumulator.addOccurrence(longTerm, 0, 1);
+    accumulator.addOccurrence("after", 0, 2);
+    assertEquals(1, accumulator.getTermId(longTerm));
+    assertEquals(longTerm,
+        accumulator.getTerm(1, new MutableString()).toString());
+    assertEquals("0(1) ", postings(accumulator, longTerm));
+    assertEquals("0(2) ", postings(accumulator, "after"));
+
+    // the slabs are reused after clearing, including the over-sized one
+    long capacity = accumulator.getOffHeapCapacity();
+    accumulator.clear();
+    assertEquals(0, accumulator.size());
+    assertEquals(-1, accumulator.getTermId(longTerm));
+    accumulator.addOccurrence("before", 0, 0);
+    accumulator.addOccurrence(longTerm + "x", 0, 1);
+    assertEquals(longTerm + "x",
+        accumulator.getTerm(1, new MutableString()).toString());
+    assertTrue(accumulator.getOffHeapCapacity() >= capacity);
+  }
+}
@@ -0,0 +1,260 @@
+/*
+ *  TestSegmentDocumentStore.java
+ *
+ *  Copyright (c) 2007-2026, The University of Sheffield.
+ *
+ *  This file is part of GATE Mímir (see http://gate.ac.uk/family/mimir.html),
+ *  and is free software, licenced under the GNU Lesser General Public License,
+ *  Version 3, June 2007 (also included with this distribution as file
+ *  LICENCE-LGPL3.html).
+ *
+ *  $Id$
+ */
+package gate.mimir.index;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import gate.mimir.util.LongBitmap;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.NoSuchElementException;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for {@link SegmentDocumentStore}.
+ */
+public class TestSegmentDocumentStore {
+
+  private File directory;
+
+  private SegmentDocumentStore store;
+
+  @Before
+  public void setUp() throws Exception {
+    directory = File.createTempFile("mimir-store", null);
+    directory.delete();
+    directory.mkdirs();
+    store = new SegmentDocumentStore(directory);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    if(store != null) store.close();
+    FileUtils.deleteDirectory(directory);
+  }
+
+  private static DocumentData document(int i) {
+    return new DocumentData("doc" + i, "Document " + i,
+        new String[] {"token", Integer.toString(i), "end"},
+        new String[] {" ", " ", ""});
+  }
+
+  private void assertDocument(int i) throws Exception {
+    DocumentData expected = document(i);
+    DocumentData actual = store.getDocumentData(i);
+    assertEquals(expected.getDocumentURI(), actual.getDocumentURI());
+    assertEquals(expected.getDocumentTitle(), actual.getDocumentTitle());
+    assertArrayEquals(expected.getTokens(), actual.getTokens());
+    assertArrayEquals(expected.getNonTokens(), actual.getNonTokens());
+  }
+
+  private void writeDocuments(int from, int to) throws Exception {
+    for(int i = from; i < to; i++) {
+      assertEquals(i, store.getNextDocumentId());
+      store.writeDocument(document(i));
+    }
+  }
+
+  private void reopen() throws Exception {
+    store.close();
+    store = new SegmentDocumentStore(directory);
+  }
+
+  /**
+   * Overwrites the number of entries recorded as synced, as if the store
+   * had stopped before the last sync completed.
+   */
+  private void setSyncedCount(long count) throws Exception {
+    RandomAccessFile file = new RandomAccessFile(new File(directory,
+        SegmentDocumentStore.SYNCED_COUNT_FILE_NAME), "rw");
+    try {
+      file.writeLong(count);
+    } finally {
+      file.close();
+    }
+  }
+
+  private void setOffset(long documentId, long value) throws Exception {
+    RandomAccessFile offsets = new RandomAccessFile(new File(directory,
+        SegmentDocumentStore.OFFSETS_FILE_NAME), "rw");
+    try {
+      offsets.seek(documentId * 8);
+      offsets.writeLong(value);
+    } finally {
+      offsets.close();
+    }
+  }
+
+  private File segmentFile(int segment) {
+    return new File(directory,
+        SegmentDocumentStore.getSegmentFileName(segment));
+  }
+
+  /**
+   * Documents can be read while buffered, once published (every
+   * {@link SegmentDocumentStore#INPUT_BUFFER_SIZE} documents), and after
+   * re-opening the store.
+   */
+  @Test
+  public void testWriteAndRead() throws Exception {
+    int count = SegmentDocumentStore.INPUT_BUFFER_SIZE * 2 + 10;
+    writeDocuments(0, count);
+    assertEquals(SegmentDocumentStore.INPUT_BUFFER_SIZE * 2,
+        store.getPublishedDocumentCount());
+    for(int i = 0; i < count; i++) assertDocument(i);
+    store.sync();
+    assertEquals(count, store.getPublishedDocumentCount());
+    reopen();
+    assertEquals(count, store.getNextDocumentId());
+    assertEquals(1, store.getSegmentCount());
+    for(int i = 0; i < count; i += 7) assertDocument(i);
+    String[][] text = store.getText(5, 1, 2);
+    assertArrayEquals(new String[] {"5", "end"}, text[0]);
+    assertArrayEquals(new String[] {" ", ""}, text[1]);
+    // writing continues in the same segment
+    writeDocuments(count, count + 5);
+    reopen();
+    assertEquals(count + 5, store.getNextDocumentId());
+    assertEquals(1, store.getSegmentCount());
+    assertDocument(count + 4);
+  }
+
+  @Test(expected = NoSuchElementException.class)
+  public void testMissingDocument() throws Exception {
+    writeDocuments(0, 3);
+    store.getDocumentData(3);
+  }
+
+  /**
+   * Documents whose data did not make it to disk are dropped on opening.
+   */
+  @Test
+  public void testLostSegmentData() throws Exception {
+    writeDocuments(0, 10);
+    store.sync();
+    long syncedLength = segmentFile(0).length();
+    writeDocuments(10, 20);
+    store.close();
+    store = null;
+    RandomAccessFile segment = new RandomAccessFile(segmentFile(0), "rw");
+    try {
+      segment.setLength(syncedLength);
+    } finally {
+      segment.close();
+    }
+    setSyncedCount(10);
+    store = new SegmentDocumentStore(directory);
+    assertEquals(10, store.getNextDocumentId());
+    for(int i = 0; i < 10; i++) assertDocument(i);
+    writeDocuments(10, 12);
+    reopen();
+    assertEquals(12, store.getNextDocumentId());
+    for(int i = 0; i < 12; i++) assertDocument(i);
+  }
+
+  /**
+   * An offset written after the last sync that points outside the segments
+   * drops all the documents from that one onwards, even if the entries
+   * after it are valid.
+   */
+  @Test
+  public void testInvalidOffset() throws Exception {
+    writeDocuments(0, 10);
+    store.close();
+    store = null;
+    setOffset(5, Long.MAX_VALUE);
+    setSyncedCount(3);
+    store = new SegmentDocumentStore(directory);
+    assertEquals(5, store.getNextDocumentId());
+    for(int i = 0; i < 5; i++) assertDocument(i);
+    // the remaining documents are now the synced ones
+    reopen();
+    assertEquals(5, store.getNextDocumentId());
+  }
+
+  /**
+   * An invalid offset for a document that had been synced to disk means 
+   * the store is damaged: nothing is dropped, and the store does not open.
+   */
+  @Test
+  public void testInvalidSyncedOffset() throws Exception {
+    writeDocuments(0, 10);
+    store.close();
+    store = null;
+    long offsetsLength = new File(directory,
+        SegmentDocumentStore.OFFSETS_FILE_NAME).length();
+    setOffset(5, Long.MAX_VALUE);
+    try {
+      store = new SegmentDocumentStore(directory);
+      fail("A damaged store was opened");
+    } catch(IOException e) {
+      // expected
+    }
+    assertEquals(offsetsLength, new File(directory,
+        SegmentDocumentStore.OFFSETS_FILE_NAME).length());
+  }
+
+  @Test
+  public void testTruncate() throws Exception {
+    writeDocuments(0, 10);
+    store.truncate(4);
+    assertEquals(4, store.getNextDocumentId());
+    reopen();
+    assertEquals(4, store.getNextDocumentId());
+    assertDocument(3);
+  }
+
+  /**
+   * Compaction rewrites the segments holding deleted documents, but not the
+   * one being written to.
+   */
+  @Test
+  public void testCompact() throws Exception {
+    writeDocuments(0, 10);
+    store.close();
+    // an (empty) later segment stops the store from appending to segment 0
+    // when re-opened
+    segmentFile(1).createNewFile();
+    store = new SegmentDocumentStore(directory);
+    writeDocuments(10, 12);
+    store.sync();
+    store.compact(LongBitmap.EMPTY.add(1, 3, 11));
+    assertFalse(segmentFile(0).exists());
+    for(int i = 0; i < 12; i++) {
+      if(i == 1 || i == 3) {
+        try {
+          store.getDocumentData(i);
+          fail("Deleted document " + i + " was found");
+        } catch(NoSuchElementException e) {
+          // expected
+        }
+      } else {
+        assertDocument(i);
+      }
+    }
+    reopen();
+    assertEquals(12, store.getNextDocumentId());
+    assertDocument(0);
+    assertDocument(11);
+    assertDocument(9);
+  }
+}
@@ -0,0 +1,95 @@
+/*
+ *  TestTieredMergePolicy.java
+ *
+ *  Copyright (c) 2007-2026, The University of Sheffield.
+ *
+ *  This file is part of GATE Mímir (see http://gate.ac.uk/family/mimir.html),
+ *  and is free software, licenced under the GNU Lesser General Public License,
+ *  Version 3, June 2007 (also included with this distribution as file
+ *  LICENCE-LGPL3.html).
+ *
+ *  $Id$
+ */
+package gate.mimir.index;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link TieredMergePolicy}.
+ */
+public class TestTieredMergePolicy {
+
+  private final TieredMergePolicy policy = new TieredMergePolicy(4, 100,
+      10000);
+
+  @Test
+  public void testTooFewBatches() {
+    assertNull(policy.findMerge(new long[0]));
+    assertNull(policy.findMerge(new long[] {10, 10, 10}));
+  }
+
+  @Test
+  public void testMergesSameTierRun() {
+    assertArrayEquals(new int[] {0, 4},
+        policy.findMerge(new long[] {10, 20, 30, 40}));
+    // the newest run is preferred
+    assertArrayEquals(new int[] {2, 6},
+        policy.findMerge(new long[] {10, 20, 10, 20, 30, 40}));
+    // a larger batch in between splits the runs
+    assertArrayEquals(new int[] {1, 5},
+        policy.findMerge(new long[] {10, 20, 30, 40, 50, 500, 10, 20}));
+    assertNull(policy.findMerge(new long[] {10, 20, 30, 500, 10, 20, 30}));
+  }
+
+  @Test
+  public void testMaximumMergeSize() {
+    // tier 2 batches (1600 <= size < 6400), too large to merge together
+    assertNull(policy.findMerge(new long[] {3000, 3000, 3000, 3000}));
+    // the small batches at the end can still be merged
+    assertArrayEquals(new int[] {4, 8}, policy.findMerge(
+        new long[] {3000, 3000, 3000, 3000, 10, 10, 10, 10}));
+  }
+
+  @Test
+  public void testDisabled() {
+    assertNull(new TieredMergePolicy(1, 100, 10000).findMerge(
+        new long[] {10, 10, 10, 10}));
+  }
+
+  /**
+   * Adds many small batches, merging as the policy says, and checks that the
+   * number of batches stays logarithmic, while each byte is rewritten a
+   * logarithmic number of times.
+   */
+  @Test
+  public void testLogarithmicMerging() {
+    TieredMergePolicy unbounded = new TieredMergePolicy(4, 100,
+        Long.MAX_VALUE);
+    LongArrayList batches = new LongArrayList();
+    long written = 0;
+    long added = 0;
+    for(int i = 0; i < 4096; i++) {
+      batches.add(100);
+      added += 100;
+      written += 100;
+      int[] range;
+      while((range = unbounded.findMerge(batches.toLongArray())) != null) {
+        long merged = 0;
+        for(int j = range[0]; j < range[1]; j++) merged += batches.getLong(j);
+        batches.removeElements(range[0], range[1]);
+        batches.add(range[0], merged);
+        written += merged;
+      }
+      // at most (mergeFactor - 1) batches in each tier
+      assertTrue("Too many batches: " + batches, batches.size() <= 3 * 7);
+    }
+    // 4096 = 4^6 batches, so each byte is rewritten at most 6 times
+    assertTrue("Too much data written: " + written, written <= 7 * added);
+  }
+}
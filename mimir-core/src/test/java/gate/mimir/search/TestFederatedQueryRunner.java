@@ -0,0 +1,287 @@
+/*
+ *  TestFederatedQueryRunner.java
+ *
+ *  Copyright (c) 2007-2026, The University of Sheffield.
+ *
+ *  This file is part of GATE Mímir (see http://gate.ac.uk/family/mimir.html),
+ *  and is free software, licenced under the GNU Lesser General Public License,
+ *  Version 3, June 2007 (also included with this distribution as file
+ *  LICENCE-LGPL3.html).
+ *
+ *  $Id$
+ */
+package gate.mimir.search;
+
+import static org.junit.Assert.assertEquals;
+
+import gate.mimir.search.query.Binding;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link FederatedQueryRunner}, using sub-runners with fixed
+ * results.
+ */
+public class TestFederatedQueryRunner {
+
+  /**
+   * A document ID and its score.
+   */
+  private static class Result {
+    final long documentId;
+
+    final double score;
+
+    Result(long documentId, double score) {
+      this.documentId = documentId;
+      this.score = score;
+    }
+
+    @Override
+    public String toString() {
+      return documentId + " score " + score;
+    }
+  }
+
+  /**
+   * Sorts results by decreasing score, then increasing document ID.
+   */
+  private static final Comparator<Result> RANKING_ORDER =
+      new Comparator<Result>() {
+    @Override
+    public int compare(Result o1, Result o2) {
+      int res = Double.compare(o2.score, o1.score);
+      return res != 0 ? res : Long.compare(o1.documentId, o2.documentId);
+    }
+  };
+
+  /**
+   * A query runner with fixed results, which finds pages of documents by
+   * sorting all of them.
+   */
+  private static class FixedQueryRunner implements QueryRunner {
+    final List<Result> ranked;
+
+    FixedQueryRunner(List<Result> results) {
+      ranked = new ArrayList<Result>(results);
+      Collections.sort(ranked, RANKING_ORDER);
+    }
+
+    @Override
+    public long getDocumentsCount() {
+      return ranked.size();
+    }
+
+    @Override
+    public long getDocumentsCountSync() {
+      return ranked.size();
+    }
+
+    @Override
+    public long getDocumentsCurrentCount() {
+      return ranked.size();
+    }
+
+    @Override
+    public long getDocumentID(long rank) {
+      return ranked.get((int)rank).documentId;
+    }
+
+    @Override
+    public double getDocumentScore(long rank) {
+      return ranked.get((int)rank).score;
+    }
+
+    @Override
+    public DocumentsPage getDocumentsAfter(double afterScore,
+        long afterDocumentId, int size) {
+      List<Result> page = new ArrayList<Result>();
+      Result after = new Result(afterDocumentId, afterScore);
+      for(Result aResult : ranked) {
+        if(page.size() == size) break;
+        if(RANKING_ORDER.compare(aResult, after) > 0) page.add(aResult);
+      }
+      return page(page);
+    }
+
+    @Override
+    public List<Binding> getDocumentHits(long rank) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public String[][] getDocumentText(long rank, int termPosition,
+        int length) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public String getDocumentURI(long rank) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public String getDocumentTitle(long rank) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Serializable getDocumentMetadataField(long rank,
+        String fieldName) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Map<String, Serializable> getDocumentMetadataFields(long rank,
+        Set<String> fieldNames) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void renderDocument(long rank, Appendable out) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+
+  private static DocumentsPage page(List<Result> results) {
+    long[] ids = new long[results.size()];
+    double[] scores = new double[results.size()];
+    for(int i = 0; i < ids.length; i++) {
+      ids[i] = results.get(i).documentId;
+      scores[i] = results.get(i).score;
+    }
+    return new DocumentsPage(ids, scores);
+  }
+
+  private static List<Result> results(DocumentsPage page) {
+    List<Result> results = new ArrayList<Result>();
+    for(int i = 0; i < page.size(); i++) {
+      results.add(new Result(page.getDocumentIds()[i],
+          page.getDocumentScores()[i]));
+    }
+    return results;
+  }
+
+  /**
+   * Gets all the documents of a query runner, one page at a time.
+   */
+  private static List<Result> allPages(QueryRunner runner, int pageSize)
+      throws Exception {
+    List<Result> results = new ArrayList<Result>();
+    DocumentsPage page = runner.getDocumentsAfter(
+        DocumentsPage.FIRST_PAGE_SCORE, DocumentsPage.FIRST_PAGE_DOCUMENT_ID,
+        pageSize);
+    while(page.size() > 0) {
+      assertEquals(true, page.size() <= pageSize);
+      results.addAll(results(page));
+      page = runner.getDocumentsAfter(page.getLastDocumentScore(),
+          page.getLastDocumentId(), pageSize);
+    }
+    return results;
+  }
+
+  /**
+   * Creates sub-runners with random results, and returns the expected
+   * federated results, in ranking order. Federated document IDs are
+   * <code>subId * subRunners.length + subRunnerIndex</code>.
+   */
+  private static List<Result> createSubRunners(QueryRunner[] subRunners,
+      Random random) {
+    List<Result> federated = new ArrayList<Result>();
+    for(int i = 0; i < subRunners.length; i++) {
+      List<Result> subResults = new ArrayList<Result>();
+      for(long subId = 0; subId < 200; subId++) {
+        if(random.nextInt(3) > 0) continue;
+        // few distinct scores, so there are many ties
+        double score = random.nextInt(5);
+        subResults.add(new Result(subId, score));
+        federated.add(new Result(subId * subRunners.length + i, score));
+      }
+      subRunners[i] = new FixedQueryRunner(subResults);
+    }
+    Collections.sort(federated, RANKING_ORDER);
+    return federated;
+  }
+
+  @Test
+  public void testDocumentsAfter() throws Exception {
+    Random random = new Random(17);
+    for(int subRunnerCount : new int[] {1, 2, 3, 5}) {
+      QueryRunner[] subRunners = new QueryRunner[subRunnerCount];
+      List<Result> expected = createSubRunners(subRunners, random);
+      FederatedQueryRunner runner = new FederatedQueryRunner(subRunners);
+      for(int pageSize : new int[] {1, 7, 1000}) {
+        assertEquals("Sub-runners: " + subRunnerCount + ", page size: " +
+            pageSize, expected.toString(),
+            allPages(runner, pageSize).toString());
+      }
+    }
+  }
+
+  /**
+   * A page can start after any document, including one whose federated ID
+   * maps to a different sub-runner than the documents that follow it.
+   */
+  @Test
+  public void testDocumentsAfterAnyDocument() throws Exception {
+    QueryRunner[] subRunners = new QueryRunner[3];
+    List<Result> expected = createSubRunners(subRunners, new Random(23));
+    FederatedQueryRunner runner = new FederatedQueryRunner(subRunners);
+    for(int i = 0; i < expected.size(); i++) {
+      Result after = expected.get(i);
+      List<Result> page = results(runner.getDocumentsAfter(after.score,
+          after.documentId, 4));
+      assertEquals("After " + after,
+          expected.subList(i + 1, Math.min(i + 5, expected.size()))
+              .toString(), page.toString());
+    }
+  }
+
+  /**
+   * The ranks and the pages give the same documents, in the same order,
+   * apart from documents with equal scores.
+   */
+  @Test
+  public void testSameDocumentsAsRanks() throws Exception {
+    QueryRunner[] subRunners = new QueryRunner[4];
+    List<Result> expected = createSubRunners(subRunners, new Random(29));
+    FederatedQueryRunner runner = new FederatedQueryRunner(subRunners);
+    List<Result> ranked = new ArrayList<Result>();
+    for(long rank = 0; rank < runner.getDocumentsCountSync(); rank++) {
+      ranked.add(new Result(runner.getDocumentID(rank),
+          runner.getDocumentScore(rank)));
+    }
+    for(int i = 1; i < ranked.size(); i++) {
+      assertEquals(true, ranked.get(i - 1).score >= ranked.get(i).score);
+    }
+    Collections.sort(ranked, RANKING_ORDER);
+    assertEquals(expected.toString(), ranked.toString());
+  }
+
+  @Test
+  public void testNoDocuments() throws Exception {
+    FederatedQueryRunner runner = new FederatedQueryRunner(
+        new QueryRunner[] {
+          new FixedQueryRunner(new ArrayList<Result>()),
+          new FixedQueryRunner(new ArrayList<Result>())});
+    DocumentsPage page = runner.getDocumentsAfter(
+        DocumentsPage.FIRST_PAGE_SCORE, DocumentsPage.FIRST_PAGE_DOCUMENT_ID,
+        10);
+    assertEquals(0, page.size());
+    assertEquals(-1, page.getLastDocumentId());
+    assertEquals(Double.NEGATIVE_INFINITY, page.getLastDocumentScore(), 0);
+  }
+}
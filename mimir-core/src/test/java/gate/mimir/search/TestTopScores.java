@@ -0,0 +1,106 @@
+/*
+ *  TestTopScores.java
+ *
+ *  Copyright (c) 2007-2026, The University of Sheffield.
+ *
+ *  This file is part of GATE Mímir (see http://gate.ac.uk/family/mimir.html),
+ *  and is free software, licenced under the GNU Lesser General Public License,
+ *  Version 3, June 2007 (also included with this distribution as file
+ *  LICENCE-LGPL3.html).
+ *
+ *  $Id$
+ */
+package gate.mimir.search;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import gate.mimir.search.RankingQueryRunnerImpl.TopScores;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link RankingQueryRunnerImpl.TopScores}.
+ */
+public class TestTopScores {
+
+  @Test
+  public void testBestFirst() {
+    TopScores top = new TopScores(3);
+    assertFalse(top.isFull());
+    assertEquals(Double.NEGATIVE_INFINITY, top.getMinScore(), 0);
+    assertTrue(top.offer(10, 1.0));
+    assertTrue(top.offer(11, 5.0));
+    assertTrue(top.offer(12, 3.0));
+    assertTrue(top.isFull());
+    assertEquals(1.0, top.getMinScore(), 0);
+    // worse than all the entries kept
+    assertFalse(top.offer(13, 0.5));
+    // replaces the worst entry
+    assertTrue(top.offer(14, 4.0));
+    assertEquals(3.0, top.getMinScore(), 0);
+    assertEquals(3, top.size());
+    double[] scores = new double[3];
+    assertArrayEquals(new long[] {11, 14, 12}, top.drain(scores));
+    assertArrayEquals(new double[] {5.0, 4.0, 3.0}, scores, 0);
+    assertEquals(0, top.size());
+    assertFalse(top.isFull());
+  }
+
+  /**
+   * Entries with the same score are ordered by increasing key, whatever the
+   * order they are offered in.
+   */
+  @Test
+  public void testTies() {
+    TopScores top = new TopScores(2);
+    assertTrue(top.offer(7, 2.0));
+    assertTrue(top.offer(5, 2.0));
+    // same score, but a larger key than all the entries kept
+    assertFalse(top.offer(9, 2.0));
+    // same score, and a smaller key than the worst entry kept
+    assertTrue(top.offer(3, 2.0));
+    assertArrayEquals(new long[] {3, 5}, top.drain(null));
+  }
+
+  /**
+   * Keeps the same entries as sorting all of them, and taking the first
+   * ones.
+   */
+  @Test
+  public void testSameAsSorting() {
+    Random random = new Random(42);
+    for(int capacity : new int[] {1, 5, 100}) {
+      List<double[]> entries = new ArrayList<double[]>();
+      TopScores top = new TopScores(capacity);
+      for(int key = 0; key < 1000; key++) {
+        // few distinct scores, so there are many ties
+        double score = random.nextInt(20);
+        entries.add(new double[] {key, score});
+        top.offer(key, score);
+      }
+      Collections.sort(entries, new Comparator<double[]>() {
+        @Override
+        public int compare(double[] o1, double[] o2) {
+          int res = Double.compare(o2[1], o1[1]);
+          return res != 0 ? res : Double.compare(o1[0], o2[0]);
+        }
+      });
+      double[] scores = new double[capacity];
+      long[] keys = top.drain(scores);
+      assertEquals(capacity, keys.length);
+      for(int i = 0; i < capacity; i++) {
+        assertEquals((long)entries.get(i)[0], keys[i]);
+        assertEquals(entries.get(i)[1], scores[i], 0);
+      }
+    }
+  }
+}
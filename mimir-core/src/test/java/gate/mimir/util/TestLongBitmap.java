@@ -0,0 +1,139 @@
+/*
+ *  TestLongBitmap.java
+ *
+ *  Copyright (c) 2007-2026, The University of Sheffield.
+ *
+ *  This file is part of GATE Mímir (see http://gate.ac.uk/family/mimir.html),
+ *  and is free software, licenced under the GNU Lesser General Public License,
+ *  Version 3, June 2007 (also included with this distribution as file
+ *  LICENCE-LGPL3.html).
+ *
+ *  $Id$
+ */
+package gate.mimir.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link LongBitmap}.
+ */
+public class TestLongBitmap {
+
+  private static void assertSameValues(TreeSet<Long> expected,
+      LongBitmap bitmap) {
+    assertEquals(expected.size(), bitmap.cardinality());
+    long value = bitmap.nextValue(0);
+    for(long expectedValue : expected) {
+      assertEquals(expectedValue, value);
+      assertTrue(bitmap.contains(value));
+      value = bitmap.nextValue(value + 1);
+    }
+    assertEquals(-1, value);
+  }
+
+  private static LongBitmap writeAndRead(LongBitmap bitmap)
+      throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    bitmap.write(out);
+    out.close();
+    return LongBitmap.read(new DataInputStream(
+        new ByteArrayInputStream(bytes.toByteArray())));
+  }
+
+  @Test
+  public void testAddAndRemove() {
+    LongBitmap empty = LongBitmap.EMPTY;
+    LongBitmap bitmap = empty.add(5, 70000, 3, 5, -1);
+    assertTrue(empty.isEmpty());
+    assertEquals(3, bitmap.cardinality());
+    assertTrue(bitmap.contains(3));
+    assertTrue(bitmap.contains(5));
+    assertTrue(bitmap.contains(70000));
+    assertFalse(bitmap.contains(4));
+    assertFalse(bitmap.contains(-1));
+    // instances never change
+    LongBitmap removed = bitmap.remove(5, 70000);
+    assertEquals(1, removed.cardinality());
+    assertFalse(removed.contains(70000));
+    assertTrue(bitmap.contains(70000));
+    // no-op updates return the same instance
+    assertSame(bitmap, bitmap.add(3, 5));
+    assertSame(bitmap, bitmap.remove(4, 1L << 40));
+    assertTrue(removed.remove(3).isEmpty());
+  }
+
+  @Test
+  public void testNextValue() {
+    LongBitmap bitmap = LongBitmap.EMPTY.add(10, 65535, 65536, 1L << 33);
+    assertEquals(10, bitmap.nextValue(-5));
+    assertEquals(10, bitmap.nextValue(10));
+    assertEquals(65535, bitmap.nextValue(11));
+    assertEquals(65536, bitmap.nextValue(65536));
+    assertEquals(1L << 33, bitmap.nextValue(65537));
+    assertEquals(-1, bitmap.nextValue((1L << 33) + 1));
+  }
+
+  /**
+   * Fills a chunk until it switches to the dense representation, and then
+   * empties it again.
+   */
+  @Test
+  public void testDenseChunks() throws IOException {
+    TreeSet<Long> expected = new TreeSet<Long>();
+    LongBitmap bitmap = LongBitmap.EMPTY;
+    long[] values = new long[10000];
+    for(int i = 0; i < values.length; i++) {
+      values[i] = 3 * 65536 + i * 5;
+      expected.add(values[i]);
+    }
+    bitmap = bitmap.add(values);
+    assertSameValues(expected, bitmap);
+    assertSameValues(expected, writeAndRead(bitmap));
+    for(int i = 0; i < values.length; i += 2) {
+      expected.remove(values[i]);
+      bitmap = bitmap.remove(values[i]);
+    }
+    assertSameValues(expected, bitmap);
+    bitmap = bitmap.remove(values);
+    assertTrue(bitmap.isEmpty());
+  }
+
+  @Test
+  public void testRandomUpdates() throws IOException {
+    Random random = new Random(42);
+    TreeSet<Long> expected = new TreeSet<Long>();
+    LongBitmap bitmap = LongBitmap.EMPTY;
+    for(int round = 0; round < 200; round++) {
+      long[] values = new long[1 + random.nextInt(500)];
+      boolean add = random.nextInt(3) > 0;
+      for(int i = 0; i < values.length; i++) {
+        values[i] = random.nextInt(5 * 65536);
+        if(add) expected.add(values[i]);
+        else expected.remove(values[i]);
+      }
+      bitmap = add ? bitmap.add(values) : bitmap.remove(values);
+    }
+    assertSameValues(expected, bitmap);
+    assertSameValues(expected, writeAndRead(bitmap));
+  }
+
+  @Test(expected = IOException.class)
+  public void testInvalidData() throws IOException {
+    LongBitmap.read(new DataInputStream(
+        new ByteArrayInputStream(new byte[] {1, 2, 3, 4, 0, 0, 0, 1})));
+  }
+}
@@ -0,0 +1,121 @@
+/*
+ *  TestMimirIndexOpen.java
+ *
+ *  Copyright (c) 2007-2026, The University of Sheffield.
+ *
+ *  This file is part of GATE Mímir (see http://gate.ac.uk/family/mimir.html),
+ *  and is free software, licenced under the GNU Lesser General Public License,
+ *  Version 3, June 2007 (also included with this distribution as file
+ *  LICENCE-LGPL3.html).
+ *
+ *  $Id$
+ */
+package gate.mimir;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import gate.mimir.index.IndexException;
+import gate.mimir.index.PretokenisedDocument;
+import gate.mimir.test.IndexTestUtils;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the (parallel) opening of an existing index, with several sub-indexes
+ * each made of several batches.
+ */
+public class TestMimirIndexOpen {
+
+  private static final String[] FEATURES = new String[] {"f0", "f1", "f2"};
+
+  private static final int DOCUMENTS = 5;
+
+  private File indexDirectory;
+
+  private MimirIndex index;
+
+  /**
+   * Creates a new config, as reading the saved one requires GATE to be
+   * initialised.
+   */
+  private IndexConfig indexConfig() {
+    return IndexTestUtils.getTestIndexConfig(indexDirectory, false, FEATURES);
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    indexDirectory = IndexTestUtils.createIndexDirectory();
+    index = new MimirIndex(indexConfig());
+    for(int i = 0; i < DOCUMENTS; i++) {
+      PretokenisedDocument document = new PretokenisedDocument("doc" + i,
+          "Document " + i, new String[] {" ", " "});
+      for(String aFeature : FEATURES) {
+        document.setTokenFeature(aFeature,
+            new String[] {aFeature + "-" + i, "common"});
+      }
+      index.indexDocument(document);
+      IndexTestUtils.syncToDisk(index);
+    }
+    index.close();
+    index = null;
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    IndexTestUtils.deleteIndex(index, indexDirectory);
+  }
+
+  private static boolean isIndexingThreadAlive() {
+    for(Thread aThread : Thread.getAllStackTraces().keySet()) {
+      if(aThread.isAlive() && aThread.getName().startsWith("Mimir-token-") &&
+          aThread.getName().endsWith(" indexing thread")) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @Test
+  public void testReopen() throws Exception {
+    index = new MimirIndex(indexConfig());
+    for(String aFeature : FEATURES) {
+      assertEquals(DOCUMENTS,
+          index.getTokenIndex(aFeature).getDocumentsOnDiskCount());
+      assertTrue(index.getTokenIndex(aFeature).getBatchCount() > 1);
+    }
+    assertEquals(DOCUMENTS, index.getIndexedDocumentsCount());
+  }
+
+  /**
+   * When a sub-index cannot be opened, the others must be stopped.
+   */
+  @Test
+  public void testFailedOpenStopsSubIndexes() throws Exception {
+    assertFalse(isIndexingThreadAlive());
+    File brokenSubIndex = new File(indexDirectory, "token-2");
+    for(File aBatch : brokenSubIndex.listFiles()) {
+      if(aBatch.isDirectory()) {
+        for(File aFile : aBatch.listFiles()) {
+          if(aFile.getName().endsWith(".properties")) aFile.delete();
+        }
+      }
+    }
+    try {
+      index = new MimirIndex(indexConfig());
+      fail("Opened an index with a broken sub-index");
+    } catch(IndexException e) {
+      // expected
+    } catch(IOException e) {
+      // expected
+    }
+    assertFalse(isIndexingThreadAlive());
+  }
+}
@@ -0,0 +1,352 @@
+/*
+ *  TestBatchWriting.java
+ *
+ *  Copyright (c) 2007-2026, The University of Sheffield.
+ *
+ *  This file is part of GATE Mímir (see http://gate.ac.uk/family/mimir.html),
+ *  and is free software, licenced under the GNU Lesser General Public License,
+ *  Version 3, June 2007 (also included with this distribution as file
+ *  LICENCE-LGPL3.html).
+ *
+ *  $Id$
+ */
+package gate.mimir.index;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import gate.mimir.IndexConfig;
+import gate.mimir.MimirIndex;
+import gate.mimir.search.QueryEngine;
+import gate.mimir.search.query.QueryExecutor;
+import gate.mimir.search.query.TermQuery;
+import gate.mimir.test.IndexTestUtils;
+import it.unimi.di.big.mg4j.index.Index;
+import it.unimi.dsi.util.Properties;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Tests the writing of in-RAM batches to disk, by the background batch
+ * writer, including what happens when writing a batch fails.
+ */
+public class TestBatchWriting {
+
+  /**
+   * A second token feature, whose values are the tokens prefixed with
+   * <code>r</code>.
+   */
+  private static final String SECOND_FEATURE = "root";
+
+  private File indexDirectory;
+
+  private String[] features = {IndexTestUtils.FEATURE};
+
+  private MimirIndex index;
+
+  /**
+   * Index properties that cannot be set a given number of times, which makes
+   * writing a batch fail once most of its files have been written.
+   */
+  private static class FailingProperties extends Properties {
+    private static final long serialVersionUID = 1L;
+
+    private int failures;
+
+    FailingProperties(Properties properties, int failures) {
+      addAll(properties);
+      this.failures = failures;
+    }
+
+    @Override
+    public synchronized void setProperty(Enum<?> key, long value) {
+      if(key == Index.PropertyKeys.SIZE && failures > 0) {
+        failures--;
+        throw new IllegalStateException("Simulated batch write failure");
+      }
+      super.setProperty(key, value);
+    }
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    IndexTestUtils.deleteIndex(index, indexDirectory);
+  }
+
+  private static String[] tokens(int documentNumber) {
+    // each document has a unique term, to find its ID
+    return new String[] {"d" + documentNumber, "w" + (documentNumber % 3),
+        "w" + (documentNumber % 5)};
+  }
+
+  private static String[] secondTokens(int documentNumber) {
+    String[] tokens = tokens(documentNumber);
+    for(int i = 0; i < tokens.length; i++) tokens[i] = "r" + tokens[i];
+    return tokens;
+  }
+
+  /**
+   * Creates a new index, or opens the existing one. A new config is used 
+   * each time, as reading the saved one requires GATE to be initialised.
+   */
+  private void openIndex(int batchesInFlight) throws Exception {
+    if(indexDirectory == null) {
+      indexDirectory = IndexTestUtils.createIndexDirectory();
+    }
+    IndexConfig config = IndexTestUtils.getTestIndexConfig(indexDirectory,
+        true, features);
+    config.setBatchesInFlight(batchesInFlight);
+    index = new MimirIndex(config);
+  }
+
+  private void indexDocuments(int from, int to) throws Exception {
+    for(int i = from; i < to; i++) {
+      PretokenisedDocument document = IndexTestUtils.createDocument(i, 
+          tokens(i));
+      document.setTokenFeature(SECOND_FEATURE, secondTokens(i));
+      index.indexDocument(document);
+    }
+  }
+
+  /**
+   * Checks that each document has the ID matching its number (in all the
+   * token indexes), and its own text.
+   */
+  private void assertDocuments(int documents) throws Exception {
+    QueryEngine engine = index.getQueryEngine();
+    engine.setQueryResultsCacheSize(0);
+    for(String aFeature : features) {
+      assertEquals(aFeature, documents, 
+          index.getTokenIndex(aFeature).getDocumentsOnDiskCount());
+    }
+    assertEquals(documents, 
+        index.getDocumentCollection().getNextDocumentId());
+    for(int i = 0; i < documents; i++) {
+      for(String aFeature : features) {
+        String term = aFeature.equals(SECOND_FEATURE) ? "rd" + i : "d" + i;
+        QueryExecutor executor = new TermQuery(aFeature, term)
+            .getQueryExecutor(engine);
+        try {
+          assertEquals("Document " + i, i, executor.nextDocument(-1));
+          assertEquals("Document " + i, -1, executor.nextDocument(-1));
+        } finally {
+          executor.close();
+        }
+      }
+      assertEquals("Document " + i, Arrays.asList(tokens(i)),
+          Arrays.asList(engine.getText(i, 0, -1)[0]));
+    }
+  }
+
+  /**
+   * Checks that no partially written batch was left behind.
+   */
+  private void assertNoIncompleteBatches() {
+    File atomicIndexDirectory = index.getTokenIndex(IndexTestUtils.FEATURE)
+        .getIndexDirectory();
+    for(String aFile : atomicIndexDirectory.list()) {
+      assertTrue(aFile, !aFile.endsWith(AtomicIndex.HEAD_NEW_EXT));
+    }
+  }
+
+  /**
+   * Gets the smallest number of documents on disk in any token index.
+   */
+  private long getDocumentsOnDiskCount() {
+    long documents = Long.MAX_VALUE;
+    for(String aFeature : features) {
+      documents = Math.min(documents, 
+          index.getTokenIndex(aFeature).getDocumentsOnDiskCount());
+    }
+    return documents;
+  }
+
+  /**
+   * Writes all the documents to disk. A sync requested while the previous 
+   * one is still pending is merged with it, so requests are repeated until 
+   * the documents are on disk.
+   */
+  private void syncToDisk(int documents) throws Exception {
+    long start = System.currentTimeMillis();
+    IndexTestUtils.syncToDisk(index);
+    while(getDocumentsOnDiskCount() < documents) {
+      assertTrue("Documents not written in time",
+          System.currentTimeMillis() - start < IndexTestUtils.INDEXING_TIMEOUT);
+      Thread.sleep(10);
+      IndexTestUtils.syncToDisk(index);
+    }
+  }
+
+  /**
+   * Requests syncs (see {@link #syncToDisk(int)}) until one fails, checking
+   * that no more documents get written to disk by the given token index.
+   */
+  private void assertSyncFails(String feature, int documentsOnDisk) 
+      throws Exception {
+    AtomicIndex atomicIndex = index.getTokenIndex(feature);
+    long start = System.currentTimeMillis();
+    while(true) {
+      try {
+        IndexTestUtils.syncToDisk(index);
+      } catch(ExecutionException e) {
+        return;
+      }
+      assertEquals("The batch should not have been written", documentsOnDisk,
+          atomicIndex.getDocumentsOnDiskCount());
+      assertTrue("No sync failed",
+          System.currentTimeMillis() - start < IndexTestUtils.INDEXING_TIMEOUT);
+      Thread.sleep(10);
+    }
+  }
+
+  private void makeBatchWritesFail(String feature, int failures) {
+    AtomicIndex atomicIndex = index.getTokenIndex(feature);
+    atomicIndex.additionalProperties = new FailingProperties(
+        atomicIndex.additionalProperties, failures);
+  }
+
+  /**
+   * Several batches waiting for the background writer are written in order.
+   */
+  @Test
+  public void testBatchesInFlight() throws Exception {
+    openIndex(3);
+    AtomicIndex atomicIndex = index.getTokenIndex(IndexTestUtils.FEATURE);
+    Set<Future<Long>> syncs = Collections.newSetFromMap(
+        new IdentityHashMap<Future<Long>, Boolean>());
+    for(int i = 0; i < 10; i++) {
+      indexDocuments(i * 20, (i + 1) * 20);
+      List<Future<Long>> futures = index.requestSyncToDisk();
+      syncs.add(futures.get(0));
+    }
+    for(Future<Long> aSync : syncs) aSync.get();
+    // requests made while too many are pending are merged with those
+    syncToDisk(200);
+    assertTrue(syncs.size() > 1);
+    assertTrue(atomicIndex.getBatchCount() >= syncs.size());
+    assertDocuments(200);
+  }
+
+  /**
+   * A batch that could not be written is written again when the index is
+   * closed after the failure, before any later batch.
+   */
+  @Test
+  public void testFailedWriteIsRetried() throws Exception {
+    openIndex(1);
+    indexDocuments(0, 20);
+    syncToDisk(20);
+    makeBatchWritesFail(IndexTestUtils.FEATURE, 1);
+    indexDocuments(20, 40);
+    assertSyncFails(IndexTestUtils.FEATURE, 20);
+    // the failed sync closes the index, which writes the batch again
+    index.close();
+    assertNoIncompleteBatches();
+    openIndex(1);
+    assertDocuments(40);
+  }
+
+  /**
+   * When a batch cannot be written at all, its directory is deleted, and
+   * its documents are indexed again from the queued documents log when the
+   * index is reopened.
+   */
+  @Test
+  public void testFailedWriteIsReplayed() throws Exception {
+    openIndex(1);
+    indexDocuments(0, 20);
+    syncToDisk(20);
+    makeBatchWritesFail(IndexTestUtils.FEATURE, Integer.MAX_VALUE);
+    indexDocuments(20, 40);
+    assertSyncFails(IndexTestUtils.FEATURE, 20);
+    index.close();
+    assertNoIncompleteBatches();
+    openIndex(1);
+    IndexTestUtils.waitForDocuments(index, 40);
+    syncToDisk(40);
+    assertDocuments(40);
+  }
+
+  /**
+   * With batches written synchronously by the indexing thread, a failed
+   * batch is also written again before the next one.
+   */
+  @Test
+  public void testFailedSynchronousWrite() throws Exception {
+    openIndex(0);
+    indexDocuments(0, 20);
+    syncToDisk(20);
+    makeBatchWritesFail(IndexTestUtils.FEATURE, 1);
+    indexDocuments(20, 40);
+    assertSyncFails(IndexTestUtils.FEATURE, 20);
+    index.close();
+    assertNoIncompleteBatches();
+    openIndex(1);
+    assertDocuments(40);
+  }
+
+  /**
+   * When only the first token index fails to write a batch, the documents 
+   * replayed from the log are skipped by the second token index, which had
+   * already written them, and by the document collection, which gets the
+   * data from the first token index as soon as each document is indexed.
+   */
+  @Test
+  public void testReplayAfterFirstIndexFailed() throws Exception {
+    features = new String[] {IndexTestUtils.FEATURE, SECOND_FEATURE};
+    openIndex(1);
+    indexDocuments(0, 20);
+    syncToDisk(20);
+    makeBatchWritesFail(IndexTestUtils.FEATURE, Integer.MAX_VALUE);
+    indexDocuments(20, 40);
+    assertSyncFails(IndexTestUtils.FEATURE, 20);
+    index.close();
+    assertEquals(40, index.getTokenIndex(SECOND_FEATURE)
+        .getDocumentsOnDiskCount());
+    assertEquals(40, index.getDocumentCollection().getNextDocumentId());
+    openIndex(1);
+    IndexTestUtils.waitForDocuments(index, 40);
+    syncToDisk(40);
+    assertDocuments(40);
+    // new documents get the same ID everywhere
+    indexDocuments(40, 45);
+    syncToDisk(45);
+    assertDocuments(45);
+  }
+
+  /**
+   * When only the second token index fails to write a batch, the documents 
+   * replayed from the log are skipped by the first token index, and the
+   * document collection.
+   */
+  @Test
+  public void testReplayAfterSecondIndexFailed() throws Exception {
+    features = new String[] {IndexTestUtils.FEATURE, SECOND_FEATURE};
+    openIndex(1);
+    indexDocuments(0, 20);
+    syncToDisk(20);
+    makeBatchWritesFail(SECOND_FEATURE, Integer.MAX_VALUE);
+    indexDocuments(20, 40);
+    assertSyncFails(SECOND_FEATURE, 20);
+    index.close();
+    assertEquals(40, index.getTokenIndex(IndexTestUtils.FEATURE)
+        .getDocumentsOnDiskCount());
+    openIndex(1);
+    IndexTestUtils.waitForDocuments(index, 40);
+    syncToDisk(40);
+    assertDocuments(40);
+    indexDocuments(40, 45);
+    syncToDisk(45);
+    assertDocuments(45);
+  }
+}
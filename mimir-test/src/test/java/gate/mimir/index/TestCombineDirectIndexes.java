@@ -0,0 +1,144 @@
+/*
+ *  TestCombineDirectIndexes.java
+ *
+ *  Copyright (c) 2007-2026, The University of Sheffield.
+ *
+ *  This file is part of GATE Mímir (see http://gate.ac.uk/family/mimir.html),
+ *  and is free software, licenced under the GNU Lesser General Public License,
+ *  Version 3, June 2007 (also included with this distribution as file
+ *  LICENCE-LGPL3.html).
+ *
+ *  $Id$
+ */
+package gate.mimir.index;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import gate.mimir.MimirIndex;
+import gate.mimir.search.QueryEngine;
+import gate.mimir.search.query.QueryExecutor;
+import gate.mimir.search.query.TermQuery;
+import gate.mimir.test.IndexTestUtils;
+import it.unimi.di.big.mg4j.index.IndexIterator;
+
+import java.io.File;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the merging of direct indexes (see
+ * {@link AtomicIndex#combineDirectIndexes(java.util.List, String,
+ * gate.mimir.util.LongBitmap)}), by writing each document to its own batch
+ * and then compacting the index.
+ */
+public class TestCombineDirectIndexes {
+
+  private static final String[][] DOCUMENTS = new String[][] {
+    {"a", "b", "a"},
+    {"b", "c"},
+    {"d", "a", "d", "d"},
+    {"e"}
+  };
+
+  private File indexDirectory;
+
+  private MimirIndex index;
+
+  @Before
+  public void setUp() throws Exception {
+    indexDirectory = IndexTestUtils.createIndexDirectory();
+    index = new MimirIndex(IndexTestUtils.getTestIndexConfig(indexDirectory,
+        true, IndexTestUtils.FEATURE));
+    for(int i = 0; i < DOCUMENTS.length; i++) {
+      index.indexDocument(IndexTestUtils.createDocument(i, DOCUMENTS[i]));
+      IndexTestUtils.syncToDisk(index);
+    }
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    IndexTestUtils.deleteIndex(index, indexDirectory);
+  }
+
+  /**
+   * Gets the terms of a document, with their counts, from the direct index.
+   */
+  private static Map<String, Integer> directTerms(AtomicIndex atomicIndex,
+      long documentId) throws Exception {
+    Map<String, Integer> terms = new TreeMap<String, Integer>();
+    IndexIterator iterator = atomicIndex.getDirectIndex().documents(
+        AtomicIndex.longToTerm(documentId));
+    try {
+      long termId = iterator.nextDocument();
+      while(termId != IndexIterator.END_OF_LIST) {
+        terms.put(atomicIndex.getDirectTerm(termId).toString(),
+            iterator.count());
+        termId = iterator.nextDocument();
+      }
+    } finally {
+      iterator.dispose();
+    }
+    return terms;
+  }
+
+  private static Map<String, Integer> expectedTerms(String[] tokens) {
+    Map<String, Integer> terms = new TreeMap<String, Integer>();
+    for(String aToken : tokens) {
+      Integer count = terms.get(aToken);
+      terms.put(aToken, count == null ? 1 : count + 1);
+    }
+    return terms;
+  }
+
+  @Test
+  public void testCompact() throws Exception {
+    AtomicIndex atomicIndex = index.getTokenIndex(IndexTestUtils.FEATURE);
+    assertEquals(DOCUMENTS.length, atomicIndex.getBatchCount());
+    for(Future<Void> aFuture : index.requestCompactIndex()) aFuture.get();
+    assertEquals(1, atomicIndex.getBatchCount());
+    for(int i = 0; i < DOCUMENTS.length; i++) {
+      assertEquals(expectedTerms(DOCUMENTS[i]), directTerms(atomicIndex, i));
+    }
+  }
+
+  /**
+   * Line terminators in tokens are replaced by spaces in the index terms,
+   * so the direct terms still match the inverted index terms once the 
+   * direct terms file has been saved and loaded again, and queries still
+   * find the tokens.
+   */
+  @Test
+  public void testLineTerminators() throws Exception {
+    index.indexDocument(IndexTestUtils.createDocument(DOCUMENTS.length,
+        new String[] {"x\ny", "p\r\nq", "a"}));
+    IndexTestUtils.syncToDisk(index);
+    index.close();
+    index = new MimirIndex(IndexTestUtils.getTestIndexConfig(indexDirectory,
+        true, IndexTestUtils.FEATURE));
+    AtomicIndex atomicIndex = index.getTokenIndex(IndexTestUtils.FEATURE);
+    Map<String, Integer> expected = new TreeMap<String, Integer>();
+    expected.put("x y", 1);
+    expected.put("p  q", 1);
+    expected.put("a", 1);
+    assertEquals(expected, directTerms(atomicIndex, DOCUMENTS.length));
+    for(long termId = 0; termId < atomicIndex.getDirectTerms().size64();
+        termId++) {
+      String term = atomicIndex.getDirectTerm(termId).toString();
+      assertTrue(term, atomicIndex.getDirectTermOccurenceCount(termId) > 0);
+    }
+    QueryEngine engine = index.getQueryEngine();
+    QueryExecutor executor = new TermQuery(IndexTestUtils.FEATURE, "x\ny")
+        .getQueryExecutor(engine);
+    try {
+      assertEquals(DOCUMENTS.length, executor.nextDocument(-1));
+    } finally {
+      executor.close();
+    }
+  }
+}
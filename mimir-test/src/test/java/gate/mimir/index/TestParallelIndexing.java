@@ -0,0 +1,197 @@
+/*
+ *  TestParallelIndexing.java
+ *
+ *  Copyright (c) 2007-2026, The University of Sheffield.
+ *
+ *  This file is part of GATE Mímir (see http://gate.ac.uk/family/mimir.html),
+ *  and is free software, licenced under the GNU Lesser General Public License,
+ *  Version 3, June 2007 (also included with this distribution as file
+ *  LICENCE-LGPL3.html).
+ *
+ *  $Id$
+ */
+package gate.mimir.index;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import gate.mimir.IndexConfig;
+import gate.mimir.MimirIndex;
+import gate.mimir.search.QueryEngine;
+import gate.mimir.search.query.Binding;
+import gate.mimir.search.query.QueryExecutor;
+import gate.mimir.search.query.QueryNode;
+import gate.mimir.search.query.SequenceQuery;
+import gate.mimir.search.query.TermQuery;
+import gate.mimir.test.IndexTestUtils;
+import it.unimi.di.big.mg4j.index.IndexIterator;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Tests that building the in-RAM batches with several indexing threads
+ * (see {@link IndexConfig#setIndexingThreads(int)}) produces the same index
+ * as building them on a single thread.
+ */
+public class TestParallelIndexing {
+
+  private static final int DOCUMENTS = 600;
+
+  private static final int BATCHES = 3;
+
+  private static final int TERMS = 12;
+
+  private File[] indexDirectories = new File[2];
+
+  private MimirIndex[] indexes = new MimirIndex[2];
+
+  @After
+  public void tearDown() throws Exception {
+    for(int i = 0; i < indexes.length; i++) {
+      IndexTestUtils.deleteIndex(indexes[i], indexDirectories[i]);
+    }
+  }
+
+  private static String[][] createDocuments() {
+    Random random = new Random(4321);
+    String[][] documents = new String[DOCUMENTS][];
+    for(int i = 0; i < DOCUMENTS; i++) {
+      documents[i] = new String[1 + random.nextInt(40)];
+      for(int j = 0; j < documents[i].length; j++) {
+        documents[i][j] = "w" + random.nextInt(TERMS);
+      }
+    }
+    return documents;
+  }
+
+  /**
+   * Indexes the documents, writing them to disk in {@link #BATCHES} batches.
+   */
+  private MimirIndex createIndex(int slot, int indexingThreads,
+      String[][] documents) throws Exception {
+    indexDirectories[slot] = IndexTestUtils.createIndexDirectory();
+    IndexConfig config = IndexTestUtils.getTestIndexConfig(
+        indexDirectories[slot], true, IndexTestUtils.FEATURE);
+    config.setIndexingThreads(indexingThreads);
+    indexes[slot] = new MimirIndex(config);
+    int batchSize = (documents.length + BATCHES - 1) / BATCHES;
+    for(int i = 0; i < documents.length; i++) {
+      indexes[slot].indexDocument(
+          IndexTestUtils.createDocument(i, documents[i]));
+      if((i + 1) % batchSize == 0 || i == documents.length - 1) {
+        IndexTestUtils.syncToDisk(indexes[slot]);
+      }
+    }
+    IndexTestUtils.waitForDocuments(indexes[slot], documents.length);
+    return indexes[slot];
+  }
+
+  private static List<QueryNode> queries() {
+    List<QueryNode> queries = new ArrayList<QueryNode>();
+    for(int i = 0; i < TERMS; i++) {
+      queries.add(new TermQuery(IndexTestUtils.FEATURE, "w" + i));
+    }
+    queries.add(new SequenceQuery(null,
+        new TermQuery(IndexTestUtils.FEATURE, "w0"),
+        new TermQuery(IndexTestUtils.FEATURE, "w1")));
+    queries.add(new SequenceQuery(null,
+        new TermQuery(IndexTestUtils.FEATURE, "w2"),
+        new TermQuery(IndexTestUtils.FEATURE, "w2"),
+        new TermQuery(IndexTestUtils.FEATURE, "w3")));
+    return queries;
+  }
+
+  /**
+   * Gets all the hits of a query, as a string.
+   */
+  private static String hits(QueryEngine engine, QueryNode query)
+      throws Exception {
+    StringBuilder str = new StringBuilder();
+    QueryExecutor executor = query.getQueryExecutor(engine);
+    try {
+      long documentId = executor.nextDocument(-1);
+      while(documentId >= 0) {
+        for(Binding aHit = executor.nextHit(); aHit != null;
+            aHit = executor.nextHit()) {
+          str.append(aHit.getDocumentId()).append(":")
+              .append(aHit.getTermPosition()).append("+")
+              .append(aHit.getLength()).append(" ");
+        }
+        documentId = executor.nextDocument(-1);
+      }
+    } finally {
+      executor.close();
+    }
+    return str.toString();
+  }
+
+  /**
+   * Gets the terms of a document, with their counts, from the direct index.
+   */
+  private static String directTerms(AtomicIndex atomicIndex, long documentId)
+      throws Exception {
+    StringBuilder str = new StringBuilder();
+    IndexIterator iterator = atomicIndex.getDirectIndex().documents(
+        AtomicIndex.longToTerm(documentId));
+    try {
+      long termId = iterator.nextDocument();
+      while(termId != IndexIterator.END_OF_LIST) {
+        str.append(atomicIndex.getDirectTerm(termId)).append("=")
+            .append(iterator.count()).append(" ");
+        termId = iterator.nextDocument();
+      }
+    } finally {
+      iterator.dispose();
+    }
+    return str.toString();
+  }
+
+  private void assertSameIndex(String[][] documents) throws Exception {
+    QueryEngine single = indexes[0].getQueryEngine();
+    QueryEngine parallel = indexes[1].getQueryEngine();
+    single.setQueryResultsCacheSize(0);
+    parallel.setQueryResultsCacheSize(0);
+    for(QueryNode aQuery : queries()) {
+      String expected = hits(single, aQuery);
+      assertTrue(aQuery.toString(), expected.length() > 0);
+      assertEquals(aQuery.toString(), expected, hits(parallel, aQuery));
+    }
+    AtomicIndex singleTokens = indexes[0].getTokenIndex(
+        IndexTestUtils.FEATURE);
+    AtomicIndex parallelTokens = indexes[1].getTokenIndex(
+        IndexTestUtils.FEATURE);
+    for(int i = 0; i < documents.length; i++) {
+      String[][] text = parallel.getText(i, 0, documents[i].length);
+      assertEquals("Document " + i, Arrays.asList(documents[i]),
+          Arrays.asList(text[0]));
+      assertEquals("Document " + i,
+          Arrays.asList(single.getText(i, 0, documents[i].length)[1]),
+          Arrays.asList(text[1]));
+      assertEquals("Document " + i, directTerms(singleTokens, i),
+          directTerms(parallelTokens, i));
+    }
+  }
+
+  @Test
+  public void testSameAsSingleThread() throws Exception {
+    String[][] documents = createDocuments();
+    createIndex(0, 1, documents);
+    createIndex(1, 4, documents);
+    assertEquals(BATCHES,
+        indexes[1].getTokenIndex(IndexTestUtils.FEATURE).getBatchCount());
+    assertSameIndex(documents);
+    // and once all the batches are merged
+    for(MimirIndex anIndex : indexes) {
+      for(Future<Void> aFuture : anIndex.requestCompactIndex()) aFuture.get();
+    }
+    assertSameIndex(documents);
+  }
+}
@@ -0,0 +1,141 @@
+/*
+ *  TestPurgeDeletedDocuments.java
+ *
+ *  Copyright (c) 2007-2026, The University of Sheffield.
+ *
+ *  This file is part of GATE Mímir (see http://gate.ac.uk/family/mimir.html),
+ *  and is free software, licenced under the GNU Lesser General Public License,
+ *  Version 3, June 2007 (also included with this distribution as file
+ *  LICENCE-LGPL3.html).
+ *
+ *  $Id$
+ */
+package gate.mimir.index;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import gate.mimir.IndexConfig;
+import gate.mimir.MimirIndex;
+import gate.mimir.search.QueryEngine;
+import gate.mimir.search.query.QueryExecutor;
+import gate.mimir.search.query.TermQuery;
+import gate.mimir.test.IndexTestUtils;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Tests the removal of deleted documents during merges (see
+ * {@link IndexConfig#setPurgeDeletedDocuments(boolean)}), and what happens
+ * when they are undeleted afterwards.
+ */
+public class TestPurgeDeletedDocuments {
+
+  private File indexDirectory;
+
+  private MimirIndex index;
+
+  @After
+  public void tearDown() throws Exception {
+    IndexTestUtils.deleteIndex(index, indexDirectory);
+  }
+
+  private static String[] tokens(int documentNumber) {
+    // each document has a unique term, to find its ID
+    return new String[] {"d" + documentNumber, "w" + (documentNumber % 3)};
+  }
+
+  private void openIndex() throws Exception {
+    if(indexDirectory == null) {
+      indexDirectory = IndexTestUtils.createIndexDirectory();
+    }
+    IndexConfig config = IndexTestUtils.getTestIndexConfig(indexDirectory,
+        true, IndexTestUtils.FEATURE);
+    config.setPurgeDeletedDocuments(true);
+    index = new MimirIndex(config);
+  }
+
+  /**
+   * Indexes a range of documents, and writes them to disk as a new batch.
+   */
+  private void indexBatch(int from, int to) throws Exception {
+    for(int i = from; i < to; i++) {
+      index.indexDocument(IndexTestUtils.createDocument(i, tokens(i)));
+    }
+    IndexTestUtils.waitForDocuments(index, to);
+    IndexTestUtils.syncToDisk(index);
+  }
+
+  /**
+   * Gets the documents containing a term, according to the postings
+   * (deleted documents are not skipped).
+   */
+  private String documents(String term) throws Exception {
+    QueryEngine engine = index.getQueryEngine();
+    engine.setQueryResultsCacheSize(0);
+    StringBuilder str = new StringBuilder();
+    QueryExecutor executor = new TermQuery(IndexTestUtils.FEATURE, term)
+        .getQueryExecutor(engine);
+    try {
+      for(long documentId = executor.nextDocument(-1); documentId >= 0;
+          documentId = executor.nextDocument(-1)) {
+        str.append(documentId).append(" ");
+      }
+    } finally {
+      executor.close();
+    }
+    return str.toString().trim();
+  }
+
+  private void assertText(int documentNumber) throws Exception {
+    assertEquals("Document " + documentNumber,
+        Arrays.asList(tokens(documentNumber)), Arrays.asList(
+            index.getQueryEngine().getText(documentNumber, 0, -1)[0]));
+  }
+
+  @Test
+  public void testUndeleteAfterPurge() throws Exception {
+    openIndex();
+    indexBatch(0, 10);
+    indexBatch(10, 20);
+    index.deleteDocuments(Arrays.asList(3, 15));
+    for(Future<Void> aFuture : index.requestCompactIndex()) aFuture.get();
+    // a deleted document still in a batch that has not been merged
+    indexBatch(20, 30);
+    index.deleteDocument(25);
+    index.compactDocumentCollection();
+
+    // the merged documents are gone from the postings...
+    assertEquals("", documents("d3"));
+    assertEquals("", documents("d15"));
+    assertEquals("0 6 9 12 18 21 24 27", documents("w0"));
+    // ...but not the unmerged one
+    assertEquals("25", documents("d25"));
+
+    // purged documents stay deleted, the others can come back
+    index.undeleteDocuments(Arrays.asList(3, 25));
+    index.undeleteDocument(15);
+    assertTrue(index.isDeleted(3));
+    assertTrue(index.isDeleted(15));
+    assertFalse(index.isDeleted(25));
+    assertText(25);
+    assertEquals("25", documents("d25"));
+    for(int i = 0; i < 30; i++) {
+      if(i != 3 && i != 15) assertText(i);
+    }
+
+    // including after re-opening the index
+    index.close();
+    openIndex();
+    index.undeleteDocument(3);
+    assertTrue(index.isDeleted(3));
+    assertFalse(index.isDeleted(25));
+    assertText(25);
+  }
+}
@@ -0,0 +1,195 @@
+/*
+ *  TestDocumentsAfter.java
+ *
+ *  Copyright (c) 2007-2026, The University of Sheffield.
+ *
+ *  This file is part of GATE Mímir (see http://gate.ac.uk/family/mimir.html),
+ *  and is free software, licenced under the GNU Lesser General Public License,
+ *  Version 3, June 2007 (also included with this distribution as file
+ *  LICENCE-LGPL3.html).
+ *
+ *  $Id$
+ */
+package gate.mimir.search;
+
+import static gate.mimir.test.IndexTestUtils.BM25_SOURCE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import gate.mimir.MimirIndex;
+import gate.mimir.search.query.OrQuery;
+import gate.mimir.search.query.QueryNode;
+import gate.mimir.search.query.TermQuery;
+import gate.mimir.test.IndexTestUtils;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for {@link RankingQueryRunnerImpl#getDocumentsAfter(double, long,
+ * int)}: paging through the results of a query must give the same
+ * documents as reading them by rank, sorted by decreasing score, then by
+ * increasing document ID.
+ */
+public class TestDocumentsAfter {
+
+  private static final int DOCUMENTS = 500;
+
+  private File indexDirectory;
+
+  private MimirIndex index;
+
+  private QueryEngine engine;
+
+  @Before
+  public void setUp() throws Exception {
+    indexDirectory = IndexTestUtils.createIndexDirectory();
+    index = new MimirIndex(IndexTestUtils.getTestIndexConfig(indexDirectory));
+    Random random = new Random(1234);
+    for(int i = 0; i < DOCUMENTS; i++) {
+      // short documents from a small vocabulary, so that many of them have
+      // the same score
+      String[] tokens = new String[2 + random.nextInt(4)];
+      for(int j = 0; j < tokens.length; j++) {
+        tokens[j] = "w" + random.nextInt(8);
+      }
+      index.indexDocument(IndexTestUtils.createDocument(i, tokens));
+    }
+    IndexTestUtils.syncToDisk(index);
+    IndexTestUtils.waitForDocuments(index, DOCUMENTS);
+    engine = index.getQueryEngine();
+    engine.setQueryResultsCacheSize(0);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    IndexTestUtils.deleteIndex(index, indexDirectory);
+  }
+
+  /**
+   * Sorts (document ID, score) pairs by decreasing score, then increasing
+   * document ID.
+   */
+  private static final Comparator<double[]> RANKING_ORDER =
+      new Comparator<double[]>() {
+    @Override
+    public int compare(double[] o1, double[] o2) {
+      int res = Double.compare(o2[1], o1[1]);
+      return res != 0 ? res : Double.compare(o1[0], o2[0]);
+    }
+  };
+
+  private static String toString(List<double[]> results) {
+    StringBuilder str = new StringBuilder();
+    for(double[] aResult : results) {
+      str.append((long)aResult[0]).append(" score ").append(aResult[1])
+          .append('\n');
+    }
+    return str.toString();
+  }
+
+  /**
+   * Pages through the results of a query, and compares them to the results
+   * read by rank.
+   */
+  private void assertSamePages(QueryNode query) throws Exception {
+    for(int pageSize : new int[] {1, 7, 1000}) {
+      QueryRunner runner = engine.getQueryRunner(query);
+      try {
+        // the first page is requested before all the documents are found
+        DocumentsPage page = runner.getDocumentsAfter(
+            DocumentsPage.FIRST_PAGE_SCORE,
+            DocumentsPage.FIRST_PAGE_DOCUMENT_ID, pageSize);
+        List<double[]> pages = new ArrayList<double[]>();
+        while(page.size() > 0) {
+          assertTrue(page.size() <= pageSize);
+          for(int i = 0; i < page.size(); i++) {
+            pages.add(new double[] {page.getDocumentIds()[i],
+                page.getDocumentScores()[i]});
+          }
+          page = runner.getDocumentsAfter(page.getLastDocumentScore(),
+              page.getLastDocumentId(), pageSize);
+        }
+        List<double[]> ranked = new ArrayList<double[]>();
+        for(long rank = 0; rank < runner.getDocumentsCountSync(); rank++) {
+          ranked.add(new double[] {runner.getDocumentID(rank),
+              runner.getDocumentScore(rank)});
+        }
+        assertTrue(query.toString(), ranked.size() > 0);
+        Collections.sort(ranked, RANKING_ORDER);
+        assertEquals(query + ", page size " + pageSize, toString(ranked),
+            toString(pages));
+      } finally {
+        runner.close();
+      }
+    }
+  }
+
+  private QueryNode[] queries() {
+    return new QueryNode[] {
+      new TermQuery("string", "w0"),
+      new OrQuery(new TermQuery("string", "w1"),
+          new TermQuery("string", "w5"))};
+  }
+
+  @Test
+  public void testUnranked() throws Exception {
+    engine.setScorerSource(null);
+    for(QueryNode query : queries()) assertSamePages(query);
+  }
+
+  @Test
+  public void testRanked() throws Exception {
+    engine.setScorerSource(BM25_SOURCE);
+    for(QueryNode query : queries()) assertSamePages(query);
+  }
+
+  /**
+   * A page after a document that does not match the query starts at the
+   * next document that does.
+   */
+  @Test
+  public void testAfterMissingDocument() throws Exception {
+    engine.setScorerSource(null);
+    QueryRunner runner = engine.getQueryRunner(new TermQuery("string", "w0"));
+    try {
+      long count = runner.getDocumentsCountSync();
+      assertTrue(count > 2);
+      long first = runner.getDocumentID(0);
+      long second = runner.getDocumentID(1);
+      double score = runner.getDocumentScore(0);
+      for(long afterId = first; afterId < second; afterId++) {
+        DocumentsPage page = runner.getDocumentsAfter(score, afterId, 1);
+        assertEquals(1, page.size());
+        assertEquals(second, page.getLastDocumentId());
+      }
+      // nothing after the last document
+      DocumentsPage page = runner.getDocumentsAfter(score,
+          runner.getDocumentID(count - 1), 10);
+      assertEquals(0, page.size());
+    } finally {
+      runner.close();
+    }
+  }
+
+  @Test
+  public void testEmptyPage() {
+    DocumentsPage page = new DocumentsPage(new long[0], new double[0]);
+    assertEquals(0, page.size());
+    assertEquals(-1, page.getLastDocumentId());
+    assertEquals(Double.NEGATIVE_INFINITY, page.getLastDocumentScore(), 0);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testPageLengthsDiffer() {
+    new DocumentsPage(new long[2], new double[1]);
+  }
+}
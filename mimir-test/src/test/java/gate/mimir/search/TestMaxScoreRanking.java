@@ -0,0 +1,209 @@
+/*
+ *  TestMaxScoreRanking.java
+ *
+ *  Copyright (c) 2007-2026, The University of Sheffield.
+ *
+ *  This file is part of GATE Mímir (see http://gate.ac.uk/family/mimir.html),
+ *  and is free software, licenced under the GNU Lesser General Public License,
+ *  Version 3, June 2007 (also included with this distribution as file
+ *  LICENCE-LGPL3.html).
+ *
+ *  $Id$
+ */
+package gate.mimir.search;
+
+import static gate.mimir.test.IndexTestUtils.BM25_SOURCE;
+import static gate.mimir.test.IndexTestUtils.BOUNDED_BM25_SOURCE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import gate.mimir.MimirIndex;
+import gate.mimir.search.query.OrQuery;
+import gate.mimir.search.query.QueryExecutor;
+import gate.mimir.search.query.QueryNode;
+import gate.mimir.search.query.TermQuery;
+import gate.mimir.search.score.BM25ScoringQueryExecutor;
+import gate.mimir.search.score.MimirScorer;
+import gate.mimir.test.IndexTestUtils;
+import it.unimi.di.big.mg4j.index.IndexIterator;
+import it.unimi.dsi.fastutil.doubles.DoubleArrayList;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+
+import java.io.File;
+import java.util.Random;
+import java.util.concurrent.Callable;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that skipping documents by their score bounds (see
+ * {@link gate.mimir.search.score.BoundedScorer}) when a ranking limit is
+ * used gives the same results as scoring all the documents.
+ */
+public class TestMaxScoreRanking {
+
+  private static final int DOCUMENTS = 5000;
+
+  private static final int RANKING_LIMIT = 10;
+
+  private File indexDirectory;
+
+  private MimirIndex index;
+
+  private QueryEngine engine;
+
+  @Before
+  public void setUp() throws Exception {
+    indexDirectory = IndexTestUtils.createIndexDirectory();
+    index = new MimirIndex(IndexTestUtils.getTestIndexConfig(indexDirectory));
+    Random random = new Random(4321);
+    for(int i = 0; i < DOCUMENTS; i++) {
+      // documents of varying lengths
+      String[] tokens = new String[4 + random.nextInt(12)];
+      for(int j = 0; j < tokens.length; j++) {
+        // a skewed distribution: w0 is in most documents, w39 in few
+        tokens[j] = "w" + (int)(Math.pow(random.nextDouble(), 3) * 40);
+      }
+      index.indexDocument(IndexTestUtils.createDocument(i, tokens));
+      if(i == DOCUMENTS / 2 || i == DOCUMENTS - 1) {
+        IndexTestUtils.syncToDisk(index);
+      }
+    }
+    IndexTestUtils.waitForDocuments(index, DOCUMENTS);
+    engine = index.getQueryEngine();
+    // each run must search the index again
+    engine.setQueryResultsCacheSize(0);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    IndexTestUtils.deleteIndex(index, indexDirectory);
+  }
+
+  /**
+   * The best documents returned for a query.
+   */
+  private static class Results {
+    final LongArrayList documentIds = new LongArrayList();
+
+    final DoubleArrayList scores = new DoubleArrayList();
+
+    long matchingDocumentsCount;
+  }
+
+  private Results results(QueryNode query, int limit,
+      Callable<MimirScorer> scorerSource) throws Exception {
+    engine.setRankingLimit(limit);
+    engine.setScorerSource(scorerSource);
+    Results results = new Results();
+    RankingQueryRunnerImpl runner =
+        (RankingQueryRunnerImpl)engine.getQueryRunner(query);
+    try {
+      long count = Math.min(RANKING_LIMIT, runner.getDocumentsCountSync());
+      for(long rank = 0; rank < count; rank++) {
+        results.documentIds.add(runner.getDocumentID(rank));
+        results.scores.add(runner.getDocumentScore(rank));
+      }
+      results.matchingDocumentsCount = runner.getMatchingDocumentsCount();
+    } finally {
+      runner.close();
+    }
+    return results;
+  }
+
+  /**
+   * Compares the best documents found with a bounded scorer and a ranking
+   * limit to those found by scoring all the documents. The scores may
+   * differ in the last bits, as the terms of a disjunction are not always
+   * added up in the same order.
+   * @return the number of documents counted with the bounded scorer, and
+   * the total number of matching documents.
+   */
+  private long[] assertSameResults(QueryNode query) throws Exception {
+    Results all = results(query, 0, BM25_SOURCE);
+    Results bounded = results(query, RANKING_LIMIT, BOUNDED_BM25_SOURCE);
+    assertTrue(query.toString(), all.documentIds.size() > 0);
+    assertEquals(query.toString(), all.documentIds, bounded.documentIds);
+    for(int i = 0; i < all.scores.size(); i++) {
+      assertEquals(query.toString(), all.scores.getDouble(i),
+          bounded.scores.getDouble(i), 1e-9);
+    }
+    assertTrue(bounded.matchingDocumentsCount <= all.matchingDocumentsCount);
+    return new long[] {bounded.matchingDocumentsCount,
+        all.matchingDocumentsCount};
+  }
+
+  @Test
+  public void testTermQueries() throws Exception {
+    for(String term : new String[] {"w0", "w5", "w39"}) {
+      long[] counts = assertSameResults(new TermQuery("string", term));
+      // the bound of a single term is never reached
+      assertEquals(counts[1], counts[0]);
+    }
+  }
+
+  @Test
+  public void testOrQueries() throws Exception {
+    assertSameResults(new OrQuery(new TermQuery("string", "w1"),
+        new TermQuery("string", "w2")));
+    assertSameResults(new OrQuery(new TermQuery("string", "w37"),
+        new TermQuery("string", "w38"), new TermQuery("string", "w39")));
+    assertSameResults(new OrQuery(new TermQuery("string", "w0"),
+        new TermQuery("string", "w10"), new TermQuery("string", "w20"),
+        new TermQuery("string", "w39")));
+    // the same term twice
+    TermQuery rare = new TermQuery("string", "w36");
+    assertSameResults(new OrQuery(rare, new TermQuery("string", "w0"), rare));
+  }
+
+  /**
+   * A rare term and a frequent one: once the best documents are all found
+   * to score higher than the frequent term's bound, the documents matching
+   * only the frequent term are skipped.
+   */
+  @Test
+  public void testDocumentsSkipped() throws Exception {
+    long[] counts = assertSameResults(new OrQuery(
+        new TermQuery("string", "w0"), new TermQuery("string", "w38")));
+    assertTrue("No documents skipped: " + counts[0] + " of " + counts[1],
+        counts[0] < counts[1] / 2);
+  }
+
+  /**
+   * Queries that are not a term or a disjunction of terms are scored as
+   * before.
+   */
+  @Test
+  public void testOtherQueries() throws Exception {
+    assertSameResults(new OrQuery(new TermQuery("string", "w0"),
+        new OrQuery(new TermQuery("string", "w38"),
+            new TermQuery("string", "w39"))));
+  }
+
+  /**
+   * No document scores as much as the bound of each term.
+   */
+  @Test
+  public void testBounds() throws Exception {
+    for(String term : new String[] {"w0", "w5", "w20", "w39"}) {
+      QueryExecutor executor =
+          new TermQuery("string", term).getQueryExecutor(engine);
+      try {
+        BM25ScoringQueryExecutor scorer = new BM25ScoringQueryExecutor();
+        scorer.wrap(executor);
+        double bound = scorer.getMaxScore((IndexIterator)executor);
+        int documents = 0;
+        while(scorer.nextDocument(-1) >= 0) {
+          documents++;
+          double score = scorer.score();
+          assertTrue(term + ": " + score + " >= " + bound, score < bound);
+        }
+        assertTrue(documents > 0);
+      } finally {
+        executor.close();
+      }
+    }
+  }
+}
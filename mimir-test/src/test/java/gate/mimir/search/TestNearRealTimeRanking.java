@@ -0,0 +1,115 @@
+/*
+ *  TestNearRealTimeRanking.java
+ *
+ *  Copyright (c) 2007-2026, The University of Sheffield.
+ *
+ *  This file is part of GATE Mímir (see http://gate.ac.uk/family/mimir.html),
+ *  and is free software, licenced under the GNU Lesser General Public License,
+ *  Version 3, June 2007 (also included with this distribution as file
+ *  LICENCE-LGPL3.html).
+ *
+ *  $Id$
+ */
+package gate.mimir.search;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import gate.mimir.IndexConfig;
+import gate.mimir.MimirIndex;
+import gate.mimir.search.query.OrQuery;
+import gate.mimir.search.query.QueryNode;
+import gate.mimir.search.query.TermQuery;
+import gate.mimir.test.IndexTestUtils;
+
+import java.io.File;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Ranks queries over an index whose documents are all still in RAM, using
+ * near-real-time search.
+ */
+public class TestNearRealTimeRanking {
+
+  private static final String[][] DOCUMENTS = new String[][] {
+    {"a", "b", "c", "d"},
+    {"x", "b", "c", "d"},
+    {"b", "c", "d", "e"},
+    {"x", "x", "b"},
+    {"c", "d", "e", "f"},
+    {"b", "c"}
+  };
+
+  private File indexDirectory;
+
+  private MimirIndex index;
+
+  private QueryEngine engine;
+
+  @Before
+  public void setUp() throws Exception {
+    indexDirectory = IndexTestUtils.createIndexDirectory();
+    IndexConfig indexConfig =
+        IndexTestUtils.getTestIndexConfig(indexDirectory);
+    indexConfig.setNearRealTimeSearch(true);
+    index = new MimirIndex(indexConfig);
+    for(int i = 0; i < DOCUMENTS.length; i++) {
+      index.indexDocument(IndexTestUtils.createDocument(i, DOCUMENTS[i]));
+    }
+    IndexTestUtils.waitForDocuments(index, DOCUMENTS.length);
+    engine = index.getQueryEngine();
+    engine.setScorerSource(IndexTestUtils.BM25_SOURCE);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    IndexTestUtils.deleteIndex(index, indexDirectory);
+  }
+
+  private static long[] documentIds(QueryRunner runner) throws Exception {
+    long[] ids = new long[(int)runner.getDocumentsCountSync()];
+    for(int rank = 0; rank < ids.length; rank++) {
+      ids[rank] = runner.getDocumentID(rank);
+      if(rank > 0) {
+        assertTrue(runner.getDocumentScore(rank - 1) >=
+            runner.getDocumentScore(rank));
+      }
+    }
+    return ids;
+  }
+
+  @Test
+  public void testTermQuery() throws Exception {
+    assertEquals(0, index.getTokenIndex("string").getDocumentsOnDiskCount());
+    QueryRunner runner = engine.getQueryRunner(new TermQuery("string", "x"));
+    try {
+      // the shorter document, with more occurrences, comes first
+      assertEquals(Arrays.toString(new long[] {3, 1}),
+          Arrays.toString(documentIds(runner)));
+      assertTrue(runner.getDocumentScore(1) > 0);
+    } finally {
+      runner.close();
+    }
+  }
+
+  @Test
+  public void testOrQuery() throws Exception {
+    QueryNode query = new OrQuery(new TermQuery("string", "x"),
+        new TermQuery("string", "e"), new TermQuery("string", "missing"));
+    QueryRunner runner = engine.getQueryRunner(query);
+    try {
+      long[] ids = documentIds(runner);
+      assertEquals(4, ids.length);
+      assertEquals(3, ids[0]);
+      Arrays.sort(ids);
+      assertEquals(Arrays.toString(new long[] {1, 2, 3, 4}),
+          Arrays.toString(ids));
+    } finally {
+      runner.close();
+    }
+  }
+}
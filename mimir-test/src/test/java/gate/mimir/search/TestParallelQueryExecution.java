@@ -0,0 +1,176 @@
+/*
+ *  TestParallelQueryExecution.java
+ *
+ *  Copyright (c) 2007-2026, The University of Sheffield.
+ *
+ *  This file is part of GATE Mímir (see http://gate.ac.uk/family/mimir.html),
+ *  and is free software, licenced under the GNU Lesser General Public License,
+ *  Version 3, June 2007 (also included with this distribution as file
+ *  LICENCE-LGPL3.html).
+ *
+ *  $Id$
+ */
+package gate.mimir.search;
+
+import static gate.mimir.test.IndexTestUtils.BM25_SOURCE;
+import static gate.mimir.test.IndexTestUtils.BOUNDED_BM25_SOURCE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import gate.mimir.MimirIndex;
+import gate.mimir.search.query.Binding;
+import gate.mimir.search.query.OrQuery;
+import gate.mimir.search.query.QueryNode;
+import gate.mimir.search.query.SequenceQuery;
+import gate.mimir.search.query.TermQuery;
+import gate.mimir.test.IndexTestUtils;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that splitting the documents into ranges searched in parallel (see
+ * {@link QueryEngine#setParallelism(int)}) gives the same results as
+ * searching them sequentially.
+ */
+public class TestParallelQueryExecution {
+
+  private static final int PARALLELISM = 3;
+
+  /**
+   * Enough documents for {@link #PARALLELISM} ranges.
+   */
+  private static final int DOCUMENTS =
+      (int)QueryEngine.MINIMUM_RANGE_SIZE * PARALLELISM + 500;
+
+  /**
+   * The number of documents in each on-disk batch, which is not a multiple
+   * of the range size, so some ranges end at a batch boundary, and some
+   * batches get split.
+   */
+  private static final int BATCH_SIZE = 13000;
+
+  private File indexDirectory;
+
+  private MimirIndex index;
+
+  private QueryEngine engine;
+
+  @Before
+  public void setUp() throws Exception {
+    indexDirectory = IndexTestUtils.createIndexDirectory();
+    index = new MimirIndex(IndexTestUtils.getTestIndexConfig(indexDirectory));
+    Random random = new Random(1234);
+    for(int i = 0; i < DOCUMENTS; i++) {
+      String[] tokens = new String[6];
+      for(int j = 0; j < tokens.length; j++) {
+        // a skewed distribution, so term frequencies and scores vary
+        tokens[j] = "w" + (int)(Math.pow(random.nextDouble(), 3) * 40);
+      }
+      index.indexDocument(IndexTestUtils.createDocument(i, tokens));
+      if((i + 1) % BATCH_SIZE == 0 || i == DOCUMENTS - 1) {
+        IndexTestUtils.syncToDisk(index);
+      }
+    }
+    IndexTestUtils.waitForDocuments(index, DOCUMENTS);
+    engine = index.getQueryEngine();
+    // each run must search the index again
+    engine.setQueryResultsCacheSize(0);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    IndexTestUtils.deleteIndex(index, indexDirectory);
+  }
+
+  /**
+   * Runs a query, and describes its results: the document IDs, scores and
+   * hits for every rank.
+   */
+  private List<String> results(QueryNode query, int parallelism)
+      throws Exception {
+    engine.setParallelism(parallelism);
+    if(parallelism > 1) {
+      assertNotNull(engine.getDocumentRangeStarts());
+    } else {
+      assertNull(engine.getDocumentRangeStarts());
+    }
+    List<String> results = new ArrayList<String>();
+    QueryRunner runner = engine.getQueryRunner(query);
+    try {
+      long count = runner.getDocumentsCountSync();
+      assertTrue(count > 0);
+      for(long rank = 0; rank < count; rank++) {
+        StringBuilder result = new StringBuilder();
+        result.append(runner.getDocumentID(rank));
+        if(engine.getScorerSource() != null) {
+          result.append(" score ").append(runner.getDocumentScore(rank));
+        }
+        // fetching the hits is slower, so only do it for some ranks
+        if(rank < 50 || rank % 101 == 0 || rank == count - 1) {
+          for(Binding aHit : runner.getDocumentHits(rank)) {
+            result.append(" ").append(aHit.getTermPosition()).append("+")
+                .append(aHit.getLength());
+          }
+        }
+        results.add(result.toString());
+      }
+    } finally {
+      runner.close();
+    }
+    return results;
+  }
+
+  private void assertSameResults(QueryNode query) throws Exception {
+    List<String> sequential = results(query, 1);
+    List<String> parallel = results(query, PARALLELISM);
+    assertEquals(sequential.size(), parallel.size());
+    for(int i = 0; i < sequential.size(); i++) {
+      assertEquals("Rank " + i, sequential.get(i), parallel.get(i));
+    }
+  }
+
+  private static QueryNode[] queries() {
+    return new QueryNode[] {
+      // in most documents
+      new TermQuery("string", "w0"),
+      // rare
+      new TermQuery("string", "w39"),
+      new OrQuery(new TermQuery("string", "w20"),
+          new TermQuery("string", "w30")),
+      new SequenceQuery(null, new TermQuery("string", "w1"),
+          new TermQuery("string", "w0"))
+    };
+  }
+
+  @Test
+  public void testUnranked() throws Exception {
+    engine.setScorerSource(null);
+    for(QueryNode aQuery : queries()) assertSameResults(aQuery);
+  }
+
+  @Test
+  public void testRanked() throws Exception {
+    engine.setScorerSource(BM25_SOURCE);
+    for(QueryNode aQuery : queries()) assertSameResults(aQuery);
+  }
+
+  /**
+   * With a ranking limit, each range keeps its own best documents, and may
+   * skip documents by their score bounds.
+   */
+  @Test
+  public void testRankedWithLimit() throws Exception {
+    engine.setScorerSource(BOUNDED_BM25_SOURCE);
+    engine.setRankingLimit(20);
+    for(QueryNode aQuery : queries()) assertSameResults(aQuery);
+  }
+}
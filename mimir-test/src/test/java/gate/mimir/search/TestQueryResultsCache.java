@@ -0,0 +1,321 @@
+/*
+ *  TestQueryResultsCache.java
+ *
+ *  Copyright (c) 2007-2026, The University of Sheffield.
+ *
+ *  This file is part of GATE Mímir (see http://gate.ac.uk/family/mimir.html),
+ *  and is free software, licenced under the GNU Lesser General Public License,
+ *  Version 3, June 2007 (also included with this distribution as file
+ *  LICENCE-LGPL3.html).
+ *
+ *  $Id$
+ */
+package gate.mimir.search;
+
+import static gate.mimir.test.IndexTestUtils.BM25_SOURCE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import gate.mimir.Constraint;
+import gate.mimir.ConstraintType;
+import gate.mimir.MimirIndex;
+import gate.mimir.search.QueryResultsCache.QueryResults;
+import gate.mimir.search.query.AndQuery;
+import gate.mimir.search.query.AnnotationQuery;
+import gate.mimir.search.query.OrQuery;
+import gate.mimir.search.query.QueryNode;
+import gate.mimir.search.query.SequenceQuery;
+import gate.mimir.search.query.SequenceQuery.Gap;
+import gate.mimir.search.query.TermQuery;
+import gate.mimir.test.IndexTestUtils;
+import it.unimi.dsi.fastutil.bytes.ByteArrayList;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Tests for {@link QueryResultsCache}, on its own, and as used by the
+ * {@link QueryEngine}.
+ */
+public class TestQueryResultsCache {
+
+  /**
+   * The estimated size of an entry with a 1 byte key and no documents.
+   */
+  private static final long EMPTY_ENTRY_SIZE = 64 + 1 +
+      new QueryResults(new long[0], null, 0, 0).estimateSize();
+
+  private File indexDirectory;
+
+  private MimirIndex index;
+
+  private static ByteArrayList key(int id) {
+    return ByteArrayList.wrap(new byte[] {(byte)id});
+  }
+
+  private static QueryResults results(long... documentIds) {
+    return new QueryResults(documentIds, null, documentIds.length, 100);
+  }
+
+  @Test
+  public void testLeastRecentlyUsedEviction() {
+    // room for two empty entries
+    QueryResultsCache cache = new QueryResultsCache(2 * EMPTY_ENTRY_SIZE);
+    cache.put(key(1), results(), cache.getGeneration());
+    cache.put(key(2), results(), cache.getGeneration());
+    assertEquals(2, cache.getEntryCount());
+    assertEquals(2 * EMPTY_ENTRY_SIZE, cache.getSize());
+    // makes 1 the most recently used
+    assertNotNull(cache.get(key(1)));
+    cache.put(key(3), results(), cache.getGeneration());
+    assertEquals(2, cache.getEntryCount());
+    assertEquals(1, cache.getEvictionCount());
+    assertNull(cache.get(key(2)));
+    assertNotNull(cache.get(key(1)));
+    assertNotNull(cache.get(key(3)));
+    assertEquals(3, cache.getHitCount());
+    assertEquals(1, cache.getMissCount());
+    // a larger entry evicts both the others
+    cache.put(key(4), results(1, 2), cache.getGeneration());
+    assertEquals(1, cache.getEntryCount());
+    assertEquals(EMPTY_ENTRY_SIZE + 16, cache.getSize());
+    assertEquals(3, cache.getEvictionCount());
+    // shrinking the cache evicts what no longer fits
+    cache.setMaximumSize(EMPTY_ENTRY_SIZE);
+    assertEquals(0, cache.getEntryCount());
+    assertEquals(0, cache.getSize());
+  }
+
+  @Test
+  public void testTooLarge() {
+    QueryResultsCache cache = new QueryResultsCache(EMPTY_ENTRY_SIZE);
+    cache.put(key(1), results(), cache.getGeneration());
+    // larger than the whole cache: not stored, and nothing evicted
+    cache.put(key(2), results(1), cache.getGeneration());
+    assertEquals(1, cache.getEntryCount());
+    assertNull(cache.get(key(2)));
+    assertEquals(0, cache.getEvictionCount());
+  }
+
+  @Test
+  public void testReplace() {
+    QueryResultsCache cache = new QueryResultsCache(10 * EMPTY_ENTRY_SIZE);
+    cache.put(key(1), results(1), cache.getGeneration());
+    cache.put(key(1), results(1, 2, 3), cache.getGeneration());
+    assertEquals(1, cache.getEntryCount());
+    assertEquals(EMPTY_ENTRY_SIZE + 24, cache.getSize());
+    assertEquals(3, cache.get(key(1)).getDocumentIds().length);
+    cache.remove(key(1));
+    assertEquals(0, cache.getEntryCount());
+    assertEquals(0, cache.getSize());
+  }
+
+  /**
+   * The results of queries started before the cache was cleared are not
+   * stored.
+   */
+  @Test
+  public void testGeneration() {
+    QueryResultsCache cache = new QueryResultsCache(10 * EMPTY_ENTRY_SIZE);
+    long generation = cache.getGeneration();
+    cache.put(key(1), results(), generation);
+    cache.clear();
+    assertEquals(0, cache.getEntryCount());
+    assertEquals(0, cache.getSize());
+    assertEquals(generation + 1, cache.getGeneration());
+    cache.put(key(2), results(), generation);
+    assertNull(cache.get(key(2)));
+    cache.put(key(2), results(), cache.getGeneration());
+    assertNotNull(cache.get(key(2)));
+  }
+
+  @Test
+  public void testKey() {
+    QueryNode query = new TermQuery("string", "w0");
+    assertEquals(QueryResultsCache.getKey(query),
+        QueryResultsCache.getKey(new TermQuery("string", "w0")));
+    assertKeysDiffer(query, new TermQuery("string", "w1"));
+    assertKeysDiffer(query, new TermQuery("root", "w0"));
+    assertKeysDiffer(query, new TermQuery("string", "w0", 7L));
+    assertKeysDiffer(query, new TermQuery("string", "w0", 2));
+  }
+
+  /**
+   * Keys of nested queries depend on all the nodes, and on the order of the
+   * sub-queries, but not on the order of annotation constraints.
+   */
+  @Test
+  public void testNestedQueryKey() {
+    assertEquals(QueryResultsCache.getKey(sequence(1, 2, "Person", "male")),
+        QueryResultsCache.getKey(sequence(1, 2, "Person", "male")));
+    assertKeysDiffer(sequence(1, 2, "Person", "male"),
+        sequence(1, 3, "Person", "male"));
+    assertKeysDiffer(sequence(1, 2, "Person", "male"),
+        sequence(1, 2, "Location", "male"));
+    assertKeysDiffer(sequence(1, 2, "Person", "male"),
+        sequence(1, 2, "Person", "female"));
+    assertKeysDiffer(new OrQuery(new TermQuery("string", "w0"),
+        new TermQuery("string", "w1")), new OrQuery(
+        new TermQuery("string", "w1"), new TermQuery("string", "w0")));
+    assertKeysDiffer(new OrQuery(new TermQuery("string", "w0"),
+        new TermQuery("string", "w1")), new AndQuery(
+        new TermQuery("string", "w0"), new TermQuery("string", "w1")));
+
+    Constraint gender = new Constraint(ConstraintType.EQ, "gender", "male");
+    Constraint age = new Constraint(ConstraintType.GT, "age", 30);
+    assertEquals(
+        QueryResultsCache.getKey(new AnnotationQuery("Person",
+            Arrays.asList(gender, age))),
+        QueryResultsCache.getKey(new AnnotationQuery("Person",
+            Arrays.asList(age, gender))));
+    // the type of the value is part of the key
+    assertKeysDiffer(
+        new AnnotationQuery("Person", Arrays.asList(age)),
+        new AnnotationQuery("Person", Arrays.asList(
+            new Constraint(ConstraintType.GT, "age", 30L))));
+  }
+
+  /**
+   * Queries with node types not known to the cache are not cached.
+   */
+  @Test
+  public void testUnknownNodeKey() {
+    QueryNode unknown = new TermQuery("string", "w0") {
+      private static final long serialVersionUID = 1L;
+    };
+    assertNull(QueryResultsCache.getKey(unknown));
+    assertNull(QueryResultsCache.getKey(new AndQuery(
+        new TermQuery("string", "w0"), unknown)));
+  }
+
+  /**
+   * Gets a sequence of a term, a gap, and a <code>Person</code> annotation
+   * with a <code>gender</code> feature.
+   */
+  private static QueryNode sequence(int minGap, int maxGap, 
+      String annotationType, String gender) {
+    return new SequenceQuery(
+        new Gap[] {SequenceQuery.getGap(minGap, maxGap)},
+        new TermQuery("string", "w0"),
+        new AnnotationQuery(annotationType, Collections.singletonMap(
+            "gender", gender)));
+  }
+
+  private static void assertKeysDiffer(QueryNode query, QueryNode other) {
+    ByteArrayList key = QueryResultsCache.getKey(query);
+    assertNotNull(key);
+    assertTrue(other.toString(), 
+        !key.equals(QueryResultsCache.getKey(other)));
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    IndexTestUtils.deleteIndex(index, indexDirectory);
+  }
+
+  /**
+   * Adds documents to the index, where every third document contains
+   * <code>w0</code>, and waits for them to be searchable.
+   */
+  private void indexDocuments(int first, int count) throws Exception {
+    if(index == null) {
+      indexDirectory = IndexTestUtils.createIndexDirectory();
+      index = new MimirIndex(
+          IndexTestUtils.getTestIndexConfig(indexDirectory));
+    }
+    for(int i = first; i < first + count; i++) {
+      index.indexDocument(IndexTestUtils.createDocument(i,
+          new String[] {i % 3 == 0 ? "w0" : "w1", "w2"}));
+    }
+    IndexTestUtils.syncToDisk(index);
+    IndexTestUtils.waitForDocuments(index, first + count);
+  }
+
+  private static LongArrayList documentIds(QueryEngine engine,
+      QueryNode query) throws Exception {
+    LongArrayList ids = new LongArrayList();
+    QueryRunner runner = engine.getQueryRunner(query);
+    try {
+      long count = runner.getDocumentsCountSync();
+      for(long rank = 0; rank < count; rank++) {
+        ids.add(runner.getDocumentID(rank));
+      }
+    } finally {
+      runner.close();
+    }
+    return ids;
+  }
+
+  private static LongArrayList expectedIds(int documents) {
+    LongArrayList ids = new LongArrayList();
+    for(int i = 0; i < documents; i += 3) ids.add(i);
+    return ids;
+  }
+
+  /**
+   * An unranked entry is used for the documents it covers, and extended
+   * with the documents added to the index since it was stored.
+   */
+  @Test
+  public void testExtendEntry() throws Exception {
+    indexDocuments(0, 30);
+    QueryEngine engine = index.getQueryEngine();
+    engine.setScorerSource(null);
+    QueryResultsCache cache = engine.getQueryResultsCache();
+    QueryNode query = new TermQuery("string", "w0");
+    ByteArrayList key = QueryResultsCache.getKey(query);
+    assertEquals(expectedIds(30), documentIds(engine, query));
+    QueryResults cached = cache.get(key);
+    assertNotNull(cached);
+    assertEquals(30, cached.getDocumentsEnd());
+    assertEquals(10, cached.getMatchingDocumentsCount());
+    indexDocuments(30, 30);
+    assertEquals(expectedIds(60), documentIds(engine, query));
+    cached = cache.get(key);
+    assertEquals(60, cached.getDocumentsEnd());
+    assertEquals(20, cached.getDocumentIds().length);
+    assertEquals(20, cached.getMatchingDocumentsCount());
+    // deleted documents are skipped, but stay in the entry
+    index.deleteDocument(3);
+    LongArrayList expected = expectedIds(60);
+    expected.rem(3);
+    assertEquals(expected, documentIds(engine, query));
+    assertEquals(20, cache.get(key).getDocumentIds().length);
+  }
+
+  /**
+   * Ranked results are cached when all the matching documents are kept,
+   * but not when a ranking limit is used.
+   */
+  @Test
+  public void testRankingLimit() throws Exception {
+    indexDocuments(0, 30);
+    QueryEngine engine = index.getQueryEngine();
+    engine.setScorerSource(BM25_SOURCE);
+    QueryResultsCache cache = engine.getQueryResultsCache();
+    QueryNode query = new TermQuery("string", "w0");
+    ByteArrayList key = QueryResultsCache.getKey(query);
+    engine.setRankingLimit(3);
+    assertEquals(3, documentIds(engine, query).size());
+    assertNull(cache.get(key));
+    engine.setRankingLimit(0);
+    assertEquals(10, documentIds(engine, query).size());
+    QueryResults cached = cache.get(key);
+    assertNotNull(cached);
+    assertNotNull(cached.getDocumentScores());
+    assertEquals(10, cached.getDocumentIds().length);
+    // a complete entry is not used for a limited query
+    engine.setRankingLimit(3);
+    long hits = cache.getHitCount();
+    assertEquals(3, documentIds(engine, query).size());
+    assertEquals(hits, cache.getHitCount());
+    assertEquals(10, cache.get(key).getDocumentIds().length);
+  }
+}
@@ -0,0 +1,258 @@
+/*
+ *  TestRecordedHits.java
+ *
+ *  Copyright (c) 2007-2026, The University of Sheffield.
+ *
+ *  This file is part of GATE Mímir (see http://gate.ac.uk/family/mimir.html),
+ *  and is free software, licenced under the GNU Lesser General Public License,
+ *  Version 3, June 2007 (also included with this distribution as file
+ *  LICENCE-LGPL3.html).
+ *
+ *  $Id$
+ */
+package gate.mimir.search;
+
+import static gate.mimir.test.IndexTestUtils.BM25_SOURCE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import gate.mimir.MimirIndex;
+import gate.mimir.search.query.Binding;
+import gate.mimir.search.query.OrQuery;
+import gate.mimir.search.query.QueryExecutor;
+import gate.mimir.search.query.QueryNode;
+import gate.mimir.search.query.SequenceQuery;
+import gate.mimir.search.query.TermQuery;
+import gate.mimir.test.IndexTestUtils;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for {@link RecordedHits}.
+ */
+public class TestRecordedHits {
+
+  private static final int DOCUMENTS = 300;
+
+  private File indexDirectory;
+
+  private MimirIndex index;
+
+  private QueryEngine engine;
+
+  @Before
+  public void setUp() throws Exception {
+    indexDirectory = IndexTestUtils.createIndexDirectory();
+    index = new MimirIndex(IndexTestUtils.getTestIndexConfig(indexDirectory));
+    Random random = new Random(5678);
+    for(int i = 0; i < DOCUMENTS; i++) {
+      String[] tokens = new String[3 + random.nextInt(10)];
+      for(int j = 0; j < tokens.length; j++) {
+        tokens[j] = "w" + random.nextInt(6);
+      }
+      index.indexDocument(IndexTestUtils.createDocument(i, tokens));
+    }
+    IndexTestUtils.syncToDisk(index);
+    IndexTestUtils.waitForDocuments(index, DOCUMENTS);
+    engine = index.getQueryEngine();
+    engine.setQueryResultsCacheSize(0);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    IndexTestUtils.deleteIndex(index, indexDirectory);
+  }
+
+  private static String toString(List<Binding> hits) {
+    if(hits == null) return null;
+    StringBuilder str = new StringBuilder();
+    for(Binding aHit : hits) {
+      str.append(aHit.getDocumentId()).append(":")
+          .append(aHit.getTermPosition()).append("+")
+          .append(aHit.getLength()).append(" ")
+          .append(aHit.getQueryNode()).append("\n");
+    }
+    return str.toString();
+  }
+
+  private static IntArrayList hitData(int... data) {
+    return new IntArrayList(data);
+  }
+
+  @Test
+  public void testStore() {
+    RecordedHits recorded = new RecordedHits(100);
+    QueryNode first = new TermQuery("string", "w0");
+    QueryNode second = new TermQuery("string", "w1");
+    int firstIndex = recorded.getQueryNodeIndex(first);
+    int secondIndex = recorded.getQueryNodeIndex(second);
+    assertEquals(firstIndex, recorded.getQueryNodeIndex(first));
+    recorded.addDocument(2, hitData(0, 1, firstIndex, 4, 2, secondIndex));
+    recorded.addDocument(5, hitData());
+    recorded.addDocument(9, hitData(7, 1, secondIndex));
+    assertEquals(3, recorded.getDocumentCount());
+    assertEquals(3, recorded.getHitCount());
+    assertFalse(recorded.isFull());
+    List<Binding> hits = recorded.getHits(2);
+    assertEquals(2, hits.size());
+    assertEquals(2, hits.get(0).getDocumentId());
+    assertEquals(0, hits.get(0).getTermPosition());
+    assertEquals(1, hits.get(0).getLength());
+    assertTrue(hits.get(0).getQueryNode() == first);
+    assertEquals(4, hits.get(1).getTermPosition());
+    assertEquals(2, hits.get(1).getLength());
+    assertTrue(hits.get(1).getQueryNode() == second);
+    assertEquals(0, recorded.getHits(5).size());
+    hits = recorded.getHits(9);
+    assertEquals(1, hits.size());
+    assertEquals(7, hits.get(0).getTermPosition());
+    // documents not recorded
+    assertNull(recorded.getHits(0));
+    assertNull(recorded.getHits(3));
+    assertNull(recorded.getHits(10));
+  }
+
+  /**
+   * Once a document does not fit, no more documents are added, so the
+   * documents stored are always a prefix of those visited.
+   */
+  @Test
+  public void testLimit() {
+    RecordedHits recorded = new RecordedHits(5);
+    int node = recorded.getQueryNodeIndex(new TermQuery("string", "w0"));
+    recorded.addDocument(1, hitData(0, 1, node, 1, 1, node, 2, 1, node));
+    assertFalse(recorded.isFull());
+    recorded.addDocument(2, hitData(0, 1, node, 1, 1, node, 2, 1, node));
+    assertTrue(recorded.isFull());
+    // would fit, but comes after a document that did not
+    recorded.addDocument(3, hitData(0, 1, node));
+    assertEquals(1, recorded.getDocumentCount());
+    assertEquals(3, recorded.getHitCount());
+    assertNotNull(recorded.getHits(1));
+    assertNull(recorded.getHits(2));
+    assertNull(recorded.getHits(3));
+  }
+
+  private QueryNode[] queries() {
+    return new QueryNode[] {
+      new TermQuery("string", "w0"),
+      new OrQuery(new TermQuery("string", "w1"),
+          new TermQuery("string", "w2")),
+      new SequenceQuery(null, new TermQuery("string", "w3"),
+          new TermQuery("string", "w4"))};
+  }
+
+  /**
+   * The recorder returns the same documents and hits as the executor it
+   * wraps, and records all the hits of each document, including those the
+   * client did not read.
+   */
+  @Test
+  public void testRecord() throws Exception {
+    for(QueryNode query : queries()) {
+      // the hits of each document, from an executor on its own
+      Long2ObjectMap<String> expected = new Long2ObjectOpenHashMap<String>();
+      QueryExecutor executor = query.getQueryExecutor(engine);
+      try {
+        long documentId = executor.nextDocument(-1);
+        while(documentId >= 0) {
+          List<Binding> hits = new ArrayList<Binding>();
+          for(Binding aHit = executor.nextHit(); aHit != null;
+              aHit = executor.nextHit()) {
+            hits.add(aHit);
+          }
+          expected.put(documentId, toString(hits));
+          documentId = executor.nextDocument(-1);
+        }
+      } finally {
+        executor.close();
+      }
+      assertTrue(query.toString(), expected.size() > 0);
+      RecordedHits recorded = new RecordedHits(Long.MAX_VALUE / 3);
+      QueryExecutor recorder =
+          recorded.record(query.getQueryExecutor(engine));
+      try {
+        int documents = 0;
+        long documentId = recorder.nextDocument(-1);
+        while(documentId >= 0) {
+          assertTrue(expected.containsKey(documentId));
+          // read all, some, or none of the hits
+          int toRead = documents % 3 == 0 ? Integer.MAX_VALUE :
+              documents % 3 == 1 ? 1 : 0;
+          for(int i = 0; i < toRead && recorder.nextHit() != null; i++);
+          documents++;
+          documentId = recorder.nextDocument(-1);
+        }
+        assertEquals(query.toString(), expected.size(), documents);
+      } finally {
+        recorder.close();
+      }
+      assertFalse(recorded.isFull());
+      assertEquals(expected.size(), recorded.getDocumentCount());
+      for(Long2ObjectMap.Entry<String> anEntry :
+          expected.long2ObjectEntrySet()) {
+        assertEquals(query + ", document " + anEntry.getLongKey(),
+            anEntry.getValue(),
+            toString(recorded.getHits(anEntry.getLongKey())));
+      }
+    }
+  }
+
+  /**
+   * Describes the hits of all the documents of a ranked query.
+   */
+  private String rankedHits(QueryNode query, long recordedHitsLimit,
+      boolean expectRecorded) throws Exception {
+    engine.setRecordedHitsLimit(recordedHitsLimit);
+    StringBuilder str = new StringBuilder();
+    RankingQueryRunnerImpl runner =
+        (RankingQueryRunnerImpl)engine.getQueryRunner(query);
+    try {
+      long count = runner.getDocumentsCountSync();
+      assertTrue(count > 0);
+      long recordedDocuments = 0;
+      if(runner.recordedHits != null) {
+        for(RecordedHits aRecorder : runner.recordedHits) {
+          recordedDocuments += aRecorder.getDocumentCount();
+        }
+      }
+      assertEquals(query.toString(), expectRecorded, recordedDocuments > 0);
+      for(long rank = 0; rank < count; rank++) {
+        str.append(toString(runner.getDocumentHits(rank)));
+      }
+    } finally {
+      runner.close();
+    }
+    return str.toString();
+  }
+
+  /**
+   * A ranked query runner gives the same hits whether they are all
+   * recorded, only some of them are, or the query is run again to find
+   * them.
+   */
+  @Test
+  public void testRankedHits() throws Exception {
+    engine.setScorerSource(BM25_SOURCE);
+    for(QueryNode query : queries()) {
+      String notRecorded = rankedHits(query, 0, false);
+      assertEquals(query.toString(), notRecorded,
+          rankedHits(query, QueryEngine.DEFAULT_RECORDED_HITS_LIMIT, true));
+      assertEquals(query.toString(), notRecorded,
+          rankedHits(query, 50, true));
+    }
+  }
+}
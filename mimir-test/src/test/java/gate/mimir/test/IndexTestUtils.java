@@ -0,0 +1,179 @@
+/*
+ *  IndexTestUtils.java
+ *
+ *  Copyright (c) 2007-2026, The University of Sheffield.
+ *
+ *  This file is part of GATE Mímir (see http://gate.ac.uk/family/mimir.html),
+ *  and is free software, licenced under the GNU Lesser General Public License,
+ *  Version 3, June 2007 (also included with this distribution as file
+ *  LICENCE-LGPL3.html).
+ *
+ *  $Id$
+ */
+package gate.mimir.test;
+
+import static org.junit.Assert.assertTrue;
+
+import gate.mimir.DocumentMetadataHelper;
+import gate.mimir.IndexConfig;
+import gate.mimir.IndexConfig.SemanticIndexerConfig;
+import gate.mimir.IndexConfig.TokenIndexerConfig;
+import gate.mimir.MimirIndex;
+import gate.mimir.index.PretokenisedDocument;
+import gate.mimir.search.score.BM25ScoringQueryExecutor;
+import gate.mimir.search.score.DelegatingScoringQueryExecutor;
+import gate.mimir.search.score.MimirScorer;
+import it.unimi.di.big.mg4j.index.NullTermProcessor;
+import it.unimi.di.big.mg4j.search.score.BM25Scorer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Utility methods for tests that build a real index from pre-tokenised
+ * documents, without GATE documents or semantic annotations (so GATE does
+ * not need to be initialised).
+ */
+public class IndexTestUtils {
+
+  /**
+   * The name of the token feature used by {@link #getTestIndexConfig(File)}
+   * and {@link #createDocument(int, String[])}.
+   */
+  public static final String FEATURE = "string";
+
+  /**
+   * How long to wait for documents to be indexed, in milliseconds.
+   */
+  public static final long INDEXING_TIMEOUT = 60000;
+
+  /**
+   * A source of MG4J BM25 scorers.
+   */
+  public static final Callable<MimirScorer> BM25_SOURCE =
+      new Callable<MimirScorer>() {
+    @Override
+    public MimirScorer call() throws Exception {
+      return new DelegatingScoringQueryExecutor(new BM25Scorer());
+    }
+  };
+
+  /**
+   * A source of BM25 scorers that also provide score bounds (see
+   * {@link gate.mimir.search.score.BoundedScorer}).
+   */
+  public static final Callable<MimirScorer> BOUNDED_BM25_SOURCE =
+      new Callable<MimirScorer>() {
+    @Override
+    public MimirScorer call() throws Exception {
+      return new BM25ScoringQueryExecutor();
+    }
+  };
+
+  /**
+   * Gets a new, not yet existing, temporary directory for an index.
+   * @return
+   * @throws IOException
+   */
+  public static File createIndexDirectory() throws IOException {
+    File indexDirectory = File.createTempFile("mimir-index", null);
+    indexDirectory.delete();
+    return indexDirectory;
+  }
+
+  /**
+   * Gets the configuration of an index with a single token feature
+   * ({@link #FEATURE}), and no direct index.
+   * @param indexDirectory
+   * @return
+   */
+  public static IndexConfig getTestIndexConfig(File indexDirectory) {
+    return getTestIndexConfig(indexDirectory, false, FEATURE);
+  }
+
+  /**
+   * Gets the configuration of an index with the given token features,
+   * indexed without any term processing, and no semantic annotations.
+   * @param indexDirectory
+   * @param directIndexEnabled should the token indexes also have direct
+   * indexes?
+   * @param features the names of the token features.
+   * @return
+   */
+  public static IndexConfig getTestIndexConfig(File indexDirectory,
+      boolean directIndexEnabled, String... features) {
+    TokenIndexerConfig[] tokenIndexers =
+        new TokenIndexerConfig[features.length];
+    for(int i = 0; i < features.length; i++) {
+      tokenIndexers[i] = new TokenIndexerConfig(features[i],
+          NullTermProcessor.getInstance(), directIndexEnabled);
+    }
+    return new IndexConfig(indexDirectory, null, "Token", null,
+        tokenIndexers, new SemanticIndexerConfig[0],
+        new DocumentMetadataHelper[0], null);
+  }
+
+  /**
+   * Creates a document whose tokens (the values of {@link #FEATURE}) are
+   * separated by single spaces. The URI is <code>doc</code> followed by the
+   * document number.
+   * @param number
+   * @param tokens
+   * @return
+   */
+  public static PretokenisedDocument createDocument(int number,
+      String[] tokens) {
+    String[] nonTokens = new String[tokens.length];
+    Arrays.fill(nonTokens, " ");
+    PretokenisedDocument document = new PretokenisedDocument("doc" + number,
+        "Document " + number, nonTokens);
+    document.setTokenFeature(FEATURE, tokens);
+    return document;
+  }
+
+  /**
+   * Writes all the documents in RAM to disk, and waits for that to finish.
+   * @param index
+   * @throws Exception
+   */
+  public static void syncToDisk(MimirIndex index) throws Exception {
+    for(Future<Long> aFuture : index.requestSyncToDisk()) aFuture.get();
+  }
+
+  /**
+   * Waits (up to {@link #INDEXING_TIMEOUT}) until an index has the given
+   * number of documents.
+   * @param index
+   * @param documents
+   * @throws InterruptedException
+   */
+  public static void waitForDocuments(MimirIndex index, long documents)
+      throws InterruptedException {
+    long start = System.currentTimeMillis();
+    while(index.getIndexedDocumentsCount() < documents) {
+      assertTrue("Documents not indexed in time",
+          System.currentTimeMillis() - start < INDEXING_TIMEOUT);
+      Thread.sleep(10);
+    }
+  }
+
+  /**
+   * Closes an index (if open), and deletes its directory.
+   * @param index the index, or <code>null</code>.
+   * @param indexDirectory
+   * @throws Exception
+   */
+  public static void deleteIndex(MimirIndex index, File indexDirectory)
+      throws Exception {
+    try {
+      if(index != null) index.close();
+    } finally {
+      if(indexDirectory != null) FileUtils.deleteDirectory(indexDirectory);
+    }
+  }
+}
@@ -34,9 +34,7 @@ import java.net.URL;
 import java.text.NumberFormat;
 import java.util.Arrays;
 import java.util.Enumeration;
-import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
@@ -53,6 +51,7 @@ import gate.mimir.IndexConfig;
 import gate.mimir.MimirIndex;
 import gate.mimir.index.AtomicIndex;
 import gate.mimir.index.AtomicTokenIndex;
+import gate.mimir.index.DocumentRingBuffer;
 import gate.mimir.index.GATEDocument;
 import gate.mimir.index.IndexException;
 import gate.mimir.search.IndexReaderPool;
@@ -326,10 +325,9 @@ public class Scratch {
     MimirIndex mainIndex = new MimirIndex(indexDir);
     
     // build a token indexer
-    BlockingQueue<GATEDocument> inputQueue = new LinkedBlockingQueue<GATEDocument>();
-    BlockingQueue<GATEDocument> outputQueue = new LinkedBlockingQueue<GATEDocument>();
+    DocumentRingBuffer inputBuffer = new DocumentRingBuffer(1024);
     AtomicTokenIndex ati = new AtomicTokenIndex(mainIndex, "tokens-0", false, 
-        inputQueue, outputQueue, 
+        inputBuffer.newConsumer(), 
         indexConfig.getTokenIndexers()[0], 
         false);
     
@@ -348,7 +346,7 @@ public class Scratch {
       Document doc = gate.Factory.newDocument(url, "UTF-8");
       for(int i = 0;  i < copies; i++) {
         GATEDocument gateDoc = new GATEDocument(doc, indexConfig);
-        inputQueue.put(gateDoc);
+        inputBuffer.put(gateDoc);
       }
       // now let's do some searches
       Index index = ati.getIndex();
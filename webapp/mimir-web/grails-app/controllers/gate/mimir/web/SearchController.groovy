@@ -35,6 +35,7 @@ import javax.servlet.http.HttpSessionBindingEvent;
 import javax.servlet.http.HttpSessionBindingListener;
 
 import gate.mimir.search.QueryEngine;
+import gate.mimir.search.DocumentsPage;
 import gate.mimir.search.QueryRunner;
 
 
@@ -785,6 +786,59 @@ println("Doc ID2 $documentId")
     }
   }
   
+  // protected static final String ACTION_DOCS_AFTER_BIN = "documentsAfterBin";
+  /**
+   * Gets a page of result documents (IDs and scores), in ranking order, 
+   * following the document with the given score and ID (see 
+   * {@link QueryRunner#getDocumentsAfter(double, long, int)}). The result is
+   * a serialised {@link DocumentsPage} value.
+   */
+  def documentsAfterBin() {
+    def p = params["request"] ?: params
+    //get the query ID
+    String queryId = p["queryId"]
+    QueryRunner runner = searchService.getQueryRunner(queryId);
+    if(runner){
+      def afterScoreParam = p["afterScore"]
+      def afterDocumentIdParam = p["afterDocumentId"]
+      def sizeParam = p["size"]
+      if(afterScoreParam && afterDocumentIdParam && sizeParam) {
+        double afterScore
+        long afterDocumentId
+        int resultSize
+        try {
+          afterScore = Double.parseDouble(afterScoreParam)
+          afterDocumentId = afterDocumentIdParam as long
+          resultSize = sizeParam as int
+        } catch(NumberFormatException e) {
+          response.sendError(HttpServletResponse.SC_BAD_REQUEST,
+              "Invalid value provided for parameter afterScore, " +
+              "afterDocumentId or size!")
+          return
+        }
+        try {
+          DocumentsPage page = runner.getDocumentsAfter(afterScore, 
+              afterDocumentId, resultSize)
+          new ObjectOutputStream (response.outputStream).withStream {stream ->
+            stream.writeObject(page)
+          }
+        } catch(Exception e){
+          log.warn("Error while sending documents page", e)
+          response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+              "Error while obtaining the documents: \"" +
+              e.getMessage() + "\"!")
+        }
+      } else {
+        response.sendError(HttpServletResponse.SC_BAD_REQUEST,
+            "You must supply values for parameters afterScore, " +
+            "afterDocumentId and size!")
+      }
+    } else {
+      response.sendError(HttpServletResponse.SC_NOT_FOUND,
+          "Query ID ${queryId} not known!")
+    }
+  }
+  
   /**
    * Retrieves the hits within a given result document.
    */